@@ -0,0 +1,74 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/*  Cost to a request thread of logging one request: a synchronous println, as the handler
+*   used to do, against AsyncLog.access.  Both sinks discard their output, so this measures
+*   the logging path itself rather than the speed of the device behind stderr.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessLogBenchmark {
+
+    @Param({"drop", "block"})
+    public String overflow;
+
+    private PrintStream stream;
+    private AsyncLog log;
+    private final InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 50000);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        stream = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+        log = new AsyncLog(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {}
+            @Override
+            public void flush() {}
+            @Override
+            public void close() {}
+        }, AsyncLog.DEFAULT_CAPACITY, AsyncLog.Overflow.fromName(overflow), 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        log.close();
+    }
+
+    @Benchmark
+    public void println() {
+        stream.println("exchange.getRemoteAddress()" + remote);
+    }
+
+    @Benchmark
+    public boolean async() {
+        return log.access("GET", "/subnets", 200, 52, 310000, remote);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void printlnContended() {
+        println();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean asyncContended() {
+        return async();
+    }
+}
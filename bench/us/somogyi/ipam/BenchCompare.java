@@ -0,0 +1,72 @@
+package us.somogyi.ipam;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*  Compare two JMH JSON result files (-rf json), e.g. from the parent commit and this one:
+*       java -cp target/benchmarks.jar us.somogyi.ipam.BenchCompare base.json new.json [percent]
+*   Prints the change of every benchmark present in both, and exits with status 1 if any
+*   got worse by more than 'percent' (default 10) - slower for time modes, lower for
+*   throughput - so a build can fail on regressions.
+ */
+public class BenchCompare {
+
+    static final double DEFAULT_THRESHOLD = 10.0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: BenchCompare <base.json> <new.json> [threshold percent]");
+            System.exit(2);
+        }
+        double threshold = (args.length == 3) ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+        Map<String, JSONObject> base = load(args[0]);
+        Map<String, JSONObject> current = load(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JSONObject> entry : current.entrySet()) {
+            JSONObject before = base.get(entry.getKey());
+            if (before == null)
+                continue;
+            double oldScore = before.getJSONObject("primaryMetric").getDouble("score");
+            double newScore = entry.getValue().getJSONObject("primaryMetric").getDouble("score");
+            String unit = entry.getValue().getJSONObject("primaryMetric").getString("scoreUnit");
+
+            // Positive change is an improvement: less time per op, or more ops per time
+            double change = (oldScore == 0) ? 0 : 100.0 * (newScore - oldScore) / oldScore;
+            if (!"thrpt".equals(entry.getValue().getString("mode")))
+                change = -change;
+
+            boolean regressed = change < -threshold;
+            if (regressed)
+                regressions++;
+            System.out.printf("%-90s %12.3f %12.3f %-10s %+7.1f%%%s%n", entry.getKey(),
+                    oldScore, newScore, unit, change, regressed ? "  REGRESSION" : "");
+        }
+
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    // Results keyed by benchmark name and parameters, e.g. "...StoreBenchmark.query{size=1000}"
+    static Map<String, JSONObject> load(String file) throws IOException {
+        JSONArray results = new JSONArray(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+        Map<String, JSONObject> keyed = new LinkedHashMap<>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            Map<String, Object> params = new TreeMap<>();
+            if (result.has("params"))
+                params.putAll(result.getJSONObject("params").toMap());
+            keyed.put(result.getString("benchmark") + params, result);
+        }
+        return keyed;
+    }
+}
@@ -0,0 +1,37 @@
+package us.somogyi.ipam;
+
+import java.util.Random;
+
+/*  Deterministic benchmark inputs: distinct CIDRs with a given share of IPV6 subnets,
+*   so that every benchmark sees the same data for the same parameters.
+ */
+class BenchData {
+
+    private BenchData() {}
+
+    // 'count' distinct CIDRs, of which about ipv6Percent are IPV6, in a seeded random order
+    static String[] cidrs(int count, int ipv6Percent, long seed) {
+        Random random = new Random(seed);
+        String[] cidrs = new String[count];
+        for (int i = 0; i < count; i++)
+            cidrs[i] = (random.nextInt(100) < ipv6Percent) ? v6Cidr(i) : v4Cidr(i);
+        return cidrs;
+    }
+
+    static IpamSubnet[] subnets(String[] cidrs) {
+        IpamSubnet[] subnets = new IpamSubnet[cidrs.length];
+        for (int i = 0; i < cidrs.length; i++)
+            subnets[i] = IpamSubnet.fromCidr(cidrs[i]);
+        return subnets;
+    }
+
+    // The i-th /28 of 10.0.0.0/8, up to 2^20 distinct subnets
+    static String v4Cidr(int i) {
+        return "10." + ((i >>> 12) & 0xFF) + "." + ((i >>> 4) & 0xFF) + "." + ((i & 0xF) << 4) + "/28";
+    }
+
+    // The i-th /64 of 2001:db8::/32
+    static String v6Cidr(int i) {
+        return "2001:db8:" + Integer.toHexString(i >>> 16) + ":" + Integer.toHexString(i & 0xFFFF) + "::/64";
+    }
+}
@@ -0,0 +1,192 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  The binary protocol against the JSON API over HTTP, for a single client on one
+*   persistent connection: 'binary' is IpamClient and BinaryServer, 'http' and 'nio' a
+*   minimal keep-alive HTTP client against HttpServer and NioHttpServer.  get finds one of
+*   'size' stored subnets (over HTTP, GET /lookup?address=<its network address>, the JSON
+*   API's indexed lookup); add stores a new subnet (POST /subnets) and deletes it again
+*   through the repo.
+*
+*   The time is per-op latency.  Each iteration also prints the process CPU time per op,
+*   client and server together as they share the JVM; the client's share is small for
+*   both protocols, so the difference is mostly the server's parsing and encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // subnets added and deleted, power of two
+
+    @Param({"binary", "http", "nio"})
+    public String api;
+
+    @Param({"100000"})
+    public int size;
+
+    private IpamSubnet[] stored;
+    private IpamSubnet[] extra;
+    private ExecutorService executor;
+    private Closeable server;
+    private IpamClient binary;
+    private Socket socket;
+    private OutputStream httpOut;
+    private InputStream httpIn;
+    private int next;
+
+    private final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private long cpuStart;
+    private long opsStart;
+    private long ops;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + EXTRA, 20, 5));
+        stored = new IpamSubnet[size];
+        extra = new IpamSubnet[EXTRA];
+        System.arraycopy(subnets, 0, stored, 0, size);
+        System.arraycopy(subnets, size, extra, 0, EXTRA);
+
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        for (IpamSubnet subnet : stored)
+            IpamServer.repo.AddSubnet(subnet);
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        int port;
+        if (api.equals("binary")) {
+            BinaryServer listener = new BinaryServer(IpamServer.repo, address, null);
+            server = listener;
+            binary = new IpamClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getPort()));
+            return;
+        }
+        executor = ExecutionMode.FIXED.newExecutor(IpamServer.DEFAULT_THREADS, IpamServer.DEFAULT_QUEUE);
+        if (api.equals("nio")) {
+            NioHttpServer nio = IpamServer.startNioServer(address, 0, 1, executor, null, null);
+            server = nio;
+            port = nio.getAddress().getPort();
+        } else {
+            System.setProperty(IpamServer.PROP_NODELAY, "true");
+            com.sun.net.httpserver.HttpServer http = IpamServer.startServer(address, 0, executor);
+            server = () -> http.stop(0);
+            port = http.getAddress().getPort();
+        }
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        httpOut = new BufferedOutputStream(socket.getOutputStream());
+        httpIn = new BufferedInputStream(socket.getInputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        if (binary != null)
+            binary.close();
+        if (socket != null)
+            socket.close();
+        server.close();
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    @Setup(Level.Iteration)
+    public void startCpu() {
+        cpuStart = os.getProcessCpuTime();
+        opsStart = ops;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printCpu() {
+        long count = ops - opsStart;
+        if (count > 0)
+            System.out.printf(" [cpu %.2f us/op]", (os.getProcessCpuTime() - cpuStart) / 1000.0 / count);
+    }
+
+    @Benchmark
+    public Object get() throws IOException {
+        ops++;
+        IpamSubnet subnet = stored[Math.floorMod(next++, size)];
+        if (binary != null)
+            return binary.get(subnet);
+        String cidr = subnet.getCidr();
+        return http("GET /lookup?address=" + cidr.substring(0, cidr.indexOf('/')) + " HTTP/1.1\r\nHost: ipam\r\n\r\n");
+    }
+
+    @Benchmark
+    public Object add() throws IOException {
+        ops++;
+        IpamSubnet subnet = extra[next++ & (EXTRA - 1)];
+        Object result;
+        if (binary != null) {
+            result = binary.add(subnet);
+        } else {
+            String body = "{\"cidr\":\"" + subnet.getCidr() + "\"}";
+            result = http("POST /subnets HTTP/1.1\r\nHost: ipam\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+        }
+        Optional<IpamRecord> deleted = IpamServer.repo.DeleteSubnet(subnet);
+        return (deleted.isPresent()) ? result : null;
+    }
+
+    // Send one request and read its response, with a Content-Length or chunked body
+    private String http(String request) throws IOException {
+        httpOut.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        httpOut.flush();
+
+        String status = line();
+        int length = -1;
+        boolean chunked = false;
+        for (String header = line(); !header.isEmpty(); header = line()) {
+            String lower = header.toLowerCase();
+            if (lower.startsWith("content-length:"))
+                length = Integer.parseInt(lower.substring(15).trim());
+            else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                chunked = true;
+        }
+        if (!chunked) {
+            skip(length);
+        } else {
+            for (int chunk = Integer.parseInt(line(), 16); chunk > 0; chunk = Integer.parseInt(line(), 16)) {
+                skip(chunk);
+                line();
+            }
+            line();
+        }
+        return status;
+    }
+
+    private String line() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = httpIn.read(); c != '\n'; c = httpIn.read()) {
+            if (c < 0)
+                throw new EOFException("Server closed the connection");
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private void skip(int length) throws IOException {
+        for (int left = length; left > 0; ) {
+            long skipped = httpIn.skip(left);
+            if (skipped <= 0)
+                throw new EOFException("Server closed the connection");
+            left -= skipped;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  BackingStoreCache in front of a deliberately slow store: SlowStore answers lookups
+*   after spinning for 'latencyMicros', standing in for a store across the network.
+*   Lookups follow a skewed distribution over 'size' stored subnets (key i is drawn with
+*   probability falling off as a power law, about half of them from the first 10% of keys),
+*   and a 'cacheSize' of 0 runs without the cache for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    private static final int DRAWS = 1 << 16;   // precomputed key draws, power of two
+
+    @Param({"0", "1000", "10000"})
+    public int cacheSize;
+
+    @Param({"0", "20"})
+    public int latencyMicros;
+
+    @Param({"100000"})
+    public int size;
+
+    // Spins before every lookup, so the cost of a miss is fixed and visible
+    static class SlowStore extends BackingStoreConcurrent {
+        private final long latencyNanos;
+
+        SlowStore(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public Optional<IpamRecord> querySubnet(IpamSubnet net) {
+            spin();
+            return super.querySubnet(net);
+        }
+
+        @Override
+        public Optional<IpamRecord> querySubnetById(Integer id) {
+            spin();
+            return super.querySubnetById(id);
+        }
+
+        private void spin() {
+            long end = System.nanoTime() + latencyNanos;
+            while (System.nanoTime() < end)
+                Thread.onSpinWait();
+        }
+    }
+
+    private BackingStore target;
+    private IpamSubnet[] draws;
+    private Integer[] idDraws;
+    private IpamSubnet[] absent;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + DRAWS, 0, 3));
+        SlowStore store = new SlowStore(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+        for (int i = 0; i < size; i++)
+            store.putSubnet(subnets[i]);
+        target = (cacheSize > 0) ? new BackingStoreCache(store, cacheSize) : store;
+
+        Random random = new Random(4);
+        draws = new IpamSubnet[DRAWS];
+        idDraws = new Integer[DRAWS];
+        absent = new IpamSubnet[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            int key = (int) (size * Math.pow(random.nextDouble(), 4));
+            draws[i] = subnets[key];
+            idDraws[i] = key + 1;
+            // absent lookups repeat a small set, as retries of a missing subnet do
+            absent[i] = subnets[size + random.nextInt(100)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> query(Cursor cursor) throws BackingStoreException {
+        return target.querySubnet(draws[cursor.next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> queryById(Cursor cursor) throws BackingStoreException {
+        return target.querySubnetById(idDraws[cursor.next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> queryAbsent(Cursor cursor) throws BackingStoreException {
+        return target.querySubnet(absent[cursor.next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<IpamRecord> queryContended(Cursor cursor) throws BackingStoreException {
+        return target.querySubnet(draws[cursor.next++ & (DRAWS - 1)]);
+    }
+}
@@ -0,0 +1,160 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*  The HttpServer front end on each ExecutionMode, and on its dispatcher thread alone:
+*   16 keep-alive clients, each a benchmark thread with one blocking connection, send
+*   GET /subnets?family=4 over 'size' subnets and read the whole response.  Sample time
+*   gives the latency percentiles; run with -bm thrpt for requests per second.
+*
+*   'nodelay' sets sun.net.httpserver.nodelay, which HttpServer reads once per JVM, so
+*   each fork measures one setting: with it off, Nagle and delayed ACK hold back the body
+*   HttpServer writes after the headers.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+    @Param({"dispatcher", "fixed", "work-stealing", "virtual"})
+    public String executor;
+
+    @Param({"8"})
+    public int threads;
+
+    @Param({"200"})
+    public int size;
+
+    @Param({"true"})
+    public String nodelay;
+
+    private ExecutorService pool;
+    private com.sun.net.httpserver.HttpServer server;
+
+    // One keep-alive connection per benchmark thread
+    @State(Scope.Thread)
+    public static class Client {
+
+        private static final byte[] REQUEST = ("GET " + IpamServer.SUBNETSPATH + "?family=4 HTTP/1.1\r\n"
+                + "Host: ipam\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        @Setup(Level.Trial)
+        public void connect(ExecutorBenchmark benchmark) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), benchmark.server.getAddress().getPort());
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            socket.close();
+        }
+
+        // Send one request and read its response; the number of body bytes
+        int exchange() throws IOException {
+            out.write(REQUEST);
+            out.flush();
+
+            String status = line();
+            if (!status.startsWith("HTTP/1.1 200"))
+                throw new IllegalStateException("Unexpected response: " + status);
+            int length = -1;
+            boolean chunked = false;
+            for (String header = line(); !header.isEmpty(); header = line()) {
+                String lower = header.toLowerCase();
+                if (lower.startsWith("content-length:"))
+                    length = Integer.parseInt(lower.substring(15).trim());
+                else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                    chunked = true;
+            }
+            if (!chunked) {
+                if (length < 0)
+                    throw new IllegalStateException("Response without Content-Length or chunked body");
+                skip(length);
+                return length;
+            }
+
+            int total = 0;
+            for (int chunk = chunk(); chunk > 0; chunk = chunk()) {
+                skip(chunk);
+                line();
+                total += chunk;
+            }
+            line();
+            return total;
+        }
+
+        private int chunk() throws IOException {
+            String line = line();
+            int extension = line.indexOf(';');
+            return Integer.parseInt((extension < 0) ? line.trim() : line.substring(0, extension).trim(), 16);
+        }
+
+        private void skip(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                if (in.read() < 0)
+                    throw new EOFException("Server closed a keep-alive connection");
+            }
+        }
+
+        private String line() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0)
+                    throw new EOFException("Server closed a keep-alive connection");
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BackingStoreException {
+        System.setProperty(IpamServer.PROP_NODELAY, nodelay);
+
+        IpamServer.repo = new IpamRepo(IpamServer.CreateStore("concurrent"));
+        for (String cidr : BenchData.cidrs(size, 0, 4))
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr(cidr));
+        IpamServer.listings = null;
+
+        // The dispatcher runs each handler itself, as HttpServer does without an executor
+        Executor run = Runnable::run;
+        if (!executor.equals("dispatcher")) {
+            pool = ExecutionMode.fromName(executor).newExecutor(threads, IpamServer.DEFAULT_QUEUE);
+            run = pool;
+        }
+        server = IpamServer.startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096, run);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        server.stop(0);
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Benchmark
+    public int list(Client client) throws IOException {
+        return client.exchange();
+    }
+}
@@ -0,0 +1,176 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*  The HTTP front ends under many concurrent keep-alive connections: HttpServer against
+*   NioHttpServer with 'loops' event loops, both on the default FIXED executor.  'connections'
+*   clients stay connected for the whole trial; one round sends 'depth' pipelined /lookup
+*   requests on every connection and waits for every response, so a round's time over
+*   connections * depth is the cost per request, and its spread is the tail.
+*
+*   The client is a single selector thread in the same JVM, holding one file descriptor per
+*   connection beside the server's one: 'connections' is bounded by half the descriptor
+*   limit (ulimit -n).  HttpServer closes idle connections past sun.net.httpserver.
+*   maxIdleConnections (200 by default) between rounds; setup raises it to 'connections' so
+*   both front ends are measured on persistent connections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrontEndBenchmark {
+
+    private static final long ROUNDTIMEOUT = 30000;     // milliseconds without a response before giving up
+
+    @Param({"httpserver", "nio"})
+    public String frontend;
+
+    @Param({"100", "1000", "9000"})
+    public int connections;
+
+    @Param({"1", "8"})
+    public int depth;
+
+    @Param({"1"})
+    public int loops;
+
+    @Param({"100000"})
+    public int size;
+
+    private ExecutorService executor;
+    private Closeable server;
+    private Selector selector;
+    private Client[] clients;
+    private int expected;
+    private int received;
+
+    // One client connection: its pipelined requests, and the unread part of its responses
+    private final class Client {
+        final SocketChannel channel;
+        final ByteBuffer requests;
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+
+        Client(SocketChannel channel, byte[] requests) {
+            this.channel = channel;
+            this.requests = ByteBuffer.wrap(requests);
+        }
+
+        void send() throws IOException {
+            requests.rewind();
+            while (requests.hasRemaining())
+                channel.write(requests);
+        }
+
+        void receive() throws IOException {
+            if (channel.read(in) < 0)
+                throw new IllegalStateException("Server closed a keep-alive connection");
+            in.flip();
+            int length;
+            while ((length = responseLength(in)) > 0 && in.remaining() >= length) {
+                in.position(in.position() + length);
+                received++;
+            }
+            in.compact();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BackingStoreException {
+        System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(connections));
+        if (System.getProperty(IpamServer.PROP_NODELAY) == null)
+            System.setProperty(IpamServer.PROP_NODELAY, "true");
+
+        String[] cidrs = BenchData.cidrs(size, 0, 4);
+        IpamServer.repo = new IpamRepo(IpamServer.CreateStore("concurrent"));
+        for (String cidr : cidrs)
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr(cidr));
+        IpamServer.listings = null;
+
+        executor = ExecutionMode.FIXED.newExecutor(IpamServer.DEFAULT_THREADS, IpamServer.DEFAULT_QUEUE);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        int port;
+        if (frontend.equals("nio")) {
+            NioHttpServer nio = IpamServer.startNioServer(address, 4096, loops, executor, null, null);
+            server = nio;
+            port = nio.getAddress().getPort();
+        } else {
+            com.sun.net.httpserver.HttpServer http = IpamServer.startServer(address, 4096, executor);
+            server = () -> http.stop(0);
+            port = http.getAddress().getPort();
+        }
+
+        selector = Selector.open();
+        clients = new Client[connections];
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+
+            StringBuilder requests = new StringBuilder();
+            for (int d = 0; d < depth; d++) {
+                String cidr = cidrs[(i * depth + d) % size];
+                requests.append("GET /lookup?address=").append(cidr, 0, cidr.indexOf('/'))
+                        .append(" HTTP/1.1\r\nHost: ipam\r\n\r\n");
+            }
+            clients[i] = new Client(channel, requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+            channel.register(selector, SelectionKey.OP_READ, clients[i]);
+        }
+        expected = connections * depth;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        for (Client client : clients)
+            client.channel.close();
+        selector.close();
+        server.close();
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int round() throws IOException {
+        received = 0;
+        for (Client client : clients)
+            client.send();
+        while (received < expected) {
+            if (selector.select(ROUNDTIMEOUT) == 0)
+                throw new IllegalStateException("No response within " + ROUNDTIMEOUT + " ms: " + received + " of " + expected);
+            for (SelectionKey key : selector.selectedKeys())
+                ((Client) key.attachment()).receive();
+            selector.selectedKeys().clear();
+        }
+        return received;
+    }
+
+    // Length of the complete response header plus Content-Length body at the buffer's position, or 0
+    private static int responseLength(ByteBuffer in) {
+        byte[] bytes = in.array();
+        int start = in.position();
+        for (int i = start; i + 3 < in.limit(); i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                String head = new String(bytes, start, i - start, StandardCharsets.ISO_8859_1).toLowerCase();
+                int header = head.indexOf("\r\ncontent-length:");
+                if (header < 0)
+                    throw new IllegalStateException("Response without Content-Length: " + head);
+                int end = head.indexOf('\r', header + 2);
+                int length = Integer.parseInt(head.substring(header + 17, (end < 0) ? head.length() : end).trim());
+                return i + 4 - start + length;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,123 @@
+package us.somogyi.ipam;
+
+import com.sun.net.httpserver.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/*  Cost of request metrics: SubnetHandler.handle for a single subnet GET, against an
+*   in-memory exchange, with metrics on (route metrics and a BackingStoreMetrics store)
+*   and off; and the cost of RouteMetrics.record alone, from 1 and 4 threads.
+*   The handler's connection logging to System.err is discarded during the run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandlerBenchmark {
+
+    private static final int SIZE = 10000;
+
+    @Param({"on", "off"})
+    public String metrics;
+
+    private IpamServer.SubnetHandler handler;
+    private IpamMetrics.RouteMetrics route;
+    private URI[] uris;
+    private PrintStream stderr;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        String[] cidrs = BenchData.cidrs(SIZE, 50, 4);
+        IpamMetrics registry = new IpamMetrics();
+        BackingStore store = new BackingStoreConcurrent();
+        if (metrics.equals("on")) {
+            store = new BackingStoreMetrics(store, registry);
+            route = registry.route(IpamServer.SUBNETSPATH);
+        } else {
+            route = new IpamMetrics().route(IpamServer.SUBNETSPATH);
+        }
+        handler = new IpamServer.SubnetHandler(metrics.equals("on") ? route : null);
+
+        IpamServer.repo = new IpamRepo(store);
+        uris = new URI[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr(cidrs[i]));
+            uris[i] = URI.create(IpamServer.SUBNETSPATH + "?network=" + cidrs[i]);
+        }
+
+        stderr = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setErr(stderr);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public int handleGet(Cursor cursor) {
+        Exchange exchange = new Exchange("GET", uris[cursor.next++ % SIZE]);
+        handler.handle(exchange);
+        return exchange.getResponseCode();
+    }
+
+    @Benchmark
+    public void record(Cursor cursor) {
+        route.record("GET", 200, cursor.next++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Cursor cursor) {
+        route.record("GET", 200, cursor.next++ & 0xFFFFF);
+    }
+
+    // Minimal in-memory exchange: an empty request body, and a response body that is discarded
+    static class Exchange extends HttpExchange {
+        private final String method;
+        private final URI uri;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        private int responseCode = -1;
+
+        Exchange(String method, URI uri) {
+            this.method = method;
+            this.uri = uri;
+        }
+
+        @Override public Headers getRequestHeaders() { return requestHeaders; }
+        @Override public Headers getResponseHeaders() { return responseHeaders; }
+        @Override public URI getRequestURI() { return uri; }
+        @Override public String getRequestMethod() { return method; }
+        @Override public HttpContext getHttpContext() { return null; }
+        @Override public void close() {}
+        @Override public InputStream getRequestBody() { return new ByteArrayInputStream(new byte[0]); }
+        @Override public OutputStream getResponseBody() { return responseBody; }
+        @Override public void sendResponseHeaders(int code, long length) { responseCode = code; }
+        @Override public InetSocketAddress getRemoteAddress() { return null; }
+        @Override public int getResponseCode() { return responseCode; }
+        @Override public InetSocketAddress getLocalAddress() { return null; }
+        @Override public String getProtocol() { return "HTTP/1.1"; }
+        @Override public Object getAttribute(String name) { return null; }
+        @Override public void setAttribute(String name, Object value) {}
+        @Override public void setStreams(InputStream i, OutputStream o) {}
+        @Override public HttpPrincipal getPrincipal() { return null; }
+    }
+}
@@ -0,0 +1,57 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*  Id allocation from one thread per core (override with -t).  'sequential' is the
+*   in-memory counter; 'leased' takes blocks of 'block' ids from an IdLeaseFile in a
+*   temporary directory, so one allocation in 'block' pays for a file lock and an fsync.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdAllocatorBenchmark {
+
+    @Param({"sequential", "leased"})
+    public String allocator;
+
+    @Param({"64", "4096"})
+    public int block;
+
+    private Path dir;
+    private IdLeaseFile leases;
+    private IdAllocator ids;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException, BackingStoreException {
+        if (allocator.equals("sequential")) {
+            ids = new IdAllocator.Sequential();
+            return;
+        }
+        dir = Files.createTempDirectory("ipam-idlease");
+        leases = new IdLeaseFile(dir.resolve("ipam.idlease"));
+        ids = new LeasedIdAllocator(leases, block);
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() throws IOException {
+        if (leases == null)
+            return;
+        leases.close();
+        Files.deleteIfExists(dir.resolve("ipam.idlease"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allocate() throws BackingStoreException {
+        return ids.allocate();
+    }
+}
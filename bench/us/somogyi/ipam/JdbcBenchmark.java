@@ -0,0 +1,114 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStore.filterSpec;
+import static us.somogyi.ipam.BackingStore.filterSpecBuilder;
+
+/*  BackingStoreJdbc over embedded, in-memory H2 against BackingStoreMemory, both preloaded
+*   with 'size' subnets.  putEach and putBatch store the same BATCH subnets that are not
+*   preloaded - one putSubnet at a time, or one putSubnets batch - and delete them again,
+*   so the difference between them is what batching saves.  filterNetwork lists the 256
+*   subnets of a /20 through a filterSpec, which the jdbc store runs as an index range scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JdbcBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // subnets put and deleted, power of two
+    private static final int BATCH = 256;
+
+    @Param({"memory", "jdbc"})
+    public String store;
+
+    @Param({"100000"})
+    public int size;
+
+    private BackingStore target;
+    private IpamSubnet[] stored;
+    private IpamSubnet[] extra;
+    private filterSpec[] networks;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + EXTRA, 0, 2));
+        stored = Arrays.copyOfRange(subnets, 0, size);
+        extra = Arrays.copyOfRange(subnets, size, size + EXTRA);
+
+        // The /20s holding preloaded subnets (see BenchData.v4Cidr)
+        networks = new filterSpec[size >>> 8];
+        for (int i = 0; i < networks.length; i++)
+            networks[i] = new filterSpecBuilder().network("10." + (i >>> 4) + "." + ((i & 0xF) << 4) + ".0/20").buildFilterSpec();
+
+        target = store.equals("jdbc") ? new BackingStoreJdbc("jdbc:h2:mem:bench") : new BackingStoreMemory();
+        for (int i = 0; i < size; i += BATCH)
+            target.putSubnets(Arrays.asList(stored).subList(i, Math.min(i + BATCH, size)));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        if (target instanceof BackingStoreJdbc)
+            ((BackingStoreJdbc) target).close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Optional<IpamRecord> query() throws BackingStoreException {
+        return target.querySubnet(stored[Math.floorMod(next++, size)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Optional<IpamRecord> putDelete() throws BackingStoreException {
+        IpamSubnet net = extra[next++ & (EXTRA - 1)];
+        target.putSubnet(net);
+        return target.deleteSubnet(net);
+    }
+
+    @Benchmark
+    public List<IpamRecord> filterNetwork() throws BackingStoreException {
+        return target.queryAllSubnets(networks[Math.floorMod(next++, networks.length)]);
+    }
+
+    @Benchmark
+    public int putEach() throws BackingStoreException {
+        List<IpamSubnet> batch = nextBatch();
+        for (IpamSubnet net : batch)
+            target.putSubnet(net);
+        return deleteAll(batch);
+    }
+
+    @Benchmark
+    public int putBatch() throws BackingStoreException {
+        List<IpamSubnet> batch = nextBatch();
+        target.putSubnets(batch);
+        return deleteAll(batch);
+    }
+
+    private List<IpamSubnet> nextBatch() {
+        int start = (next++ * BATCH) & (EXTRA - 1);
+        return new ArrayList<>(Arrays.asList(extra).subList(start, start + BATCH));
+    }
+
+    private int deleteAll(List<IpamSubnet> batch) throws BackingStoreException {
+        int deleted = 0;
+        for (IpamSubnet net : batch) {
+            if (target.deleteSubnet(net).isPresent())
+                deleted++;
+        }
+        return deleted;
+    }
+}
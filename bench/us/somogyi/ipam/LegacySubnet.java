@@ -0,0 +1,172 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.net.InetAddresses;
+import javafx.util.Pair;
+
+import java.net.InetAddress;
+
+import static us.somogyi.ipam.IpamSubnet.Family.IPV4;
+import static us.somogyi.ipam.IpamSubnet.Family.IPV6;
+
+/*  IpamSubnet as it was before the primitive hi/lo encoding and the single-pass CidrParser,
+*   kept as the comparison case for SubnetBenchmark and ParseBenchmark: the network number
+*   is an InetAddress, compareTo and hashCode allocate, and parsing goes through split("/"),
+*   Integer.valueOf and InetAddresses, validating by catching exceptions.
+ */
+class LegacySubnet implements Comparable<LegacySubnet> {
+
+    private final SubnetHolder SubnetInfo;
+
+    // Inner rather than static, as it was, so the heap per subnet is unchanged
+    private class SubnetHolder {
+        final InetAddress subnetId;
+        final int mask;
+        final IpamSubnet.Family family;
+
+        private SubnetHolder (InetAddress network, int mask) {
+            this.subnetId = network;
+            this.mask = mask;
+            if (this.subnetId.getAddress().length == 4) this.family = IPV4;
+            else this.family = IPV6;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SubnetHolder subnet = (SubnetHolder) o;
+            return mask == subnet.mask &&
+                    Objects.equal(subnetId, subnet.subnetId) &&
+                    family == subnet.family;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(subnetId, mask, family);
+        }
+    }
+
+    private LegacySubnet (InetAddress netAddr, int mask) {
+        this.SubnetInfo = new SubnetHolder(netAddr, mask);
+    }
+
+    public static LegacySubnet fromCidr(String cidr) throws IllegalArgumentException {
+        Pair<Boolean, String> valid = isValidCIDR(cidr);
+        if(!valid.getKey())
+            throw new IllegalArgumentException(valid.getValue());
+        else {
+            Pair<String, Integer> parsedCidr = parseCIDR(valid.getValue());
+            InetAddress subnetId = InetAddresses.forString(parsedCidr.getKey());
+            return new LegacySubnet(subnetId, parsedCidr.getValue());
+        }
+    }
+
+    /*  The validation a single subnet POST used to run: ValidateJsonSubnet and
+    *   processPostRequest each called isValidCIDR, then fromCidr validated and parsed again.
+     */
+    public static LegacySubnet fromPost(String cidr) throws IllegalArgumentException {
+        if (!isValidCIDR(cidr).getKey())
+            throw new IllegalArgumentException("Invalid subnet specification: " + cidr);
+        Pair<Boolean, String> valid = isValidCIDR(cidr);
+        if (!valid.getKey())
+            throw new IllegalArgumentException(valid.getValue());
+        return fromCidr(valid.getValue());
+    }
+
+    public static Pair<Boolean,String> isValidCIDR(String cidr) {
+        Preconditions.checkNotNull(cidr, "isValidateSubnet: Invalid null reference - input");
+
+        try {
+            parseCIDR(cidr);
+        } catch (IllegalArgumentException e) {
+            return new Pair<>(false, e.getMessage());
+        }
+
+        return new Pair<>(true, cidr);
+    }
+
+    public static Pair<String, Integer> parseCIDR (String cidr) throws IllegalArgumentException {
+        String[] parts;
+        String network;
+        int mask;
+
+        parts = cidr.split("/");
+        if (parts == null || parts.length != 2)
+            throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": invalid format");
+
+        network = parts[0];
+        mask = Integer.valueOf(parts[1]);
+
+        if (!InetAddresses.isInetAddress(network))
+            throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": illegal network number");
+
+        int family;
+        switch (InetAddresses.forString(network).getAddress().length) {
+            case 4:
+                family = 4;
+                break;
+            case 16:
+                family = 6;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": illegal network number");
+        }
+
+        if (mask < IpamSubnet.MASKMIN ||
+                (family == 4 && mask >= IpamSubnet.V4MASKMAX) ||
+                (family == 6 && mask >= IpamSubnet.V6MASKMAX) ) {
+            throw new IllegalArgumentException("Invalid CIDR Specified " + cidr + ": illegal mask length");
+        }
+
+        return new Pair<>(network, mask);
+    }
+
+    public String getCidr() {
+        return this.SubnetInfo.subnetId.toString().substring(1) + "/" + this.SubnetInfo.mask;
+    }
+
+    @Override
+    public int compareTo(LegacySubnet o) {
+        byte[] ba1 = this.SubnetInfo.subnetId.getAddress();
+        byte[] ba2 = o.SubnetInfo.subnetId.getAddress();
+
+        // general ordering: ipv4 before ipv6
+        if(ba1.length < ba2.length) return -1;
+        if(ba1.length > ba2.length) return 1;
+
+        // we have 2 ips of the same type, so we have to compare each byte
+        for(int i = 0; i < ba1.length; i++) {
+            int b1 = ba1[i] & 0xFF;
+            int b2 = ba2[i] & 0xFF;
+            if(b1 == b2)
+                continue;
+            if(b1 < b2)
+                return -1;
+            else
+                return 1;
+        }
+        Integer mask1 = this.SubnetInfo.mask;
+        Integer mask2 = o.SubnetInfo.mask;
+        if ( mask1 < mask2 )
+            return -1;
+        else if (mask1 > mask2)
+            return 1;
+
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LegacySubnet)) return false;
+        LegacySubnet that = (LegacySubnet) o;
+        return Objects.equal(SubnetInfo, that.SubnetInfo);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(SubnetInfo);
+    }
+}
@@ -0,0 +1,73 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/*  An unchanged GET /subnets poll of 'size' subnets through SubnetHandler.handle, against
+*   an in-memory exchange whose response body is discarded: rebuilt from the store
+*   (uncached, no listing cache), sent from the listing cache (cached), or answered 304
+*   for the ETag of the previous poll (notModified).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+    private static final URI LISTING = URI.create(IpamServer.SUBNETSPATH);
+
+    @Param({"uncached", "cached", "notModified"})
+    public String mode;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private IpamServer.SubnetHandler handler;
+    private String etag;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        for (String cidr : BenchData.cidrs(size, 50, 5))
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr(cidr));
+        IpamServer.listings = mode.equals("uncached") ? null : new ListingCache(IpamServer.DEFAULT_LISTINGCACHE);
+        handler = new IpamServer.SubnetHandler();
+
+        Exchange first = new Exchange(null);
+        handler.handle(first);
+        etag = mode.equals("notModified") ? first.getResponseHeaders().getFirst(IpamServer.HEADER_ETAG) : null;
+    }
+
+    @Benchmark
+    public int poll() {
+        Exchange exchange = new Exchange(etag);
+        handler.handle(exchange);
+        return exchange.getResponseCode();
+    }
+
+    // GET of the full listing, with If-None-Match unless etag is null
+    static class Exchange extends HandlerBenchmark.Exchange {
+        private static final OutputStream DISCARD = new OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+
+        Exchange(String etag) {
+            super("GET", LISTING);
+            if (etag != null)
+                getRequestHeaders().set(IpamServer.HEADER_IFNONEMATCH, etag);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return DISCARD;
+        }
+    }
+}
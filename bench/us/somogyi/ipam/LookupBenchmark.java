@@ -0,0 +1,81 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Longest prefix match of host addresses against a repo of 'size' stored subnets (IPV4
+*   /28s or IPV6 /64s, see BenchData), through IpamRepo.LookupAddress.  Addresses are
+*   parsed in setup; lookupMiss uses addresses outside every stored subnet, and parse
+*   measures IpamSubnet.tryFromAddress on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+
+    private static final int DRAWS = 1 << 16;   // power of two
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"0", "100"})
+    public int ipv6Percent;
+
+    private IpamRepo repo;
+    private IpamSubnet[] hits;
+    private IpamSubnet[] misses;
+    private String[] texts;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] cidrs = BenchData.cidrs(size, ipv6Percent, 6);
+        repo = new IpamRepo(new BackingStoreConcurrent());
+        for (String cidr : cidrs)
+            repo.AddSubnet(IpamSubnet.fromCidr(cidr));
+
+        Random random = new Random(7);
+        hits = new IpamSubnet[DRAWS];
+        misses = new IpamSubnet[DRAWS];
+        texts = new String[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            String network = cidrs[random.nextInt(size)];
+            network = network.substring(0, network.indexOf('/'));
+            texts[i] = (network.indexOf(':') >= 0)
+                    ? network + Integer.toHexString(1 + random.nextInt(0xFFFF))
+                    : network.substring(0, network.lastIndexOf('.') + 1)
+                            + (Integer.parseInt(network.substring(network.lastIndexOf('.') + 1)) + random.nextInt(16));
+            hits[i] = IpamSubnet.tryFromAddress(texts[i]).get();
+            misses[i] = IpamSubnet.tryFromAddress((ipv6Percent == 100)
+                    ? "2001:db9::" + Integer.toHexString(random.nextInt(0xFFFF))
+                    : "11.0." + random.nextInt(256) + "." + random.nextInt(256)).get();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> lookup(Cursor cursor) {
+        return repo.LookupAddress(hits[cursor.next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> lookupMiss(Cursor cursor) {
+        return repo.LookupAddress(misses[cursor.next++ & (DRAWS - 1)]);
+    }
+
+    @Benchmark
+    public Optional<IpamSubnet> parse(Cursor cursor) {
+        return IpamSubnet.tryFromAddress(texts[cursor.next++ & (DRAWS - 1)]);
+    }
+}
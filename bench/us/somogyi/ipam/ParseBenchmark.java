@@ -0,0 +1,78 @@
+package us.somogyi.ipam;
+
+import javafx.util.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/*  CIDR validation and parsing, CidrParser against the split/InetAddresses chain of
+*   LegacySubnet, over a ring of valid or invalid inputs, half IPV4 /28 and half IPV6 /64.
+*   Invalid inputs rotate through a mask out of range, a bad address and a missing mask.
+*   post is what a single subnet POST parses: once now, three times before (legacyPost).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private static final int INPUTS = 1024;     // power of two, indexed with a mask
+
+    @Param({"valid", "invalid"})
+    public String input;
+
+    private String[] cidrs;
+    private int next;
+
+    @Setup
+    public void setup() {
+        cidrs = BenchData.cidrs(INPUTS, 50, 3);
+        if (input.equals("invalid")) {
+            for (int i = 0; i < INPUTS; i++)
+                cidrs[i] = invalid(cidrs[i], i);
+        }
+    }
+
+    private static String invalid(String cidr, int i) {
+        int slash = cidr.indexOf('/');
+        switch (i % 3) {
+            case 0:
+                return cidr.substring(0, slash) + (cidr.contains(":") ? "/129" : "/33");
+            case 1:
+                return cidr.contains(":") ? cidr.replace("2001:", "2001::x") : cidr.replaceFirst("^10\\.", "300.");
+            default:
+                return cidr.substring(0, slash);
+        }
+    }
+
+    private String nextCidr() {
+        return cidrs[next++ & (INPUTS - 1)];
+    }
+
+    @Benchmark
+    public Optional<IpamSubnet> post() {
+        return IpamSubnet.tryFromCidr(nextCidr());
+    }
+
+    @Benchmark
+    public Pair<Boolean, String> isValidCIDR() {
+        return IpamSubnet.isValidCIDR(nextCidr());
+    }
+
+    @Benchmark
+    public Object legacyPost() {
+        try {
+            return LegacySubnet.fromPost(nextCidr());
+        } catch (IllegalArgumentException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Pair<Boolean, String> legacyIsValidCIDR() {
+        return LegacySubnet.isValidCIDR(nextCidr());
+    }
+}
@@ -0,0 +1,91 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Cost of replication, with 'followers' followers connected over loopback TCP.  write is
+*   a put and delete through the leader's repo, which only logs the changes; replicate
+*   does the same and waits until every follower has applied them, so its time is the
+*   end-to-end replication latency a read-your-writes client sees.  A 'followers' of 0
+*   writes through the leader with no followers, against which the log's own cost shows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicationBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // subnets put and deleted, power of two
+
+    @Param({"0", "1", "2"})
+    public int followers;
+
+    @Param({"100000"})
+    public int size;
+
+    private BackingStoreLeader leader;
+    private IpamRepo repo;
+    private ReplicationServer server;
+    private final List<ReplicationFollower> replicas = new ArrayList<>();
+    private IpamSubnet[] extra;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException, IOException, InterruptedException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + EXTRA, 50, 8));
+        extra = new IpamSubnet[EXTRA];
+        System.arraycopy(subnets, size, extra, 0, EXTRA);
+
+        leader = new BackingStoreLeader(new BackingStoreConcurrent());
+        for (int i = 0; i < size; i++)
+            leader.putSubnet(subnets[i]);
+        repo = new IpamRepo(leader);
+
+        server = new ReplicationServer(leader, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        for (int i = 0; i < followers; i++) {
+            BackingStoreConcurrent store = new BackingStoreConcurrent();
+            ReplicationFollower follower = new ReplicationFollower(new IpamRepo(store), store,
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            follower.start();
+            if (!follower.awaitApplied(leader.getSequence(), 60, TimeUnit.SECONDS))
+                throw new IllegalStateException("Follower failed to catch up");
+            replicas.add(follower);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        for (ReplicationFollower follower : replicas)
+            follower.close();
+        server.close();
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> write() {
+        IpamSubnet net = extra[next++ & (EXTRA - 1)];
+        repo.AddSubnet(net);
+        return repo.DeleteSubnet(net);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> replicate() throws InterruptedException {
+        Optional<IpamRecord> deleted = write();
+        long sequence = leader.getSequence();
+        for (ReplicationFollower follower : replicas) {
+            if (!follower.awaitApplied(sequence, 10, TimeUnit.SECONDS))
+                throw new IllegalStateException("Follower failed to apply change " + sequence);
+        }
+        return deleted;
+    }
+}
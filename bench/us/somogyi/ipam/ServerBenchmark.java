@@ -0,0 +1,87 @@
+package us.somogyi.ipam;
+
+import javafx.util.Pair;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*  IpamServer request processing without the HTTP transport: query parameters and JSON
+*   request bodies in, serialized JSON response out, against a repo preloaded with 'size'
+*   subnets.  The gets run streamGetRequest, as SubnetHandler does, into an in-memory
+*   exchange, with the listing cache off so every listing is built from the store.  post
+*   parses its request body as SubnetHandler would, and deletes the subnet again afterwards
+*   so the repo size stays constant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // power of two
+    private static final URI LISTING = URI.create(IpamServer.SUBNETSPATH);
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"0", "50", "100"})
+    public int ipv6Percent;
+
+    private IpamRepo repo;
+    private String[] stored;
+    private String[] extra;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        String[] cidrs = BenchData.cidrs(size + EXTRA, ipv6Percent, 3);
+        stored = new String[size];
+        extra = new String[EXTRA];
+        System.arraycopy(cidrs, 0, stored, 0, size);
+        System.arraycopy(cidrs, size, extra, 0, EXTRA);
+
+        repo = new IpamRepo(IpamServer.CreateStore("concurrent"));
+        for (String cidr : stored)
+            repo.AddSubnet(IpamSubnet.fromCidr(cidr));
+        IpamServer.listings = null;
+    }
+
+    // Listing filtered to a single stored subnet
+    @Benchmark
+    public int getOne() throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("network", stored[Math.floorMod(next++, size)]);
+        return get(parameters);
+    }
+
+    // First page of 100 records in id order
+    @Benchmark
+    public int getPage() throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("limit", "100");
+        return get(parameters);
+    }
+
+    @Benchmark
+    public Pair<String, Integer> post() {
+        String cidr = extra[next++ & (EXTRA - 1)];
+        JSONObject body = new JSONObject("{\"cidr\": \"" + cidr + "\"}");
+        Pair<String, Integer> response = IpamServer.processPostRequest(Collections.emptyMap(), body, repo);
+        repo.DeleteSubnet(IpamSubnet.fromCidr(cidr));
+        return response;
+    }
+
+    private int get(Map<String, String> parameters) throws IOException {
+        HandlerBenchmark.Exchange exchange = new HandlerBenchmark.Exchange("GET", LISTING);
+        IpamServer.streamGetRequest(exchange, parameters, repo);
+        return exchange.getResponseCode();
+    }
+}
@@ -0,0 +1,83 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Write throughput of BackingStoreSharded over 'shards' stores of kind 'store', from one
+*   thread per core (override with -t).  putDelete stores and removes subnets that are not
+*   preloaded, so the store size stays constant; queryAll gathers every shard's listing.
+*   A 'shards' of 0 runs the store unwrapped for comparison.  Scaling with shards shows
+*   only on a many-core machine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // subnets put and deleted, power of two
+
+    @Param({"memory", "concurrent"})
+    public String store;
+
+    @Param({"0", "1", "4", "16"})
+    public int shards;
+
+    @Param({"100000"})
+    public int size;
+
+    private BackingStore target;
+    private IpamSubnet[] extra;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + EXTRA, 50, 8));
+        extra = new IpamSubnet[EXTRA];
+        System.arraycopy(subnets, size, extra, 0, EXTRA);
+
+        if (shards == 0) {
+            target = IpamServer.CreateStore(store);
+        } else {
+            List<BackingStore> stores = new ArrayList<>(shards);
+            for (int i = 0; i < shards; i++)
+                stores.add(IpamServer.CreateStore(store));
+            target = new BackingStoreSharded(stores);
+        }
+        for (int i = 0; i < size; i++)
+            target.putSubnet(subnets[i]);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        // Threads start far apart so concurrent putDelete calls use different subnets
+        @Setup
+        public void setup() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Optional<IpamRecord> putDelete(Cursor cursor) throws BackingStoreException {
+        IpamSubnet net = extra[cursor.next++ & (EXTRA - 1)];
+        target.putSubnet(net);
+        return target.deleteSubnet(net);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int queryAll() throws BackingStoreException {
+        return target.queryAllSubnets().size();
+    }
+}
@@ -0,0 +1,90 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  BackingStore operations against a store preloaded with 'size' subnets.  putDelete stores
+*   a subnet that is not preloaded and removes it again, so the store size stays constant.
+*   The *Contended variants run the same operation from 4 threads at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    private static final int EXTRA = 1 << 16;   // subnets put and deleted, power of two
+
+    @Param({"memory", "concurrent"})
+    public String store;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"0", "50", "100"})
+    public int ipv6Percent;
+
+    private BackingStore target;
+    private IpamSubnet[] stored;
+    private IpamSubnet[] extra;
+
+    @Setup(Level.Trial)
+    public void setup() throws BackingStoreException {
+        IpamSubnet[] subnets = BenchData.subnets(BenchData.cidrs(size + EXTRA, ipv6Percent, 2));
+        stored = new IpamSubnet[size];
+        extra = new IpamSubnet[EXTRA];
+        System.arraycopy(subnets, 0, stored, 0, size);
+        System.arraycopy(subnets, size, extra, 0, EXTRA);
+
+        target = IpamServer.CreateStore(store);
+        for (IpamSubnet net : stored)
+            target.putSubnet(net);
+    }
+
+    // Per thread position in the input arrays, so threads do not share a counter
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        // Threads start far apart so contended putDelete calls use different subnets
+        @Setup
+        public void setup() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> query(Cursor cursor) throws BackingStoreException {
+        return target.querySubnet(stored[Math.floorMod(cursor.next++, size)]);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> queryMiss(Cursor cursor) throws BackingStoreException {
+        return target.querySubnet(extra[cursor.next++ & (EXTRA - 1)]);
+    }
+
+    @Benchmark
+    public Optional<IpamRecord> putDelete(Cursor cursor) throws BackingStoreException {
+        IpamSubnet net = extra[cursor.next++ & (EXTRA - 1)];
+        target.putSubnet(net);
+        return target.deleteSubnet(net);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<IpamRecord> queryContended(Cursor cursor) throws BackingStoreException {
+        return query(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<IpamRecord> putDeleteContended(Cursor cursor) throws BackingStoreException {
+        return putDelete(cursor);
+    }
+}
@@ -0,0 +1,86 @@
+package us.somogyi.ipam;
+
+import javafx.util.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*  Parsing and comparison of IpamSubnet, over a fixed ring of inputs with the given
+*   share of IPV6 CIDRs.  Each invocation handles the next input of the ring.  The legacy*
+*   benchmarks run the same operations on LegacySubnet, the InetAddress based class
+*   IpamSubnet replaced; with -prof gc, gc.alloc.rate.norm of fromCidr and legacyFromCidr
+*   is the heap each subnet takes, beside the garbage its parsing leaves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubnetBenchmark {
+
+    private static final int INPUTS = 1024;     // power of two, indexed with a mask
+
+    @Param({"0", "50", "100"})
+    public int ipv6Percent;
+
+    private String[] cidrs;
+    private IpamSubnet[] subnets;
+    private LegacySubnet[] legacy;
+    private int next;
+
+    @Setup
+    public void setup() {
+        cidrs = BenchData.cidrs(INPUTS, ipv6Percent, 1);
+        subnets = BenchData.subnets(cidrs);
+        legacy = new LegacySubnet[INPUTS];
+        for (int i = 0; i < INPUTS; i++)
+            legacy[i] = LegacySubnet.fromCidr(cidrs[i]);
+    }
+
+    private int nextIndex() {
+        return next++ & (INPUTS - 1);
+    }
+
+    @Benchmark
+    public IpamSubnet fromCidr() {
+        return IpamSubnet.fromCidr(cidrs[nextIndex()]);
+    }
+
+    @Benchmark
+    public Pair<String, Integer> parseCIDR() {
+        return IpamSubnet.parseCIDR(cidrs[nextIndex()]);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int i = nextIndex();
+        return subnets[i].compareTo(subnets[(i + 1) & (INPUTS - 1)]);
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return subnets[nextIndex()].hashCode();
+    }
+
+    @Benchmark
+    public LegacySubnet legacyFromCidr() {
+        return LegacySubnet.fromCidr(cidrs[nextIndex()]);
+    }
+
+    @Benchmark
+    public Pair<String, Integer> legacyParseCIDR() {
+        return LegacySubnet.parseCIDR(cidrs[nextIndex()]);
+    }
+
+    @Benchmark
+    public int legacyCompareTo() {
+        int i = nextIndex();
+        return legacy[i].compareTo(legacy[(i + 1) & (INPUTS - 1)]);
+    }
+
+    @Benchmark
+    public int legacyHashCodeOf() {
+        return legacy[nextIndex()].hashCode();
+    }
+}
@@ -0,0 +1,78 @@
+package us.somogyi.ipam;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Utilization of a prefix holding 'size' stored IPV4 /28s (see BenchData): read from the
+*   prefix index aggregates through IpamRepo.GetUtilization (with the 10 largest subnets
+*   for top), or computed by scanning and sorting every stored subnet as a client of the
+*   listing would (scan).  addDelete is the update path that keeps the aggregates current.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UtilizationBenchmark {
+
+    private static final IpamSubnet PARENT = IpamSubnet.fromCidr("10.0.0.0/8");
+    private static final int SPARE = 1024;      // unstored /28s for addDelete, power of two
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private IpamRepo repo;
+    private IpamSubnet[] spare;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        repo = new IpamRepo(new BackingStoreConcurrent());
+        for (int i = 0; i < size; i++)
+            repo.AddSubnet(IpamSubnet.fromCidr(BenchData.v4Cidr(i)));
+        spare = new IpamSubnet[SPARE];
+        for (int i = 0; i < SPARE; i++)
+            spare[i] = IpamSubnet.fromCidr(BenchData.v4Cidr(size + i));
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public SubnetUtilization utilization() {
+        return repo.GetUtilization(PARENT);
+    }
+
+    @Benchmark
+    public List<IpamRecord> top() {
+        return repo.GetLargestSubnets(PARENT, 10);
+    }
+
+    @Benchmark
+    public BigInteger scan() {
+        List<IpamRecord> within = repo.GetAllSubnets().stream()
+                .filter(record -> PARENT.contains(record.getSubnet()))
+                .sorted(Comparator.comparingInt(record -> record.getSubnet().getMask()))
+                .collect(Collectors.toList());
+        BigInteger allocated = BigInteger.ZERO;
+        for (IpamRecord record : within)
+            allocated = allocated.add(record.getSubnet().getSize());
+        return allocated;
+    }
+
+    @Benchmark
+    public boolean addDelete(Cursor cursor) {
+        IpamSubnet subnet = spare[cursor.next++ & (SPARE - 1)];
+        repo.AddSubnet(subnet);
+        return repo.DeleteSubnet(subnet).isPresent();
+    }
+}
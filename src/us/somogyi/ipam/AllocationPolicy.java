@@ -0,0 +1,23 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+/*  Choice of free block when allocating the next free subnet of a given mask from a
+*   parent range (see IpamRepo.AllocateSubnet).
+ */
+public enum AllocationPolicy {
+
+    // Lowest addressed free block that fits
+    FIRST_FIT,
+
+    /*  A block from the smallest free area that fits, leaving larger free areas intact for
+    *   later, larger requests (lowest address among equally small areas).
+     */
+    BEST_FIT;
+
+    // Case insensitive lookup accepting '-' in place of '_', e.g. "best-fit"
+    public static AllocationPolicy fromName(String name) throws IllegalArgumentException {
+        Preconditions.checkNotNull(name, "fromName: Invalid null reference - name");
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,312 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*  Asynchronous structured log, written as JSON lines, e.g.
+*       {"time":"2020-01-01T00:00:00.001Z","method":"GET","path":"/subnets","status":200,
+*        "bytes":52,"duration_us":310,"remote":"/127.0.0.1:50122"}
+*       {"time":"2020-01-01T00:00:00.002Z","level":"error","message":"..."}
+*
+*   Request threads never write or format log output: they claim a slot of a lock-free
+*   bounded ring (multi-producer, single consumer), fill it and publish it.  A background
+*   thread drains published slots in batches, formats them, and writes and flushes each
+*   batch.  When the ring is full, DROP discards the record (the count of dropped records
+*   is logged later) and BLOCK waits for the writer to free a slot.
+*
+*   Access records of successful requests may be sampled, keeping 1 in 'sampleRate'
+*   chosen at random; errors (status 400 and above, or no response) are always kept.
+ */
+class AsyncLog implements Closeable {
+
+    enum Overflow {
+        DROP, BLOCK;
+
+        static Overflow fromName(String name) throws IllegalArgumentException {
+            Preconditions.checkNotNull(name, "fromName: Invalid null reference - name");
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int BATCH = 256;
+
+    private static final long IDLEPARK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FULLPARK = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ISO_INSTANT;
+
+    // Preallocated ring entry; fields are published by the slot's sequence number
+    private static final class Slot {
+        long time;
+        String method;
+        String path;
+        int status;
+        long bytes;
+        long nanos;
+        InetSocketAddress remote;
+        String level;
+        String message;
+    }
+
+    private static volatile AsyncLog shared;
+
+    private final Writer out;
+    private final Overflow overflow;
+    private final int sampleRate;
+
+    /*  Ring: slot i is free for the producer claiming position p when its sequence is p, and
+    *   holds a published record for the consumer at position p when its sequence is p + 1.
+     */
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;                          // consumer thread only
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;               // consumer thread only
+    private volatile boolean closed;
+    private final Thread writer;
+
+    AsyncLog(Writer out, int capacity, Overflow overflow, int sampleRate) {
+        Preconditions.checkNotNull(out, "AsyncLog: Invalid null reference - out");
+        Preconditions.checkNotNull(overflow, "AsyncLog: Invalid null reference - overflow");
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+                "AsyncLog: capacity must be a power of two");
+        Preconditions.checkArgument(sampleRate > 0, "AsyncLog: sampleRate must be positive");
+
+        this.out = out;
+        this.overflow = overflow;
+        this.sampleRate = sampleRate;
+        this.slots = new Slot[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::drainLoop, "ipam-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /* Process wide log for error messages, writing to stderr.  Replaced with install(), e.g.
+    *  by IpamServer to apply its configuration.
+     */
+    static AsyncLog shared() {
+        AsyncLog log = shared;
+        if (log == null) {
+            synchronized (AsyncLog.class) {
+                if (shared == null)
+                    install(new AsyncLog(new OutputStreamWriter(System.err, StandardCharsets.UTF_8),
+                            DEFAULT_CAPACITY, Overflow.DROP, 1));
+                log = shared;
+            }
+        }
+        return log;
+    }
+
+    // Make log the shared log, closing the previous one; the log is closed at JVM shutdown
+    static synchronized void install(AsyncLog log) {
+        Preconditions.checkNotNull(log, "install: Invalid null reference - log");
+        AsyncLog previous = shared;
+        shared = log;
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+        if (previous != null)
+            previous.close();
+    }
+
+    // Record a finished request, subject to sampling; false if it was dropped or sampled out
+    boolean access(String method, String path, int status, long bytes, long nanos, InetSocketAddress remote) {
+        if (sampleRate > 1 && status > 0 && status < 400
+                && ThreadLocalRandom.current().nextInt(sampleRate) != 0)
+            return false;
+
+        long position = claim();
+        if (position < 0)
+            return false;
+        Slot slot = slots[(int) (position & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.method = method;
+        slot.path = path;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.nanos = nanos;
+        slot.remote = remote;
+        slot.level = null;
+        slot.message = null;
+        sequences.lazySet((int) (position & mask), position + 1);
+        return true;
+    }
+
+    boolean error(String message) {
+        return message("error", message);
+    }
+
+    boolean warn(String message) {
+        return message("warn", message);
+    }
+
+    boolean info(String message) {
+        return message("info", message);
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    // Write everything logged so far and stop the writer; later records are dropped
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean message(String level, String message) {
+        long position = claim();
+        if (position < 0)
+            return false;
+        Slot slot = slots[(int) (position & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.method = null;
+        slot.path = null;
+        slot.remote = null;
+        slot.level = level;
+        slot.message = message;
+        sequences.lazySet((int) (position & mask), position + 1);
+        return true;
+    }
+
+    // Claim the next free position, or -1 if the record is dropped
+    private long claim() {
+        while (!closed) {
+            long position = tail.get();
+            long available = sequences.get((int) (position & mask)) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    return position;
+            } else if (available < 0) {
+                // the slot still holds the record from one lap earlier: the ring is full
+                if (overflow == Overflow.DROP)
+                    break;
+                LockSupport.parkNanos(FULLPARK);
+            }
+        }
+        dropped.incrementAndGet();
+        return -1;
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(BATCH * 160);
+        while (true) {
+            boolean stopping = closed;
+            int drained = drain(batch);
+            if (drained == 0) {
+                if (stopping)
+                    break;
+                LockSupport.parkNanos(IDLEPARK);
+            }
+        }
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+            // nowhere left to report it
+        }
+    }
+
+    // Format and write up to BATCH published records, returning the number drained
+    private int drain(StringBuilder batch) {
+        batch.setLength(0);
+        int count = 0;
+        while (count < BATCH) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1)
+                break;
+            Slot slot = slots[index];
+            format(slot, batch);
+            slot.method = slot.path = slot.level = slot.message = null;
+            slot.remote = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            count++;
+        }
+
+        long lost = dropped.get();
+        if (lost != reportedDropped) {
+            formatMessage(System.currentTimeMillis(), "warn",
+                    "log dropped " + (lost - reportedDropped) + " records", batch);
+            reportedDropped = lost;
+        }
+
+        if (batch.length() > 0) {
+            try {
+                out.write(batch.toString());
+                out.flush();
+            } catch (IOException e) {
+                // the sink is broken; keep draining so producers are not blocked
+            }
+        }
+        return count;
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        if (slot.message != null) {
+            formatMessage(slot.time, slot.level, slot.message, line);
+            return;
+        }
+        line.append("{\"time\":\"").append(TIME.format(Instant.ofEpochMilli(slot.time)))
+                .append("\",\"method\":");
+        appendString(slot.method, line);
+        line.append(",\"path\":");
+        appendString(slot.path, line);
+        line.append(",\"status\":").append(slot.status)
+                .append(",\"bytes\":").append(slot.bytes)
+                .append(",\"duration_us\":").append(TimeUnit.NANOSECONDS.toMicros(slot.nanos))
+                .append(",\"remote\":");
+        appendString((slot.remote == null) ? null : slot.remote.toString(), line);
+        line.append("}\n");
+    }
+
+    private static void formatMessage(long time, String level, String message, StringBuilder line) {
+        line.append("{\"time\":\"").append(TIME.format(Instant.ofEpochMilli(time)))
+                .append("\",\"level\":\"").append(level).append("\",\"message\":");
+        appendString(message, line);
+        line.append("}\n");
+    }
+
+    // JSON string, or null
+    private static void appendString(String value, StringBuilder line) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
@@ -1,13 +1,19 @@
 package us.somogyi.ipam;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Optional;
 
 import java.util.List;
 
 public interface BackingStore {
 
+    // Revision of a store that does not track revisions
+    long UNVERSIONED = -1;
+
     /* Persisted record of a subnet and its assigned id
      */
     class IpamRecord {
@@ -47,9 +53,24 @@ public interface BackingStore {
         }
     }
 
+    /* Sort order of a paged query: by id (insertion order), or by subnet (IpamSubnet
+    *  compareTo order, ie family then network number then mask)
+     */
+    enum SortOrder { ID, NETWORK }
+
     /* Passed to filter query to specify filter parameters
     *  includes a Builder pattern for simplicity of use (null values
     *  are not used for filtering)
+    *
+    *  network selects subnets equal to or contained by the given CIDR (e.g. "10.0.0.0/8").
+    *  A network that is not a valid CIDR is matched as a prefix of the subnet id text
+    *  (e.g. "192.168").  minid and maxid are inclusive.
+    *
+    *  Paging (keyset pagination): setting limit, an order, or an after cursor makes the query
+    *  paged.  Results are returned in order (id order unless NETWORK is requested), starting
+    *  after the cursor - afterId for ID order, afterNetwork for NETWORK order - and at most
+    *  limit records are returned.  The last record of a page is the cursor for the next, so
+    *  records inserted between pages never shift or repeat earlier results.
      */
     public class filterSpec {
         final private String network;
@@ -57,6 +78,11 @@ public interface BackingStore {
         final private Integer minid;
         final private IpamSubnet.Family family;
         final private Integer mask;
+        final private IpamSubnet networkSubnet;
+        final private Integer limit;
+        final private SortOrder order;
+        final private Integer afterId;
+        final private IpamSubnet afterNetwork;
 
         public String getNetwork() {
             return network;
@@ -78,16 +104,82 @@ public interface BackingStore {
             return mask;
         }
 
+        public Integer getLimit() {
+            return limit;
+        }
+
+        // Resolved sort order of a paged query (ID unless NETWORK was requested)
+        public SortOrder getOrder() {
+            return (order != null) ? order : SortOrder.ID;
+        }
+
+        public Integer getAfterId() {
+            return afterId;
+        }
+
+        public IpamSubnet getAfterNetwork() {
+            return afterNetwork;
+        }
+
+        // True if results must be ordered and paged rather than returned in any order
+        public boolean isPaged() {
+            return limit != null || order != null || afterId != null || afterNetwork != null;
+        }
+
         public filterSpec (String network,
                            Integer maxid,
                            Integer minid,
                            IpamSubnet.Family family,
                            Integer mask) {
+            this(network, maxid, minid, family, mask, null, null, null, null);
+        }
+
+        public filterSpec (String network,
+                           Integer maxid,
+                           Integer minid,
+                           IpamSubnet.Family family,
+                           Integer mask,
+                           Integer limit,
+                           SortOrder order,
+                           Integer afterId,
+                           IpamSubnet afterNetwork) {
+            Preconditions.checkArgument(limit == null || limit > 0,
+                    "filterSpec: limit must be positive");
+            Preconditions.checkArgument(afterId == null || order != SortOrder.NETWORK,
+                    "filterSpec: id cursor used with NETWORK order");
+            Preconditions.checkArgument(afterNetwork == null || order == SortOrder.NETWORK,
+                    "filterSpec: network cursor requires NETWORK order");
+
             this.network = network;
             this.maxid = maxid;
             this.minid = minid;
             this.family = family;
             this.mask = mask;
+            this.networkSubnet = (network == null) ? null : IpamSubnet.tryFromCidr(network).orElse(null);
+            this.limit = limit;
+            this.order = order;
+            this.afterId = afterId;
+            this.afterNetwork = afterNetwork;
+        }
+
+        // Parsed network CIDR, or null if network is unset or is a text prefix
+        public IpamSubnet getNetworkSubnet() {
+            return networkSubnet;
+        }
+
+        // True if the subnet and id satisfy every non-null field of this filter
+        public boolean matches(IpamSubnet subnet, Integer id) {
+            if (family != null && subnet.getFamily() != family) return false;
+            if (mask != null && subnet.getMask() != mask) return false;
+            if (minid != null && id < minid) return false;
+            if (maxid != null && id > maxid) return false;
+            if (afterId != null && id <= afterId) return false;
+            if (afterNetwork != null && subnet.compareTo(afterNetwork) <= 0) return false;
+            if (network != null) {
+                if (networkSubnet != null) return networkSubnet.contains(subnet);
+                return subnet.getSubnetId().startsWith(network);
+            }
+            return true;
         }
     }
 
@@ -101,11 +193,16 @@ public interface BackingStore {
         private Integer _maxid;
         private IpamSubnet.Family _family;
         private Integer _mask;
+        private Integer _limit;
+        private SortOrder _order;
+        private Integer _afterId;
+        private IpamSubnet _afterNetwork;
 
         public filterSpecBuilder () {}
 
         public filterSpec buildFilterSpec () {
-            return new filterSpec(_network, _maxid, _minid, _family, _mask);
+            return new filterSpec(_network, _maxid, _minid, _family, _mask,
+                    _limit, _order, _afterId, _afterNetwork);
         }
 
         public filterSpecBuilder network(String _network) {
@@ -132,10 +229,45 @@ public interface BackingStore {
             this._mask = _mask;
             return this;
         }
+
+        public filterSpecBuilder limit(Integer _limit) {
+            this._limit = _limit;
+            return this;
+        }
+
+        public filterSpecBuilder order(SortOrder _order) {
+            this._order = _order;
+            return this;
+        }
+
+        // Id cursor: return records with ids greater than _afterId
+        public filterSpecBuilder after(Integer _afterId) {
+            this._afterId = _afterId;
+            return this;
+        }
+
+        // Subnet cursor: return records ordered after _afterNetwork (implies NETWORK order)
+        public filterSpecBuilder after(IpamSubnet _afterNetwork) {
+            this._afterNetwork = _afterNetwork;
+            if (_afterNetwork != null)
+                this._order = SortOrder.NETWORK;
+            return this;
+        }
     }
 
     public Optional<IpamRecord> putSubnet (IpamSubnet net) throws BackingStoreException;
 
+    /* Store a batch of subnets, returning for each (in order) its new record, or empty if
+    *  it was already stored.  Stores should override this to take their locks once for the
+    *  whole batch; the default stores each subnet in turn with putSubnet().
+     */
+    default List<Optional<IpamRecord>> putSubnets (List<IpamSubnet> nets) throws BackingStoreException {
+        List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+        for (IpamSubnet net : nets)
+            results.add(putSubnet(net));
+        return results;
+    }
+
     public Optional<IpamRecord> querySubnet (IpamSubnet net) throws BackingStoreException;
 
     public Optional<IpamRecord> querySubnetById (Integer id) throws BackingStoreException;
@@ -145,5 +277,22 @@ public interface BackingStore {
     public List<IpamRecord> queryAllSubnets () throws BackingStoreException;
 
     public List<IpamRecord> queryAllSubnets (filterSpec spec) throws BackingStoreException;
+
+    /* Iterate the records matching spec (all records if spec is null), for callers that
+    *  stream results rather than hold them.  Stores able to iterate without a snapshot
+    *  should override this; the default materializes queryAllSubnets().
+     */
+    default Iterator<IpamRecord> iterateSubnets (filterSpec spec) throws BackingStoreException {
+        return ((spec == null) ? queryAllSubnets() : queryAllSubnets(spec)).iterator();
+    }
+
+    /* Revision of the stored records: it increases after every change, so any query made
+    *  after reading revision r reflects at least every change up to r, and results may be
+    *  cached for as long as the revision stays r.  Stores that do not track revisions
+    *  return UNVERSIONED, and their results must not be cached.
+     */
+    default long getRevision () {
+        return UNVERSIONED;
+    }
 }
 
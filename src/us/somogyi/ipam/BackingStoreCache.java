@@ -0,0 +1,165 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.Striped;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+
+/*  Read-through cache in front of another BackingStore, for querySubnet and
+*   querySubnetById.  Both directions are bounded Guava caches (segmented, each segment
+*   evicting in LRU order) holding the looked up Optional, so lookups of absent subnets
+*   and ids are cached too.  Listings and queries by filter go straight to the store.
+*
+*   Every write must go through this decorator.  A write to a subnet holds that subnet's
+*   lock stripe across the store write and the cache update, and a miss loads and caches
+*   under the same stripe, so a load can never overwrite a newer write with a stale value.
+*   Id entries are updated the same way under an id stripe, always taken after the subnet
+*   stripe.  Hits take no lock.
+ */
+public class BackingStoreCache implements BackingStore {
+
+    private static final int STRIPESPERCORE = 4;
+
+    private final BackingStore store;
+    private final Cache<IpamSubnet, Optional<IpamRecord>> bySubnet;
+    private final Cache<Integer, Optional<IpamRecord>> byId;
+    private final Striped<Lock> subnetLocks;
+    private final Striped<Lock> idLocks;
+
+    // Cache up to maximumSize entries in each direction
+    public BackingStoreCache(BackingStore store, long maximumSize) {
+        Preconditions.checkNotNull(store, "BackingStoreCache: Invalid null reference - store");
+        Preconditions.checkArgument(maximumSize > 0, "BackingStoreCache: maximumSize must be positive");
+
+        int stripes = Runtime.getRuntime().availableProcessors() * STRIPESPERCORE;
+        this.store = store;
+        this.bySubnet = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.byId = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.subnetLocks = Striped.lock(stripes);
+        this.idLocks = Striped.lock(stripes);
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        Lock lock = subnetLocks.get(net);
+        lock.lock();
+        try {
+            Optional<IpamRecord> result = store.putSubnet(net);
+            if (result.isPresent())
+                cache(net, result.get().getId(), result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes each subnet in turn, so every store write is made under its subnet's stripe
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+        for (IpamSubnet net : nets)
+            results.add(putSubnet(net));
+        return results;
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        Optional<IpamRecord> cached = bySubnet.getIfPresent(net);
+        if (cached != null)
+            return cached;
+
+        Lock lock = subnetLocks.get(net);
+        lock.lock();
+        try {
+            cached = bySubnet.asMap().get(net);     // not counted as a second miss
+            if (cached != null)
+                return cached;
+            Optional<IpamRecord> result = store.querySubnet(net);
+            bySubnet.put(net, result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        Optional<IpamRecord> cached = byId.getIfPresent(id);
+        if (cached != null)
+            return cached;
+
+        Lock lock = idLocks.get(id);
+        lock.lock();
+        try {
+            cached = byId.asMap().get(id);
+            if (cached != null)
+                return cached;
+            Optional<IpamRecord> result = store.querySubnetById(id);
+            byId.put(id, result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        Lock lock = subnetLocks.get(net);
+        lock.lock();
+        try {
+            Optional<IpamRecord> result = store.deleteSubnet(net);
+            if (result.isPresent())
+                cache(net, result.get().getId(), Optional.empty());
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        return store.queryAllSubnets();
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        return store.queryAllSubnets(spec);
+    }
+
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) throws BackingStoreException {
+        return store.iterateSubnets(spec);
+    }
+
+    @Override
+    public long getRevision() {
+        return store.getRevision();
+    }
+
+    public CacheStats getSubnetStats() {
+        return bySubnet.stats();
+    }
+
+    public CacheStats getIdStats() {
+        return byId.stats();
+    }
+
+    // Record the outcome of a write in both directions; caller holds net's stripe
+    private void cache(IpamSubnet net, Integer id, Optional<IpamRecord> result) {
+        bySubnet.put(net, result);
+        Lock lock = idLocks.get(id);
+        lock.lock();
+        try {
+            byId.put(id, result);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.Striped;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/*  In-memory BackingStore built for many cores.  Records live in concurrent maps, so
+*   readers never block and never block writers.  Writers serialize only with other
+*   writers of the same subnet, via a lock stripe chosen by subnet hash, and take ids from
+*   an IdAllocator - by default an atomic sequence.
+*
+*   A record becomes visible once its subnet -> id mapping is present.  The id -> subnet
+*   mapping and secondary indexes are written first and removed last, so readers coming
+*   from the id side confirm each entry against repo before returning it.  The revision is
+*   advanced once a change is visible.
+ */
+public class BackingStoreConcurrent implements BackingStore {
+
+    private static final int STRIPESPERCORE = 4;
+
+    private final IdAllocator ids;
+    private final AtomicLong revision = new AtomicLong();
+
+    private final ConcurrentHashMap<IpamSubnet, Integer> repo;
+    private final SecondaryIndex index;
+    private final Striped<Lock> writeLocks;
+
+    public BackingStoreConcurrent() {
+        this(new IdAllocator.Sequential());
+    }
+
+    public BackingStoreConcurrent(IdAllocator ids) {
+        this.ids = Preconditions.checkNotNull(ids, "BackingStoreConcurrent: Invalid null reference - ids");
+        repo = new ConcurrentHashMap<>();
+        index = new SecondaryIndex(true);
+        writeLocks = Striped.lock(Runtime.getRuntime().availableProcessors() * STRIPESPERCORE);
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        if (repo.containsKey(net))
+            return Optional.empty();
+
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            if (repo.containsKey(net))
+                return Optional.empty();
+
+            Integer newId = ids.allocate();
+            index.add(net, newId);
+            repo.put(net, newId);
+            revision.incrementAndGet();
+            return Optional.of(new IpamRecord(net, newId));
+        } catch (RuntimeException e) {
+            throw new BackingStoreException("Failed to store new subnet " + net.getSubnetId(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) {
+        Integer id = repo.get(net);
+        return (id == null) ? Optional.empty() : Optional.of(new IpamRecord(net, id));
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) {
+        IpamSubnet net = index.get(id);
+        return (net != null && isLive(net, id)) ? Optional.of(new IpamRecord(net, id)) : Optional.empty();
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            Integer oldId = repo.remove(net);
+            if (oldId == null)
+                return Optional.empty();
+
+            index.remove(net, oldId);
+            revision.incrementAndGet();
+            return Optional.of(new IpamRecord(net, oldId));
+        } catch (RuntimeException e) {
+            throw new BackingStoreException("Failed to remove subnet: " + net.getSubnetId(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Weakly consistent snapshot in id order; does not block concurrent writers
+    @Override
+    public List<IpamRecord> queryAllSubnets() {
+        List<IpamRecord> response = new ArrayList<>();
+        for (Map.Entry<Integer, IpamSubnet> entry : index.byId().entrySet()) {
+            if (isLive(entry.getValue(), entry.getKey()))
+                response.add(new IpamRecord(entry.getValue(), entry.getKey()));
+        }
+        return response;
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) {
+        if (spec == null)
+            return queryAllSubnets();
+
+        List<IpamRecord> response = new ArrayList<>();
+        if (spec.isPaged()) {
+            index.ordered(spec, repo::get).forEachRemaining(response::add);
+            return response;
+        }
+
+        for (IpamSubnet key : index.candidates(spec, repo.keySet())) {
+            Integer id = repo.get(key);
+            if (id != null && spec.matches(key, id))
+                response.add(new IpamRecord(key, id));
+        }
+        return response;
+    }
+
+    /* Lazy, weakly consistent iteration straight over the concurrent indexes - no snapshot
+    *  is taken, so memory use does not depend on the number of records returned.
+     */
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) {
+        if (spec == null) {
+            Iterator<Map.Entry<Integer, IpamSubnet>> entries = index.byId().entrySet().iterator();
+            return new AbstractIterator<IpamRecord>() {
+                @Override
+                protected IpamRecord computeNext() {
+                    while (entries.hasNext()) {
+                        Map.Entry<Integer, IpamSubnet> entry = entries.next();
+                        if (isLive(entry.getValue(), entry.getKey()))
+                            return new IpamRecord(entry.getValue(), entry.getKey());
+                    }
+                    return endOfData();
+                }
+            };
+        }
+
+        if (spec.isPaged())
+            return index.ordered(spec, repo::get);
+
+        Iterator<IpamSubnet> candidates = index.candidates(spec, repo.keySet()).iterator();
+        return new AbstractIterator<IpamRecord>() {
+            @Override
+            protected IpamRecord computeNext() {
+                while (candidates.hasNext()) {
+                    IpamSubnet key = candidates.next();
+                    Integer id = repo.get(key);
+                    if (id != null && spec.matches(key, id))
+                        return new IpamRecord(key, id);
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public long getRevision() {
+        return revision.get();
+    }
+
+    /* Recovery hooks for stores layered over this one (see BackingStoreLog), which replay
+    *  records with ids already assigned.  Callers serialize updates to the same subnet.
+     */
+    void load(IpamSubnet net, Integer id) {
+        Integer previous = repo.get(net);
+        if (previous != null)
+            index.remove(net, previous);
+        index.add(net, id);
+        repo.put(net, id);
+        ids.advance(id + 1);
+        revision.incrementAndGet();
+    }
+
+    void unload(IpamSubnet net, Integer id) {
+        if (repo.remove(net, id)) {
+            index.remove(net, id);
+            revision.incrementAndGet();
+        }
+    }
+
+    // Id the next stored subnet will be given
+    int nextId() {
+        return ids.peek();
+    }
+
+    void advanceNextId(int next) {
+        ids.advance(next);
+    }
+
+    private boolean isLive(IpamSubnet net, Integer id) {
+        return id.equals(repo.get(net));
+    }
+}
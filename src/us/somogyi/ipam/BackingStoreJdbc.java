@@ -0,0 +1,404 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*  BackingStore in a relational database over JDBC, so the inventory can be queried ad hoc
+*   with SQL.  Tested against embedded H2; the SQL is plain enough for most databases.
+*
+*   Table ipam_subnet (id, family, address, mask): family is the Family ordinal (0 IPV4,
+*   1 IPV6) and address the 128 bit network number as fixed width BINARY(16), big endian
+*   and left aligned as in IpamSubnet, so byte order is address order.  The unique index
+*   on (family, address, mask) both rejects duplicate subnets and serves network
+*   containment as a range scan: the subnets within a network lie between its lowest and
+*   highest contained addresses.  filterSpec queries are translated to SQL predicates over
+*   these columns; only a network given as a text prefix is filtered in Java.
+*
+*   Each of 'poolSize' pooled connections keeps its prepared statements.  putSubnets
+*   inserts a batch as one JDBC batch in one transaction.  Ids come from an IdAllocator,
+*   advanced past the largest stored id when the store opens, so after a restart a plain
+*   Sequential allocator may reissue the ids of the most recently deleted rows; a
+*   LeasedIdAllocator never reissues an id.  The revision counts this
+*   store's changes only: a database also written by other processes must not be served
+*   through caches keyed on it.
+ */
+public class BackingStoreJdbc implements BackingStore, Closeable {
+
+    static final int DEFAULT_POOL = 4;
+
+    private static final String SCHEMA = "CREATE TABLE IF NOT EXISTS ipam_subnet ("
+            + "id INTEGER NOT NULL PRIMARY KEY, "
+            + "family SMALLINT NOT NULL, "
+            + "address BINARY(16) NOT NULL, "
+            + "mask SMALLINT NOT NULL, "
+            + "CONSTRAINT ipam_subnet_network UNIQUE (family, address, mask))";
+    private static final String COLUMNS = "SELECT id, family, address, mask FROM ipam_subnet";
+    private static final String INSERT = "INSERT INTO ipam_subnet (id, family, address, mask) VALUES (?, ?, ?, ?)";
+    private static final String BYNETWORK = "SELECT id FROM ipam_subnet WHERE family = ? AND address = ? AND mask = ?";
+    private static final String BYID = COLUMNS + " WHERE id = ?";
+    private static final String DELETE = "DELETE FROM ipam_subnet WHERE id = ?";
+    private static final String MAXID = "SELECT MAX(id) FROM ipam_subnet";
+    private static final String ALL = COLUMNS + " ORDER BY id";
+
+    private static final int ADDRESSBYTES = 16;
+
+    // A pooled connection and the statements prepared on it
+    private static final class Session {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Session(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    // Work done with a borrowed session
+    private interface SessionWork<T> {
+        T apply(Session session) throws SQLException, BackingStoreException;
+    }
+
+    private final String url;
+    private final BlockingQueue<Session> pool;
+    private final List<Session> sessions = new ArrayList<>();
+    private final IdAllocator ids;
+    private final AtomicLong revision = new AtomicLong();
+
+    public BackingStoreJdbc(String url) throws BackingStoreException {
+        this(url, DEFAULT_POOL, new IdAllocator.Sequential());
+    }
+
+    public BackingStoreJdbc(String url, int poolSize, IdAllocator ids) throws BackingStoreException {
+        Preconditions.checkNotNull(url, "BackingStoreJdbc: Invalid null reference - url");
+        Preconditions.checkNotNull(ids, "BackingStoreJdbc: Invalid null reference - ids");
+        Preconditions.checkArgument(poolSize > 0, "BackingStoreJdbc: poolSize must be positive");
+
+        this.url = url;
+        this.ids = ids;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                Session session = new Session(DriverManager.getConnection(url));
+                sessions.add(session);
+                pool.add(session);
+            }
+            try (Statement statement = sessions.get(0).connection.createStatement()) {
+                statement.execute(SCHEMA);
+                try (ResultSet max = statement.executeQuery(MAXID)) {
+                    if (max.next() && max.getObject(1) != null)
+                        ids.advance(max.getInt(1) + 1);
+                }
+            }
+        } catch (SQLException e) {
+            closeSessions();
+            throw new BackingStoreException("Failed to open JDBC store " + url, e);
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        return withSession("Failed to store new subnet " + net.getSubnetId(), session -> insert(session, net));
+    }
+
+    /* The whole batch is one JDBC batch in one transaction.  If any subnet of it is already
+    *  stored the batch is rolled back and its subnets inserted one at a time instead, which
+    *  sorts out the duplicates.
+     */
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        return withSession("Failed to store batch of " + nets.size() + " subnets", session -> {
+            List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+            int[] allocated = new int[nets.size()];     // before binding, so a refused id leaves no batch
+            for (int i = 0; i < allocated.length; i++)
+                allocated[i] = ids.allocate();
+            PreparedStatement insert = session.prepare(INSERT);
+            session.connection.setAutoCommit(false);
+            try {
+                for (int i = 0; i < allocated.length; i++) {
+                    IpamSubnet net = nets.get(i);
+                    int id = allocated[i];
+                    bindRecord(insert, id, net);
+                    insert.addBatch();
+                    results.add(Optional.of(new IpamRecord(net, id)));
+                }
+                insert.executeBatch();
+                session.connection.commit();
+                revision.addAndGet(nets.size());
+                return results;
+            } catch (SQLException e) {
+                insert.clearBatch();
+                session.connection.rollback();
+                if (!isDuplicate(e))
+                    throw e;
+            } finally {
+                session.connection.setAutoCommit(true);
+            }
+
+            results.clear();
+            for (IpamSubnet net : nets)
+                results.add(insert(session, net));
+            return results;
+        });
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        return withSession("Failed to query subnet " + net.getSubnetId(), session -> {
+            Integer id = findId(session, net);
+            return (id == null) ? Optional.empty() : Optional.of(new IpamRecord(net, id));
+        });
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        if (id == null)
+            return Optional.empty();
+        return withSession("Failed to query repo for id: " + id, session -> {
+            PreparedStatement query = session.prepare(BYID);
+            query.setInt(1, id);
+            try (ResultSet rows = query.executeQuery()) {
+                return rows.next() ? Optional.of(readRecord(rows)) : Optional.empty();
+            }
+        });
+    }
+
+    // Found by network, removed by id: of two racing deletes only one removes the row
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        return withSession("Failed to remove subnet: " + net.getSubnetId(), session -> {
+            Integer id = findId(session, net);
+            if (id == null)
+                return Optional.empty();
+
+            PreparedStatement delete = session.prepare(DELETE);
+            delete.setInt(1, id);
+            if (delete.executeUpdate() == 0)
+                return Optional.empty();
+            revision.incrementAndGet();
+            return Optional.of(new IpamRecord(net, id));
+        });
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        return withSession("Failed to query all subnets", session -> {
+            List<IpamRecord> response = new ArrayList<>();
+            try (ResultSet rows = session.prepare(ALL).executeQuery()) {
+                while (rows.next())
+                    response.add(readRecord(rows));
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        if (spec == null)
+            return queryAllSubnets();
+
+        return withSession("Failed to query filtered subnets", session -> {
+            // A text prefix network has no SQL form, so it is matched here and cannot be LIMITed
+            boolean residual = spec.getNetwork() != null && spec.getNetworkSubnet() == null;
+            List<Object> parameters = new ArrayList<>();
+            String sql = toSql(spec, !residual, parameters);
+
+            PreparedStatement query = session.prepare(sql);
+            for (int i = 0; i < parameters.size(); i++)
+                query.setObject(i + 1, parameters.get(i));
+
+            List<IpamRecord> response = new ArrayList<>();
+            int limit = (spec.getLimit() != null) ? spec.getLimit() : Integer.MAX_VALUE;
+            try (ResultSet rows = query.executeQuery()) {
+                while (response.size() < limit && rows.next()) {
+                    IpamRecord record = readRecord(rows);
+                    if (!residual || spec.matches(record.getSubnet(), record.getId()))
+                        response.add(record);
+                }
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public long getRevision() {
+        return revision.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSessions();
+    }
+
+    /* SQL for a filterSpec, adding the values of its parameters to 'parameters'.  Paged
+    *  queries are ordered by the primary key or the network index, so a page is an index
+    *  range scan from the cursor.
+     */
+    static String toSql(filterSpec spec, boolean limit, List<Object> parameters) {
+        List<String> predicates = new ArrayList<>();
+        if (spec.getFamily() != null) {
+            predicates.add("family = ?");
+            parameters.add(spec.getFamily().ordinal());
+        }
+        if (spec.getMask() != null) {
+            predicates.add("mask = ?");
+            parameters.add(spec.getMask());
+        }
+        if (spec.getMinid() != null) {
+            predicates.add("id >= ?");
+            parameters.add(spec.getMinid());
+        }
+        if (spec.getMaxid() != null) {
+            predicates.add("id <= ?");
+            parameters.add(spec.getMaxid());
+        }
+        if (spec.getAfterId() != null) {
+            predicates.add("id > ?");
+            parameters.add(spec.getAfterId());
+        }
+        IpamSubnet network = spec.getNetworkSubnet();
+        if (network != null) {
+            predicates.add("family = ? AND address BETWEEN ? AND ? AND mask >= ?");
+            parameters.add(network.getFamily().ordinal());
+            parameters.add(toAddress(network.lowestContained()));
+            parameters.add(toAddress(network.highestContained()));
+            parameters.add(network.getMask());
+        }
+        /* Network cursor.  Within a single family - the query's, or the cursor's when the query
+        *  spans both - it is a seek on (family, address) of the network index; spanning both
+        *  families, the scan of the cursor's family can only be bounded on family.
+         */
+        IpamSubnet after = spec.getAfterNetwork();
+        if (after != null) {
+            IpamSubnet.Family only = (spec.getFamily() != null) ? spec.getFamily()
+                    : (network != null) ? network.getFamily() : null;
+            byte[] address = toAddress(after);
+            if (only == after.getFamily()) {
+                predicates.add("family = ? AND address >= ? AND (address > ? OR mask > ?)");
+                parameters.add(after.getFamily().ordinal());
+                parameters.add(address);
+                parameters.add(address);
+                parameters.add(after.getMask());
+            } else if (only != null) {
+                predicates.add("family > ?");
+                parameters.add(after.getFamily().ordinal());
+            } else {
+                predicates.add("family >= ? AND (family > ? OR address > ? OR (address = ? AND mask > ?))");
+                parameters.add(after.getFamily().ordinal());
+                parameters.add(after.getFamily().ordinal());
+                parameters.add(address);
+                parameters.add(address);
+                parameters.add(after.getMask());
+            }
+        }
+
+        StringBuilder sql = new StringBuilder(COLUMNS);
+        if (!predicates.isEmpty())
+            sql.append(" WHERE ").append(String.join(" AND ", predicates));
+        if (spec.isPaged()) {
+            sql.append((spec.getOrder() == SortOrder.NETWORK) ? " ORDER BY family, address, mask" : " ORDER BY id");
+            if (limit && spec.getLimit() != null) {
+                sql.append(" FETCH FIRST ? ROWS ONLY");
+                parameters.add(spec.getLimit());
+            }
+        }
+        return sql.toString();
+    }
+
+    // Borrow a session for 'work', translating SQL failures to BackingStoreException
+    private <T> T withSession(String failure, SessionWork<T> work) throws BackingStoreException {
+        Session session;
+        try {
+            session = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackingStoreException(failure + ": interrupted waiting for a connection", e);
+        }
+        try {
+            return work.apply(session);
+        } catch (SQLException e) {
+            throw new BackingStoreException(failure + ": " + e.getMessage(), e);
+        } finally {
+            pool.add(session);
+        }
+    }
+
+    private Optional<IpamRecord> insert(Session session, IpamSubnet net) throws SQLException, BackingStoreException {
+        int id = ids.allocate();
+        PreparedStatement insert = session.prepare(INSERT);
+        bindRecord(insert, id, net);
+        try {
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            if (isDuplicate(e))
+                return Optional.empty();
+            throw e;
+        }
+        revision.incrementAndGet();
+        return Optional.of(new IpamRecord(net, id));
+    }
+
+    private static Integer findId(Session session, IpamSubnet net) throws SQLException {
+        PreparedStatement query = session.prepare(BYNETWORK);
+        query.setInt(1, net.getFamily().ordinal());
+        query.setBytes(2, toAddress(net));
+        query.setInt(3, net.getMask());
+        try (ResultSet rows = query.executeQuery()) {
+            return rows.next() ? rows.getInt(1) : null;
+        }
+    }
+
+    private static void bindRecord(PreparedStatement insert, int id, IpamSubnet net) throws SQLException {
+        insert.setInt(1, id);
+        insert.setInt(2, net.getFamily().ordinal());
+        insert.setBytes(3, toAddress(net));
+        insert.setInt(4, net.getMask());
+    }
+
+    // Row of COLUMNS to record
+    private static IpamRecord readRecord(ResultSet rows) throws SQLException {
+        ByteBuffer address = ByteBuffer.wrap(rows.getBytes(3));
+        IpamSubnet net = IpamSubnet.fromBits(IpamSubnet.Family.values()[rows.getInt(2)],
+                address.getLong(), address.getLong(), rows.getInt(4));
+        return new IpamRecord(net, rows.getInt(1));
+    }
+
+    static byte[] toAddress(IpamSubnet net) {
+        return ByteBuffer.allocate(ADDRESSBYTES).putLong(net.getHighBits()).putLong(net.getLowBits()).array();
+    }
+
+    // Integrity constraint violation (SQLSTATE class 23), here always a subnet already stored
+    private static boolean isDuplicate(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (next instanceof SQLIntegrityConstraintViolationException
+                    || (next.getSQLState() != null && next.getSQLState().startsWith("23")))
+                return true;
+        }
+        return false;
+    }
+
+    private void closeSessions() {
+        for (Session session : sessions) {
+            try {
+                session.connection.close();
+            } catch (SQLException e) {
+                AsyncLog.shared().warn("Failed to close JDBC connection to " + url + ": " + e.getMessage());
+            }
+        }
+    }
+}
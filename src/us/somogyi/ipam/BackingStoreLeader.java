@@ -0,0 +1,198 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/*  BackingStore decorator for a replication leader: every successful put and delete is
+*   given the next change sequence number and kept in an ordered change log, which
+*   ReplicationServer streams to followers.  The log retains the last 'retain' changes; a
+*   follower further behind than that starts over from a snapshot of the store.
+*
+*   Every write must go through this decorator.  A write holds its subnet's lock stripe
+*   across the store write and the log append, so changes to the same subnet are logged
+*   in the order the store made them, and a change is logged only once the store shows
+*   it.  Changes to different subnets commute, so their relative order does not matter.
+*
+*   The epoch is drawn at creation and identifies this log: sequence numbers are
+*   meaningful only within one epoch, so a follower of an earlier leader resynchronizes.
+ */
+public class BackingStoreLeader implements BackingStore {
+
+    static final int DEFAULT_RETAIN = 100000;
+
+    private static final int STRIPESPERCORE = 4;
+
+    // A logged change: a put or delete of a record, with its sequence number
+    static final class Change {
+        private final long sequence;
+        private final boolean deleted;
+        private final IpamRecord record;
+
+        Change(long sequence, boolean deleted, IpamRecord record) {
+            this.sequence = sequence;
+            this.deleted = deleted;
+            this.record = record;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        IpamRecord getRecord() {
+            return record;
+        }
+    }
+
+    private final BackingStore store;
+    private final Striped<Lock> writeLocks;
+    private final long epoch = new Random().nextLong() & Long.MAX_VALUE;
+
+    // Ring of the last changes.length changes, guarded by this
+    private final Change[] changes;
+    private long sequence;
+
+    public BackingStoreLeader(BackingStore store) {
+        this(store, DEFAULT_RETAIN);
+    }
+
+    public BackingStoreLeader(BackingStore store, int retain) {
+        Preconditions.checkNotNull(store, "BackingStoreLeader: Invalid null reference - store");
+        Preconditions.checkArgument(retain > 0, "BackingStoreLeader: retain must be positive");
+
+        this.store = store;
+        this.changes = new Change[retain];
+        this.writeLocks = Striped.lock(Runtime.getRuntime().availableProcessors() * STRIPESPERCORE);
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            Optional<IpamRecord> result = store.putSubnet(net);
+            if (result.isPresent())
+                append(false, result.get());
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Holds the stripes of the whole batch, taken in a fixed order, across the store batch
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<Lock> locks = new ArrayList<>();
+        writeLocks.bulkGet(nets).forEach(locks::add);
+        for (Lock lock : locks)
+            lock.lock();
+        try {
+            List<Optional<IpamRecord>> results = store.putSubnets(nets);
+            for (Optional<IpamRecord> result : results) {
+                if (result.isPresent())
+                    append(false, result.get());
+            }
+            return results;
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--)
+                locks.get(i).unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            Optional<IpamRecord> result = store.deleteSubnet(net);
+            if (result.isPresent())
+                append(true, result.get());
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        return store.querySubnet(net);
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        return store.querySubnetById(id);
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        return store.queryAllSubnets();
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        return store.queryAllSubnets(spec);
+    }
+
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) throws BackingStoreException {
+        return store.iterateSubnets(spec);
+    }
+
+    @Override
+    public long getRevision() {
+        return store.getRevision();
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    // Sequence number of the last change logged, 0 before the first
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /* Up to 'max' changes following 'after', in order, or null if some of them are no
+    *  longer retained and the caller must start over from a snapshot.
+     */
+    synchronized List<Change> changesAfter(long after, int max) {
+        Preconditions.checkArgument(after >= 0 && after <= sequence,
+                "changesAfter: %s is not a logged sequence number", after);
+        if (sequence - after > changes.length)
+            return null;
+
+        int count = (int) Math.min(max, sequence - after);
+        List<Change> result = new ArrayList<>(count);
+        for (long s = after + 1; s <= after + count; s++)
+            result.add(changes[(int) (s % changes.length)]);
+        return result;
+    }
+
+    /* Wait until a change follows 'after', for up to 'timeout', returning the sequence number
+    *  of the last change logged.
+     */
+    synchronized long awaitChange(long after, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (sequence <= after && (remaining = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        return sequence;
+    }
+
+    private synchronized void append(boolean deleted, IpamRecord record) {
+        sequence++;
+        changes[(int) (sequence % changes.length)] = new Change(sequence, deleted, record);
+        notifyAll();
+    }
+}
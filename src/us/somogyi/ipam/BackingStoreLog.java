@@ -0,0 +1,623 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*  Durable BackingStore: an in-memory BackingStoreConcurrent, with every put and delete
+*   appended to a binary log in 'directory' before the call returns.
+*
+*   Group commit: writers append their records to a shared buffer, then wait for it to
+*   reach disk.  The first waiter writes and fsyncs everything buffered so far on behalf of
+*   every writer, so concurrent writers share one fsync.
+*
+*   Snapshots: after every 'snapshotInterval' records the log is rotated to a new
+*   generation and a compacted snapshot of the store is written in the background, after
+*   which older generations are deleted.  Recovery loads the snapshot and replays only the
+*   generations written since.  The snapshot is taken without stopping writers, so it may
+*   include some records of the newer generation; replaying a record is idempotent, so
+*   recovery converges on the same state.
+*
+*   A record becomes visible to readers as it is appended, just before its fsync.  If the
+*   log cannot be written the failed write is undone, and every later write fails with
+*   BackingStoreException; reads continue to be served from memory.
+ */
+public class BackingStoreLog implements BackingStore, Closeable {
+
+    static final int DEFAULT_SNAPSHOTINTERVAL = 100000;
+
+    static final String SNAPSHOT = "ipam.snapshot";
+    static final String LOGPREFIX = "ipam-";
+    static final String LOGSUFFIX = ".log";
+
+    private static final long SNAPSHOTMAGIC = 0x4950414d534e4150L;     // "IPAMSNAP"
+    private static final int SNAPSHOTVERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    // Log record: crc(4) op(1) id(4) family(1) hi(8) lo(8) mask(1); crc covers op onwards
+    static final int LOGRECORD = 27;
+    // Snapshot record: id(4) family(1) hi(8) lo(8) mask(1)
+    private static final int SNAPSHOTRECORD = 22;
+
+    private static final int STRIPESPERCORE = 4;
+    private static final int INITIALBUFFER = 64 * 1024;
+
+    private final Path directory;
+    private final int snapshotInterval;
+    private final BackingStoreConcurrent memory;
+    private final Striped<Lock> writeLocks;
+
+    // Group commit state, guarded by logLock
+    private final ReentrantLock logLock = new ReentrantLock();
+    private final Condition durable = logLock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIALBUFFER);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIALBUFFER);
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private volatile IOException failure;
+    private FileChannel log;
+    private long generation;
+    private long sinceSnapshot;
+
+    private final ExecutorService snapshotter;
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+
+    public BackingStoreLog(Path directory) throws BackingStoreException {
+        this(directory, DEFAULT_SNAPSHOTINTERVAL);
+    }
+
+    public BackingStoreLog(Path directory, int snapshotInterval) throws BackingStoreException {
+        this(directory, snapshotInterval, new IdAllocator.Sequential());
+    }
+
+    public BackingStoreLog(Path directory, int snapshotInterval, IdAllocator ids) throws BackingStoreException {
+        Preconditions.checkNotNull(directory, "BackingStoreLog: Invalid null reference - directory");
+        Preconditions.checkArgument(snapshotInterval > 0, "BackingStoreLog: snapshotInterval must be positive");
+
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.memory = new BackingStoreConcurrent(ids);
+        this.writeLocks = Striped.lock(Runtime.getRuntime().availableProcessors() * STRIPESPERCORE);
+        this.snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ipam-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Files.createDirectories(directory);
+            this.generation = recover() + 1;
+            this.log = openLog(generation);
+        } catch (IOException e) {
+            snapshotter.shutdown();
+            throw new BackingStoreException("Failed to open log store in " + directory, e);
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        Optional<IpamRecord> result;
+        long seq;
+
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            checkWritable();
+            result = memory.putSubnet(net);
+            if (!result.isPresent())
+                return result;
+            seq = append(OP_PUT, result.get());
+        } finally {
+            lock.unlock();
+        }
+
+        awaitDurable(seq, Collections.singletonList(result.get()), OP_PUT);
+        return result;
+    }
+
+    /* Batch put sharing a single group commit for every stored subnet.  If the store fails
+    *  partway through, the rest of the batch is not written, and the part already written
+    *  is undone unless it had reached disk.
+     */
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+        List<IpamRecord> stored = new ArrayList<>(nets.size());
+        long seq = 0;
+
+        for (IpamSubnet net : nets) {
+            Lock lock = writeLocks.get(net);
+            lock.lock();
+            try {
+                // Once the store has failed nothing more is written; awaitDurable undoes the rest
+                boolean failed = (failure != null);
+                if (failed && stored.isEmpty())
+                    checkWritable();
+                Optional<IpamRecord> result = failed ? Optional.empty() : memory.putSubnet(net);
+                if (result.isPresent()) {
+                    seq = append(OP_PUT, result.get());
+                    stored.add(result.get());
+                }
+                results.add(result);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (!stored.isEmpty())
+            awaitDurable(seq, stored, OP_PUT);
+        return results;
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        Optional<IpamRecord> result;
+        long seq;
+
+        Lock lock = writeLocks.get(net);
+        lock.lock();
+        try {
+            checkWritable();
+            result = memory.deleteSubnet(net);
+            if (!result.isPresent())
+                return result;
+            seq = append(OP_DELETE, result.get());
+        } finally {
+            lock.unlock();
+        }
+
+        awaitDurable(seq, Collections.singletonList(result.get()), OP_DELETE);
+        return result;
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) {
+        return memory.querySubnet(net);
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) {
+        return memory.querySubnetById(id);
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() {
+        return memory.queryAllSubnets();
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) {
+        return memory.queryAllSubnets(spec);
+    }
+
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) {
+        return memory.iterateSubnets(spec);
+    }
+
+    @Override
+    public long getRevision() {
+        return memory.getRevision();
+    }
+
+    /* Rotate the log and write a compacted snapshot of the store, then delete the log
+    *  generations it covers.  The snapshot's rename is synced to the directory first, so a
+    *  crash can never bring back the previous snapshot without the generations it needs.
+    *  Runs in the caller's thread; writers are held up only for the rotation.
+     */
+    public synchronized void snapshot() throws BackingStoreException {
+        long covered;
+        int nextId;
+
+        logLock.lock();
+        try {
+            covered = rotate();
+            nextId = memory.nextId();
+        } catch (IOException e) {
+            throw new BackingStoreException("Failed to rotate log in " + directory, e);
+        } finally {
+            logLock.unlock();
+        }
+
+        try {
+            writeSnapshot(covered, nextId);
+            for (long stale : logGenerations()) {
+                if (stale < covered)
+                    Files.deleteIfExists(logPath(stale));
+            }
+        } catch (IOException e) {
+            throw new BackingStoreException("Failed to write snapshot in " + directory, e);
+        }
+    }
+
+    /* Flush any buffered records and close the log.  A background snapshot is let finish
+    *  first, so it never deletes log generations from under a store reopened on the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logLock.lock();
+        try {
+            while (flushing)
+                durable.awaitUninterruptibly();
+            if (log.isOpen()) {
+                flush(pending);
+                durableSeq = appendedSeq;
+                log.close();
+            }
+            if (failure == null)
+                failure = new IOException("BackingStoreLog closed");
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /* ---- group commit ---- */
+
+    // Encode a record into the pending buffer, returning its sequence number.  Caller holds the subnet's write lock.
+    private long append(byte op, IpamRecord record) {
+        logLock.lock();
+        try {
+            if (pending.remaining() < LOGRECORD) {
+                ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            encodeLogRecord(pending, op, record);
+            if (++sinceSnapshot >= snapshotInterval)
+                scheduleSnapshot();
+            return ++appendedSeq;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /* Wait until every record up to seq is on disk, writing and syncing the buffer if no
+    *  other writer is already doing so.  On failure the caller's records are undone in
+    *  memory, and the store is marked failed.
+     */
+    private void awaitDurable(long seq, List<IpamRecord> records, byte op) throws BackingStoreException {
+        IOException error = null;
+
+        logLock.lock();
+        try {
+            while (durableSeq < seq && failure == null) {
+                if (flushing) {
+                    durable.awaitUninterruptibly();
+                    continue;
+                }
+
+                flushing = true;
+                ByteBuffer batch = pending;
+                long batchSeq = appendedSeq;
+                pending = spare;
+                logLock.unlock();
+                try {
+                    flush(batch);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    logLock.lock();
+                    flushing = false;
+                    spare = batch;
+                    if (error != null)
+                        failure = error;
+                    else
+                        durableSeq = Math.max(durableSeq, batchSeq);
+                    durable.signalAll();
+                }
+            }
+            if (durableSeq >= seq)
+                return;
+            error = failure;
+        } finally {
+            logLock.unlock();
+        }
+
+        // Undo under each subnet's write lock, as other writers may be changing it meanwhile
+        for (IpamRecord record : records) {
+            Lock lock = writeLocks.get(record.getSubnet());
+            lock.lock();
+            try {
+                if (op == OP_PUT)
+                    memory.unload(record.getSubnet(), record.getId());
+                else
+                    memory.load(record.getSubnet(), record.getId());
+            } finally {
+                lock.unlock();
+            }
+        }
+        throw new BackingStoreException("Failed to write log in " + directory, error);
+    }
+
+    // Write and fsync a buffer of encoded records, leaving it empty.  Caller is the only flusher.
+    private void flush(ByteBuffer batch) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining())
+            log.write(batch);
+        log.force(false);
+        batch.clear();
+    }
+
+    private void checkWritable() throws BackingStoreException {
+        IOException error = failure;
+        if (error != null)
+            throw new BackingStoreException("Log store is not writable: " + directory, error);
+    }
+
+    /* ---- snapshots ---- */
+
+    private void scheduleSnapshot() {
+        sinceSnapshot = 0;
+        if (snapshotRunning.compareAndSet(false, true)) {
+            snapshotter.execute(() -> {
+                try {
+                    snapshot();
+                } catch (BackingStoreException e) {
+                    AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+                } finally {
+                    snapshotRunning.set(false);
+                }
+            });
+        }
+    }
+
+    /* Switch appends to a new log generation, returning it.  Everything buffered for the
+    *  old generation is written first.  Caller holds logLock.
+     */
+    private long rotate() throws IOException {
+        while (flushing)
+            durable.awaitUninterruptibly();
+        flush(pending);
+        durableSeq = appendedSeq;
+        durable.signalAll();
+
+        FileChannel next = openLog(generation + 1);
+        log.close();
+        log = next;
+        return ++generation;
+    }
+
+    // Write the snapshot to a temporary file, then atomically replace the previous one
+    private void writeSnapshot(long covered, int nextId) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        CRC32 crc = new CRC32();
+        int count = 0;
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(INITIALBUFFER);
+            buffer.putLong(SNAPSHOTMAGIC).putInt(SNAPSHOTVERSION).putLong(covered).putInt(nextId);
+
+            Iterator<IpamRecord> records = memory.iterateSubnets(null);
+            while (records.hasNext()) {
+                if (buffer.remaining() < SNAPSHOTRECORD)
+                    drain(channel, buffer, crc);
+                encodeSnapshotRecord(buffer, records.next());
+                count++;
+            }
+            if (buffer.remaining() < Integer.BYTES)
+                drain(channel, buffer, crc);
+            buffer.putInt(count);
+            drain(channel, buffer, crc);
+
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporary, directory.resolve(SNAPSHOT),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    // Make the directory's entries - created, renamed or deleted files - durable
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /* ---- recovery ---- */
+
+    /* Load the snapshot, if any, then replay every later log generation in order.  Older
+    *  generations (left by a crash during a snapshot) are deleted.  Returns the highest
+    *  generation seen.
+     */
+    private long recover() throws IOException {
+        long covered = loadSnapshot();
+        long highest = covered;
+
+        for (long gen : logGenerations()) {
+            if (gen < covered) {
+                Files.deleteIfExists(logPath(gen));
+            } else {
+                replayLog(gen);
+                highest = Math.max(highest, gen);
+            }
+        }
+        return highest;
+    }
+
+    // Returns the first log generation not covered by the snapshot (0 if there is none)
+    private long loadSnapshot() throws IOException {
+        Path path = directory.resolve(SNAPSHOT);
+        if (!Files.exists(path))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < Long.BYTES * 3 + Integer.BYTES * 3)
+                throw new IOException("Truncated snapshot " + path);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(buffer.limit() - Long.BYTES);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(buffer.limit() - Long.BYTES))
+                throw new IOException("Corrupt snapshot " + path);
+
+            if (buffer.getLong() != SNAPSHOTMAGIC || buffer.getInt() != SNAPSHOTVERSION)
+                throw new IOException("Unrecognized snapshot " + path);
+            long covered = buffer.getLong();
+            int nextId = buffer.getInt();
+            int count = buffer.getInt(buffer.limit() - Long.BYTES - Integer.BYTES);
+
+            for (int i = 0; i < count; i++) {
+                int id = buffer.getInt();
+                memory.load(decodeSubnet(buffer), id);
+            }
+            memory.advanceNextId(nextId);
+            return covered;
+        }
+    }
+
+    /* Replay one log generation.  Replay stops at the first torn or corrupt record (a
+    *  write interrupted by a crash), and the log is truncated there.
+     */
+    private void replayLog(long gen) throws IOException {
+        Path path = logPath(gen);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            long valid = 0;
+
+            while (buffer.remaining() >= LOGRECORD) {
+                int start = buffer.position();
+                int expected = buffer.getInt();
+                ByteBuffer body = buffer.duplicate();
+                body.limit(start + LOGRECORD);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected)
+                    break;
+
+                byte op = buffer.get();
+                int id = buffer.getInt();
+                IpamSubnet net = decodeSubnet(buffer);
+                if (op == OP_PUT) {
+                    memory.load(net, id);
+                } else if (op == OP_DELETE) {
+                    memory.unload(net, id);
+                } else {
+                    break;
+                }
+                valid = buffer.position();
+            }
+
+            if (valid < size) {
+                AsyncLog.shared().warn("BackingStoreLog: truncating " + path + " at " + valid + " of " + size + " bytes");
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    /* ---- files and encoding ---- */
+
+    // Open generation gen for appending, syncing the directory if this creates it
+    private FileChannel openLog(long gen) throws IOException {
+        boolean created = !Files.exists(logPath(gen));
+        FileChannel channel = FileChannel.open(logPath(gen), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (created) {
+            try {
+                syncDirectory();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        return channel;
+    }
+
+    private Path logPath(long gen) {
+        return directory.resolve(String.format("%s%016d%s", LOGPREFIX, gen, LOGSUFFIX));
+    }
+
+    // Generations of the log files present, in ascending order
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOGPREFIX + "*" + LOGSUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(LOGPREFIX.length(), name.length() - LOGSUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    AsyncLog.shared().warn("BackingStoreLog: ignoring " + file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    static void encodeLogRecord(ByteBuffer buffer, byte op, IpamRecord record) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(op);
+        buffer.putInt(record.getId());
+        encodeSubnet(buffer, record.getSubnet());
+
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + Integer.BYTES).limit(start + LOGRECORD);
+        crc.update(body);
+        buffer.putInt(start, (int) crc.getValue());
+    }
+
+    private static void encodeSnapshotRecord(ByteBuffer buffer, IpamRecord record) {
+        buffer.putInt(record.getId());
+        encodeSubnet(buffer, record.getSubnet());
+    }
+
+    private static void encodeSubnet(ByteBuffer buffer, IpamSubnet net) {
+        buffer.put((byte) net.getFamily().ordinal());
+        buffer.putLong(net.getHighBits());
+        buffer.putLong(net.getLowBits());
+        buffer.put((byte) net.getMask());
+    }
+
+    private static IpamSubnet decodeSubnet(ByteBuffer buffer) throws IOException {
+        int family = buffer.get();
+        long hi = buffer.getLong();
+        long lo = buffer.getLong();
+        int mask = buffer.get() & 0xFF;
+        if (family < 0 || family >= IpamSubnet.Family.values().length)
+            throw new IOException("Invalid family " + family + " in record");
+        return IpamSubnet.fromBits(IpamSubnet.Family.values()[family], hi, lo, mask);
+    }
+}
@@ -0,0 +1,633 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*  Off-heap BackingStore: records and their hash index live in a single memory-mapped
+*   file, so the data set is paged by the OS rather than held on the Java heap, and a
+*   store of tens of millions of subnets costs the collector nothing to trace.
+*
+*   File layout (all offsets aligned to the field size):
+*       header      HEADER bytes - magic, version, clean flag, capacity, table size,
+*                   next id and live record count
+*       table       open addressing hash table of 'tableSlots' int slots, each holding
+*                   the id of a record (0 = empty), probed linearly from the subnet hash
+*       records     'capacity' fixed width records, record N holding id N + 1:
+*                   hi(8) lo(8) id(4) mask(1) family(1) flags(1) pad(9)
+*
+*   Ids are never reused, so querySubnetById is a direct offset calculation.  Deleting a
+*   subnet flags its record and removes its table slot by backward shift, so the table
+*   never accumulates tombstones.  When the records are full the store is copied into a
+*   file of twice the capacity and swapped in with an atomic rename.
+*
+*   Opening an existing file only maps it.  Writes reach disk as the OS writes back dirty
+*   pages, or on flush() / close(); the header's clean flag is cleared while the store is
+*   open, and after an unclean shutdown the hash table is rebuilt from the records.
+*
+*   Readers share a read lock and writers take the write lock.  Id ordered queries scan
+*   records in id order; NETWORK ordered queries have no off-heap ordered index, so they
+*   scan every record and keep the best 'limit' matches in a bounded heap.
+ */
+public class BackingStoreMapped implements BackingStore, Closeable {
+
+    static final String MAPPEDFILE = "ipam.mapped";
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    static final int MAXCAPACITY = 1 << 29;
+
+    private static final long MAGIC = 0x4950414d4d415044L;        // "IPAMMAPD"
+    private static final int VERSION = 1;
+
+    // Header fields
+    static final int HEADER = 4096;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_CLEAN = 12;
+    private static final int H_CAPACITY = 16;
+    private static final int H_TABLESLOTS = 20;
+    private static final int H_NEXTID = 24;
+    private static final int H_COUNT = 28;
+
+    // Record fields
+    static final int RECORD = 32;
+    private static final int R_HI = 0;
+    private static final int R_LO = 8;
+    private static final int R_ID = 16;
+    private static final int R_MASK = 20;
+    private static final int R_FAMILY = 21;
+    private static final int R_FLAGS = 22;
+
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 2;
+
+    private static final int SLOT = 4;
+
+    // A MappedByteBuffer is limited to 2GB, so the file is mapped in 1GB chunks
+    private static final int CHUNKSHIFT = 30;
+    private static final long CHUNK = 1L << CHUNKSHIFT;
+    private static final long CHUNKOFFSET = CHUNK - 1;
+
+    // Records read per read lock acquisition while scanning
+    private static final int SCANBATCH = 1024;
+
+    private static final IpamSubnet.Family[] FAMILIES = IpamSubnet.Family.values();
+
+    private final Path file;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock; replaced when the store grows
+    private FileChannel channel;
+    private MappedByteBuffer[] chunks;
+    private int capacity;
+    private int tableSlots;
+    private long recordsStart;
+    private int nextId;
+    private int count;
+    private volatile long revision;     // since open, not persisted; written under the write lock
+    private boolean open;
+
+    public BackingStoreMapped(Path file) throws BackingStoreException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    // capacity is the number of records a new file is sized for; an existing file keeps its own
+    public BackingStoreMapped(Path file, int capacity) throws BackingStoreException {
+        Preconditions.checkNotNull(file, "BackingStoreMapped: Invalid null reference - file");
+        Preconditions.checkArgument(capacity > 0 && capacity <= MAXCAPACITY,
+                "BackingStoreMapped: capacity must be between 1 and " + MAXCAPACITY);
+
+        this.file = file;
+        try {
+            if (Files.exists(file))
+                openExisting();
+            else
+                create(capacity);
+            writeHeader(false);
+            chunks[0].force();
+            open = true;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            throw new BackingStoreException("Failed to open mapped store " + file, e);
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            return store(net);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Batch put under a single acquisition of the write lock
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            for (IpamSubnet net : nets)
+                results.add(store(net));
+            return results;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int slot = find(net);
+            return (slot < 0) ? Optional.empty() : Optional.of(new IpamRecord(net, getInt(slotAt(slot))));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (id == null || id < 1 || id >= nextId || getByte(recordAt(id) + R_FLAGS) != LIVE)
+                return Optional.empty();
+            return Optional.of(new IpamRecord(subnetAt(recordAt(id)), id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            int slot = find(net);
+            if (slot < 0)
+                return Optional.empty();
+
+            int id = getInt(slotAt(slot));
+            putByte(recordAt(id) + R_FLAGS, DELETED);
+            removeSlot(slot);
+            putInt(H_COUNT, --count);
+            revision++;
+            return Optional.of(new IpamRecord(net, id));
+        } catch (RuntimeException e) {
+            throw new BackingStoreException("Failed to remove subnet: " + net.getSubnetId(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        return queryAllSubnets(null);
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        List<IpamRecord> response = new ArrayList<>();
+        iterateSubnets(spec).forEachRemaining(response::add);
+        return response;
+    }
+
+    // Lazy, weakly consistent scan in id order; NETWORK order is materialized
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) throws BackingStoreException {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (spec == null)
+            return scan(1, Integer.MAX_VALUE, null);
+
+        if (spec.getOrder() == SortOrder.NETWORK)
+            return networkOrdered(spec).iterator();
+
+        long low = 1;
+        long high = Integer.MAX_VALUE;
+        if (spec.getMinid() != null)
+            low = Math.max(low, spec.getMinid());
+        if (spec.getAfterId() != null)
+            low = Math.max(low, spec.getAfterId() + 1L);
+        if (spec.getMaxid() != null)
+            high = Math.min(high, spec.getMaxid());
+        if (low > high)
+            return Collections.emptyIterator();
+
+        Iterator<IpamRecord> records = scan((int) low, (int) high, spec);
+        return (spec.getLimit() != null) ? Iterators.limit(records, spec.getLimit()) : records;
+    }
+
+    // Write dirty pages to disk; the store stays open (and marked unclean)
+    public void flush() throws BackingStoreException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+        } catch (RuntimeException e) {
+            throw new BackingStoreException("Failed to flush mapped store " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Flush, mark the file clean and close it; later calls fail with BackingStoreException
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!open)
+                return;
+            open = false;
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+            writeHeader(true);
+            chunks[0].force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getRevision() {
+        return revision;
+    }
+
+    // Number of live records
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int capacity() {
+        lock.readLock().lock();
+        try {
+            return capacity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private Optional<IpamRecord> store(IpamSubnet net) throws BackingStoreException {
+        try {
+            int slot = find(net);
+            if (slot >= 0)
+                return Optional.empty();
+
+            if (nextId > capacity) {
+                grow();
+                slot = find(net);
+            }
+
+            int id = nextId;
+            long record = recordAt(id);
+            putLong(record + R_HI, net.getHighBits());
+            putLong(record + R_LO, net.getLowBits());
+            putInt(record + R_ID, id);
+            putByte(record + R_MASK, (byte) net.getMask());
+            putByte(record + R_FAMILY, (byte) net.getFamily().ordinal());
+            putByte(record + R_FLAGS, LIVE);
+            putInt(slotAt(-slot - 1), id);
+
+            putInt(H_NEXTID, ++nextId);
+            putInt(H_COUNT, ++count);
+            revision++;
+            return Optional.of(new IpamRecord(net, id));
+        } catch (IOException | RuntimeException e) {
+            throw new BackingStoreException("Failed to store new subnet " + net.getSubnetId(), e);
+        }
+    }
+
+    /* Slot holding net, or if absent -(slot + 1) where slot is the empty slot that ends its
+    *  probe sequence.  The table is at most half full, so probe sequences stay short.
+     */
+    private int find(IpamSubnet net) {
+        long hi = net.getHighBits();
+        long lo = net.getLowBits();
+        int mask = net.getMask();
+        int family = net.getFamily().ordinal();
+
+        int slots = tableSlots - 1;
+        for (int slot = hash(hi, lo, mask, family) & slots; ; slot = (slot + 1) & slots) {
+            int id = getInt(slotAt(slot));
+            if (id == 0)
+                return -slot - 1;
+            long record = recordAt(id);
+            if (getLong(record + R_HI) == hi && getLong(record + R_LO) == lo
+                    && maskAt(record) == mask && getByte(record + R_FAMILY) == family)
+                return slot;
+        }
+    }
+
+    /* Linear probing deletion by backward shift: later entries of the same probe cluster
+    *  move into the hole unless their home slot lies cyclically between the hole and
+    *  themselves, which keeps every remaining entry reachable without tombstones.
+     */
+    private void removeSlot(int hole) {
+        int slots = tableSlots - 1;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & slots;
+            int id = getInt(slotAt(next));
+            if (id == 0)
+                break;
+            int home = homeSlot(recordAt(id));
+            boolean reachable = (hole <= next)
+                    ? (hole < home && home <= next)
+                    : (hole < home || home <= next);
+            if (!reachable) {
+                putInt(slotAt(hole), id);
+                hole = next;
+            }
+        }
+        putInt(slotAt(hole), 0);
+    }
+
+    private int homeSlot(long record) {
+        return hash(getLong(record + R_HI), getLong(record + R_LO),
+                maskAt(record), getByte(record + R_FAMILY)) & (tableSlots - 1);
+    }
+
+    private static int hash(long hi, long lo, int mask, int family) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        h = (h ^ mask ^ ((long) family << 8)) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        h *= 0x94D049BB133111EBL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /* Records with ids in [low, high] matching spec (every record if spec is null), read
+    *  SCANBATCH at a time under the read lock.  Records stored or deleted during the scan
+    *  may or may not be seen.
+     */
+    private Iterator<IpamRecord> scan(int low, int high, filterSpec spec) {
+        return new AbstractIterator<IpamRecord>() {
+            private long id = low;
+            private final ArrayDeque<IpamRecord> batch = new ArrayDeque<>();
+
+            @Override
+            protected IpamRecord computeNext() {
+                while (batch.isEmpty()) {
+                    if (id > high || !fill())
+                        return endOfData();
+                }
+                return batch.poll();
+            }
+
+            private boolean fill() {
+                lock.readLock().lock();
+                try {
+                    if (!open)
+                        throw new IllegalStateException("Mapped store " + file + " is closed");
+                    long end = Math.min(Math.min(high, nextId - 1L), id + SCANBATCH - 1);
+                    if (id > end)
+                        return false;
+                    for (; id <= end; id++) {
+                        long record = recordAt((int) id);
+                        if (getByte(record + R_FLAGS) != LIVE)
+                            continue;
+                        IpamSubnet net = subnetAt(record);
+                        if (spec == null || spec.matches(net, (int) id))
+                            batch.add(new IpamRecord(net, (int) id));
+                    }
+                    return true;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+    }
+
+    // Full scan keeping the first 'limit' matches in subnet order, in a bounded max-heap
+    private List<IpamRecord> networkOrdered(filterSpec spec) {
+        Comparator<IpamRecord> order = Comparator.comparing(IpamRecord::getSubnet);
+        Integer limit = spec.getLimit();
+        PriorityQueue<IpamRecord> best = new PriorityQueue<>(order.reversed());
+
+        Iterator<IpamRecord> records = scan(1, Integer.MAX_VALUE, spec);
+        while (records.hasNext()) {
+            IpamRecord record = records.next();
+            if (limit == null || best.size() < limit) {
+                best.add(record);
+            } else if (order.compare(record, best.peek()) < 0) {
+                best.poll();
+                best.add(record);
+            }
+        }
+
+        List<IpamRecord> response = new ArrayList<>(best);
+        response.sort(order);
+        return response;
+    }
+
+    private void create(int initialCapacity) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        layout(initialCapacity);
+        nextId = 1;
+        count = 0;
+        chunks = map(channel, fileSize());
+    }
+
+    private void openExisting() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER)
+            throw new IOException("Not a mapped store: " + file);
+        chunks = map(channel, channel.size());
+
+        if (getLong(H_MAGIC) != MAGIC)
+            throw new IOException("Not a mapped store: " + file);
+        if (getInt(H_VERSION) != VERSION)
+            throw new IOException("Unsupported mapped store version " + getInt(H_VERSION));
+
+        layout(getInt(H_CAPACITY));
+        if (getInt(H_TABLESLOTS) != tableSlots || channel.size() < fileSize())
+            throw new IOException("Corrupt mapped store header: " + file);
+        nextId = getInt(H_NEXTID);
+        count = getInt(H_COUNT);
+        if (nextId < 1 || nextId - 1 > capacity)
+            throw new IOException("Corrupt mapped store header: " + file);
+
+        if (getInt(H_CLEAN) != 1)
+            rebuildTable();
+    }
+
+    // Table sized to at least twice the capacity, so it is never more than half full
+    private void layout(int newCapacity) {
+        capacity = newCapacity;
+        tableSlots = Math.max(1024, Integer.highestOneBit(newCapacity - 1) << 2);
+        recordsStart = HEADER + (long) tableSlots * SLOT;
+    }
+
+    private long fileSize() {
+        return recordsStart + (long) capacity * RECORD;
+    }
+
+    /* Copy the records into a new file of twice the capacity, rebuild the table there, and
+    *  atomically rename it over the current file.
+     */
+    private void grow() throws IOException, BackingStoreException {
+        if (capacity >= MAXCAPACITY)
+            throw new BackingStoreException("Mapped store " + file + " is full",
+                    new IOException("capacity " + capacity + " reached"));
+
+        Path grown = file.resolveSibling(file.getFileName() + ".grow");
+        Files.deleteIfExists(grown);
+        FileChannel target = FileChannel.open(grown, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long oldRecords = recordsStart;
+            long used = (long) (nextId - 1) * RECORD;
+            layout(Math.min(MAXCAPACITY, capacity * 2));
+
+            for (long done = 0; done < used; ) {
+                target.position(recordsStart + done);
+                done += channel.transferTo(oldRecords + done, used - done, target);
+            }
+            chunks = map(target, fileSize());
+            rebuildTable();
+            writeHeader(false);
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+
+            Files.move(grown, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(target);
+            open = false;
+            throw e;
+        }
+        closeQuietly(channel);
+        channel = target;
+    }
+
+    // Clear the table and reinsert every live record, recounting them
+    private void rebuildTable() {
+        for (int slot = 0; slot < tableSlots; slot++)
+            putInt(slotAt(slot), 0);
+
+        count = 0;
+        for (int id = 1; id < nextId; id++) {
+            long record = recordAt(id);
+            if (getByte(record + R_FLAGS) != LIVE)
+                continue;
+            int slot = find(subnetAt(record));
+            if (slot >= 0) {
+                // Only after an unclean shutdown: keep the newest record of a subnet
+                putByte(recordAt(getInt(slotAt(slot))) + R_FLAGS, DELETED);
+                putInt(slotAt(slot), id);
+            } else {
+                putInt(slotAt(-slot - 1), id);
+                count++;
+            }
+        }
+    }
+
+    private void writeHeader(boolean clean) {
+        putLong(H_MAGIC, MAGIC);
+        putInt(H_VERSION, VERSION);
+        putInt(H_CLEAN, clean ? 1 : 0);
+        putInt(H_CAPACITY, capacity);
+        putInt(H_TABLESLOTS, tableSlots);
+        putInt(H_NEXTID, nextId);
+        putInt(H_COUNT, count);
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, long size) throws IOException {
+        MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((size + CHUNK - 1) >>> CHUNKSHIFT)];
+        for (int i = 0; i < mapped.length; i++) {
+            long offset = (long) i << CHUNKSHIFT;
+            mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(CHUNK, size - offset));
+        }
+        return mapped;
+    }
+
+    private IpamSubnet subnetAt(long record) {
+        return IpamSubnet.fromBits(FAMILIES[getByte(record + R_FAMILY)],
+                getLong(record + R_HI), getLong(record + R_LO), maskAt(record));
+    }
+
+    // Mask lengths are stored as an unsigned byte
+    private int maskAt(long record) {
+        return getByte(record + R_MASK) & 0xFF;
+    }
+
+    private long slotAt(int slot) {
+        return HEADER + (long) slot * SLOT;
+    }
+
+    private long recordAt(int id) {
+        return recordsStart + (long) (id - 1) * RECORD;
+    }
+
+    /* Field access by file offset.  Fields are aligned to their size and chunks are a
+    *  multiple of RECORD, so no field spans two chunks.
+     */
+    private long getLong(long position) {
+        return chunks[(int) (position >>> CHUNKSHIFT)].getLong((int) (position & CHUNKOFFSET));
+    }
+
+    private int getInt(long position) {
+        return chunks[(int) (position >>> CHUNKSHIFT)].getInt((int) (position & CHUNKOFFSET));
+    }
+
+    private byte getByte(long position) {
+        return chunks[(int) (position >>> CHUNKSHIFT)].get((int) (position & CHUNKOFFSET));
+    }
+
+    private void putLong(long position, long value) {
+        chunks[(int) (position >>> CHUNKSHIFT)].putLong((int) (position & CHUNKOFFSET), value);
+    }
+
+    private void putInt(long position, int value) {
+        chunks[(int) (position >>> CHUNKSHIFT)].putInt((int) (position & CHUNKOFFSET), value);
+    }
+
+    private void putByte(long position, byte value) {
+        chunks[(int) (position >>> CHUNKSHIFT)].put((int) (position & CHUNKOFFSET), value);
+    }
+
+    private void checkOpen() throws BackingStoreException {
+        if (!open)
+            throw new BackingStoreException("Mapped store " + file + " is closed",
+                    new IllegalStateException("closed"));
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+    }
+}
@@ -1,42 +1,75 @@
 package us.somogyi.ipam;
 
-import com.google.common.collect.*;
+import com.google.common.base.Preconditions;
 
 import java.util.*;
 
 public class BackingStoreMemory implements BackingStore {
 
-    private Integer idCount = 1;
+    // Allocations are made under the repo monitor, which also guards repo and index
+    private final IdAllocator ids;
+    private volatile long revision;     // written only under the repo monitor
 
-    private final BiMap<IpamSubnet, Integer> repo;
-    private final BiMap<Integer, IpamSubnet> revrepo;
+    private final Map<IpamSubnet, Integer> repo;
+    private final SecondaryIndex index;
 
     // Singleton class
     public BackingStoreMemory() {
-        repo = HashBiMap.create();
-        revrepo = repo.inverse();
+        this(new IdAllocator.Sequential());
+    }
+
+    public BackingStoreMemory(IdAllocator ids) {
+        this.ids = Preconditions.checkNotNull(ids, "BackingStoreMemory: Invalid null reference - ids");
+        repo = new HashMap<>();
+        index = new SecondaryIndex(false);
     }
 
     @Override
     public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
         IpamRecord response = null;
-        if (!repo.containsKey(net)) {
-            Integer newId;
 
-            try {
-                synchronized (repo) {
-                    newId = allocateId();
+        try {
+            synchronized (repo) {
+                if (!repo.containsKey(net)) {
+                    Integer newId = allocateId();
                     repo.put(net, newId);
+                    index.add(net, newId);
+                    revision++;
+                    response = new IpamRecord(net, newId);
                 }
-                response = new IpamRecord(net, newId);
-            } catch (Exception e) {
-                throw new BackingStoreException("Failed to store new subnet"
-                        + net.getSubnetId(), e.getCause());
             }
+        } catch (Exception e) {
+            throw new BackingStoreException("Failed to store new subnet"
+                    + net.getSubnetId(), e.getCause());
         }
         return Optional.ofNullable(response);
     }
 
+    // Store a batch of subnets under a single acquisition of the repo monitor
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<Optional<IpamRecord>> response = new ArrayList<>(nets.size());
+
+        try {
+            synchronized (repo) {
+                for (IpamSubnet net : nets) {
+                    if (!repo.containsKey(net)) {
+                        Integer newId = allocateId();
+                        repo.put(net, newId);
+                        index.add(net, newId);
+                        revision++;
+                        response.add(Optional.of(new IpamRecord(net, newId)));
+                    } else {
+                        response.add(Optional.empty());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new BackingStoreException("Failed to store batch of " + nets.size() + " subnets", e);
+        }
+        return response;
+    }
+
     // Retrieve IpamRecord by IpamSubnet key
     @Override
     public Optional<IpamRecord> querySubnet(IpamSubnet net) {
@@ -56,6 +89,8 @@ public class BackingStoreMemory implements BackingStore {
             synchronized (repo) {
                 if (repo.containsKey(net)) {
                     oldKey = repo.remove(net);
+                    index.remove(net, oldKey);
+                    revision++;
                     response = new IpamRecord(net, oldKey);
                 }
             }
@@ -72,8 +107,9 @@ public class BackingStoreMemory implements BackingStore {
 
         try {
             synchronized (repo) {
-                if (revrepo.containsKey(id)) {
-                    response = new IpamRecord(revrepo.get(id), id);
+                IpamSubnet net = index.get(id);
+                if (net != null) {
+                    response = new IpamRecord(net, id);
                 }
             }
         } catch (Exception e) {
@@ -85,38 +121,50 @@ public class BackingStoreMemory implements BackingStore {
         return Optional.ofNullable(response);
     }
 
+    // Every record, in id order
     @Override
     public List<IpamRecord> queryAllSubnets() {
         List<IpamRecord> response = new ArrayList<>();
         synchronized (repo) {
-            Set<IpamSubnet> keySet = repo.keySet();
-            for (IpamSubnet key: keySet) {
-                response.add(new IpamRecord(key, repo.get(key)));
+            for (Map.Entry<Integer, IpamSubnet> entry : index.byId().entrySet()) {
+                response.add(new IpamRecord(entry.getValue(), entry.getKey()));
             }
         }
         return response;
     }
 
+    /* Filtered query: candidates come from the most selective secondary index (see
+    *  SecondaryIndex.candidates), so cost follows the result size rather than store size.
+    *  Paged queries are an ordered scan from the cursor (see SecondaryIndex.ordered).
+     */
     @Override
     public List<IpamRecord> queryAllSubnets(filterSpec spec) {
+        if (spec == null)
+            return queryAllSubnets();
+
         List<IpamRecord> response = new ArrayList<>();
         synchronized (repo) {
-            Set<IpamSubnet> keySet = repo.keySet();
-            for (IpamSubnet key: keySet) {
-                response.add(new IpamRecord(key, repo.get(key)));
+            if (spec.isPaged()) {
+                index.ordered(spec, repo::get).forEachRemaining(response::add);
+                return response;
+            }
+            for (IpamSubnet key : index.candidates(spec, repo.keySet())) {
+                Integer id = repo.get(key);
+                if (spec.matches(key, id))
+                    response.add(new IpamRecord(key, id));
             }
         }
         return response;
     }
 
+    @Override
+    public long getRevision() {
+        return revision;
+    }
 
-    // Issue a monotonically incrementing unique ID for use in new record.
-    private Integer allocateId() {
-        Integer allocated;
-        synchronized (idCount) {
-            allocated = idCount++;
-        }
-        return allocated;
+    // Issue a monotonically incrementing unique ID for use in new record.  Caller holds repo.
+    private Integer allocateId() throws BackingStoreException {
+        return ids.allocate();
     }
 
 }
@@ -0,0 +1,140 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import static us.somogyi.ipam.IpamMetrics.StoreOp;
+
+/*  BackingStore decorator recording the latency and outcome of every operation of the
+*   wrapped store in IpamMetrics, along with batch and result sizes and the number of
+*   stored records.  iterateSubnets is timed up to the return of the iterator, as the
+*   caller consumes it at its own pace.
+ */
+class BackingStoreMetrics implements BackingStore {
+
+    private final BackingStore store;
+    private final IpamMetrics metrics;
+
+    // Counts the records already in store, so the record gauge starts out right
+    BackingStoreMetrics(BackingStore store, IpamMetrics metrics) throws BackingStoreException {
+        this.store = Preconditions.checkNotNull(store, "BackingStoreMetrics: Invalid null reference - store");
+        this.metrics = Preconditions.checkNotNull(metrics, "BackingStoreMetrics: Invalid null reference - metrics");
+        metrics.monitorStore(Iterators.size(store.iterateSubnets(null)));
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Optional<IpamRecord> result = store.putSubnet(net);
+            failed = false;
+            if (result.isPresent())
+                metrics.addStoreRecords(1);
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.PUT, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<Optional<IpamRecord>> results = store.putSubnets(nets);
+            failed = false;
+            metrics.addStoreRecords(results.stream().filter(Optional::isPresent).count());
+            return results;
+        } finally {
+            metrics.recordStore(StoreOp.PUT_BATCH, System.nanoTime() - start, failed);
+            metrics.recordBatchSize(nets.size());
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Optional<IpamRecord> result = store.querySubnet(net);
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.QUERY, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Optional<IpamRecord> result = store.querySubnetById(id);
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.QUERY_BY_ID, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Optional<IpamRecord> result = store.deleteSubnet(net);
+            failed = false;
+            if (result.isPresent())
+                metrics.addStoreRecords(-1);
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.DELETE, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        return queryAll(null);
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        return queryAll(spec);
+    }
+
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Iterator<IpamRecord> result = store.iterateSubnets(spec);
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.ITERATE, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public long getRevision() {
+        return store.getRevision();
+    }
+
+    private List<IpamRecord> queryAll(filterSpec spec) throws BackingStoreException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<IpamRecord> result = (spec == null) ? store.queryAllSubnets() : store.queryAllSubnets(spec);
+            failed = false;
+            metrics.recordResultSize(result.size());
+            return result;
+        } finally {
+            metrics.recordStore(StoreOp.QUERY_ALL, System.nanoTime() - start, failed);
+        }
+    }
+}
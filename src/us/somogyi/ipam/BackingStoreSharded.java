@@ -0,0 +1,359 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*  BackingStore partitioning subnets across independent child stores (shards), so that
+*   writers to different shards share no lock, index or heap structure.
+*
+*   Each subnet is routed by its family and the leading bits of its network number, up to
+*   ROUTEV4 / ROUTEV6 bits (fewer for shorter masks), hashed over the shards.  Point
+*   operations touch only the subnet's shard.  Listings scatter to every shard in parallel
+*   and gather the results, except that a network filter at least as long as the routing
+*   prefix is sent only to the one shard that can hold matching subnets.
+*
+*   Ids stay globally unique without coordination: a record with id n in shard s has the
+*   global id n * shards + s, so the shard of an id is its remainder.  Id filters and
+*   cursors are translated to each shard's own ids, and ordered listings are merged from
+*   the shards' ordered results.  The number of shards fixes both the routing and the ids,
+*   so durable shards must always be reopened with the same number of shards.  A shard's
+*   ids must stay within maxLocalId, so that its global ids fit an int: shards created by
+*   IpamServer.CreateStore refuse a larger id before storing the subnet, and a subnet any
+*   other shard stores with one is deleted again and reported as not stored.
+*
+*   The revision is the sum of the shards' revisions, so it advances with every change to
+*   any shard, or is UNVERSIONED if any shard is.
+ */
+public class BackingStoreSharded implements BackingStore, Closeable {
+
+    static final int ROUTEV4 = 24;
+    static final int ROUTEV6 = 64;
+
+    private final List<BackingStore> shards;
+    private final ExecutorService scatter;
+
+    public BackingStoreSharded(List<? extends BackingStore> shards) {
+        Preconditions.checkNotNull(shards, "BackingStoreSharded: Invalid null reference - shards");
+        Preconditions.checkArgument(!shards.isEmpty(), "BackingStoreSharded: at least one shard is required");
+
+        this.shards = ImmutableList.copyOf(shards);
+        this.scatter = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ipam-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Shard holding net
+    int shardOf(IpamSubnet net) {
+        int route = Math.min(net.getMask(), (net.getFamily() == IpamSubnet.Family.IPV4) ? ROUTEV4 : ROUTEV6);
+        IpamSubnet prefix = net.truncate(route);
+        long hash = prefix.getHighBits() * 0x9E3779B97F4A7C15L
+                ^ Long.rotateLeft(prefix.getLowBits() * 0xC2B2AE3D27D4EB4FL, 31)
+                ^ net.getFamily().ordinal();
+        hash ^= hash >>> 29;
+        return (int) Long.remainderUnsigned(hash, shards.size());
+    }
+
+    @Override
+    public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+        int shard = shardOf(net);
+        Optional<IpamRecord> stored = shards.get(shard).putSubnet(net);
+        if (stored.isPresent() && !reachable(stored.get(), shard))
+            throw new BackingStoreException("BackingStoreSharded: id space exhausted in shard " + shard, null);
+        return toGlobal(stored, shard);
+    }
+
+    // Each shard stores its part of the batch as a batch of its own, in parallel
+    @Override
+    public List<Optional<IpamRecord>> putSubnets(List<IpamSubnet> nets) throws BackingStoreException {
+        List<List<IpamSubnet>> parts = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++)
+            parts.add(new ArrayList<>());
+        int[] route = new int[nets.size()];
+        for (int i = 0; i < nets.size(); i++) {
+            route[i] = shardOf(nets.get(i));
+            parts.get(route[i]).add(nets.get(i));
+        }
+
+        List<Callable<List<Optional<IpamRecord>>>> tasks = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            BackingStore shard = shards.get(i);
+            List<IpamSubnet> part = parts.get(i);
+            tasks.add(() -> part.isEmpty() ? Collections.emptyList() : shard.putSubnets(part));
+        }
+        List<List<Optional<IpamRecord>>> stored = scatter(tasks);
+
+        List<Optional<IpamRecord>> results = new ArrayList<>(nets.size());
+        int[] next = new int[shards.size()];
+        for (int i = 0; i < nets.size(); i++) {
+            Optional<IpamRecord> record = stored.get(route[i]).get(next[route[i]]++);
+            if (record.isPresent() && !reachable(record.get(), route[i]))
+                record = Optional.empty();
+            results.add(toGlobal(record, route[i]));
+        }
+        return results;
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnet(IpamSubnet net) throws BackingStoreException {
+        int shard = shardOf(net);
+        return toGlobal(shards.get(shard).querySubnet(net), shard);
+    }
+
+    @Override
+    public Optional<IpamRecord> querySubnetById(Integer id) throws BackingStoreException {
+        if (id == null || id < 0)
+            return Optional.empty();
+        int shard = id % shards.size();
+        return toGlobal(shards.get(shard).querySubnetById(id / shards.size()), shard);
+    }
+
+    @Override
+    public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+        int shard = shardOf(net);
+        return toGlobal(shards.get(shard).deleteSubnet(net), shard);
+    }
+
+    // Gathered in parallel, then merged into id order
+    @Override
+    public List<IpamRecord> queryAllSubnets() throws BackingStoreException {
+        if (shards.size() == 1)
+            return shards.get(0).queryAllSubnets();
+
+        List<Callable<List<IpamRecord>>> tasks = new ArrayList<>(shards.size());
+        for (BackingStore shard : shards)
+            tasks.add(shard::queryAllSubnets);
+        return mergeById(scatter(tasks));
+    }
+
+    @Override
+    public List<IpamRecord> queryAllSubnets(filterSpec spec) throws BackingStoreException {
+        if (spec == null)
+            return queryAllSubnets();
+
+        List<IpamRecord> response = new ArrayList<>();
+        if (spec.isPaged()) {
+            iterateSubnets(spec).forEachRemaining(response::add);
+            return response;
+        }
+
+        List<Integer> targets = targets(spec);
+        List<Callable<List<IpamRecord>>> tasks = new ArrayList<>(targets.size());
+        for (int shard : targets) {
+            filterSpec local = toLocal(spec, shard);
+            tasks.add(() -> toGlobal(shards.get(shard).queryAllSubnets(local), shard));
+        }
+        for (List<IpamRecord> part : scatter(tasks))
+            response.addAll(part);
+        return response;
+    }
+
+    /* Lazy merge of the shards' own iterators: in id order when unfiltered, in the
+    *  requested order (limited to the page) when paged, otherwise shard by shard.
+     */
+    @Override
+    public Iterator<IpamRecord> iterateSubnets(filterSpec spec) throws BackingStoreException {
+        List<Integer> targets = (spec == null) ? allShards() : targets(spec);
+        List<Iterator<IpamRecord>> parts = new ArrayList<>(targets.size());
+        for (int shard : targets) {
+            Iterator<IpamRecord> local = shards.get(shard).iterateSubnets((spec == null) ? null : toLocal(spec, shard));
+            parts.add(Iterators.transform(local, record -> toGlobal(record, shard)));
+        }
+
+        if (parts.size() == 1)
+            return parts.get(0);        // the shard has applied any order and limit
+        if (spec == null)
+            return Iterators.mergeSorted(parts, byId());
+        if (!spec.isPaged())
+            return Iterators.concat(parts.iterator());
+
+        Iterator<IpamRecord> merged = Iterators.mergeSorted(parts,
+                (spec.getOrder() == SortOrder.NETWORK) ? byNetwork() : byId());
+        return (spec.getLimit() != null) ? Iterators.limit(merged, spec.getLimit()) : merged;
+    }
+
+    @Override
+    public long getRevision() {
+        long revision = 0;
+        for (BackingStore shard : shards) {
+            long shardRevision = shard.getRevision();
+            if (shardRevision == UNVERSIONED)
+                return UNVERSIONED;
+            revision += shardRevision;
+        }
+        return revision;
+    }
+
+    // Close every shard that is Closeable, reporting the first failure
+    @Override
+    public void close() throws IOException {
+        scatter.shutdown();
+        IOException failure = null;
+        for (BackingStore shard : shards) {
+            if (shard instanceof Closeable) {
+                try {
+                    ((Closeable) shard).close();
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    int getShardCount() {
+        return shards.size();
+    }
+
+    // Largest id 'shard' of 'count' shards may give a record, so its global id fits an int
+    static int maxLocalId(int count, int shard) {
+        return (Integer.MAX_VALUE - shard) / count;
+    }
+
+    /* True if record, just stored by shard, has a global id.  If not the record is deleted
+    *  from the shard again, so no record is left that no global id can reach.
+     */
+    private boolean reachable(IpamRecord record, int shard) throws BackingStoreException {
+        if (record.getId() <= maxLocalId(shards.size(), shard))
+            return true;
+        shards.get(shard).deleteSubnet(record.getSubnet());
+        AsyncLog.shared().error("BackingStoreSharded: id space exhausted in shard " + shard
+                + ", " + record.getSubnet().getCidr() + " not stored");
+        return false;
+    }
+
+    /* ---- routing and id translation ---- */
+
+    // Shards that can hold subnets matching spec
+    private List<Integer> targets(filterSpec spec) {
+        IpamSubnet network = spec.getNetworkSubnet();
+        if (network != null
+                && network.getMask() >= ((network.getFamily() == IpamSubnet.Family.IPV4) ? ROUTEV4 : ROUTEV6))
+            return Collections.singletonList(shardOf(network));
+        return allShards();
+    }
+
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++)
+            all.add(i);
+        return all;
+    }
+
+    /* spec with its id bounds and id cursor in shard's own ids: global id n * shards + shard
+    *  lies within [minid, maxid] and after afterId exactly when n does within the translated
+    *  bounds.
+     */
+    private filterSpec toLocal(filterSpec spec, int shard) {
+        int count = shards.size();
+        Integer minid = (spec.getMinid() == null) ? null
+                : (int) -Math.floorDiv(-((long) spec.getMinid() - shard), count);
+        Integer maxid = (spec.getMaxid() == null) ? null
+                : (int) Math.floorDiv((long) spec.getMaxid() - shard, count);
+        Integer afterId = (spec.getAfterId() == null) ? null
+                : (int) Math.floorDiv((long) spec.getAfterId() - shard, count);
+        SortOrder order = spec.isPaged() ? spec.getOrder() : null;
+        if (order == null && spec.getAfterId() != null)
+            order = SortOrder.ID;
+
+        return new filterSpec(spec.getNetwork(), maxid, minid, spec.getFamily(), spec.getMask(),
+                spec.getLimit(), order, afterId, spec.getAfterNetwork());
+    }
+
+    private IpamRecord toGlobal(IpamRecord record, int shard) {
+        if (shards.size() == 1)
+            return record;
+        long id = (long) record.getId() * shards.size() + shard;
+        if (id > Integer.MAX_VALUE)
+            throw new IllegalStateException("BackingStoreSharded: id space exhausted in shard " + shard);
+        return new IpamRecord(record.getSubnet(), (int) id);
+    }
+
+    private Optional<IpamRecord> toGlobal(Optional<IpamRecord> record, int shard) {
+        return record.map(local -> toGlobal(local, shard));
+    }
+
+    private List<IpamRecord> toGlobal(List<IpamRecord> records, int shard) {
+        List<IpamRecord> global = new ArrayList<>(records.size());
+        for (IpamRecord record : records)
+            global.add(toGlobal(record, shard));
+        return global;
+    }
+
+    /* Merge the shards' listings, each in its own id order, into global id order.  Global
+    *  ids order by local id and then by shard, so the smallest head is found by comparing
+    *  local ids alone, without a heap.
+     */
+    private List<IpamRecord> mergeById(List<List<IpamRecord>> parts) {
+        int count = parts.size();
+        int[] next = new int[count];
+        int[] head = new int[count];
+        int size = 0;
+        for (int s = 0; s < count; s++) {
+            size += parts.get(s).size();
+            head[s] = parts.get(s).isEmpty() ? Integer.MAX_VALUE : parts.get(s).get(0).getId();
+        }
+
+        List<IpamRecord> merged = new ArrayList<>(size);
+        for (int n = 0; n < size; n++) {
+            int shard = 0;
+            for (int s = 1; s < count; s++) {
+                if (head[s] < head[shard])
+                    shard = s;
+            }
+            List<IpamRecord> part = parts.get(shard);
+            merged.add(toGlobal(part.get(next[shard]++), shard));
+            head[shard] = (next[shard] < part.size()) ? part.get(next[shard]).getId() : Integer.MAX_VALUE;
+        }
+        return merged;
+    }
+
+    private static Comparator<IpamRecord> byId() {
+        return Comparator.comparing(IpamRecord::getId);
+    }
+
+    private static Comparator<IpamRecord> byNetwork() {
+        return Comparator.comparing(IpamRecord::getSubnet);
+    }
+
+    /* Run tasks on the scatter pool, the last on the calling thread, and collect their
+    *  results in order.  Any failure is rethrown as a BackingStoreException.
+     */
+    private <T> List<T> scatter(List<Callable<T>> tasks) throws BackingStoreException {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (int i = 0; i < tasks.size() - 1; i++)
+                futures.add(scatter.submit(tasks.get(i)));
+            T last = tasks.get(tasks.size() - 1).call();
+
+            List<T> results = new ArrayList<>(tasks.size());
+            for (Future<T> future : futures)
+                results.add(future.get());
+            results.add(last);
+            return results;
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof BackingStoreException)
+                    ? (BackingStoreException) e.getCause()
+                    : new BackingStoreException("Shard failed: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackingStoreException("Interrupted waiting for shards", e);
+        } catch (BackingStoreException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BackingStoreException("Shard failed: " + e, e);
+        } finally {
+            for (Future<T> future : futures)
+                future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+/*  Handling of failed subnets when adding a batch (see IpamRepo.AddSubnets).
+ */
+public enum BatchMode {
+
+    // Store the whole batch, or none of it if any subnet collides or fails to store.  A batch
+    // rejected after storing is deleted again, best effort (see IpamRepo.AddSubnets)
+    ATOMIC,
+
+    // Store every subnet that can be stored, reporting the rest individually
+    BEST_EFFORT;
+
+    // Case insensitive lookup accepting '-' in place of '_', e.g. "best-effort"
+    public static BatchMode fromName(String name) throws IllegalArgumentException {
+        Preconditions.checkNotNull(name, "fromName: Invalid null reference - name");
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,129 @@
+package us.somogyi.ipam;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Wire format of the binary subnet protocol, spoken by BinaryServer and IpamClient.  Every
+*   message is a frame, all numbers big endian:
+*
+*       request     length(4) opcode(1) tag(4) body
+*       response    length(4) status(1) tag(4) body
+*
+*   'length' counts the bytes after itself.  A response echoes its request's tag, and
+*   responses come back in request order, so a client may pipeline requests.
+*
+*       subnet      family(1) address(4 or 16) mask(1)          family is 4 or 6
+*       record      id(4) subnet
+*
+*   Request bodies:  ADD, GET, DELETE a subnet; GET_ID an id(4); LIST family(1) after(4)
+*   limit(4), listing up to 'limit' records in id order with ids above 'after', of one
+*   family or, with family 0, of both.
+*
+*   Response bodies:  OK carries the record added, found or deleted, or for LIST count(4)
+*   and that many records.  A full page of LIST may have more records after its last id.
+*   NOT_FOUND and REJECTED (an ADD that overlaps a stored subnet or could not be stored)
+*   carry nothing; INVALID, MISDIRECTED, UNAVAILABLE, ERROR and BAD_OPCODE (a request of
+*   an opcode the server does not know, whatever its body) carry a UTF-8 message.
+ */
+public final class BinaryProtocol {
+
+    static final byte ADD = 1;
+    static final byte GET = 2;
+    static final byte GET_ID = 3;
+    static final byte DELETE = 4;
+    static final byte LIST = 5;
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    public static final byte REJECTED = 2;
+    public static final byte INVALID = 3;
+    public static final byte MISDIRECTED = 4;      // a write sent to a replication follower
+    public static final byte UNAVAILABLE = 5;      // a follower too far behind its leader to read
+    public static final byte ERROR = 6;
+    public static final byte BAD_OPCODE = 7;
+
+    static final int HEADER = 9;            // length, opcode or status, tag
+    static final int MAXREQUEST = 64;       // largest request frame, after its length
+    static final int MAXSUBNET = 18;
+    static final int MAXRECORD = 4 + MAXSUBNET;
+
+    private static final byte FAMILY4 = 4;
+    private static final byte FAMILY6 = 6;
+
+    private BinaryProtocol() {}
+
+    static int subnetSize(IpamSubnet subnet) {
+        return (subnet.getFamily() == IpamSubnet.Family.IPV4) ? 6 : MAXSUBNET;
+    }
+
+    static int recordSize(IpamRecord record) {
+        return 4 + subnetSize(record.getSubnet());
+    }
+
+    static void putSubnet(ByteBuffer out, IpamSubnet subnet) {
+        if (subnet.getFamily() == IpamSubnet.Family.IPV4) {
+            out.put(FAMILY4);
+            out.putInt((int) (subnet.getHighBits() >>> 32));
+        } else {
+            out.put(FAMILY6);
+            out.putLong(subnet.getHighBits());
+            out.putLong(subnet.getLowBits());
+        }
+        out.put((byte) subnet.getMask());
+    }
+
+    static void putRecord(ByteBuffer out, IpamRecord record) {
+        out.putInt(record.getId());
+        putSubnet(out, record.getSubnet());
+    }
+
+    // True for the opcodes a request may carry
+    static boolean isOpcode(byte opcode) {
+        return opcode >= ADD && opcode <= LIST;
+    }
+
+    /* Read a subnet, or empty if its family or mask is invalid.  Throws BufferUnderflowException
+    *  if the buffer ends first.
+     */
+    static Optional<IpamSubnet> getSubnet(ByteBuffer in) {
+        byte family = in.get();
+        if (family == FAMILY4) {
+            long hi = (in.getInt() & 0xFFFFFFFFL) << 32;
+            return IpamSubnet.tryFromBits(IpamSubnet.Family.IPV4, hi, 0, in.get() & 0xFF);
+        }
+        if (family == FAMILY6) {
+            long hi = in.getLong();
+            long lo = in.getLong();
+            return IpamSubnet.tryFromBits(IpamSubnet.Family.IPV6, hi, lo, in.get() & 0xFF);
+        }
+        return Optional.empty();
+    }
+
+    static Optional<IpamRecord> getRecord(ByteBuffer in) {
+        int id = in.getInt();
+        return getSubnet(in).map(subnet -> new IpamRecord(subnet, id));
+    }
+
+    // Family byte of a LIST request: 0 for either family
+    static byte familyCode(IpamSubnet.Family family) {
+        if (family == null)
+            return 0;
+        return (family == IpamSubnet.Family.IPV4) ? FAMILY4 : FAMILY6;
+    }
+
+    // Family of a LIST request's family byte, null for either; throws IllegalArgumentException if unknown
+    static IpamSubnet.Family family(byte code) {
+        switch (code) {
+            case 0:
+                return null;
+            case FAMILY4:
+                return IpamSubnet.Family.IPV4;
+            case FAMILY6:
+                return IpamSubnet.Family.IPV6;
+            default:
+                throw new IllegalArgumentException("Invalid family: " + code);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.Headers;
+import javafx.util.Pair;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStore.filterSpecBuilder;
+
+/*  Serves the binary subnet protocol (see BinaryProtocol) beside the HTTP API, for clients
+*   that add and look up subnets at high rates: one thread per connection, answering each
+*   request from the repo directly on that thread.  Requests are decoded from, and
+*   responses encoded straight from IpamRecords into, a pair of direct buffers the
+*   connection borrows from a shared pool; every request already received is answered
+*   before the responses are written, so a pipelining client gets them in one write.
+*
+*   On a replication follower the protocol is gated as the HTTP API is (see
+*   IpamServer.FollowerGate): writes are MISDIRECTED, and reads UNAVAILABLE while the
+*   follower lags its leader by more than ipam.replication.maxlag.  Requests are recorded
+*   in 'metrics', unless it is null, under the HTTP method and status of their HTTP
+*   equivalent.
+ */
+class BinaryServer implements Closeable {
+
+    static final int BUFFER = 64 * 1024;
+    private static final int POOLED = 64;           // free buffers kept
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final IpamRepo repo;
+    private final IpamMetrics.RouteMetrics metrics;
+    private final ServerSocketChannel listener;
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    BinaryServer(IpamRepo repo, InetSocketAddress address, IpamMetrics.RouteMetrics metrics) throws IOException {
+        this.repo = Preconditions.checkNotNull(repo, "BinaryServer: Invalid null reference - repo");
+        Preconditions.checkNotNull(address, "BinaryServer: Invalid null reference - address");
+
+        this.metrics = metrics;
+        this.listener = ServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(address);
+        daemon(this::accept, "ipam-binary").start();
+    }
+
+    int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (SocketChannel client : clients)
+            client.close();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = listener.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                clients.add(channel);
+                daemon(() -> serve(channel), "ipam-binary-" + channel.getRemoteAddress()).start();
+            } catch (IOException e) {
+                if (!closed)
+                    AsyncLog.shared().warn("BinaryServer failed to accept client: " + e.getMessage());
+            }
+        }
+    }
+
+    // Answer one client's requests until it disconnects or the server closes
+    private void serve(SocketChannel channel) {
+        ByteBuffer in = borrow();
+        ByteBuffer out = borrow();
+        try {
+            while (!closed && channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < BinaryProtocol.HEADER - 4 || length > BinaryProtocol.MAXREQUEST)
+                        throw new IOException("Invalid request length " + length);
+                    if (in.remaining() < 4 + length)
+                        break;
+
+                    int limit = in.limit();
+                    int end = in.position() + 4 + length;
+                    in.position(in.position() + 4).limit(end);
+                    handle(channel, in, out);
+                    in.limit(limit).position(end);
+                }
+                in.compact();
+                flush(channel, out);
+            }
+        } catch (ClosedChannelException e) {
+            // closed by the server
+        } catch (IOException e) {
+            if (!closed)
+                AsyncLog.shared().info("Binary client " + channel.socket().getRemoteSocketAddress() + " dropped: " + e.getMessage());
+        } finally {
+            clients.remove(channel);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closing
+            }
+            release(in);
+            release(out);
+        }
+    }
+
+    // Answer the request in 'in', from its opcode to its limit, into 'out'
+    private void handle(SocketChannel channel, ByteBuffer in, ByteBuffer out) throws IOException {
+        long start = System.nanoTime();
+        byte opcode = in.get();
+        int tag = in.getInt();
+        byte status;
+
+        try {
+            // An unknown opcode is refused before its body is read or a follower is asked
+            boolean known = BinaryProtocol.isOpcode(opcode);
+            boolean write = (opcode == BinaryProtocol.ADD || opcode == BinaryProtocol.DELETE);
+            Pair<String, Integer> gate = (known && IpamServer.follower != null)
+                    ? IpamServer.FollowerGate(new Headers(), new Headers(), write) : null;
+            if (!known) {
+                status = respond(channel, out, BinaryProtocol.BAD_OPCODE, tag, "Unknown opcode " + opcode);
+            } else if (gate != null) {
+                status = (gate.getValue() == IpamServer.CODE_MISDIRECTED)
+                        ? BinaryProtocol.MISDIRECTED : BinaryProtocol.UNAVAILABLE;
+                respond(channel, out, status, tag, gate.getKey());
+            } else if (opcode == BinaryProtocol.LIST) {
+                status = list(channel, in, out, tag);
+            } else {
+                status = single(channel, in, out, opcode, tag);
+            }
+        } catch (BufferUnderflowException e) {
+            status = BinaryProtocol.INVALID;
+            respond(channel, out, status, tag, "Truncated request");
+        }
+
+        if (metrics != null)
+            metrics.record(method(opcode), code(status), System.nanoTime() - start);
+    }
+
+    // ADD, GET, GET_ID and DELETE, each answered with a single record; handle refuses other opcodes
+    private byte single(SocketChannel channel, ByteBuffer in, ByteBuffer out, byte opcode, int tag) throws IOException {
+        Optional<IpamRecord> result;
+        if (opcode == BinaryProtocol.GET_ID) {
+            result = repo.GetSubnetById(in.getInt());
+        } else {
+            Optional<IpamSubnet> subnet = BinaryProtocol.getSubnet(in);
+            if (!subnet.isPresent())
+                return respond(channel, out, BinaryProtocol.INVALID, tag, "Invalid subnet");
+            switch (opcode) {
+                case BinaryProtocol.ADD:
+                    result = repo.AddSubnet(subnet.get());
+                    break;
+                case BinaryProtocol.GET:
+                    result = repo.GetSubnet(subnet.get());
+                    break;
+                default:
+                    result = repo.DeleteSubnet(subnet.get());
+                    break;
+            }
+        }
+
+        if (result == null)
+            return respond(channel, out, BinaryProtocol.ERROR, tag, "Backing store failed");
+        if (!result.isPresent())
+            return respond(channel, out, (opcode == BinaryProtocol.ADD) ? BinaryProtocol.REJECTED : BinaryProtocol.NOT_FOUND, tag, null);
+
+        IpamRecord record = result.get();
+        ensure(channel, out, BinaryProtocol.HEADER + BinaryProtocol.MAXRECORD);
+        out.putInt(BinaryProtocol.HEADER - 4 + BinaryProtocol.recordSize(record));
+        out.put(BinaryProtocol.OK);
+        out.putInt(tag);
+        BinaryProtocol.putRecord(out, record);
+        return BinaryProtocol.OK;
+    }
+
+    // LIST: a page of records in id order, written out as the buffer fills
+    private byte list(SocketChannel channel, ByteBuffer in, ByteBuffer out, int tag) throws IOException {
+        IpamSubnet.Family family;
+        try {
+            family = BinaryProtocol.family(in.get());
+        } catch (IllegalArgumentException e) {
+            return respond(channel, out, BinaryProtocol.INVALID, tag, e.getMessage());
+        }
+        int after = in.getInt();
+        int limit = in.getInt();
+        if (limit < 1 || limit > IpamServer.MAXPAGELIMIT)
+            return respond(channel, out, BinaryProtocol.INVALID, tag, "Invalid limit: " + limit);
+
+        List<IpamRecord> page = repo.GetAllSubnets(new filterSpecBuilder()
+                .family(family).after(after).limit(limit).buildFilterSpec());
+        int length = BinaryProtocol.HEADER - 4 + 4;
+        for (IpamRecord record : page)
+            length += BinaryProtocol.recordSize(record);
+
+        ensure(channel, out, BinaryProtocol.HEADER + 4);
+        out.putInt(length);
+        out.put(BinaryProtocol.OK);
+        out.putInt(tag);
+        out.putInt(page.size());
+        for (IpamRecord record : page) {
+            ensure(channel, out, BinaryProtocol.MAXRECORD);
+            BinaryProtocol.putRecord(out, record);
+        }
+        return BinaryProtocol.OK;
+    }
+
+    // A response with no body, or a message
+    private static byte respond(SocketChannel channel, ByteBuffer out, byte status, int tag, String message) throws IOException {
+        byte[] text = (message == null) ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        int size = Math.min(text.length, BUFFER - BinaryProtocol.HEADER);
+        ensure(channel, out, BinaryProtocol.HEADER + size);
+        out.putInt(BinaryProtocol.HEADER - 4 + size);
+        out.put(status);
+        out.putInt(tag);
+        out.put(text, 0, size);
+        return status;
+    }
+
+    // Make room for 'size' bytes in 'out', writing out what it holds if need be
+    private static void ensure(SocketChannel channel, ByteBuffer out, int size) throws IOException {
+        if (out.remaining() < size)
+            flush(channel, out);
+    }
+
+    private static void flush(SocketChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+    }
+
+    private static String method(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.ADD:
+                return "POST";
+            case BinaryProtocol.DELETE:
+                return "DELETE";
+            default:
+                return "GET";
+        }
+    }
+
+    private static int code(byte status) {
+        switch (status) {
+            case BinaryProtocol.OK:
+                return IpamServer.CODE_SUCCESS;
+            case BinaryProtocol.NOT_FOUND:
+                return IpamServer.CODE_NOTFOUND;
+            case BinaryProtocol.INVALID:
+                return IpamServer.CODE_INVALIDPARAMETER;
+            case BinaryProtocol.BAD_OPCODE:
+                return IpamServer.CODE_INVALIDMETHOD;
+            case BinaryProtocol.MISDIRECTED:
+                return IpamServer.CODE_MISDIRECTED;
+            case BinaryProtocol.UNAVAILABLE:
+                return IpamServer.CODE_UNAVAILABLE;
+            default:
+                return IpamServer.CODE_SERVERERRROR;
+        }
+    }
+
+    private static ByteBuffer borrow() {
+        ByteBuffer buffer = pool.poll();
+        return (buffer != null) ? buffer : ByteBuffer.allocateDirect(BUFFER);
+    }
+
+    private static void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pool.size() < POOLED)
+            pool.add(buffer);
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
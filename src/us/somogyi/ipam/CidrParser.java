@@ -0,0 +1,218 @@
+package us.somogyi.ipam;
+
+import static us.somogyi.ipam.IpamSubnet.Family.IPV4;
+import static us.somogyi.ipam.IpamSubnet.Family.IPV6;
+
+/*  Single pass scanner for IPV4 and IPV6 CIDR text.  Validates the text and builds the
+*   IpamSubnet in the same pass, without splitting into intermediate strings, boxing, or
+*   throwing on either the success or the failure path.
+*
+*   Accepts the same address syntax as Guava InetAddresses (dotted quads without leading
+*   zeros, IPV6 with at most one '::' and an optional trailing dotted quad).  IPV4-mapped
+*   IPV6 addresses (::ffff:a.b.c.d) are treated as IPV4, matching InetAddress behaviour.
+ */
+final class CidrParser {
+
+    /* Failure results returned by parse().  Compared by identity only - callers must check
+    *  isError() before using a parsed subnet, and these never escape IpamSubnet.
+     */
+    private static final IpamSubnet INVALID_FORMAT = IpamSubnet.fromBits(IPV4, 0, 0, 0);
+    private static final IpamSubnet INVALID_NETWORK = IpamSubnet.fromBits(IPV4, 0, 0, 0);
+    private static final IpamSubnet INVALID_MASK = IpamSubnet.fromBits(IPV4, 0, 0, 0);
+
+    private static final int V4_MAPPED_PREFIX = 0xFFFF;
+    private static final int MASKDIGITSMAX = 4;
+    private static final int HOST = -1;         // mask of a bare address: the family's full width
+
+    private CidrParser() {}
+
+    static boolean isError(IpamSubnet result) {
+        return result == INVALID_FORMAT || result == INVALID_NETWORK || result == INVALID_MASK;
+    }
+
+    // Reason for a failed parse, in the same form as the original parseCIDR exceptions
+    static String describeError(IpamSubnet result, CharSequence text) {
+        if (result == INVALID_FORMAT)
+            return "Invalid CIDR Specified " + text + ": invalid format";
+        if (result == INVALID_NETWORK)
+            return "Invalid CIDR Specified " + text + ": illegal network number";
+        return "Invalid CIDR Specified " + text + ": illegal mask length";
+    }
+
+    /* Parse "network/mask" text, returning the subnet or one of the failure results.
+     */
+    static IpamSubnet parse(CharSequence text) {
+        int length = text.length();
+
+        int slash = -1;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '/') {
+                if (slash >= 0) return INVALID_FORMAT;
+                slash = i;
+            }
+        }
+        if (slash < 0 || slash == length - 1)
+            return INVALID_FORMAT;
+
+        int mask = 0;
+        for (int i = slash + 1; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return INVALID_FORMAT;
+            if (i - slash <= MASKDIGITSMAX) mask = mask * 10 + (c - '0');
+            else mask = Integer.MAX_VALUE;
+        }
+
+        return network(text, slash, mask);
+    }
+
+    /* Parse a bare address, e.g. "10.4.7.19" or "2001:db8::42", as a host prefix (/32 or
+    *  /128), returning the subnet or one of the failure results.
+     */
+    static IpamSubnet parseAddress(CharSequence text) {
+        return network(text, text.length(), HOST);
+    }
+
+    // Scan the network number in text up to 'slash' and build the subnet with mask
+    private static IpamSubnet network(CharSequence text, int slash, int mask) {
+        boolean v6 = false;
+        for (int i = 0; i < slash; i++) {
+            if (text.charAt(i) == ':') {
+                v6 = true;
+                break;
+            }
+        }
+
+        if (!v6) {
+            long address = scanDottedQuad(text, 0, slash);
+            if (address < 0) return INVALID_NETWORK;
+            return build(IPV4, address << 32, 0, mask);
+        }
+
+        /* IPV6: groups before '::' are placed left aligned as they are read (head), groups
+        *  after it are shifted in from the right (tail), then the two halves are merged.
+         */
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+        int i = 0;
+
+        if (slash >= 2 && text.charAt(0) == ':' && text.charAt(1) == ':') {
+            compressed = true;
+            i = 2;
+        } else if (text.charAt(0) == ':') {
+            return INVALID_NETWORK;
+        }
+
+        while (i < slash) {
+            int groupStart = i;
+            int value = 0;
+            int low = 0;
+            int digits = 0;
+            int nibble;
+            while (i < slash && (nibble = hexValue(text.charAt(i))) >= 0) {
+                value = (value << 4) | nibble;
+                if (value > 0xFFFF) return INVALID_NETWORK;
+                digits++;
+                i++;
+            }
+
+            int groups = 1;
+            if (i < slash && text.charAt(i) == '.') {
+                // trailing dotted quad occupies the final two groups
+                long address = scanDottedQuad(text, groupStart, slash);
+                if (address < 0) return INVALID_NETWORK;
+                value = (int) (address >>> 16);
+                low = (int) (address & 0xFFFF);
+                groups = 2;
+                i = slash;
+            } else if (digits == 0) {
+                return INVALID_NETWORK;
+            }
+
+            for (int g = 0; g < groups; g++) {
+                int group = (g == 0) ? value : low;
+                if (headGroups + tailGroups == 8) return INVALID_NETWORK;
+                if (!compressed) {
+                    if (headGroups < 4) headHi |= (long) group << (48 - 16 * headGroups);
+                    else headLo |= (long) group << (48 - 16 * (headGroups - 4));
+                    headGroups++;
+                } else {
+                    tailHi = (tailHi << 16) | (tailLo >>> 48);
+                    tailLo = (tailLo << 16) | group;
+                    tailGroups++;
+                }
+            }
+
+            if (i == slash) break;
+            if (text.charAt(i) != ':') return INVALID_NETWORK;
+            i++;
+            if (i < slash && text.charAt(i) == ':') {
+                if (compressed) return INVALID_NETWORK;
+                compressed = true;
+                i++;
+            } else if (i == slash) {
+                return INVALID_NETWORK;     // single trailing ':'
+            }
+        }
+
+        int groupCount = headGroups + tailGroups;
+        if (compressed ? groupCount > 7 : groupCount != 8)
+            return INVALID_NETWORK;
+
+        long hi = headHi | tailHi;
+        long lo = headLo | tailLo;
+
+        if (hi == 0 && (lo >>> 32) == V4_MAPPED_PREFIX)
+            return build(IPV4, lo << 32, 0, mask);
+        return build(IPV6, hi, lo, mask);
+    }
+
+    /* Check mask size is in range for the address family
+     *  ie, 1 or greater, and < 32 for V4 and < 128 for V6; a HOST mask is the full width
+     */
+    private static IpamSubnet build(IpamSubnet.Family family, long hi, long lo, int mask) {
+        int maskMax = (family == IPV4) ? IpamSubnet.V4MASKMAX : IpamSubnet.V6MASKMAX;
+        if (mask == HOST)
+            return IpamSubnet.fromBits(family, hi, lo, maskMax);
+        if (mask < IpamSubnet.MASKMIN || mask >= maskMax)
+            return INVALID_MASK;
+        return IpamSubnet.fromBits(family, hi, lo, mask);
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /* Scan exactly four decimal octets between start and end, returning the 32 bit address
+    *  or -1 if the text is not a valid dotted quad.
+     */
+    private static long scanDottedQuad(CharSequence text, int start, int end) {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+
+        while (true) {
+            int first = i;
+            int value = 0;
+            char c;
+            while (i < end && (c = text.charAt(i)) >= '0' && c <= '9') {
+                if (i - first == 3) return -1;
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            int digits = i - first;
+            if (digits == 0 || value > 255 || (digits > 1 && text.charAt(first) == '0'))
+                return -1;
+
+            address = (address << 8) | value;
+            if (++octets == 4)
+                return (i == end) ? address : -1;
+            if (i == end || text.charAt(i) != '.')
+                return -1;
+            i++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/*  Execution modes for the request handlers of IpamServer's HttpServer.  Without an
+*   executor, HttpServer runs every handler on its single dispatcher thread, so one slow
+*   client stalls every other request.
+ */
+public enum ExecutionMode {
+
+    /*  Bounded pool of 'threads' workers with a queue of at most 'queueDepth' waiting
+    *   requests.  When the queue is full the dispatcher thread runs the request itself,
+    *   which stops it accepting new connections until the workers catch up.
+     */
+    FIXED {
+        @Override
+        ExecutorService create(int threads, int queueDepth) {
+            return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueDepth), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    },
+
+    // Fork-join work-stealing pool with 'threads' parallelism
+    WORK_STEALING {
+        @Override
+        ExecutorService create(int threads, int queueDepth) {
+            return Executors.newWorkStealingPool(threads);
+        }
+    },
+
+    /*  A new virtual thread per request, on JDKs that support them (21+).  Falls back to
+    *   an unbounded cached thread pool on older JDKs.
+     */
+    VIRTUAL {
+        @Override
+        ExecutorService create(int threads, int queueDepth) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                AsyncLog.shared().warn("Virtual threads unavailable on this JDK, using cached thread pool");
+                return Executors.newCachedThreadPool();
+            }
+        }
+    };
+
+    abstract ExecutorService create(int threads, int queueDepth);
+
+    public ExecutorService newExecutor(int threads, int queueDepth) {
+        Preconditions.checkArgument(threads > 0, "ExecutionMode: threads must be positive");
+        Preconditions.checkArgument(queueDepth > 0, "ExecutionMode: queueDepth must be positive");
+        return create(threads, queueDepth);
+    }
+
+    // Case insensitive lookup accepting '-' in place of '_', e.g. "work-stealing"
+    public static ExecutionMode fromName(String name) throws IllegalArgumentException {
+        Preconditions.checkNotNull(name, "fromName: Invalid null reference - name");
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
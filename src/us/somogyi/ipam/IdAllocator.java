@@ -0,0 +1,73 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Source of ids for new records.  An allocator never hands out the same id twice, and
+*   the ids it hands out roughly increase.  Sequential counts up from 1 in memory, so it is
+*   unique within one store instance; LeasedIdAllocator takes blocks of ids from a shared,
+*   durable lease, so any number of writers stay unique across restarts.
+ */
+public interface IdAllocator {
+
+    // A new, unique id
+    int allocate() throws BackingStoreException;
+
+    // Never allocate an id below 'next'; used as records with ids already assigned are loaded
+    void advance(int next);
+
+    // An id above every id allocated so far, and at least every 'next' advanced to
+    int peek();
+
+    // Plain in-memory counter from 1
+    class Sequential implements IdAllocator {
+
+        private final AtomicInteger next = new AtomicInteger(1);
+
+        @Override
+        public int allocate() {
+            return next.getAndIncrement();
+        }
+
+        @Override
+        public void advance(int next) {
+            this.next.accumulateAndGet(next, Math::max);
+        }
+
+        @Override
+        public int peek() {
+            return next.get();
+        }
+    }
+
+    // An allocator that refuses ids above 'max', failing before the id is used
+    class Bounded implements IdAllocator {
+
+        private final IdAllocator ids;
+        private final int max;
+
+        public Bounded(IdAllocator ids, int max) {
+            this.ids = Preconditions.checkNotNull(ids, "Bounded: Invalid null reference - ids");
+            this.max = max;
+        }
+
+        @Override
+        public int allocate() throws BackingStoreException {
+            int id = ids.allocate();
+            if (id > max)
+                throw new BackingStoreException("Id space exhausted: id " + id + " is above " + max, null);
+            return id;
+        }
+
+        @Override
+        public void advance(int next) {
+            ids.advance(next);
+        }
+
+        @Override
+        public int peek() {
+            return ids.peek();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*  Durable LeaseSource backed by one small file holding the first id not yet leased.  A
+*   lease locks the file, reads that mark, writes it back advanced past the new block and
+*   forces it to disk before returning, so a granted block is never granted again - not
+*   after a crash, and not to another process leasing from the same file, which the file
+*   lock serializes.  Leases are taken once per block, so neither the lock nor the fsync is
+*   on the path of an individual insert.
+*
+*   File: magic(8) next(4), big endian; an empty or missing file starts at id 1.
+ */
+public class IdLeaseFile implements LeasedIdAllocator.LeaseSource, Closeable {
+
+    private static final long MAGIC = 0x4950414d4c454153L;     // "IPAMLEAS"
+    private static final int LENGTH = 12;
+
+    /* A process may not hold overlapping locks on one file through two channels, so leases
+    *  from every IdLeaseFile in this process serialize here.  Leases are rare.
+     */
+    private static final Object PROCESSLOCK = new Object();
+
+    private final Path file;
+    private final FileChannel channel;
+
+    public IdLeaseFile(Path file) throws BackingStoreException {
+        Preconditions.checkNotNull(file, "IdLeaseFile: Invalid null reference - file");
+
+        this.file = file;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null)
+                Files.createDirectories(parent);
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new BackingStoreException("Failed to open id lease file " + file, e);
+        }
+    }
+
+    @Override
+    public int lease(int count, int floor) throws BackingStoreException {
+        Preconditions.checkArgument(count > 0, "lease: count must be positive");
+
+        synchronized (PROCESSLOCK) {
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    int start = Math.max(Math.max(read(), floor), 1);
+                    if (start > Integer.MAX_VALUE - count)
+                        throw new BackingStoreException("Id space exhausted leasing " + count + " ids from " + start, null);
+                    write(start + count);
+                    return start;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new BackingStoreException("Failed to lease ids from " + file, e);
+            }
+        }
+    }
+
+    // First id not yet leased
+    public int peek() throws BackingStoreException {
+        synchronized (PROCESSLOCK) {
+            try {
+                FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    return Math.max(read(), 1);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new BackingStoreException("Failed to read id lease file " + file, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0)
+            ;
+        if (buffer.position() == 0)
+            return 1;
+        buffer.flip();
+        if (buffer.remaining() < LENGTH || buffer.getLong() != MAGIC)
+            throw new IOException("Not an id lease file: " + file);
+        return buffer.getInt();
+    }
+
+    private void write(int next) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        buffer.putLong(MAGIC).putInt(next).flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer, buffer.position());
+        channel.force(true);
+    }
+}
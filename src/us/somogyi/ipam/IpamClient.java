@@ -0,0 +1,245 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Client of the binary subnet protocol (see BinaryProtocol and BinaryServer), over one
+*   TCP connection.  Calls are synchronous and may be made from several threads, one at a
+*   time; addAll and getAll pipeline a batch, sending up to WINDOW requests before reading
+*   their responses, which saves a round trip per subnet while the responses not yet read
+*   stay within what the socket buffers hold.
+*
+*   A request the server refuses or fails throws StatusException, carrying the protocol
+*   status; add returns empty if the subnet overlaps a stored one, and the lookups and
+*   delete if nothing matches.  A pipelined batch reads every response of its window before
+*   throwing, so the connection stays usable.  Any other IOException leaves the connection
+*   out of step with the server, so it is closed and later calls fail.
+ */
+public class IpamClient implements Closeable {
+
+    private static final int BUFFER = 64 * 1024;
+    static final int WINDOW = 1024;         // requests in flight when pipelining
+
+    /*  The server answered with a status other than OK, NOT_FOUND or REJECTED: an invalid
+    *   request, a write to a follower, a follower too far behind, or a store failure.
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER);
+    private int nextTag;
+    private byte status;                    // of the response last received
+
+    public IpamClient(InetSocketAddress server) throws IOException {
+        Preconditions.checkNotNull(server, "IpamClient: Invalid null reference - server");
+        this.channel = SocketChannel.open(server);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in.flip();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // Store subnet, returning its record, or empty if it overlaps a stored subnet
+    public synchronized Optional<IpamRecord> add(IpamSubnet subnet) throws IOException {
+        Preconditions.checkNotNull(subnet, "add: Invalid null reference - subnet");
+        return single(sendSubnet(BinaryProtocol.ADD, subnet));
+    }
+
+    public synchronized Optional<IpamRecord> get(IpamSubnet subnet) throws IOException {
+        Preconditions.checkNotNull(subnet, "get: Invalid null reference - subnet");
+        return single(sendSubnet(BinaryProtocol.GET, subnet));
+    }
+
+    public synchronized Optional<IpamRecord> getById(int id) throws IOException {
+        int tag = begin(BinaryProtocol.GET_ID, 4);
+        out.putInt(id);
+        flush();
+        return single(tag);
+    }
+
+    // Delete subnet, returning the record deleted, or empty if it was not stored
+    public synchronized Optional<IpamRecord> delete(IpamSubnet subnet) throws IOException {
+        Preconditions.checkNotNull(subnet, "delete: Invalid null reference - subnet");
+        return single(sendSubnet(BinaryProtocol.DELETE, subnet));
+    }
+
+    /*  Up to 'limit' records with ids above 'after', in id order, of 'family' or of both
+    *   families if it is null.  A full page may be followed by more: list again after the
+    *   last id.
+     */
+    public synchronized List<IpamRecord> list(IpamSubnet.Family family, int after, int limit) throws IOException {
+        int tag = begin(BinaryProtocol.LIST, 9);
+        out.put(BinaryProtocol.familyCode(family));
+        out.putInt(after);
+        out.putInt(limit);
+        flush();
+
+        int length = receive(tag);
+        if (status != BinaryProtocol.OK)
+            throw failure(length);
+        fill(4);
+        int count = in.getInt();
+        int remaining = length - 4;
+        List<IpamRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fill(Math.min(BinaryProtocol.MAXRECORD, remaining));
+            int start = in.position();
+            records.add(BinaryProtocol.getRecord(in).orElseThrow(() -> broken(new IOException("Invalid record in response"))));
+            remaining -= in.position() - start;
+        }
+        return records;
+    }
+
+    // Store every subnet, pipelined; the result for each is as for add
+    public synchronized List<Optional<IpamRecord>> addAll(List<IpamSubnet> subnets) throws IOException {
+        return pipeline(BinaryProtocol.ADD, subnets);
+    }
+
+    // Look up every subnet, pipelined; the result for each is as for get
+    public synchronized List<Optional<IpamRecord>> getAll(List<IpamSubnet> subnets) throws IOException {
+        return pipeline(BinaryProtocol.GET, subnets);
+    }
+
+    private List<Optional<IpamRecord>> pipeline(byte opcode, List<IpamSubnet> subnets) throws IOException {
+        Preconditions.checkNotNull(subnets, "pipeline: Invalid null reference - subnets");
+        List<Optional<IpamRecord>> results = new ArrayList<>(subnets.size());
+        for (int start = 0; start < subnets.size(); start += WINDOW) {
+            List<IpamSubnet> window = subnets.subList(start, Math.min(start + WINDOW, subnets.size()));
+            int first = nextTag;
+            for (IpamSubnet subnet : window) {
+                if (out.remaining() < BinaryProtocol.HEADER + BinaryProtocol.MAXSUBNET)
+                    flush();
+                begin(opcode, BinaryProtocol.subnetSize(subnet));
+                BinaryProtocol.putSubnet(out, subnet);
+            }
+            flush();
+
+            // Responses come back in request order; read them all before reporting a refusal
+            StatusException refused = null;
+            for (int i = 0; i < window.size(); i++) {
+                try {
+                    results.add(single(first + i));
+                } catch (StatusException e) {
+                    if (refused == null)
+                        refused = e;
+                }
+            }
+            if (refused != null)
+                throw refused;
+        }
+        return results;
+    }
+
+    private int sendSubnet(byte opcode, IpamSubnet subnet) throws IOException {
+        int tag = begin(opcode, BinaryProtocol.subnetSize(subnet));
+        BinaryProtocol.putSubnet(out, subnet);
+        flush();
+        return tag;
+    }
+
+    // Start a request frame with a body of 'size' bytes, returning its tag
+    private int begin(byte opcode, int size) {
+        int tag = nextTag++;
+        out.putInt(BinaryProtocol.HEADER - 4 + size);
+        out.put(opcode);
+        out.putInt(tag);
+        return tag;
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+    }
+
+    // Read the header of the response to 'tag', returning the length of its body
+    private int receive(int tag) throws IOException {
+        fill(BinaryProtocol.HEADER);
+        int length = in.getInt() - (BinaryProtocol.HEADER - 4);
+        status = in.get();
+        int echoed = in.getInt();
+        if (echoed != tag)
+            throw broken(new IOException("Response to request " + echoed + " where " + tag + " was expected"));
+        return length;
+    }
+
+    // Close the connection, which can no longer be read in step with the server, and return e
+    private IOException broken(IOException e) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+        return e;
+    }
+
+    private Optional<IpamRecord> single(int tag) throws IOException {
+        int length = receive(tag);
+        switch (status) {
+            case BinaryProtocol.OK:
+                fill(length);
+                try {
+                    return Optional.of(BinaryProtocol.getRecord(in).orElseThrow(() -> broken(new IOException("Invalid record in response"))));
+                } catch (BufferUnderflowException e) {
+                    throw broken(new IOException("Truncated response"));
+                }
+            case BinaryProtocol.NOT_FOUND:
+            case BinaryProtocol.REJECTED:
+                fill(length);
+                in.position(in.position() + length);
+                return Optional.empty();
+            default:
+                throw failure(length);
+        }
+    }
+
+    private StatusException failure(int length) throws IOException {
+        fill(length);
+        byte[] text = new byte[length];
+        in.get(text);
+        return new StatusException(status, new String(text, StandardCharsets.UTF_8));
+    }
+
+    // Read until at least 'size' unread bytes are buffered
+    private void fill(int size) throws IOException {
+        if (in.remaining() >= size)
+            return;
+        in.compact();
+        while (in.position() < size) {
+            if (channel.read(in) < 0)
+                throw broken(new IOException("Server closed the connection"));
+        }
+        in.flip();
+    }
+}
@@ -0,0 +1,232 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*  Server telemetry: per route request counts by method and status code, per route and
+*   method latency histograms, BackingStore operation timings (see BackingStoreMetrics),
+*   lookup cache statistics (see BackingStoreCache) and handler executor queue depth,
+*   written in the Prometheus text exposition format.
+*
+*   Everything on the recording path is preallocated - routes are registered once, when
+*   their HttpServer context is created - so recording costs a few atomic increments.
+ */
+class IpamMetrics {
+
+    static final String CONTENTTYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Request methods tracked separately; any other method is recorded as OTHER
+    private static final String[] METHODS = {"GET", "POST", "OTHER"};
+    private static final int OTHER = 2;
+    private static final int CODES = 600;
+
+    // Histogram bucket bounds exposed to Prometheus, in seconds
+    private static final double[] LATENCYBOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    enum StoreOp {
+        PUT("put"), PUT_BATCH("put_batch"), QUERY("query"), QUERY_BY_ID("query_by_id"),
+        DELETE("delete"), QUERY_ALL("query_all"), ITERATE("iterate");
+
+        private final String label;
+        StoreOp(String label) {
+            this.label = label;
+        }
+    }
+
+    /*  Requests of one route: a latency histogram per method, and a counter per method and
+    *   status code.
+     */
+    static class RouteMetrics {
+        private final String route;
+        private final LatencyHistogram[] latency = new LatencyHistogram[METHODS.length];
+        private final AtomicLongArray codes = new AtomicLongArray(METHODS.length * CODES);
+
+        private RouteMetrics(String route) {
+            this.route = route;
+            for (int i = 0; i < latency.length; i++)
+                latency[i] = new LatencyHistogram();
+        }
+
+        void record(String method, int code, long nanos) {
+            int index = methodIndex(method);
+            latency[index].record(Math.max(0, nanos));
+            codes.incrementAndGet(index * CODES + ((code >= 0 && code < CODES) ? code : 0));
+        }
+
+        private static int methodIndex(String method) {
+            switch (method) {
+                case "GET":
+                    return 0;
+                case "POST":
+                    return 1;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<>();
+
+    private final LatencyHistogram[] storeLatency = new LatencyHistogram[StoreOp.values().length];
+    private final AtomicLongArray storeErrors = new AtomicLongArray(StoreOp.values().length);
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+    private final LatencyHistogram resultSizes = new LatencyHistogram();
+    private final AtomicLong storeRecords = new AtomicLong();
+    private volatile boolean storeMonitored;
+
+    private volatile BackingStoreCache cache;
+    private volatile Executor executor;
+
+    IpamMetrics() {
+        for (int i = 0; i < storeLatency.length; i++)
+            storeLatency[i] = new LatencyHistogram();
+    }
+
+    // Metrics for requests to 'route', created on first use
+    RouteMetrics route(String route) {
+        Preconditions.checkNotNull(route, "route: Invalid null reference - route");
+        return routes.computeIfAbsent(route, RouteMetrics::new);
+    }
+
+    // Export store metrics, starting from 'records' already stored
+    void monitorStore(long records) {
+        storeRecords.set(records);
+        storeMonitored = true;
+    }
+
+    void recordStore(StoreOp op, long nanos, boolean failed) {
+        storeLatency[op.ordinal()].record(Math.max(0, nanos));
+        if (failed)
+            storeErrors.incrementAndGet(op.ordinal());
+    }
+
+    void recordBatchSize(int size) {
+        batchSizes.record(size);
+    }
+
+    void recordResultSize(int size) {
+        resultSizes.record(size);
+    }
+
+    // Change in the number of stored records
+    void addStoreRecords(long delta) {
+        storeRecords.addAndGet(delta);
+    }
+
+    // Report the hit, miss and eviction counts of the lookup cache
+    void monitorCache(BackingStoreCache cache) {
+        this.cache = cache;
+    }
+
+    // Report the queue depth and active threads of the handler executor
+    void monitorExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    void write(Writer out) throws IOException {
+        header(out, "ipam_http_requests_total", "counter", "HTTP requests by route, method and status code.");
+        for (RouteMetrics route : routes.values()) {
+            for (int method = 0; method < METHODS.length; method++) {
+                for (int code = 0; code < CODES; code++) {
+                    long count = route.codes.get(method * CODES + code);
+                    if (count > 0)
+                        out.write("ipam_http_requests_total{route=\"" + route.route + "\",method=\"" + METHODS[method]
+                                + "\",code=\"" + code + "\"} " + count + "\n");
+                }
+            }
+        }
+
+        header(out, "ipam_http_request_duration_seconds", "histogram", "HTTP request latency by route and method.");
+        for (RouteMetrics route : routes.values()) {
+            for (int method = 0; method < METHODS.length; method++)
+                writeHistogram(out, "ipam_http_request_duration_seconds",
+                        "route=\"" + route.route + "\",method=\"" + METHODS[method] + "\"",
+                        route.latency[method].snapshot());
+        }
+
+        if (storeMonitored) {
+            header(out, "ipam_store_operation_duration_seconds", "histogram", "BackingStore operation latency.");
+            for (StoreOp op : StoreOp.values())
+                writeHistogram(out, "ipam_store_operation_duration_seconds",
+                        "op=\"" + op.label + "\"", storeLatency[op.ordinal()].snapshot());
+
+            header(out, "ipam_store_operation_errors_total", "counter", "BackingStore operations that failed.");
+            for (StoreOp op : StoreOp.values())
+                out.write("ipam_store_operation_errors_total{op=\"" + op.label + "\"} "
+                        + storeErrors.get(op.ordinal()) + "\n");
+
+            writeSummary(out, "ipam_store_batch_size", "Subnets per batch put.", batchSizes.snapshot());
+            writeSummary(out, "ipam_store_result_size", "Records returned per query.", resultSizes.snapshot());
+
+            header(out, "ipam_store_records", "gauge", "Records stored.");
+            out.write("ipam_store_records " + storeRecords.get() + "\n");
+        }
+
+        BackingStoreCache monitoredCache = cache;
+        if (monitoredCache != null) {
+            CacheStats subnet = monitoredCache.getSubnetStats();
+            CacheStats id = monitoredCache.getIdStats();
+            header(out, "ipam_cache_hits_total", "counter", "Store lookups answered by the cache.");
+            out.write("ipam_cache_hits_total{cache=\"subnet\"} " + subnet.hitCount() + "\n");
+            out.write("ipam_cache_hits_total{cache=\"id\"} " + id.hitCount() + "\n");
+            header(out, "ipam_cache_misses_total", "counter", "Store lookups loaded from the store.");
+            out.write("ipam_cache_misses_total{cache=\"subnet\"} " + subnet.missCount() + "\n");
+            out.write("ipam_cache_misses_total{cache=\"id\"} " + id.missCount() + "\n");
+            header(out, "ipam_cache_evictions_total", "counter", "Cache entries evicted to stay within bounds.");
+            out.write("ipam_cache_evictions_total{cache=\"subnet\"} " + subnet.evictionCount() + "\n");
+            out.write("ipam_cache_evictions_total{cache=\"id\"} " + id.evictionCount() + "\n");
+        }
+
+        Executor monitored = executor;
+        if (monitored instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) monitored;
+            writeGauge(out, "ipam_executor_queue_depth", "Requests waiting for a handler thread.", pool.getQueue().size());
+            writeGauge(out, "ipam_executor_active_threads", "Handler threads running a request.", pool.getActiveCount());
+        } else if (monitored instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) monitored;
+            writeGauge(out, "ipam_executor_queue_depth", "Requests waiting for a handler thread.",
+                    pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+            writeGauge(out, "ipam_executor_active_threads", "Handler threads running a request.", pool.getActiveThreadCount());
+        }
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    // Cumulative buckets at LATENCYBOUNDS, from a histogram of nanoseconds; empty series are omitted
+    private static void writeHistogram(Writer out, String name, String labels,
+                                       LatencyHistogram.Snapshot snapshot) throws IOException {
+        if (snapshot.getCount() == 0)
+            return;
+        for (double bound : LATENCYBOUNDS)
+            out.write(name + "_bucket{" + labels + ",le=\"" + bound + "\"} "
+                    + snapshot.countAtOrBelow((long) (bound * 1e9)) + "\n");
+        out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + snapshot.getCount() + "\n");
+        out.write(name + "_sum{" + labels + "} " + (snapshot.getSum() / 1e9) + "\n");
+        out.write(name + "_count{" + labels + "} " + snapshot.getCount() + "\n");
+    }
+
+    private static void writeSummary(Writer out, String name, String help,
+                                     LatencyHistogram.Snapshot snapshot) throws IOException {
+        header(out, name, "summary", help);
+        out.write(name + "{quantile=\"0.5\"} " + snapshot.valueAtQuantile(0.5) + "\n");
+        out.write(name + "{quantile=\"0.99\"} " + snapshot.valueAtQuantile(0.99) + "\n");
+        out.write(name + "_sum " + snapshot.getSum() + "\n");
+        out.write(name + "_count " + snapshot.getCount() + "\n");
+    }
+
+    private static void writeGauge(Writer out, String name, String help, long value) throws IOException {
+        header(out, name, "gauge", help);
+        out.write(name + " " + value + "\n");
+    }
+}
@@ -4,8 +4,17 @@ import com.google.common.base.Preconditions;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static us.somogyi.ipam.BackingStore.IpamRecord;
 import static us.somogyi.ipam.BackingStore.filterSpec;
@@ -13,38 +22,240 @@ import static us.somogyi.ipam.BackingStore.filterSpec;
 public class IpamRepo {
     private final BackingStore storage;
 
+    /* Prefix index of every stored subnet, one trie per address family, kept in step
+    *  with storage by AddSubnet / DeleteSubnet.  Guarded by indexLock.  A subnet being
+    *  added is reserved in the index, with a null record, while the store write completes;
+    *  a subnet being deleted is held in deleting until its store delete completes.
+     */
+    private final Map<IpamSubnet.Family, SubnetTrie<IpamRecord>> index;
+    private final Set<IpamSubnet> deleting = new HashSet<>();
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
     public IpamRepo (BackingStore store) {
         this.storage = store;
+        this.index = new EnumMap<>(IpamSubnet.Family.class);
+        for (IpamSubnet.Family family : IpamSubnet.Family.values())
+            index.put(family, new SubnetTrie<>(family));
+
+        // Index any subnets already held by the backing store
+        try {
+            for (IpamRecord record : storage.queryAllSubnets())
+                index.get(record.getSubnet().getFamily()).put(record.getSubnet(), record);
+        } catch (BackingStoreException e) {
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+        }
     }
 
+    /* The collision check reserves the subnet in the index under the write lock, so two
+    *  overlapping subnets can never both be added.  The store write happens outside the
+    *  lock, so that a durable store can commit concurrent writes together; the reservation
+    *  is then settled with the stored record, or released.
+     */
     public Optional<IpamRecord> AddSubnet(IpamSubnet add) {
-        Optional<IpamRecord> result = null;
+        Optional<IpamRecord> result;
+
+        if (!Reserve(add))
+            return Optional.ofNullable(null);
 
         try {
-            if (!SubnetCollision(add)) {
-                result = storage.putSubnet(add);
-            } else {
-                result = Optional.ofNullable(null);
+            result = storage.putSubnet(add);
+        } catch (BackingStoreException e) {
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+            result = Optional.ofNullable(null);
+        }
+
+        Settle(add, result);
+        return result;
+    }
+
+    /* Outcome of one subnet of an AddSubnets batch: the stored record, or the reason the
+    *  subnet was not stored
+     */
+    public static class BatchResult {
+        private final IpamSubnet subnet;
+        private final IpamRecord record;
+        private final String error;
+
+        BatchResult(IpamSubnet subnet, IpamRecord record, String error) {
+            this.subnet = subnet;
+            this.record = record;
+            this.error = error;
+        }
+
+        public IpamSubnet getSubnet() {
+            return subnet;
+        }
+
+        public Optional<IpamRecord> getRecord() {
+            return Optional.ofNullable(record);
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    static final String BATCH_COLLISION = "collides with a stored subnet or an earlier subnet of the batch";
+    static final String BATCH_STOREFAILED = "failed to store";
+    static final String BATCH_ROLLEDBACK = "not stored, batch rejected";
+
+    /* Add a batch of subnets, reserving them under a single acquisition of the index write
+    *  lock, with one BackingStore.putSubnets call for every subnet that passes the collision
+    *  check.  A subnet collides if it overlaps a stored subnet or an earlier subnet of the
+    *  batch.  Returns a result per subnet, in order.
+    *
+    *  In ATOMIC mode a collision rejects the batch before anything is stored.  A failure to
+    *  store rejects it after the rest of the batch was stored, and those subnets are then
+    *  deleted again.  That rollback is best effort and not isolated: until it completes,
+    *  readers going to the store (GetSubnet, GetSubnetById, IterateSubnets) can see the
+    *  stored subnets; the store's revision and ids move on regardless; and a subnet whose
+    *  delete fails is logged and left stored, though reported as not stored.
+     */
+    public List<BatchResult> AddSubnets(List<IpamSubnet> add, BatchMode mode) {
+        Preconditions.checkNotNull(add, "AddSubnets: Invalid null reference - add");
+        Preconditions.checkNotNull(mode, "AddSubnets: Invalid null reference - mode");
+
+        BatchResult[] results = new BatchResult[add.size()];
+        List<IpamSubnet> accepted = new ArrayList<>(add.size());
+        List<Integer> positions = new ArrayList<>(add.size());
+        boolean failed = false;
+
+        indexLock.writeLock().lock();
+        try {
+            // Reserve each non-colliding subnet in the index, so later batch members see it
+            for (int i = 0; i < add.size(); i++) {
+                IpamSubnet subnet = add.get(i);
+                if (SubnetCollision(subnet)) {
+                    results[i] = new BatchResult(subnet, null, BATCH_COLLISION);
+                    failed = true;
+                } else {
+                    index.get(subnet.getFamily()).put(subnet, null);
+                    accepted.add(subnet);
+                    positions.add(i);
+                }
             }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        List<Optional<IpamRecord>> stored;
+        boolean attempted = !(failed && mode == BatchMode.ATOMIC);
+        if (!attempted) {
+            stored = Collections.nCopies(accepted.size(), Optional.empty());
+        } else {
+            try {
+                stored = storage.putSubnets(accepted);
+            } catch (BackingStoreException e) {
+                AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+                stored = Collections.nCopies(accepted.size(), Optional.empty());
+            }
+            failed |= stored.contains(Optional.empty());
+        }
+
+        // A rejected ATOMIC batch removes whatever was stored before releasing reservations
+        boolean rejected = failed && mode == BatchMode.ATOMIC;
+        if (rejected) {
+            for (int j = 0; j < accepted.size(); j++) {
+                if (stored.get(j).isPresent())
+                    RollbackSubnet(accepted.get(j));
+            }
+        }
+
+        indexLock.writeLock().lock();
+        try {
+            for (int j = 0; j < accepted.size(); j++) {
+                IpamSubnet subnet = accepted.get(j);
+                Optional<IpamRecord> record = stored.get(j);
+                if (record.isPresent() && !rejected) {
+                    SettleReservation(subnet, record.get());
+                    results[positions.get(j)] = new BatchResult(subnet, record.get(), null);
+                } else {
+                    SettleReservation(subnet, null);
+                    results[positions.get(j)] = new BatchResult(subnet, null,
+                            (attempted && !record.isPresent()) ? BATCH_STOREFAILED : BATCH_ROLLEDBACK);
+                }
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        return Arrays.asList(results);
+    }
+
+    // Remove a subnet stored by a rejected ATOMIC batch
+    private void RollbackSubnet(IpamSubnet subnet) {
+        try {
+            storage.deleteSubnet(subnet);
         } catch (BackingStoreException e) {
-            System.err.println("Encountered BackingStoreException: " + e.getMessage());
+            AsyncLog.shared().error("Encountered BackingStoreException rolling back "
+                    + subnet.getCidr() + ": " + e.getMessage());
+        }
+    }
+
+    /* Allocate the next free subnet of the given mask within parent, chosen by policy,
+    *  and store it.  parent is a pool range and need not be stored itself (a stored parent
+    *  is fully allocated).  The search and reservation happen under the index write lock,
+    *  so concurrent allocations never collide.  Empty if parent has no free block that fits.
+     */
+    public Optional<IpamRecord> AllocateSubnet(IpamSubnet parent, int mask, AllocationPolicy policy) {
+        Preconditions.checkNotNull(parent, "AllocateSubnet: Invalid null reference - parent");
+        Preconditions.checkNotNull(policy, "AllocateSubnet: Invalid null reference - policy");
+        Preconditions.checkArgument(mask >= parent.getMask() && mask < parent.getWidth(),
+                "AllocateSubnet: mask %s does not fit within %s", mask, parent.getCidr());
+
+        Optional<IpamRecord> result;
+        IpamSubnet free;
+
+        indexLock.writeLock().lock();
+        try {
+            free = index.get(parent.getFamily()).findFree(parent, mask, policy);
+            if (free == null)
+                return Optional.ofNullable(null);
+            index.get(free.getFamily()).put(free, null);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        try {
+            result = storage.putSubnet(free);
+        } catch (BackingStoreException e) {
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
             result = Optional.ofNullable(null);
         }
 
+        Settle(free, result);
         return result;
     }
 
+    /* The store delete happens outside the index lock.  Under the lock the subnet must be
+    *  in the index with its record: a reservation, whose add is still in flight, or a subnet
+    *  another delete is already removing, is not found.  The subnet stays in the index, and
+    *  so keeps colliding, until the delete has completed.
+     */
     public Optional<IpamRecord> DeleteSubnet(IpamSubnet delete) {
         Optional<IpamRecord> result = null;
 
+        indexLock.writeLock().lock();
         try {
-            if (storage.querySubnet(delete).isPresent()) {
-                result = storage.deleteSubnet(delete);
-            } else {
-                result = Optional.ofNullable(null);
-            }
+            if (index.get(delete.getFamily()).get(delete) == null || !deleting.add(delete))
+                return Optional.ofNullable(null);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+
+        try {
+            result = storage.deleteSubnet(delete);
         } catch (BackingStoreException e) {
-            System.err.println("Encountered BackingStoreException: " + e.getMessage());
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+        }
+
+        indexLock.writeLock().lock();
+        try {
+            deleting.remove(delete);
+            if (result != null && result.isPresent())
+                index.get(delete.getFamily()).remove(delete);
+        } finally {
+            indexLock.writeLock().unlock();
         }
 
         return result;
@@ -56,19 +267,84 @@ public class IpamRepo {
         try {
             result = storage.querySubnet(query);
         } catch (BackingStoreException e) {
-            System.err.println("Encountered BackingStoreException: " + e.getMessage());
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
         }
 
         return result;
     }
 
+    public Optional<IpamRecord> GetSubnetById(Integer id) {
+        Optional<IpamRecord> result = null;
+
+        try {
+            result = storage.querySubnetById(id);
+        } catch (BackingStoreException e) {
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+        }
+
+        return result;
+    }
+
+    /* Most specific stored subnet containing address - a host prefix (see
+    *  IpamSubnet.tryFromAddress) or any subnet - answered from the prefix index without
+    *  touching the store.  Empty if no stored subnet contains it.
+     */
+    public Optional<IpamRecord> LookupAddress(IpamSubnet address) {
+        Preconditions.checkNotNull(address, "LookupAddress: Invalid null reference - address");
+
+        indexLock.readLock().lock();
+        try {
+            return Optional.ofNullable(index.get(address.getFamily()).longestMatch(address));
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Every stored subnet containing address, outermost first; the last is LookupAddress()
+    public List<IpamRecord> LookupAddressChain(IpamSubnet address) {
+        Preconditions.checkNotNull(address, "LookupAddressChain: Invalid null reference - address");
+
+        indexLock.readLock().lock();
+        try {
+            return index.get(address.getFamily()).containing(address);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /* How much of prefix (which need not be stored) is allocated, read from the aggregates
+    *  the prefix index keeps up to date as subnets are added and deleted, without a scan.
+     */
+    public SubnetUtilization GetUtilization(IpamSubnet prefix) {
+        Preconditions.checkNotNull(prefix, "GetUtilization: Invalid null reference - prefix");
+
+        indexLock.readLock().lock();
+        try {
+            return index.get(prefix.getFamily()).utilization(prefix);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // Up to limit of the largest stored subnets within prefix, largest first
+    public List<IpamRecord> GetLargestSubnets(IpamSubnet prefix, int limit) {
+        Preconditions.checkNotNull(prefix, "GetLargestSubnets: Invalid null reference - prefix");
+
+        indexLock.readLock().lock();
+        try {
+            return index.get(prefix.getFamily()).widest(prefix, limit);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
     public List<IpamRecord> GetAllSubnets(filterSpec filter) {
         List<IpamRecord> result;
 
         try {
             result = storage.queryAllSubnets(filter);
         } catch (BackingStoreException e) {
-            System.err.println("Encountered BackingStoreException: " + e.getMessage());
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
             result = new ArrayList<>();
         }
 
@@ -81,15 +357,96 @@ public class IpamRepo {
         try {
             result = storage.queryAllSubnets();
         } catch (BackingStoreException e) {
-            System.err.println("Encountered BackingStoreException: " + e.getMessage());
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
             result = new ArrayList<>();
         }
 
         return result;
     }
 
-    private boolean SubnetCollision(IpamSubnet test)  {
+    /* Iterate subnets matching filter (all subnets if null) without requiring the store
+    *  to materialize the full result, for streaming responses.
+     */
+    public Iterator<IpamRecord> IterateSubnets(filterSpec filter) {
+        Iterator<IpamRecord> result;
+
+        try {
+            result = storage.iterateSubnets(filter);
+        } catch (BackingStoreException e) {
+            AsyncLog.shared().error("Encountered BackingStoreException: " + e.getMessage());
+            result = Collections.emptyIterator();
+        }
+
+        return result;
+    }
+
+    // Revision of the backing store, see BackingStore.getRevision()
+    public long GetRevision() {
+        return storage.getRevision();
+    }
+
+    /* Bring the prefix index in line with a change a replication follower has applied
+    *  directly to its store (see ReplicationFollower): record is the subnet's record now
+    *  stored, or empty if it was deleted.
+     */
+    public void ApplyReplicated(IpamSubnet subnet, Optional<IpamRecord> record) {
+        Preconditions.checkNotNull(subnet, "ApplyReplicated: Invalid null reference - subnet");
+        Preconditions.checkNotNull(record, "ApplyReplicated: Invalid null reference - record");
+        indexLock.writeLock().lock();
+        try {
+            if (record.isPresent())
+                index.get(subnet.getFamily()).put(subnet, record.get());
+            else
+                index.get(subnet.getFamily()).remove(subnet);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /* Reserve add in the index if it does not collide, returning false if it does.  A
+    *  reserved subnet has no record until Settle() is called.
+     */
+    private boolean Reserve(IpamSubnet add) {
+        indexLock.writeLock().lock();
+        try {
+            if (SubnetCollision(add))
+                return false;
+            index.get(add.getFamily()).put(add, null);
+            return true;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
 
-        return false;
+    // Record the stored record for a reserved subnet, or release the reservation if empty
+    private void Settle(IpamSubnet subnet, Optional<IpamRecord> record) {
+        indexLock.writeLock().lock();
+        try {
+            SettleReservation(subnet, record.orElse(null));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /* Upgrade the reservation of subnet to record, or remove it if record is null.  Only a
+    *  reservation still in the index, with no record, is touched, so an add never replaces
+    *  or removes an entry it did not reserve.  Caller must hold the index write lock.
+     */
+    private void SettleReservation(IpamSubnet subnet, IpamRecord record) {
+        SubnetTrie<IpamRecord> trie = index.get(subnet.getFamily());
+        if (!trie.contains(subnet) || trie.get(subnet) != null)
+            return;
+        if (record != null)
+            trie.put(subnet, record);
+        else
+            trie.remove(subnet);
+    }
+
+    /* True if test is equal to, contains, or is contained by any stored subnet.
+    *  Cost is bounded by the prefix length rather than the number of stored subnets.
+    *  Caller must hold indexLock.
+     */
+    private boolean SubnetCollision(IpamSubnet test)  {
+        return index.get(test.getFamily()).overlaps(test);
     }
 }
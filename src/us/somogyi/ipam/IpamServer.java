@@ -1,6 +1,8 @@
 package us.somogyi.ipam;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -10,41 +12,151 @@ import org.json.JSONObject;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javafx.util.Pair;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.net.HostAndPort;
 
 import static us.somogyi.ipam.BackingStore.*;
-import static us.somogyi.ipam.IpamSubnet.isValidCIDR;
 
 public class IpamServer {
 
     static final int LISTENPORT = 9000;
 
+    /*  Startup configuration, read from system properties, e.g.
+    *   java -Dipam.executor=work-stealing -Dipam.threads=16 -Dipam.backlog=1024 ...
+     */
+    static final String PROP_PORT = "ipam.port";
+    static final String PROP_BACKLOG = "ipam.backlog";
+    static final String PROP_EXECUTOR = "ipam.executor";
+    static final String PROP_THREADS = "ipam.threads";
+    static final String PROP_QUEUE = "ipam.queue";
+    static final String PROP_STORE = "ipam.store";
+    static final String PROP_STOREDIR = "ipam.store.dir";
+    static final String PROP_SHARDS = "ipam.shards";
+    static final String PROP_IDLEASE = "ipam.idlease";
+    static final String PROP_JDBCURL = "ipam.jdbc.url";
+    static final String PROP_JDBCPOOL = "ipam.jdbc.pool";
+    static final String PROP_IDLEASEBLOCK = "ipam.idlease.block";
+    static final String PROP_CACHE = "ipam.cache";
+    static final String PROP_LISTINGCACHE = "ipam.listingcache";
+    static final String PROP_METRICS = "ipam.metrics";
+    static final String PROP_ACCESSLOG = "ipam.accesslog";
+    static final String PROP_ACCESSLOGCAPACITY = "ipam.accesslog.capacity";
+    static final String PROP_ACCESSLOGOVERFLOW = "ipam.accesslog.overflow";
+    static final String PROP_ACCESSLOGSAMPLE = "ipam.accesslog.sample";
+    static final String PROP_REPLICATION = "ipam.replication";
+    static final String PROP_REPLICATIONPORT = "ipam.replication.port";
+    static final String PROP_REPLICATIONLEADER = "ipam.replication.leader";
+    static final String PROP_REPLICATIONRETAIN = "ipam.replication.retain";
+    static final String PROP_REPLICATIONMAXLAG = "ipam.replication.maxlag";
+    static final String PROP_REPLICATIONWAIT = "ipam.replication.wait";
+    static final String PROP_FRONTEND = "ipam.frontend";
+    static final String PROP_NIOLOOPS = "ipam.nio.loops";
+    static final String PROP_BINARYPORT = "ipam.binary.port";
+
+    static final int DEFAULT_BACKLOG = 0;   // 0 selects the system default
+    static final ExecutionMode DEFAULT_EXECUTOR = ExecutionMode.FIXED;
+    static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    static final int DEFAULT_QUEUE = 1024;
+    static final String DEFAULT_STORE = "concurrent";
+    static final String DEFAULT_STOREDIR = "ipam-data";
+    static final int DEFAULT_SHARDS = 1;    // 1 for a single, unsharded store
+    static final String DEFAULT_IDLEASE = "";   // id lease file shared by writers, "" for per-store ids
+    static final long DEFAULT_CACHE = 0;    // entries cached per lookup direction, 0 for none
+    static final long DEFAULT_LISTINGCACHE = 64L * 1024 * 1024;    // bytes of cached listings, 0 for none
+    static final boolean DEFAULT_METRICS = true;
+    static final String DEFAULT_ACCESSLOG = "stderr";  // stderr, off, or a file path
+    static final AsyncLog.Overflow DEFAULT_ACCESSLOGOVERFLOW = AsyncLog.Overflow.DROP;
+    static final int DEFAULT_ACCESSLOGSAMPLE = 1;       // log 1 in N successful requests
+    static final String DEFAULT_REPLICATION = "off";    // off, leader, or follower
+    static final int DEFAULT_REPLICATIONPORT = 9100;
+    static final long DEFAULT_REPLICATIONMAXLAG = 5000; // milliseconds a follower may lag, 0 for no bound
+    static final long DEFAULT_REPLICATIONWAIT = 1000;   // milliseconds a read waits for a client's change
+    static final String DEFAULT_FRONTEND = "httpserver";    // httpserver, or nio for NioHttpServer
+    static final int DEFAULT_NIOLOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    static final int DEFAULT_BINARYPORT = 0;            // BinaryServer port, 0 for none
+
+    static final String SUBNETSPATH = "/subnets";
+    static final String METRICSPATH = "/metrics";
+    static final String LOOKUPPATH = "/lookup";
+    static final String UTILIZATIONPATH = "/utilization";
+    static final String BINARYROUTE = "binary";         // metrics route of BinaryServer requests
+
+    /* HttpServer writes response headers and body separately; without TCP_NODELAY, Nagle
+    *  and delayed ACKs add ~40ms to every response.  Read once when HttpServer first loads.
+     */
+    static final String PROP_NODELAY = "sun.net.httpserver.nodelay";
+
     static final int CODE_SUCCESS = 200;
+    static final int CODE_NOTMODIFIED = 304;
     static final int CODE_INVALIDMETHOD = 400;
+    static final int CODE_NOTFOUND = 404;
+    static final int CODE_MISDIRECTED = 421;
     static final int CODE_INVALIDPARAMETER = 422;
     static final int CODE_SERVERERRROR = 500;
+    static final int CODE_UNAVAILABLE = 503;
+
+    static final int CHUNKED = 0;           // sendResponseHeaders length for chunked encoding
+    static final int NOBODY = -1;           // sendResponseHeaders length for an empty body
+    static final int STREAMBUFFER = 16 * 1024;
+
+    static final int MAXPAGELIMIT = 10000;  // largest accepted 'limit' of a paged listing
+    static final String HEADER_NEXTCURSOR = "X-Next-Cursor";
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_IFNONEMATCH = "If-None-Match";
+    static final String HEADER_CHANGESEQUENCE = "X-Change-Sequence";
+
+    static final int MAXBATCH = 10000;      // largest accepted batch POST
 
     static IpamRepo repo;
+    static ListingCache listings = new ListingCache(DEFAULT_LISTINGCACHE);     // null for none
+
+    // Replication role: at most one is set (see FollowerGate)
+    static BackingStoreLeader leader;
+    static ReplicationFollower follower;
+    static long maxLag = DEFAULT_REPLICATIONMAXLAG;
+    static long readWait = DEFAULT_REPLICATIONWAIT;
 
     /*  Primary handler class for HTTPServer.  Parses and validates input as correct JSON,
     *   then routes request to appropriate method handler (GET / POST).  Assembles response
     *   from method handler and sends response to client.
      */
     static class SubnetHandler implements HttpHandler {
+
+        private final IpamMetrics.RouteMetrics metrics;
+
+        SubnetHandler() {
+            this(null);
+        }
+
+        // Records every request in metrics, unless it is null
+        SubnetHandler(IpamMetrics.RouteMetrics metrics) {
+            this.metrics = metrics;
+        }
+
         @Override
         public void handle(HttpExchange exchange) {
+            long start = System.nanoTime();
             try {
 
-                // Pretend server connection logging
-                System.err.println("exchange.getRemoteAddress()" + exchange.getRemoteAddress());
-
                 // Get exchange data (Method & query parameters)
                 String requestMethod = exchange.getRequestMethod();
                 Optional<String> requestQuery = Optional.ofNullable(exchange.getRequestURI().getQuery());
@@ -56,6 +168,13 @@ public class IpamServer {
                     parameters = new HashMap<>();
                 }
 
+                // A follower refuses writes, and reads it is too far behind to serve
+                Pair<String, Integer> refused = FollowerGate(exchange.getRequestHeaders(), exchange.getResponseHeaders(), !requestMethod.equals("GET"));
+                if (refused != null) {
+                    SendResponse(exchange, refused.getValue(), "TXT", refused.getKey());
+                    return;
+                }
+
                 /* Prepare response object to carry response data (String) and code (Integer)
                 *  Response.getKey() to retrieve string value, and
                 *  Response.getValue() to retrieve Integer value
@@ -65,27 +184,34 @@ public class IpamServer {
                 /* Attempt to parse JSON body and send 400 response on illegal JSONException.
                 *  Attempt to process request method if JSON body parses properly.
                  */
-                JSONObject inputJson;
+                Object inputJson;
                 try {
                     inputJson = GetInputBody(exchange);
 
                     switch (requestMethod) {
                         case "GET":
-                            Response = processGetRequest(parameters, inputJson, repo);
+                            Response = streamGetRequest(exchange, parameters, repo);
                             break;
                         case "POST":
-                            Response = processPostRequest(parameters, inputJson, repo);
+                            if (inputJson instanceof JSONArray)
+                                Response = processBatchPostRequest(parameters, (JSONArray) inputJson, repo);
+                            else
+                                Response = processPostRequest(parameters, (JSONObject) inputJson, repo);
+                            if (leader != null)
+                                exchange.getResponseHeaders().set(HEADER_CHANGESEQUENCE, Long.toString(leader.getSequence()));
                             break;
                         default:
                             Response = new Pair("Invalid HTTP Method" + requestMethod.toString(), new Integer(CODE_INVALIDMETHOD));
                     }
                 } catch (JSONException json) {
-                    System.err.println("SubnetHandler: caught JSONException: " + json.getMessage());
+                    AsyncLog.shared().warn("SubnetHandler: caught JSONException: " + json.getMessage());
                     Response = new Pair("Invalid JSON Body:" + json.getMessage(), new Integer(CODE_INVALIDMETHOD));
                 }
 
                 // Successfully parsed and processed request, not process Response object
                 try {
+                    if (Response == null)
+                        return;     // already streamed to the client
 
                     String type;
                     if (Response.getValue() >= 300)
@@ -96,85 +222,361 @@ public class IpamServer {
                     SendResponse(exchange, Response.getValue(), type, Response.getKey());
 
                 } catch (IOException io) {
-                    System.err.println("IOException sending response: " + exchange.toString());
+                    AsyncLog.shared().warn("IOException sending response: " + exchange.toString());
                 }
 
             }  catch (Exception e) {
-                System.err.println("SubnetHandler caught exception: " + e.getMessage());
-                e.printStackTrace(System.err);
+                AsyncLog.shared().error("SubnetHandler caught exception: " + Throwables.getStackTraceAsString(e));
+            } finally {
+                if (metrics != null)
+                    metrics.record(exchange.getRequestMethod(), exchange.getResponseCode(), System.nanoTime() - start);
             }
         }
     }
 
-    /* Returns a Pair object which includes the response body (String) and response code (Integer)
-     *
+    /*  Serves IpamMetrics in the Prometheus text format on GET; other methods are rejected.
      */
-    static Pair<String, Integer> processGetRequest(Map<String, String> parameters, JSONObject inputJson, IpamRepo target) {
-        Preconditions.checkNotNull(parameters, "processGetRequest: Invalid null reference - parameters");
-        Preconditions.checkNotNull(inputJson, "processGetRequest: Invalid null reference - inputJson");
-        Preconditions.checkNotNull(target, "processGetRequest: Invalid null reference - target");
+    static class MetricsHandler implements HttpHandler {
 
-        StringBuilder response = new StringBuilder();
-        Integer code = null;
+        private final IpamMetrics metrics;
+        private final IpamMetrics.RouteMetrics route;
+
+        MetricsHandler(IpamMetrics metrics) {
+            this.metrics = Preconditions.checkNotNull(metrics, "MetricsHandler: Invalid null reference - metrics");
+            this.route = metrics.route(METRICSPATH);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) {
+            long start = System.nanoTime();
+            try {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    SendResponse(exchange, CODE_INVALIDMETHOD, "TXT",
+                            "Invalid HTTP Method" + exchange.getRequestMethod());
+                    return;
+                }
+                StringWriter body = new StringWriter();
+                metrics.write(body);
+                SendResponse(exchange, CODE_SUCCESS, IpamMetrics.CONTENTTYPE, body.toString());
+            } catch (IOException io) {
+                AsyncLog.shared().warn("IOException sending response: " + exchange.toString());
+            } finally {
+                route.record(exchange.getRequestMethod(), exchange.getResponseCode(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    /*  Longest prefix match: which stored subnet holds an address.  GET looks up a single
+    *  address, POST a JSON array of addresses (see processLookupRequest and
+    *  processBatchLookupRequest).  Records every request in metrics, unless it is null.
+     */
+    static class LookupHandler implements HttpHandler {
+
+        private final IpamMetrics.RouteMetrics metrics;
+
+        LookupHandler(IpamMetrics.RouteMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) {
+            long start = System.nanoTime();
+            try {
+                String query = exchange.getRequestURI().getQuery();
+                Map<String, String> parameters = (query != null) ? UriQueryToMap(query) : new HashMap<>();
+
+                Pair<String, Integer> response = FollowerGate(exchange.getRequestHeaders(), exchange.getResponseHeaders(), false);
+                if (response != null) {
+                    SendResponse(exchange, response.getValue(), "TXT", response.getKey());
+                    return;
+                }
+                switch (exchange.getRequestMethod()) {
+                    case "GET":
+                        response = processLookupRequest(parameters, repo);
+                        break;
+                    case "POST":
+                        try {
+                            Object inputJson = GetInputBody(exchange);
+                            response = (inputJson instanceof JSONArray)
+                                    ? processBatchLookupRequest(parameters, (JSONArray) inputJson, repo)
+                                    : new Pair<>("Expected a JSON array of addresses", CODE_INVALIDPARAMETER);
+                        } catch (JSONException json) {
+                            response = new Pair<>("Invalid JSON Body:" + json.getMessage(), CODE_INVALIDMETHOD);
+                        }
+                        break;
+                    default:
+                        response = new Pair<>("Invalid HTTP Method" + exchange.getRequestMethod(), CODE_INVALIDMETHOD);
+                }
+                SendResponse(exchange, response.getValue(), (response.getValue() >= 300) ? "TXT" : "JSON",
+                        response.getKey());
+            } catch (IOException io) {
+                AsyncLog.shared().warn("IOException sending response: " + exchange.toString());
+            } catch (Exception e) {
+                AsyncLog.shared().error("LookupHandler caught exception: " + Throwables.getStackTraceAsString(e));
+            } finally {
+                if (metrics != null)
+                    metrics.record(exchange.getRequestMethod(), exchange.getResponseCode(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    /*  Utilization of a prefix, from the aggregates kept by the prefix index (see
+    *  processUtilizationRequest).  GET only.  Records every request in metrics, unless it
+    *  is null.
+     */
+    static class UtilizationHandler implements HttpHandler {
+
+        private final IpamMetrics.RouteMetrics metrics;
+
+        UtilizationHandler(IpamMetrics.RouteMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) {
+            long start = System.nanoTime();
+            try {
+                String query = exchange.getRequestURI().getQuery();
+                Map<String, String> parameters = (query != null) ? UriQueryToMap(query) : new HashMap<>();
+
+                Pair<String, Integer> response = FollowerGate(exchange.getRequestHeaders(), exchange.getResponseHeaders(), false);
+                if (response == null)
+                    response = exchange.getRequestMethod().equals("GET")
+                            ? processUtilizationRequest(parameters, repo)
+                            : new Pair<>("Invalid HTTP Method" + exchange.getRequestMethod(), CODE_INVALIDMETHOD);
+                SendResponse(exchange, response.getValue(), (response.getValue() >= 300) ? "TXT" : "JSON",
+                        response.getKey());
+            } catch (IOException io) {
+                AsyncLog.shared().warn("IOException sending response: " + exchange.toString());
+            } catch (Exception e) {
+                AsyncLog.shared().error("UtilizationHandler caught exception: " + Throwables.getStackTraceAsString(e));
+            } finally {
+                if (metrics != null)
+                    metrics.record(exchange.getRequestMethod(), exchange.getResponseCode(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    /*  Records every exchange of a context in an AsyncLog once its handler returns: method,
+    *   path, status, response body bytes, duration and remote address.
+     */
+    static class AccessLogFilter extends Filter {
+
+        private final AsyncLog log;
+
+        AccessLogFilter(AsyncLog log) {
+            this.log = Preconditions.checkNotNull(log, "AccessLogFilter: Invalid null reference - log");
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            CountingOutputStream body = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(null, body);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                log.access(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+                        exchange.getResponseCode(), body.getCount(), System.nanoTime() - start,
+                        exchange.getRemoteAddress());
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Asynchronous access log";
+        }
+    }
+
+    /* Stream a GET listing straight from the store iterator to the client, using chunked
+    *  transfer encoding, so peak memory does not grow with the size of the listing.
+    *  Returns null once the response has been sent, or a Pair of error text and code
+    *  for the caller to send if the query parameters are invalid.
+    *
+    *  A page with a limit is collected first (at most MAXPAGELIMIT records) so that, when
+    *  the page is full, the X-Next-Cursor header can carry the cursor of its last record:
+    *  the id for id order, the CIDR for network order.  Pass it back as 'after' (with the
+    *  same order and filters) for the next page.
+    *
+    *  For a store that tracks revisions (see BackingStore.getRevision) every listing carries
+    *  an ETag of the revision, and is kept in the listings cache; polls at the same revision
+    *  are answered from the cache, or with 304 if If-None-Match holds the ETag.
+     */
+    static Pair<String, Integer> streamGetRequest(HttpExchange exchange, Map<String, String> parameters, IpamRepo target) throws IOException {
+        Preconditions.checkNotNull(exchange, "streamGetRequest: Invalid null reference - exchange");
+        Preconditions.checkNotNull(parameters, "streamGetRequest: Invalid null reference - parameters");
+        Preconditions.checkNotNull(target, "streamGetRequest: Invalid null reference - target");
+
+        Pair<filterSpec, String> requestFilter = ParseListingFilter(parameters);
+        if (requestFilter.getValue() != null)
+            return new Pair<>(requestFilter.getValue(), CODE_INVALIDPARAMETER);
+
+        // Revision first: the listing built below reflects at least every change up to it
+        long revision = target.GetRevision();
+        ListingCache cache = (revision == BackingStore.UNVERSIONED) ? null : listings;
+        String query = null;
+        if (cache != null) {
+            String etag = cache.etag(target, revision);
+            exchange.getResponseHeaders().set(HEADER_ETAG, etag);
+            if (ListingCache.matches(exchange.getRequestHeaders().getFirst(HEADER_IFNONEMATCH), etag)) {
+                exchange.sendResponseHeaders(CODE_NOTMODIFIED, NOBODY);
+                exchange.close();       // a 304 has no body stream to close
+                return null;
+            }
+            query = ListingCache.key(parameters);
+            ListingCache.Listing cached = cache.get(query, target, revision);
+            if (cached != null) {
+                if (cached.getNextCursor() != null)
+                    exchange.getResponseHeaders().set(HEADER_NEXTCURSOR, cached.getNextCursor());
+                SetResponseHeaders(exchange, "JSON");
+                exchange.sendResponseHeaders(CODE_SUCCESS, cached.getBody().length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(cached.getBody());
+                }
+                return null;
+            }
+        }
+
+        filterSpec filter = requestFilter.getKey();
+        Iterator<IpamRecord> records;
+        String nextCursor = null;
+        if (filter != null && filter.getLimit() != null) {
+            List<IpamRecord> page = target.GetAllSubnets(filter);
+            if (page.size() == filter.getLimit()) {
+                IpamRecord last = page.get(page.size() - 1);
+                nextCursor = (filter.getOrder() == SortOrder.NETWORK)
+                        ? last.getSubnet().getCidr()
+                        : last.getId().toString();
+                exchange.getResponseHeaders().set(HEADER_NEXTCURSOR, nextCursor);
+            }
+            records = page.iterator();
+        } else {
+            records = target.IterateSubnets(filter);
+        }
+
+        SetResponseHeaders(exchange, "JSON");
+        exchange.sendResponseHeaders(CODE_SUCCESS, CHUNKED);
+        ListingCache.Capture capture = (cache != null) ? cache.capture(exchange.getResponseBody()) : null;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                (capture != null) ? capture : exchange.getResponseBody(), StandardCharsets.UTF_8), STREAMBUFFER)) {
+            new JsonRecordWriter(out).writeArray(records);
+            // cache before the final chunk, so the client's next poll finds it
+            out.flush();
+            if (capture != null)
+                cache.put(query, target, revision, capture, nextCursor);
+        }
+        return null;
+    }
+
+    /* Build a filterSpec from listing query parameters.  Returns a Pair of the filter (null
+    *  if there were no parameters) and a description of any invalid parameters (null if
+    *  all parameters are valid).
+    *
+    *  Paging parameters: limit (1 to MAXPAGELIMIT), order ('id' or 'network'), and after,
+    *  the cursor - an id for id order, or a CIDR for network order.
+     */
+    static Pair<filterSpec, String> ParseListingFilter(Map<String, String> parameters) {
+        Preconditions.checkNotNull(parameters, "ParseListingFilter: Invalid null reference - parameters");
+
+        StringBuilder errors = new StringBuilder();
+        boolean valid = true;
         String filter;
+        filterSpecBuilder filterBuilder = new filterSpecBuilder();
         filterSpec requestFilter = null;
+        SortOrder order = null;
 
         if (!parameters.isEmpty()) {
             for (String Param : parameters.keySet()) {
+                filter = parameters.get(Param);
+                if (filter.isEmpty()) {
+                    errors.append("Empty " + Param + " parameter\n\r");
+                    valid = false;
+                    continue;
+                }
                 switch (Param) {
                     case "family":
-                        filter = parameters.get(Param);
-                        if (filter.isEmpty()) {
-                            response.append("Empty family parameter");
-                            code = CODE_INVALIDPARAMETER;
+                        switch (filter) {
+                            case "4":
+                                filterBuilder.family(IpamSubnet.Family.IPV4);
+                                break;
+                            case "6":
+                                filterBuilder.family(IpamSubnet.Family.IPV6);
+                                break;
+                            default:
+                                errors.append("Invalid family parameter: " + filter.toString());
+                                errors.append("\n\rExpected one of '4' or '6'");
+                                valid = false;
+                        }
+                        break;
+                    case "order":
+                        switch (filter) {
+                            case "id":
+                                order = SortOrder.ID;
+                                break;
+                            case "network":
+                                order = SortOrder.NETWORK;
+                                break;
+                            default:
+                                errors.append("Invalid order parameter: " + filter);
+                                errors.append("\n\rExpected one of 'id' or 'network'");
+                                valid = false;
+                        }
+                        break;
+                    case "after":
+                        break;      // cursor type depends on order, parsed below
+                    case "mask":
+                    case "minid":
+                    case "maxid":
+                    case "limit":
+                        Optional<Integer> value = ParseIntegerParameter(filter);
+                        if (!value.isPresent()
+                                || (Param.equals("limit") && (value.get() < 1 || value.get() > MAXPAGELIMIT))) {
+                            errors.append("Invalid " + Param + " parameter: " + filter + "\n\r");
+                            valid = false;
+                        } else if (Param.equals("limit")) {
+                            filterBuilder.limit(value.get());
+                        } else if (Param.equals("mask")) {
+                            filterBuilder.mask(value.get());
+                        } else if (Param.equals("minid")) {
+                            filterBuilder.minid(value.get());
                         } else {
-                            switch (filter) {
-                                case "4":
-                                    requestFilter = new filterSpecBuilder()
-                                            .family(IpamSubnet.Family.valueOf("V4"))
-                                            .buildFilterSpec();
-                                    break;
-                                case "6":
-                                    requestFilter = new filterSpecBuilder()
-                                            .family(IpamSubnet.Family.valueOf("V6"))
-                                            .buildFilterSpec();
-                                    break;
-                                default:
-                                    response.append("Invalid family parameter: " + filter.toString());
-                                    response.append("\n\rExpected one of '4' or '6'");
-                                    code = CODE_INVALIDPARAMETER;
-                            }
+                            filterBuilder.maxid(value.get());
                         }
                         break;
+                    case "network":
+                        filterBuilder.network(filter);
+                        break;
                     default:
-                        response.append("Invalid query parameter:" + Param.toString() + "\n\r");
-                        code = CODE_INVALIDPARAMETER;
+                        errors.append("Invalid query parameter:" + Param.toString() + "\n\r");
+                        valid = false;
                 }
             }
-        }
-
-        // if code is null, no parameter errors have occurred, so continue processing
-        List<IpamRecord> Result;
-
-        if (code == null) {
-            if (requestFilter != null) {
-                Result = target.GetAllSubnets(requestFilter);
-            } else {
-                Result = target.GetAllSubnets();
-            }
-
-            JSONArray jsonresults = new JSONArray();
 
-            for (IpamRecord net: Result) {
-                JSONObject jo = getJsonObjectFromIpamRecord(net);
-                jsonresults.put(jo);
+            filterBuilder.order(order);
+            String after = parameters.get("after");
+            if (after != null && !after.isEmpty()) {
+                if (order == SortOrder.NETWORK) {
+                    Optional<IpamSubnet> cursor = IpamSubnet.tryFromCidr(after);
+                    if (cursor.isPresent()) {
+                        filterBuilder.after(cursor.get());
+                    } else {
+                        errors.append("Invalid after parameter: " + after + "\n\rExpected a CIDR for network order\n\r");
+                        valid = false;
+                    }
+                } else {
+                    Optional<Integer> cursor = ParseIntegerParameter(after);
+                    if (cursor.isPresent()) {
+                        filterBuilder.after(cursor.get());
+                    } else {
+                        errors.append("Invalid after parameter: " + after + "\n\rExpected an id for id order\n\r");
+                        valid = false;
+                    }
+                }
             }
-
-            response.append(jsonresults.toString());
-            code = CODE_SUCCESS;
+            requestFilter = filterBuilder.buildFilterSpec();
         }
 
-        return new Pair(response.toString(), code);
+        return new Pair<>(requestFilter, valid ? null : errors.toString());
     }
 
     /* Returns a Pair object which includes the response body (String) and response code (Integer)
@@ -198,43 +600,352 @@ public class IpamServer {
         }
 
         Optional<IpamRecord> result;
-        Pair<Boolean, String> validatedCidr;  // Pair<is valid, reason if invalid or cidr if valid>
+        Optional<IpamSubnet> subnet;
 
         /* if code is null, no parameter errors have occurred, and JSON object valid, then
-        *  continue processing
+        *  continue processing.  The CIDR is parsed exactly once, by ParseJsonSubnet.
          */
         if (errorCode != null) {
             return new Pair(response.toString(), errorCode);
-        } else if (!ValidateJsonSubnet(inputJson)) {
+        } else if (inputJson.has("parent")) {
+            return processAllocateRequest(inputJson, target);
+        } else if (!(subnet = ParseJsonSubnet(inputJson)).isPresent()) {
             response.append("Invalid subnet specification: " + inputJson.toString());
             errorCode = CODE_INVALIDPARAMETER;
         } else {
+            // Attempt to add record to IPAM database
+            result = target.AddSubnet(subnet.get());
+            // Check that IPAM database update was complete, then parse results
+            if (result.isPresent()) {
+                JSONObject jsonResponse = getJsonObjectFromIpamRecord(result.get());
+                response.append(jsonResponse.toString());
+                errorCode = CODE_SUCCESS;
+            } else {
+                response.append("Failed to add subnet " + inputJson.toString());
+                errorCode = CODE_SERVERERRROR;
+            }
+        }
 
-            validatedCidr = isValidCIDR(inputJson.get("cidr").toString());
+        return new Pair(response.toString(), errorCode);
+    }
 
-            // If CIDR is valid data, attempt to add record to IPAM database
-            if (validatedCidr.getKey()){
-                try {
-                    result = target.AddSubnet( IpamSubnet.fromCidr(validatedCidr.getValue()));
-                    // Check that IPAM database update was complete, then parse results
-                    if (result.isPresent()) {
-                        JSONObject jsonResponse = getJsonObjectFromIpamRecord(result.get());
-                        response.append(jsonResponse.toString());
-                        errorCode = CODE_SUCCESS;
-                    } else {
-                        response.append("Failed to add subnet " + inputJson.toString());
-                        errorCode = CODE_SERVERERRROR;
+    /* Add a batch of subnets, for a POST body holding a JSON array of subnet objects, e.g.
+    *      [{"cidr": "10.1.0.0/16"}, {"cidr": "10.2.0.0/16"}]
+    *  The mode parameter selects 'atomic' (default - all subnets or none) or 'best-effort'.
+    *  Items are validated and parsed in parallel, then added with one IpamRepo.AddSubnets
+    *  call.  The response body is a JSON array with a result per item, in order: the record
+    *  (as for a single POST) or {"cidr": ..., "error": ...}.  The response code is success
+    *  unless an ATOMIC batch was rejected; its rollback is best effort (see IpamRepo.AddSubnets).
+     */
+    static Pair<String, Integer> processBatchPostRequest(Map<String, String> parameters, JSONArray inputJson, IpamRepo target) {
+        Preconditions.checkNotNull(parameters, "processBatchPostRequest: Invalid null reference - parameters");
+        Preconditions.checkNotNull(inputJson, "processBatchPostRequest: Invalid null reference - inputJson");
+        Preconditions.checkNotNull(target, "processBatchPostRequest: Invalid null reference - target");
+
+        StringBuilder response = new StringBuilder();
+        BatchMode mode = BatchMode.ATOMIC;
+
+        for (String Param : parameters.keySet()) {
+            switch (Param) {
+                case "mode":
+                    try {
+                        mode = BatchMode.fromName(parameters.get(Param));
+                    } catch (IllegalArgumentException e) {
+                        response.append("Invalid mode parameter: " + parameters.get(Param));
+                        response.append("\n\rExpected one of 'atomic' or 'best-effort'\n\r");
                     }
-                } catch (IllegalArgumentException e) {
-                    throw new RuntimeException("Validated JSON failed to convert to IpamSubnet");
+                    break;
+                default:
+                    response.append("Invalid query parameter:" + Param + "\n\r");
+            }
+        }
+        if (inputJson.length() == 0 || inputJson.length() > MAXBATCH)
+            response.append("Batch must hold 1 to " + MAXBATCH + " subnets\n\r");
+        if (response.length() > 0)
+            return new Pair<>(response.toString(), CODE_INVALIDPARAMETER);
+
+        List<Optional<IpamSubnet>> parsed = IntStream.range(0, inputJson.length()).parallel()
+                .mapToObj(i -> {
+                    Object item = inputJson.opt(i);
+                    return (item instanceof JSONObject) ? ParseJsonSubnet((JSONObject) item) : Optional.<IpamSubnet>empty();
+                })
+                .collect(Collectors.toList());
+
+        JSONArray results = new JSONArray();
+        List<IpamSubnet> valid = new ArrayList<>(parsed.size());
+        boolean invalid = false;
+        for (int i = 0; i < parsed.size(); i++) {
+            if (parsed.get(i).isPresent()) {
+                valid.add(parsed.get(i).get());
+            } else {
+                invalid = true;
+            }
+        }
+
+        // An invalid item rejects an ATOMIC batch before it reaches the repo
+        boolean rejected = invalid && mode == BatchMode.ATOMIC;
+        List<IpamRepo.BatchResult> added = rejected ? Collections.emptyList() : target.AddSubnets(valid, mode);
+
+        int next = 0;
+        for (int i = 0; i < parsed.size(); i++) {
+            JSONObject item;
+            if (!parsed.get(i).isPresent()) {
+                item = new JSONObject();
+                item.put("cidr", String.valueOf(inputJson.opt(i)));
+                item.put("error", "Invalid subnet specification");
+            } else if (added.isEmpty()) {
+                item = new JSONObject();
+                item.put("cidr", parsed.get(i).get().getCidr());
+                item.put("error", IpamRepo.BATCH_ROLLEDBACK);
+            } else {
+                IpamRepo.BatchResult result = added.get(next++);
+                if (result.getRecord().isPresent()) {
+                    item = getJsonObjectFromIpamRecord(result.getRecord().get());
+                } else {
+                    item = new JSONObject();
+                    item.put("cidr", result.getSubnet().getCidr());
+                    item.put("error", result.getError());
+                    rejected |= (mode == BatchMode.ATOMIC);
                 }
+            }
+            results.put(item);
+        }
+
+        int code = !rejected ? CODE_SUCCESS : invalid ? CODE_INVALIDPARAMETER : CODE_SERVERERRROR;
+        return new Pair<>(results.toString(), code);
+    }
+
+    /* Allocate the next free subnet from a parent range, for a POST body of the form
+    *      {"parent": "10.20.0.0/16", "mask": 26, "policy": "best-fit"}
+    *  policy is optional ('first-fit' or 'best-fit', default first-fit).  Returns a Pair of
+    *  the allocated record (as for an explicit POST) or error text, and the response code.
+     */
+    static Pair<String, Integer> processAllocateRequest(JSONObject inputJson, IpamRepo target) {
+        Preconditions.checkNotNull(inputJson, "processAllocateRequest: Invalid null reference - inputJson");
+        Preconditions.checkNotNull(target, "processAllocateRequest: Invalid null reference - target");
+
+        StringBuilder response = new StringBuilder();
+
+        for (String key : JSONObject.getNames(inputJson)) {
+            switch (key) {
+                case "parent":
+                case "mask":
+                case "policy":
+                    break;
+                default:
+                    response.append("Invalid allocation key: " + key + "\n\r");
+            }
+        }
+
+        Optional<IpamSubnet> parent = IpamSubnet.tryFromCidr(inputJson.get("parent").toString());
+        if (!parent.isPresent())
+            response.append("Invalid parent specification: " + inputJson.get("parent") + "\n\r");
+
+        // mask must be a JSON integer: optInt or getInt would truncate 26.5, or read "26"
+        Object maskValue = inputJson.opt("mask");
+        int mask = (maskValue instanceof Integer) ? (Integer) maskValue : -1;
+        if (!(maskValue instanceof Integer))
+            response.append("Invalid mask: " + maskValue + "\n\rExpected an integer prefix length\n\r");
+        else if (parent.isPresent() && (mask < parent.get().getMask() || mask >= parent.get().getWidth()))
+            response.append("Invalid mask for parent: " + mask + "\n\r");
+
+        AllocationPolicy policy = AllocationPolicy.FIRST_FIT;
+        if (inputJson.has("policy")) {
+            try {
+                policy = AllocationPolicy.fromName(inputJson.get("policy").toString());
+            } catch (IllegalArgumentException e) {
+                response.append("Invalid policy: " + inputJson.get("policy")
+                        + "\n\rExpected one of 'first-fit' or 'best-fit'\n\r");
+            }
+        }
+
+        if (response.length() > 0)
+            return new Pair<>(response.toString(), CODE_INVALIDPARAMETER);
+
+        Optional<IpamRecord> result = target.AllocateSubnet(parent.get(), mask, policy);
+        if (!result.isPresent())
+            return new Pair<>("No free /" + mask + " in " + parent.get().getCidr(), CODE_SERVERERRROR);
+
+        return new Pair<>(getJsonObjectFromIpamRecord(result.get()).toString(), CODE_SUCCESS);
+    }
+
+    /* Look up the most specific stored subnet containing one address, for the query
+    *      ?address=10.4.7.19&ancestors=true
+    *  Returns a Pair of the lookup result (see LookupResult) and success, or error text and
+    *  the not found or invalid parameter code.  ancestors (optional, 'true' or 'false')
+    *  adds every other stored subnet containing the address, outermost first.
+     */
+    static Pair<String, Integer> processLookupRequest(Map<String, String> parameters, IpamRepo target) {
+        Preconditions.checkNotNull(parameters, "processLookupRequest: Invalid null reference - parameters");
+        Preconditions.checkNotNull(target, "processLookupRequest: Invalid null reference - target");
+
+        StringBuilder response = new StringBuilder();
+        boolean ancestors = ParseLookupParameters(parameters, true, response);
+        String address = parameters.get("address");
+        if (address == null || address.isEmpty())
+            response.append("Missing address parameter\n\r");
+        if (response.length() > 0)
+            return new Pair<>(response.toString(), CODE_INVALIDPARAMETER);
+
+        Optional<IpamSubnet> parsed = IpamSubnet.tryFromAddress(address);
+        if (!parsed.isPresent())
+            return new Pair<>("Invalid address parameter: " + address, CODE_INVALIDPARAMETER);
+
+        JSONObject result = LookupResult(address, parsed.get(), ancestors, target);
+        if (result.isNull("match"))
+            return new Pair<>("No subnet contains " + address, CODE_NOTFOUND);
+        return new Pair<>(result.toString(), CODE_SUCCESS);
+    }
+
+    /* Look up a batch of addresses, for a POST body holding a JSON array of addresses, e.g.
+    *      ["10.4.7.19", "2001:db8::42"]
+    *  The response body is a JSON array with a result per address, in order (see
+    *  LookupResult): "match" is null where no stored subnet contains the address, and an
+    *  invalid address gives {"address": ..., "error": ...}.
+     */
+    static Pair<String, Integer> processBatchLookupRequest(Map<String, String> parameters, JSONArray inputJson, IpamRepo target) {
+        Preconditions.checkNotNull(parameters, "processBatchLookupRequest: Invalid null reference - parameters");
+        Preconditions.checkNotNull(inputJson, "processBatchLookupRequest: Invalid null reference - inputJson");
+        Preconditions.checkNotNull(target, "processBatchLookupRequest: Invalid null reference - target");
+
+        StringBuilder response = new StringBuilder();
+        boolean ancestors = ParseLookupParameters(parameters, false, response);
+        if (inputJson.length() == 0 || inputJson.length() > MAXBATCH)
+            response.append("Batch must hold 1 to " + MAXBATCH + " addresses\n\r");
+        if (response.length() > 0)
+            return new Pair<>(response.toString(), CODE_INVALIDPARAMETER);
+
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < inputJson.length(); i++) {
+            Object item = inputJson.opt(i);
+            Optional<IpamSubnet> parsed = (item instanceof String)
+                    ? IpamSubnet.tryFromAddress((String) item) : Optional.empty();
+            if (parsed.isPresent()) {
+                results.put(LookupResult((String) item, parsed.get(), ancestors, target));
             } else {
-                response.append("Failed to add subnet " + inputJson.toString());
-                errorCode = CODE_SERVERERRROR;
+                JSONObject error = new JSONObject();
+                error.put("address", String.valueOf(item));
+                error.put("error", "Invalid address");
+                results.put(error);
             }
         }
+        return new Pair<>(results.toString(), CODE_SUCCESS);
+    }
 
-        return new Pair(response.toString(), errorCode);
+    /* Validate lookup query parameters - ancestors, and address if allowed - appending any
+    *  errors to 'errors'.  Returns whether ancestors were requested.
+     */
+    private static boolean ParseLookupParameters(Map<String, String> parameters, boolean allowAddress,
+                                                 StringBuilder errors) {
+        boolean ancestors = false;
+        for (String Param : parameters.keySet()) {
+            String value = parameters.get(Param);
+            switch (Param) {
+                case "ancestors":
+                    if (value.equals("true") || value.equals("false")) {
+                        ancestors = Boolean.parseBoolean(value);
+                    } else {
+                        errors.append("Invalid ancestors parameter: " + value);
+                        errors.append("\n\rExpected one of 'true' or 'false'\n\r");
+                    }
+                    break;
+                case "address":
+                    if (!allowAddress)
+                        errors.append("Invalid query parameter:" + Param + "\n\r");
+                    break;
+                default:
+                    errors.append("Invalid query parameter:" + Param + "\n\r");
+            }
+        }
+        return ancestors;
+    }
+
+    /* Lookup result for an address, e.g.
+    *      {"address": "10.4.7.19", "match": {"cidr": "10.4.0.0/16", "id": 3, "family": "4"},
+    *       "ancestors": [{"cidr": "10.0.0.0/8", "id": 1, "family": "4"}]}
+    *  match is null if no stored subnet contains the address; ancestors is present only if
+    *  requested.
+     */
+    private static JSONObject LookupResult(String text, IpamSubnet address, boolean ancestors, IpamRepo target) {
+        JSONObject result = new JSONObject();
+        result.put("address", text);
+        if (!ancestors) {
+            Optional<IpamRecord> match = target.LookupAddress(address);
+            result.put("match", match.isPresent() ? getJsonObjectFromIpamRecord(match.get()) : JSONObject.NULL);
+            return result;
+        }
+
+        List<IpamRecord> chain = target.LookupAddressChain(address);
+        JSONArray outer = new JSONArray();
+        for (int i = 0; i < chain.size() - 1; i++)
+            outer.put(getJsonObjectFromIpamRecord(chain.get(i)));
+        result.put("match", chain.isEmpty() ? JSONObject.NULL : getJsonObjectFromIpamRecord(chain.get(chain.size() - 1)));
+        result.put("ancestors", outer);
+        return result;
+    }
+
+    /* Utilization of a prefix, stored or not, for the query
+    *      ?prefix=10.0.0.0/8&top=5
+    *  giving e.g.
+    *      {"prefix": "10.0.0.0/8", "family": "4", "size": 16777216, "allocated": 1048576,
+    *       "utilization": 0.0625, "subnets": 3, "largestFreeMask": 9,
+    *       "top": [{"cidr": "10.0.0.0/12", "id": 7, "family": "4", "addresses": 1048576}]}
+    *  top (optional, 0 to MAXPAGELIMIT) lists that many of the largest stored subnets within
+    *  the prefix, largest first.  largestFreeMask is null when the prefix is fully allocated.
+     */
+    static Pair<String, Integer> processUtilizationRequest(Map<String, String> parameters, IpamRepo target) {
+        Preconditions.checkNotNull(parameters, "processUtilizationRequest: Invalid null reference - parameters");
+        Preconditions.checkNotNull(target, "processUtilizationRequest: Invalid null reference - target");
+
+        StringBuilder response = new StringBuilder();
+        Optional<IpamSubnet> prefix = Optional.empty();
+        int top = 0;
+
+        for (String Param : parameters.keySet()) {
+            String value = parameters.get(Param);
+            switch (Param) {
+                case "prefix":
+                    prefix = IpamSubnet.tryFromCidr(value);
+                    if (!prefix.isPresent())
+                        response.append("Invalid prefix parameter: " + value + "\n\r");
+                    break;
+                case "top":
+                    Optional<Integer> count = ParseIntegerParameter(value);
+                    if (count.isPresent() && count.get() >= 0 && count.get() <= MAXPAGELIMIT) {
+                        top = count.get();
+                    } else {
+                        response.append("Invalid top parameter: " + value);
+                        response.append("\n\rExpected a count from 0 to " + MAXPAGELIMIT + "\n\r");
+                    }
+                    break;
+                default:
+                    response.append("Invalid query parameter:" + Param + "\n\r");
+            }
+        }
+        if (!parameters.containsKey("prefix"))
+            response.append("Missing prefix parameter\n\r");
+        if (response.length() > 0)
+            return new Pair<>(response.toString(), CODE_INVALIDPARAMETER);
+
+        SubnetUtilization usage = target.GetUtilization(prefix.get());
+        JSONObject result = new JSONObject();
+        result.put("prefix", usage.getPrefix().getCidr());
+        result.put("family", usage.getPrefix().getFamily().getAlias());
+        result.put("size", usage.getSize());
+        result.put("allocated", usage.getAllocated());
+        result.put("utilization", usage.getUtilization());
+        result.put("subnets", usage.getSubnets());
+        result.put("largestFreeMask", (usage.getLargestFreeMask() < 0) ? JSONObject.NULL : usage.getLargestFreeMask());
+        if (top > 0) {
+            JSONArray largest = new JSONArray();
+            for (IpamRecord record : target.GetLargestSubnets(prefix.get(), top)) {
+                JSONObject jo = getJsonObjectFromIpamRecord(record);
+                jo.put("addresses", record.getSubnet().getSize());
+                largest.put(jo);
+            }
+            result.put("top", largest);
+        }
+        return new Pair<>(result.toString(), CODE_SUCCESS);
     }
 
     private static JSONObject getJsonObjectFromIpamRecord(IpamRecord net) {
@@ -245,17 +956,59 @@ public class IpamServer {
         return jo;
     }
 
-    /*  Parse input body into JSON object.  Throws JSONException for invalid JSON data,
-    *   and logs any other IOException errors
+    /*  On a replication follower, the response refusing a request it must not serve, or
+    *   null to serve it (always null elsewhere).  Writes are refused, naming the leader.  A
+    *   read carrying X-Change-Sequence - as returned by the leader for a write - waits up to
+    *   readWait milliseconds for the follower to apply that change, so a client reads its
+    *   own writes; and reads are refused while the follower has been behind the leader for
+    *   more than maxLag milliseconds.  Served reads carry the follower's X-Change-Sequence.
      */
-    static JSONObject GetInputBody(HttpExchange exchange) throws JSONException {
+    static Pair<String, Integer> FollowerGate(Headers request, Headers response, boolean write) {
+        Preconditions.checkNotNull(request, "FollowerGate: Invalid null reference - request");
+        Preconditions.checkNotNull(response, "FollowerGate: Invalid null reference - response");
+        ReplicationFollower current = follower;
+        if (current == null)
+            return null;
+
+        if (write)
+            return new Pair<>("Read-only follower: send writes to the leader at " + current.getLeader(), CODE_MISDIRECTED);
+
+        String seen = request.getFirst(HEADER_CHANGESEQUENCE);
+        if (seen != null) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(seen.trim());
+            } catch (NumberFormatException e) {
+                return new Pair<>("Invalid " + HEADER_CHANGESEQUENCE + " header: " + seen, CODE_INVALIDPARAMETER);
+            }
+            try {
+                if (!current.awaitApplied(sequence, readWait, TimeUnit.MILLISECONDS))
+                    return new Pair<>("Follower has not yet applied change " + sequence, CODE_UNAVAILABLE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Pair<>("Interrupted waiting for change " + sequence, CODE_UNAVAILABLE);
+            }
+        }
+
+        long staleness = current.getStaleness();
+        if (maxLag > 0 && staleness > maxLag)
+            return new Pair<>("Follower is behind the leader by more than " + maxLag + " ms", CODE_UNAVAILABLE);
+
+        response.set(HEADER_CHANGESEQUENCE, Long.toString(current.getApplied()));
+        return null;
+    }
+
+    /*  Parse input body into JSON object, or JSON array for a batch.  Throws JSONException
+    *   for invalid JSON data, and logs any other IOException errors
+     */
+    static Object GetInputBody(HttpExchange exchange) throws JSONException {
         Preconditions.checkNotNull(exchange, "GetInputBody: Invalid null reference - exchange");
 
         StringBuilder inputbody = new StringBuilder();
 
         InputStream input = exchange.getRequestBody();
 
-        JSONObject results;
+        Object results;
 
         if (input != null) {
             try (BufferedReader br = new BufferedReader(new InputStreamReader(input))) {
@@ -267,15 +1020,18 @@ public class IpamServer {
                 }
 
             } catch (IOException e) {
-                System.err.println("GetInputBody IOException: " + e.getMessage());
+                AsyncLog.shared().error("GetInputBody IOException: " + e.getMessage());
             }
 
 
 
         }
 
-        if (inputbody.length() > 0) {
-            results = new JSONObject(inputbody.toString());
+        String text = inputbody.toString().trim();
+        if (text.startsWith("[")) {
+            results = new JSONArray(text);
+        } else if (text.length() > 0) {
+            results = new JSONObject(text);
         } else {
             results = new JSONObject();
         }
@@ -283,6 +1039,16 @@ public class IpamServer {
         return results;
     }
 
+    // Parse a non-negative decimal query parameter, empty if it is not a valid number
+    static Optional<Integer> ParseIntegerParameter(String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            return (parsed < 0) ? Optional.empty() : Optional.of(parsed);
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
     // Break apart URL Query parameters into keypair map
     static Map<String, String> UriQueryToMap(String query) {
         Preconditions.checkNotNull(query, "UriQueryToMap: Invalid null string reference - query");
@@ -308,10 +1074,12 @@ public class IpamServer {
         Preconditions.checkNotNull(type, "SendResponse: Invalid null reference - type");
         Preconditions.checkNotNull(response, "SendResponse: Invalid null reference - response");
 
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+
         SetResponseHeaders(exchange, type);
-        exchange.sendResponseHeaders(code, response.length());
+        exchange.sendResponseHeaders(code, (body.length == 0) ? NOBODY : body.length);
         OutputStream out = exchange.getResponseBody();
-        out.write(response.getBytes());
+        out.write(body);
         out.close();
     }
 
@@ -337,43 +1105,276 @@ public class IpamServer {
     }
 
     /*  Ensure input JSON contains both valid JSON format (eg no extraneous keys) as well
-    *   valid well formatted CIDR data.
+    *   valid well formatted CIDR data, returning the parsed subnet (empty if invalid).
      */
-    static private boolean ValidateJsonSubnet(JSONObject input) {
-        Preconditions.checkNotNull(input, "ValidateJsonSubnet: Invalid null reference - input");
+    static private Optional<IpamSubnet> ParseJsonSubnet(JSONObject input) {
+        Preconditions.checkNotNull(input, "ParseJsonSubnet: Invalid null reference - input");
 
-        int keycount = 0;
-        for (String key : JSONObject.getNames(input)) {
-            switch (key) {
-                case "cidr":
+        String[] keys = JSONObject.getNames(input);
+        if (keys == null || keys.length != 1 || !keys[0].equals("cidr"))
+            return Optional.empty();
 
-                    if ( isValidCIDR(input.get(key).toString()).getKey() ) {
-                    keycount++;
-                    } else
-                        return false;
-                    break;
-                default:
-                    return false;
-            }
+        return IpamSubnet.tryFromCidr(input.get("cidr").toString());
+    }
+
+    /*  Create and start an HttpServer serving /subnets, /lookup and /utilization, with handlers run on executor.
+    *   backlog is the maximum number of queued incoming connections (0 for system default).
+     */
+    static HttpServer startServer(InetSocketAddress address, int backlog, Executor executor) throws IOException {
+        return startServer(address, backlog, executor, null, null);
+    }
+
+    /*  As above, also recording requests in metrics and serving them on /metrics, and
+    *   writing every request to accessLog, unless either is null.
+     */
+    static HttpServer startServer(InetSocketAddress address, int backlog, Executor executor,
+                                  IpamMetrics metrics, AsyncLog accessLog) throws IOException {
+        Preconditions.checkNotNull(address, "startServer: Invalid null reference - address");
+        Preconditions.checkNotNull(executor, "startServer: Invalid null reference - executor");
+
+        HttpServer server = HttpServer.create(address, backlog);
+        for (Map.Entry<String, HttpHandler> route : CreateHandlers(executor, metrics).entrySet()) {
+            HttpContext context = server.createContext(route.getKey(), route.getValue());
+            if (accessLog != null)
+                context.getFilters().add(new AccessLogFilter(accessLog));
+        }
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    /*  As startServer, on the NioHttpServer front end: 'loops' selector threads parse requests
+    *   from persistent, possibly pipelined, connections and hand them to the same handlers
+    *   on executor.
+     */
+    static NioHttpServer startNioServer(InetSocketAddress address, int backlog, int loops, Executor executor,
+                                        IpamMetrics metrics, AsyncLog accessLog) throws IOException {
+        Preconditions.checkNotNull(address, "startNioServer: Invalid null reference - address");
+        Preconditions.checkNotNull(executor, "startNioServer: Invalid null reference - executor");
+
+        NioHttpServer server = new NioHttpServer(address, backlog, loops, executor);
+        List<Filter> filters = (accessLog != null)
+                ? Collections.singletonList(new AccessLogFilter(accessLog)) : Collections.emptyList();
+        for (Map.Entry<String, HttpHandler> route : CreateHandlers(executor, metrics).entrySet())
+            server.createContext(route.getKey(), route.getValue(), filters);
+        server.start();
+        return server;
+    }
+
+    // The handler for each served path, recording requests in metrics and serving /metrics unless it is null
+    private static Map<String, HttpHandler> CreateHandlers(Executor executor, IpamMetrics metrics) {
+        Map<String, HttpHandler> handlers = new LinkedHashMap<>();
+        if (metrics != null) {
+            handlers.put(SUBNETSPATH, new IpamServer.SubnetHandler(metrics.route(SUBNETSPATH)));
+            handlers.put(LOOKUPPATH, new IpamServer.LookupHandler(metrics.route(LOOKUPPATH)));
+            handlers.put(UTILIZATIONPATH, new IpamServer.UtilizationHandler(metrics.route(UTILIZATIONPATH)));
+            handlers.put(METRICSPATH, new IpamServer.MetricsHandler(metrics));
+            metrics.monitorExecutor(executor);
+        } else {
+            handlers.put(SUBNETSPATH, new IpamServer.SubnetHandler());
+            handlers.put(LOOKUPPATH, new IpamServer.LookupHandler(null));
+            handlers.put(UTILIZATIONPATH, new IpamServer.UtilizationHandler(null));
+        }
+        return handlers;
+    }
+
+    /*  The chain of decorators requests reach store through, innermost first: leader's change
+    *   log, unless leader is null (it must wrap store), a read-through cache of cacheSize
+    *   entries, unless 0, and metrics, unless null.  Both the leader and the cache must see
+    *   every write, so each wraps the chain built so far, never the bare store.
+     */
+    static BackingStore ServedStore(BackingStore store, BackingStoreLeader leader, long cacheSize, IpamMetrics metrics)
+            throws BackingStoreException {
+        Preconditions.checkNotNull(store, "ServedStore: Invalid null reference - store");
+
+        BackingStore served = (leader != null) ? leader : store;
+        if (cacheSize > 0) {
+            BackingStoreCache cache = new BackingStoreCache(served, cacheSize);
+            if (metrics != null)
+                metrics.monitorCache(cache);
+            served = cache;
+        }
+        return (metrics != null) ? new BackingStoreMetrics(served, metrics) : served;
+    }
+
+    /*  Select the BackingStore implementation by name:
+    *   memory      - BackingStoreMemory, single monitor
+    *   concurrent  - BackingStoreConcurrent, lock-free reads and streaming listings
+    *   log         - BackingStoreLog, durable, in the ipam.store.dir directory
+    *   mapped      - BackingStoreMapped, off-heap, in ipam.store.dir/ipam.mapped
+    *   jdbc        - BackingStoreJdbc, a SQL table, at ipam.jdbc.url
+    *   With ipam.shards above 1, a BackingStoreSharded over that many stores of the named
+    *   kind, each durable shard in its own ipam.store.dir/shard-N directory.  With an
+    *   ipam.idlease file, each shard leases its ids from its own copy of the file in its
+    *   directory: a global id is local * shards + shard, so shards sharing one lease would
+    *   each advance with the total insert count and leave most global ids unused.
+     */
+    static BackingStore CreateStore(String name) throws IllegalArgumentException, BackingStoreException {
+        Preconditions.checkNotNull(name, "CreateStore: Invalid null reference - name");
+
+        Path dir = Paths.get(System.getProperty(PROP_STOREDIR, DEFAULT_STOREDIR));
+        int shards = Integer.getInteger(PROP_SHARDS, DEFAULT_SHARDS);
+        if (shards < 1)
+            throw new IllegalArgumentException("Invalid shard count: " + shards);
+        String leaseFile = System.getProperty(PROP_IDLEASE, DEFAULT_IDLEASE);
+        if (shards == 1)
+            return CreateStore(name, dir, leaseFile.isEmpty() ? null : new IdLeaseFile(Paths.get(leaseFile)),
+                    Integer.MAX_VALUE);
+
+        List<BackingStore> stores = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            Path shardDir = dir.resolve("shard-" + i);
+            IdLeaseFile leases = leaseFile.isEmpty() ? null
+                    : new IdLeaseFile(shardDir.resolve(Paths.get(leaseFile).getFileName()));
+            stores.add(CreateStore(name, shardDir, leases, BackingStoreSharded.maxLocalId(shards, i)));
         }
-        if (keycount == 1) return true;
-        else return false;
+        return new BackingStoreSharded(stores);
+    }
+
+    /*  Create store 'name' in 'dir'.  With 'leases', the in-memory and log stores take ids in
+    *   blocks leased from it (see LeasedIdAllocator), so ids stay unique across every writer
+    *   sharing the lease file; otherwise each store counts from 1.  These stores refuse an
+    *   id above 'maxId' before storing its subnet.  The mapped store keeps its own durable
+    *   counter.  The jdbc store connects to ipam.jdbc.url, by default an embedded H2
+    *   database in 'dir'.
+     */
+    static BackingStore CreateStore(String name, Path dir, IdLeaseFile leases, int maxId)
+            throws IllegalArgumentException, BackingStoreException {
+        int block = Integer.getInteger(PROP_IDLEASEBLOCK, LeasedIdAllocator.DEFAULT_BLOCK);
+        if (block < 1)
+            throw new IllegalArgumentException("Invalid id lease block: " + block);
+        IdAllocator ids = (leases != null) ? new LeasedIdAllocator(leases, block) : new IdAllocator.Sequential();
+        if (maxId < Integer.MAX_VALUE)
+            ids = new IdAllocator.Bounded(ids, maxId);
+
+        switch (name) {
+            case "memory":
+                return new BackingStoreMemory(ids);
+            case "concurrent":
+                return new BackingStoreConcurrent(ids);
+            case "log":
+                return new BackingStoreLog(dir, BackingStoreLog.DEFAULT_SNAPSHOTINTERVAL, ids);
+            case "jdbc":
+                return new BackingStoreJdbc(
+                        System.getProperty(PROP_JDBCURL, "jdbc:h2:" + dir.toAbsolutePath().resolve("ipam")),
+                        Integer.getInteger(PROP_JDBCPOOL, BackingStoreJdbc.DEFAULT_POOL), ids);
+            case "mapped":
+                try {
+                    Files.createDirectories(dir);
+                } catch (IOException e) {
+                    throw new BackingStoreException("Failed to create store directory " + dir, e);
+                }
+                return new BackingStoreMapped(dir.resolve(BackingStoreMapped.MAPPEDFILE));
+            default:
+                throw new IllegalArgumentException("Unknown store: " + name);
+        }
+    }
+
+    /*  Create the access log named by ipam.accesslog: "stderr" shares the stderr log used
+    *   for error messages (configured by the ipam.accesslog.* properties), "off" disables
+    *   access logging, and anything else is a file to append to.
+     */
+    static AsyncLog CreateAccessLog(String target) throws IOException, IllegalArgumentException {
+        Preconditions.checkNotNull(target, "CreateAccessLog: Invalid null reference - target");
+        if (target.equals("off"))
+            return null;
+
+        int capacity = Integer.getInteger(PROP_ACCESSLOGCAPACITY, AsyncLog.DEFAULT_CAPACITY);
+        AsyncLog.Overflow overflow = AsyncLog.Overflow.fromName(
+                System.getProperty(PROP_ACCESSLOGOVERFLOW, DEFAULT_ACCESSLOGOVERFLOW.name()));
+        int sample = Integer.getInteger(PROP_ACCESSLOGSAMPLE, DEFAULT_ACCESSLOGSAMPLE);
+
+        if (target.equals("stderr")) {
+            AsyncLog log = new AsyncLog(new OutputStreamWriter(System.err, StandardCharsets.UTF_8),
+                    capacity, overflow, sample);
+            AsyncLog.install(log);
+            return log;
+        }
+        Writer file = new OutputStreamWriter(new FileOutputStream(target, true), StandardCharsets.UTF_8);
+        AsyncLog log = new AsyncLog(file, capacity, overflow, sample);
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+        return log;
     }
 
     public static void main(String[] args) {
 
         System.out.println("Starting HTTP Server...");
 
-        BackingStore store = new BackingStoreMemory();
-        repo = new IpamRepo(store);
+        if (System.getProperty(PROP_NODELAY) == null)
+            System.setProperty(PROP_NODELAY, "true");
 
-        final Executor multi = Executors.newCachedThreadPool();
         try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(LISTENPORT), 0);
-            server.createContext("/subnets", new IpamServer.SubnetHandler());
-            server.start();
-            System.out.println("HTTP Server Started");
-        } catch (IOException e) {
+            String replication = System.getProperty(PROP_REPLICATION, DEFAULT_REPLICATION);
+            if (!replication.equals("off") && !replication.equals("leader") && !replication.equals("follower"))
+                throw new IllegalArgumentException("Unknown replication role: " + replication);
+
+            // A follower holds a replica with the leader's ids, so its store is always in memory
+            BackingStore store = replication.equals("follower")
+                    ? new BackingStoreConcurrent() : CreateStore(System.getProperty(PROP_STORE, DEFAULT_STORE));
+            if (store instanceof Closeable)
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        ((Closeable) store).close();
+                    } catch (IOException e) {
+                        AsyncLog.shared().error("Failed to close store: " + e.getMessage());
+                    }
+                }));
+            IpamMetrics metrics = Boolean.parseBoolean(System.getProperty(PROP_METRICS, Boolean.toString(DEFAULT_METRICS)))
+                    ? new IpamMetrics() : null;
+            if (replication.equals("leader"))
+                leader = new BackingStoreLeader(store,
+                        Integer.getInteger(PROP_REPLICATIONRETAIN, BackingStoreLeader.DEFAULT_RETAIN));
+            // The replica changes beneath a follower's repo, which a cache would not see
+            long cacheSize = replication.equals("follower") ? 0 : Long.getLong(PROP_CACHE, DEFAULT_CACHE);
+            repo = new IpamRepo(ServedStore(store, leader, cacheSize, metrics));
+            long listingBytes = Long.getLong(PROP_LISTINGCACHE, DEFAULT_LISTINGCACHE);
+            listings = (listingBytes > 0) ? new ListingCache(listingBytes) : null;
+
+            maxLag = Long.getLong(PROP_REPLICATIONMAXLAG, DEFAULT_REPLICATIONMAXLAG);
+            readWait = Long.getLong(PROP_REPLICATIONWAIT, DEFAULT_REPLICATIONWAIT);
+            if (leader != null) {
+                ReplicationServer replicas = new ReplicationServer(leader,
+                        new InetSocketAddress(Integer.getInteger(PROP_REPLICATIONPORT, DEFAULT_REPLICATIONPORT)));
+                replication += " on port " + replicas.getPort();
+            } else if (replication.equals("follower")) {
+                String address = System.getProperty(PROP_REPLICATIONLEADER);
+                if (address == null)
+                    throw new IllegalArgumentException("A follower needs " + PROP_REPLICATIONLEADER + "=host:port");
+                HostAndPort hostPort = HostAndPort.fromString(address).withDefaultPort(DEFAULT_REPLICATIONPORT);
+                follower = new ReplicationFollower(repo, (BackingStoreConcurrent) store,
+                        new InetSocketAddress(hostPort.getHost(), hostPort.getPort()));
+                follower.start();
+                replication += " of " + hostPort;
+            }
+
+            ExecutionMode mode = ExecutionMode.fromName(
+                    System.getProperty(PROP_EXECUTOR, DEFAULT_EXECUTOR.name()));
+            int threads = Integer.getInteger(PROP_THREADS, DEFAULT_THREADS);
+            int backlog = Integer.getInteger(PROP_BACKLOG, DEFAULT_BACKLOG);
+            int port = Integer.getInteger(PROP_PORT, LISTENPORT);
+
+            final Executor multi = mode.newExecutor(threads, Integer.getInteger(PROP_QUEUE, DEFAULT_QUEUE));
+            AsyncLog accessLog = CreateAccessLog(System.getProperty(PROP_ACCESSLOG, DEFAULT_ACCESSLOG));
+            String frontend = System.getProperty(PROP_FRONTEND, DEFAULT_FRONTEND);
+            if (frontend.equals("nio")) {
+                int loops = Integer.getInteger(PROP_NIOLOOPS, DEFAULT_NIOLOOPS);
+                startNioServer(new InetSocketAddress(port), backlog, loops, multi, metrics, accessLog);
+                frontend += " loops " + loops;
+            } else if (frontend.equals("httpserver")) {
+                startServer(new InetSocketAddress(port), backlog, multi, metrics, accessLog);
+            } else {
+                throw new IllegalArgumentException("Unknown front end: " + frontend);
+            }
+            int binaryPort = Integer.getInteger(PROP_BINARYPORT, DEFAULT_BINARYPORT);
+            if (binaryPort > 0)
+                new BinaryServer(repo, new InetSocketAddress(binaryPort),
+                        (metrics != null) ? metrics.route(BINARYROUTE) : null);
+            System.out.println("HTTP Server Started (store " + store.getClass().getSimpleName()
+                    + ", frontend " + frontend + ", binary " + ((binaryPort > 0) ? "port " + binaryPort : "off")
+                    + ", executor " + mode + ", threads " + threads + ", backlog " + backlog
+                    + ", cache " + cacheSize + ", metrics " + ((metrics != null) ? "on" : "off")
+                    + ", replication " + replication + ")");
+        } catch (IOException | IllegalArgumentException | BackingStoreException e) {
             e.printStackTrace();
         }
     }
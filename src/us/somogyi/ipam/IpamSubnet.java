@@ -1,12 +1,10 @@
 package us.somogyi.ipam;
 
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
-import com.google.common.net.InetAddresses;
 import javafx.util.Pair;
 
-
-import java.net.InetAddress;
+import java.math.BigInteger;
+import java.util.Optional;
 
 import static us.somogyi.ipam.IpamSubnet.Family.IPV4;
 import static us.somogyi.ipam.IpamSubnet.Family.IPV6;
@@ -26,61 +24,70 @@ public class IpamSubnet implements Comparable<IpamSubnet> {
     public static final int V6MASKMAX = 128;
     public static final int MASKMIN = 1;
 
-    private final SubnetHolder SubnetInfo;
+    /*  IPV4 and IPV6 compatible representation of a subnet, stored as primitives so that
+    *   comparison, hashing and containment tests are pure arithmetic.  The network number
+    *   is held as a 128 bit value (hi, lo), left aligned: an IPV4 address occupies the top
+    *   32 bits of hi, so bit N of the address is bit N of the 128 bit value for either family.
+     */
+    private final long hi;
+    private final long lo;
+    private final int mask;
+    private final Family family;
+
+    private IpamSubnet (Family family, long hi, long lo, int mask) {
+        this.family = family;
+        this.hi = hi;
+        this.lo = lo;
+        this.mask = mask;
+    }
 
+    // Build directly from primitive fields; used by CidrParser once the text is validated
+    static IpamSubnet fromBits(Family family, long hi, long lo, int mask) {
+        return new IpamSubnet(family, hi, lo, mask);
+    }
 
-    /*  IPV4 and IPV6 compatible representation of a subnet, using InetAddress
-     *   as base storage for network number.
+    /* Build from primitive fields received in binary form (see BinaryProtocol), applying the
+    *  mask rule CidrParser applies to text; empty if the mask is out of range for the family.
      */
-    private class SubnetHolder {
-        final InetAddress subnetId;
-        final int mask;
-        final Family family;
-
-        private SubnetHolder (InetAddress network, int mask) {
-            this.subnetId = network;
-            this.mask = mask;
-            if (this.subnetId.getAddress().length == 4) this.family = IPV4;
-            else this.family = IPV6;
-        }
+    static Optional<IpamSubnet> tryFromBits(Family family, long hi, long lo, int mask) {
+        Preconditions.checkNotNull(family, "tryFromBits: Invalid null reference - family");
 
+        int maskMax = (family == IPV4) ? V4MASKMAX : V6MASKMAX;
+        if (mask < MASKMIN || mask >= maskMax)
+            return Optional.empty();
+        return Optional.of(new IpamSubnet(family, hi, lo, mask));
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            SubnetHolder subnet = (SubnetHolder) o;
-            return mask == subnet.mask &&
-                    Objects.equal(subnetId, subnet.subnetId) &&
-                    family == subnet.family;
-        }
+    /* Protect constructor from invalid invocation (bad cidr)
+    *
+     */
+    public static IpamSubnet fromCidr(String cidr) throws IllegalArgumentException {
+        Preconditions.checkNotNull(cidr, "fromCidr: Invalid null reference - cidr");
 
-        @Override
-        public int hashCode() {
-            return Objects.hashCode(subnetId, mask, family);
-        }
+        IpamSubnet parsed = CidrParser.parse(cidr);
+        if (CidrParser.isError(parsed))
+            throw new IllegalArgumentException(CidrParser.describeError(parsed, cidr));
+        return parsed;
     }
-    // End Subnet private subclass definition
-
-    private IpamSubnet (InetAddress netAddr, int mask) {
 
-        this.SubnetInfo = new SubnetHolder(netAddr, mask);
+    /* Validate and convert a CIDR in a single pass, returning an empty Optional rather than
+    *  throwing if the CIDR is invalid.  Preferred over isValidCIDR() followed by fromCidr().
+     */
+    public static Optional<IpamSubnet> tryFromCidr(String cidr) {
+        Preconditions.checkNotNull(cidr, "tryFromCidr: Invalid null reference - cidr");
 
+        IpamSubnet parsed = CidrParser.parse(cidr);
+        return CidrParser.isError(parsed) ? Optional.empty() : Optional.of(parsed);
     }
 
-    /* Protect constructor from invalid invocation (bad cidr)
-    *
+    /* Parse a bare IPV4 or IPV6 address as a host prefix (/32 or /128), for address
+    *  lookups; empty if the text is not a valid address.  Host prefixes cannot be stored.
      */
-    public static IpamSubnet fromCidr(String cidr) throws IllegalArgumentException {
-        Pair<Boolean, String> valid = isValidCIDR(cidr);
-        if(!valid.getKey())
-            throw new IllegalArgumentException(valid.getValue());
-        else {
-
-            Pair<String, Integer> parsedCidr = parseCIDR(valid.getValue());
-            InetAddress subnetId = InetAddresses.forString(parsedCidr.getKey());
-            return new IpamSubnet(subnetId, parsedCidr.getValue());
-        }
+    public static Optional<IpamSubnet> tryFromAddress(String address) {
+        Preconditions.checkNotNull(address, "tryFromAddress: Invalid null reference - address");
+
+        IpamSubnet parsed = CidrParser.parseAddress(address);
+        return CidrParser.isError(parsed) ? Optional.empty() : Optional.of(parsed);
     }
 
     /*  Returns a Pair value of results and reason for failure (or original cidr string on success)
@@ -90,66 +97,43 @@ public class IpamSubnet implements Comparable<IpamSubnet> {
     public static Pair<Boolean,String> isValidCIDR(String cidr) {
         Preconditions.checkNotNull(cidr, "isValidateSubnet: Invalid null reference - input");
 
-        Pair<String, Integer> parsedCidr;
-
-        try {
-            parsedCidr = parseCIDR ( cidr);
-        } catch (IllegalArgumentException e) {
-            return new Pair(false, e.getMessage());
-        }
+        IpamSubnet parsed = CidrParser.parse(cidr);
+        if (CidrParser.isError(parsed))
+            return new Pair<>(false, CidrParser.describeError(parsed, cidr));
 
-        return new Pair(true, cidr);
+        return new Pair<>(true, cidr);
     }
 
     /* Return network number (string) and network mask (int) as output provided a CIDR
     *  as input.  Validates and throws exception on invalid CIDR spec or format.
      */
     public static Pair<String, Integer> parseCIDR (String cidr) throws IllegalArgumentException {
-        String[] parts;
-        String network;
-        int mask;
-
-        parts = cidr.split("/");
-        if (parts == null || parts.length != 2)
-            throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": invalid format");
-
-        network = parts[0];
-        mask = Integer.valueOf(parts[1]);
-
-
-        if (!InetAddresses.isInetAddress(network))
-            throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": illegal network number");
-
-        int family;
-        switch (InetAddresses.forString(network).getAddress().length) {
-            case 4:
-                family = 4;
-                break;
-            case 16:
-                family = 6;
-                    break;
-            default:
-                throw new IllegalArgumentException("Invalid CIDR Specified" + cidr + ": illegal network number");
-        }
-
-        /* Check for mask size out of range for appropriate address family
-         *  ie, 1 or greater, and <= 32 for V4 and <= 128 for V6
-         */
-        if (mask < MASKMIN ||
-                (family == 4 && mask >= V4MASKMAX) ||
-                (family == 6 && mask >= V6MASKMAX) ) {
-            throw new IllegalArgumentException("Invalid CIDR Specified " + cidr + ": illegal mask length");
-        }
-
-        return new Pair(network, mask);
+        IpamSubnet parsed = fromCidr(cidr);
+        return new Pair<>(cidr.substring(0, cidr.indexOf('/')), parsed.getMask());
     }
 
     public Family getFamily () {
-        return this.SubnetInfo.family;
+        return this.family;
     }
 
+    /* Network number in the same text form as InetAddress.toString(): dotted quad for IPV4,
+    *  and eight uncompressed lower case hex groups for IPV6.
+     */
     public String getSubnetId () {
-        return this.SubnetInfo.subnetId.toString().substring(1); // remove leading slash
+        StringBuilder id = new StringBuilder(39);
+        if (family == IPV4) {
+            for (int shift = 56; shift >= 32; shift -= 8) {
+                id.append((hi >>> shift) & 0xFF);
+                if (shift > 32) id.append('.');
+            }
+        } else {
+            for (int group = 0; group < 8; group++) {
+                long word = (group < 4) ? hi : lo;
+                id.append(Long.toHexString((word >>> (48 - 16 * (group & 3))) & 0xFFFF));
+                if (group < 7) id.append(':');
+            }
+        }
+        return id.toString();
     }
 
     public String getCidr() {
@@ -159,7 +143,7 @@ public class IpamSubnet implements Comparable<IpamSubnet> {
     }
 
     public int getMask() {
-        return this.SubnetInfo.mask;
+        return this.mask;
     }
 
     public String getMaskStr() {
@@ -167,60 +151,119 @@ public class IpamSubnet implements Comparable<IpamSubnet> {
     }
 
     /* Begin compareTo implementation:
-     *  Order on Subnet address first (IPV6 before IPV4), if equal
+     *  Order on family first (IPV4 before IPV6), then on subnet address, and if equal
      *  sort on smaller subnet mask first.  Allows use in ordered collections.
      */
-    /*
-     * LGPL
-     * https://thilosdevblog.wordpress.com/2010/09/15/sorting-ip-addresses-in-java/
-     */
     @Override
     public int compareTo(IpamSubnet o) {
-        byte[] ba1 = this.SubnetInfo.subnetId.getAddress();
-        byte[] ba2 = o.SubnetInfo.subnetId.getAddress();
-
-        // general ordering: ipv4 before ipv6
-        if(ba1.length < ba2.length) return -1;
-        if(ba1.length > ba2.length) return 1;
-
-        // we have 2 ips of the same type, so we have to compare each byte
-        for(int i = 0; i < ba1.length; i++) {
-            int b1 = unsignedByteToInt(ba1[i]);
-            int b2 = unsignedByteToInt(ba2[i]);
-            if(b1 == b2)
-                continue;
-            if(b1 < b2)
-                return -1;
-            else
-                return 1;
-        }
-        Integer mask1 = this.SubnetInfo.mask;
-        Integer mask2 = o.SubnetInfo.mask;
-        if ( mask1 < mask2 )
-            return -1;
-        else if (mask1 > mask2)
-            return 1;
+        if (this.family != o.family)
+            return (this.family == IPV4) ? -1 : 1;
 
-        return 0;
+        int result = Long.compareUnsigned(this.hi, o.hi);
+        if (result == 0)
+            result = Long.compareUnsigned(this.lo, o.lo);
+        if (result == 0)
+            result = Integer.compare(this.mask, o.mask);
 
+        return result;
     }
+    // end compareTo implementation
 
-    private static int unsignedByteToInt(byte b) {
-        return (int) b & 0xFF;
+    /* Bit level access to the network number, used by prefix indexes (SubnetTrie).
+    *  Bits are numbered from the most significant bit of the address (bit 0).
+     */
+    int getWidth() {
+        return (this.family == IPV4) ? V4MASKMAX : V6MASKMAX;
     }
 
-    // end compareTo implementation
+    // Number of addresses in the subnet's block
+    BigInteger getSize() {
+        return BigInteger.ONE.shiftLeft(getWidth() - mask);
+    }
+
+    boolean isBitSet(int index) {
+        return (index < 64)
+                ? (hi << index) < 0
+                : (lo << (index - 64)) < 0;
+    }
+
+    // Number of leading bits shared by the network numbers of two subnets of the same family
+    int matchLength(IpamSubnet o) {
+        long diff = this.hi ^ o.hi;
+        int length = (diff != 0)
+                ? Long.numberOfLeadingZeros(diff)
+                : 64 + Long.numberOfLeadingZeros(this.lo ^ o.lo);
+        return Math.min(length, getWidth());
+    }
+
+    // True if o is the same network as, or lies entirely within, this subnet
+    public boolean contains(IpamSubnet o) {
+        return this.family == o.family
+                && o.mask >= this.mask
+                && matchLength(o) >= this.mask;
+    }
+
+    long getHighBits() {
+        return hi;
+    }
+
+    long getLowBits() {
+        return lo;
+    }
+
+    /* Lowest and highest keys, in compareTo order, of any subnet lying within this one.
+    *  Used to range scan ordered collections of IpamSubnet for contained subnets.
+     */
+    IpamSubnet lowestContained() {
+        return new IpamSubnet(family, hi & networkMask(mask, 0), lo & networkMask(mask, 64), mask);
+    }
+
+    IpamSubnet highestContained() {
+        return new IpamSubnet(family, hi | ~networkMask(mask, 0), lo | ~networkMask(mask, 64), V6MASKMAX);
+    }
+
+    /* The block formed by the first 'length' bits of the network number, e.g. 10.1.2.0/24
+    *  truncated to 16 is 10.1.0.0/16.  When length exceeds the mask this is the first
+    *  /length block within the subnet.
+     */
+    IpamSubnet truncate(int length) {
+        return new IpamSubnet(family, hi & networkMask(length, 0), lo & networkMask(length, 64), length);
+    }
+
+    // The other half of the /(length - 1) block holding truncate(length), ie its buddy
+    IpamSubnet sibling(int length) {
+        int bit = length - 1;
+        return new IpamSubnet(family,
+                (hi & networkMask(length, 0)) ^ ((bit < 64) ? Long.MIN_VALUE >>> bit : 0),
+                (lo & networkMask(length, 64)) ^ ((bit >= 64) ? Long.MIN_VALUE >>> (bit - 64) : 0),
+                length);
+    }
+
+    // Network bit mask for the 64 bit word starting at bit 'offset' of the 128 bit address
+    private static long networkMask(int mask, int offset) {
+        int bits = mask - offset;
+        if (bits <= 0) return 0;
+        if (bits >= 64) return -1L;
+        return -1L << (64 - bits);
+    }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (!(o instanceof IpamSubnet)) return false;
         IpamSubnet that = (IpamSubnet) o;
-        return Objects.equal(SubnetInfo, that.SubnetInfo);
+        return hi == that.hi &&
+                lo == that.lo &&
+                mask == that.mask &&
+                family == that.family;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(SubnetInfo);
+        int result = Long.hashCode(hi);
+        result = 31 * result + Long.hashCode(lo);
+        result = 31 * result + mask;
+        result = 31 * result + family.ordinal();
+        return result;
     }
 }
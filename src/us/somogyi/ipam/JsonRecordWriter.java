@@ -0,0 +1,55 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Streaming JSON serialization of IpamRecords, written incrementally to a Writer rather
+*   than built up as JSONObject / JSONArray trees.  Output matches the org.json form used
+*   by IpamServer.getJsonObjectFromIpamRecord, e.g.
+*       {"cidr":"192.168.24.0/24","id":1,"family":"4"}
+ */
+class JsonRecordWriter {
+
+    private final Writer out;
+
+    JsonRecordWriter(Writer out) {
+        this.out = Preconditions.checkNotNull(out, "JsonRecordWriter: Invalid null reference - out");
+    }
+
+    // Write every remaining record as a JSON array, returning the number of records written
+    int writeArray(Iterator<IpamRecord> records) throws IOException {
+        int count = 0;
+        out.write('[');
+        while (records.hasNext()) {
+            if (count++ > 0) out.write(',');
+            writeRecord(records.next());
+        }
+        out.write(']');
+        return count;
+    }
+
+    void writeRecord(IpamRecord record) throws IOException {
+        out.write("{\"cidr\":");
+        writeString(record.getSubnet().getCidr());
+        out.write(",\"id\":");
+        out.write(Integer.toString(record.getId()));
+        out.write(",\"family\":");
+        writeString(record.getSubnet().getFamily().getAlias());
+        out.write('}');
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') out.write('\\');
+            out.write(c);
+        }
+        out.write('"');
+    }
+}
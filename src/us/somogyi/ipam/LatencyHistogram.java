@@ -0,0 +1,119 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*  Log-linear histogram of non-negative long values (e.g. nanoseconds), in the style of
+*   HdrHistogram: each power of two range is split into SUBCOUNT linear sub-buckets, so a
+*   recorded value is kept to within 1/SUBCOUNT (about 3%) of its true value, over the
+*   whole long range, in a fixed BUCKETS counters.
+*
+*   Recording is allocation free: it increments one counter of one stripe, chosen by
+*   thread, so concurrent recorders rarely contend.  snapshot() merges the stripes into a
+*   Snapshot, and Snapshots of several histograms merge the same way.
+ */
+class LatencyHistogram {
+
+    static final int SUBBITS = 5;
+    static final int SUBCOUNT = 1 << SUBBITS;
+    static final int BUCKETS = (64 - SUBBITS) * SUBCOUNT;
+
+    // Per stripe: BUCKETS counters, then the total count and the sum of recorded values
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int STRIPE = BUCKETS + 2;
+
+    private static final int STRIPES = Math.min(64,
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE);
+
+    void record(long value) {
+        Preconditions.checkArgument(value >= 0, "LatencyHistogram: value must not be negative");
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE;
+        counts.incrementAndGet(base + indexOf(value));
+        counts.incrementAndGet(base + COUNT);
+        counts.addAndGet(base + SUM, value);
+    }
+
+    // Weakly consistent merged copy of every stripe
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * STRIPE;
+            for (int i = 0; i < BUCKETS; i++)
+                snapshot.counts[i] += counts.get(base + i);
+            snapshot.count += counts.get(base + COUNT);
+            snapshot.sum += counts.get(base + SUM);
+        }
+        return snapshot;
+    }
+
+    /* Bucket of a value: values below 2 * SUBCOUNT have a bucket each; above that, bucket
+    *  (shift + 1) * SUBCOUNT + n holds the values whose top SUBBITS + 1 bits are
+    *  SUBCOUNT + n, where shift is the number of lower bits dropped.
+     */
+    static int indexOf(long value) {
+        if (value < SUBCOUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUBBITS;
+        return (shift + 1) * SUBCOUNT + (int) ((value >>> shift) - SUBCOUNT);
+    }
+
+    // Largest value held by a bucket
+    static long highestValue(int index) {
+        int shift = index / SUBCOUNT - 1;
+        if (shift <= 0)
+            return index;
+        long lowest = ((long) (index % SUBCOUNT) + SUBCOUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    static class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+
+        long getCount() {
+            return count;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        // Number of recorded values at most 'value', exact to within the bucket holding it
+        long countAtOrBelow(long value) {
+            if (value < 0)
+                return 0;
+            int last = indexOf(value);
+            long total = 0;
+            for (int i = 0; i <= last; i++)
+                total += counts[i];
+            return total;
+        }
+
+        // Upper bound of the bucket holding the q-th quantile (0 < q <= 1), 0 if empty
+        long valueAtQuantile(double q) {
+            Preconditions.checkArgument(q > 0 && q <= 1, "valueAtQuantile: q must be in (0, 1]");
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return highestValue(i);
+            }
+            return 0;
+        }
+
+        // Add another snapshot's values to this one
+        Snapshot merge(Snapshot other) {
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += other.counts[i];
+            count += other.count;
+            sum += other.sum;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  IdAllocator that leases ids a block at a time from a LeaseSource and hands them out
+*   with a single atomic increment, so allocation costs no lock, no I/O and no round trip
+*   except once per 'blockSize' ids.  Writers sharing one source - stores, shards or
+*   processes - each lease their own blocks, so their ids never collide; ids increase
+*   within a writer and roughly across writers, as blocks are leased in order.
+*
+*   The source makes a lease durable before returning it, so a writer that crashes loses
+*   at most the rest of its block and never reuses an id.
+ */
+public class LeasedIdAllocator implements IdAllocator {
+
+    static final int DEFAULT_BLOCK = 4096;
+
+    // Grants blocks of ids that are never granted again, to any writer
+    public interface LeaseSource {
+        // First id of a fresh block of 'count' ids, none below 'floor'
+        int lease(int count, int floor) throws BackingStoreException;
+    }
+
+    // Ids [start, end), handed out by incrementing next; next may overshoot end
+    private static final class Block {
+        final int start;
+        final int end;
+        final AtomicInteger next;
+
+        Block(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicInteger(start);
+        }
+    }
+
+    private final LeaseSource source;
+    private final int blockSize;
+
+    private volatile Block block = new Block(1, 1);     // empty, so the first allocate leases
+    private volatile int floor = 1;                     // written only under this
+
+    public LeasedIdAllocator(LeaseSource source) {
+        this(source, DEFAULT_BLOCK);
+    }
+
+    public LeasedIdAllocator(LeaseSource source, int blockSize) {
+        Preconditions.checkNotNull(source, "LeasedIdAllocator: Invalid null reference - source");
+        Preconditions.checkArgument(blockSize > 0, "LeasedIdAllocator: blockSize must be positive");
+
+        this.source = source;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int allocate() throws BackingStoreException {
+        while (true) {
+            Block current = block;
+            int id = current.next.getAndIncrement();
+            if (id >= current.start && id < current.end)
+                return id;
+            refill(current);
+        }
+    }
+
+    @Override
+    public void advance(int next) {
+        Block current = block;
+        if (next <= current.next.get() && next <= floor)
+            return;
+
+        synchronized (this) {
+            floor = Math.max(floor, next);
+            current = block;
+            if (next <= current.end)
+                current.next.accumulateAndGet(next, Math::max);
+            else
+                block = new Block(current.end, current.end);    // lease above 'next' on the next allocate
+        }
+    }
+
+    @Override
+    public int peek() {
+        Block current = block;
+        return Math.max(Math.min(current.next.get(), current.end), floor);
+    }
+
+    // Replace 'exhausted' with a fresh lease, unless another thread already has
+    private synchronized void refill(Block exhausted) throws BackingStoreException {
+        if (block != exhausted)
+            return;
+        int start = source.lease(blockSize, Math.max(floor, exhausted.end));
+        block = new Block(start, start + blockSize);
+    }
+}
@@ -0,0 +1,147 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*  Serialized GET listings, keyed by their query parameters, each valid only for the store
+*   revision it was built at (see BackingStore.getRevision).  A poll at an unchanged
+*   revision is answered from the cached bytes, or with 304 Not Modified when the client's
+*   If-None-Match holds the listing's ETag, without touching the store.
+*
+*   ETags combine the revision with an epoch drawn when the cache is created and the
+*   identity of the repo, so a tag issued before a restart never matches after it, even
+*   where the store's revision starts over.  The cache is bounded by the total size of the
+*   cached bodies; a listing larger than the bound is streamed and not cached.
+ */
+class ListingCache {
+
+    static final class Listing {
+        private final IpamRepo repo;
+        private final long revision;
+        private final byte[] body;
+        private final String nextCursor;
+
+        private Listing(IpamRepo repo, long revision, byte[] body, String nextCursor) {
+            this.repo = repo;
+            this.revision = revision;
+            this.body = body;
+            this.nextCursor = nextCursor;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        // Cursor of the next page, or null if the listing was not a full page
+        String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /*  Passes a response body through to the client while keeping a copy, until the copy
+    *   would exceed the cache bound.
+     */
+    static final class Capture extends FilterOutputStream {
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Capture(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            keep(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            keep(b, off, len);
+        }
+
+        // The whole body, or null if it outgrew the bound
+        byte[] toByteArray() {
+            return (copy == null) ? null : copy.toByteArray();
+        }
+
+        private void keep(byte[] b, int off, int len) {
+            if (copy == null)
+                return;
+            if (copy.size() + len > limit)
+                copy = null;
+            else
+                copy.write(b, off, len);
+        }
+    }
+
+    private final Cache<String, Listing> listings;
+    private final long maxBytes;
+    private final String epoch = Long.toHexString(new Random().nextLong() >>> 1);
+
+    ListingCache(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "ListingCache: maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        // one segment, so a single listing may use the whole bound
+        this.listings = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .<String, Listing>weigher((query, listing) -> listing.body.length)
+                .build();
+    }
+
+    // Cache key of a listing query: its parameters, in name order
+    static String key(Map<String, String> parameters) {
+        Preconditions.checkNotNull(parameters, "key: Invalid null reference - parameters");
+        return parameters.isEmpty() ? "" : new TreeMap<>(parameters).toString();
+    }
+
+    // Quoted ETag of any listing of target at revision
+    String etag(IpamRepo target, long revision) {
+        return "\"" + epoch + Integer.toHexString(System.identityHashCode(target))
+                + "-" + Long.toHexString(revision) + "\"";
+    }
+
+    // True if an If-None-Match header value (null if absent) holds etag, or is "*"
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals(etag) || tag.equals("*"))
+                return true;
+        }
+        return false;
+    }
+
+    // The listing cached for query, if it was built from target at revision
+    Listing get(String query, IpamRepo target, long revision) {
+        Listing listing = listings.getIfPresent(query);
+        return (listing != null && listing.repo == target && listing.revision == revision) ? listing : null;
+    }
+
+    // Stream wrapping a response body, to be passed to put() once the body is complete
+    Capture capture(OutputStream body) {
+        return new Capture(body, maxBytes);
+    }
+
+    // Cache a listing captured in full, replacing any listing of an earlier revision
+    void put(String query, IpamRepo target, long revision, Capture capture, String nextCursor) {
+        byte[] body = capture.toByteArray();
+        if (body != null)
+            listings.put(query, new Listing(target, revision, body, nextCursor));
+    }
+}
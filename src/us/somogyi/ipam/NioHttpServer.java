@@ -0,0 +1,1032 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*  Non-blocking HTTP/1.1 front end for IpamServer's handlers, an alternative to HttpServer.
+*   'loops' event loop threads each run a Selector over their share of the connections, the
+*   first also accepting them.  Requests are parsed straight out of read buffers pooled per
+*   loop - an idle connection holds none, nor a response buffer unless a worker is serving
+*   it - and each runs on 'executor' through the same
+*   HttpHandler and Filters as under HttpServer, by way of an HttpExchange adapter.
+*
+*   Connections persist until the client sends "Connection: close", speaks HTTP/1.0 without
+*   keep-alive, or stays idle for IDLETIMEOUT.  Pipelined requests are parsed as they
+*   arrive and served one at a time, in order, so responses go back in request order; the
+*   loop stops reading a connection while MAXPIPELINE of its requests wait.
+*
+*   The worker running a handler writes its response straight to the socket for as long as
+*   the socket takes it, and queues the rest for the loop to write as the socket drains.  A
+*   worker with more than HIGHWATER bytes queued waits, so a slow reader holds a worker
+*   rather than memory.  Headers and the start of the body go out in a single write.
+*
+*   Request bodies must carry Content-Length; chunked request bodies are refused with 501.
+*   Note that with ExecutionMode.FIXED a full queue runs the request on the loop thread,
+*   which stalls that loop's connections until the workers catch up, much as it stalls
+*   HttpServer's dispatcher.
+ */
+class NioHttpServer implements Closeable {
+
+    static final int BUFFERSIZE = 16 * 1024;            // pooled read buffer, and response buffer
+    static final int MAXHEADER = 64 * 1024;             // request line and headers
+    static final int MAXBODY = 16 * 1024 * 1024;
+    static final int MAXPIPELINE = 64;                  // requests waiting per connection
+    static final int HIGHWATER = 256 * 1024;            // response bytes queued per connection
+    static final long IDLETIMEOUT = 60000;              // milliseconds
+
+    private static final int POOLED = 64;               // free read and response buffers kept per loop
+    private static final long SWEEPINTERVAL = 1000;     // milliseconds between idle sweeps
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LASTCHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // A context: the handler for a path prefix, with its filters
+    private static final class Route {
+        final HttpHandler handler;
+        final List<Filter> filters;
+
+        Route(HttpHandler handler, List<Filter> filters) {
+            this.handler = handler;
+            this.filters = filters;
+        }
+    }
+
+    // A parsed request, or, with a non-zero error, a request refused with that status
+    private static final class Request {
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers headers;
+        final int length;
+        final boolean keepAlive;
+        final boolean expectContinue;
+        final int error;
+        final String message;
+        byte[] body;
+
+        Request(String method, URI uri, String protocol, Headers headers, int length,
+                boolean keepAlive, boolean expectContinue) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+            this.length = length;
+            this.keepAlive = keepAlive;
+            this.expectContinue = expectContinue;
+            this.error = 0;
+            this.message = null;
+        }
+
+        Request(int error, String message) {
+            this.method = "";
+            this.uri = URI.create("/");
+            this.protocol = "HTTP/1.1";
+            this.headers = new Headers();
+            this.length = 0;
+            this.keepAlive = false;
+            this.expectContinue = false;
+            this.error = error;
+            this.message = message;
+            this.body = new byte[0];
+        }
+    }
+
+    private final ServerSocketChannel listener;
+    private final Loop[] loops;
+    private final Executor executor;
+    private final Map<String, Route> routes = new HashMap<>();
+    private volatile boolean closed;
+    private int nextLoop;           // accepting loop only
+
+    NioHttpServer(InetSocketAddress address, int backlog, int loops, Executor executor) throws IOException {
+        Preconditions.checkNotNull(address, "NioHttpServer: Invalid null reference - address");
+        Preconditions.checkNotNull(executor, "NioHttpServer: Invalid null reference - executor");
+        Preconditions.checkArgument(loops > 0, "NioHttpServer: loops must be positive");
+
+        this.executor = executor;
+        this.listener = ServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(address, backlog);
+        listener.configureBlocking(false);
+
+        this.loops = new Loop[loops];
+        for (int i = 0; i < loops; i++)
+            this.loops[i] = new Loop(i);
+        listener.register(this.loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Serve requests for paths starting with 'path' with 'handler'; call before start()
+    void createContext(String path, HttpHandler handler, List<Filter> filters) {
+        Preconditions.checkNotNull(path, "createContext: Invalid null reference - path");
+        Preconditions.checkNotNull(handler, "createContext: Invalid null reference - handler");
+        Preconditions.checkNotNull(filters, "createContext: Invalid null reference - filters");
+        routes.put(path, new Route(handler, new ArrayList<>(filters)));
+    }
+
+    void start() {
+        for (Loop loop : loops)
+            loop.thread.start();
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) listener.getLocalAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (Loop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    // Longest context path the request path starts with, as HttpServer matches contexts
+    private Route route(String path) {
+        String best = null;
+        for (String context : routes.keySet()) {
+            if (path.startsWith(context) && (best == null || context.length() > best.length()))
+                best = context;
+        }
+        return (best == null) ? null : routes.get(best);
+    }
+
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+                if (channel == null)
+                    return;
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                if (!closed)
+                    AsyncLog.shared().warn("NioHttpServer failed to accept connection: " + e.getMessage());
+                return;
+            }
+            Loop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(() -> loop.register(channel));
+        }
+    }
+
+    // A worker's response buffer, and the buffer a chunk is framed in
+    private static final class ResponseBuffers {
+        final byte[] buffer = new byte[BUFFERSIZE];
+        final byte[] frame = new byte[BUFFERSIZE + 32];
+    }
+
+    /*  One event loop: a selector over its connections, tasks handed to it by other threads,
+    *   its pool of free read buffers, and a pool of response buffers shared with the workers
+    *   serving its connections.
+     */
+    private final class Loop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final Queue<ResponseBuffers> freeResponses = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger freeResponseCount = new AtomicInteger();
+        private long lastSweep = System.currentTimeMillis();
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "ipam-nio-" + index);
+        }
+
+        // Run 'task' on the loop thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failed
+                }
+            }
+        }
+
+        ByteBuffer borrow() {
+            ByteBuffer buffer = free.poll();
+            return (buffer != null) ? buffer : ByteBuffer.allocate(BUFFERSIZE);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (buffer.capacity() == BUFFERSIZE && free.size() < POOLED) {
+                buffer.clear();
+                free.push(buffer);
+            }
+        }
+
+        // Any thread
+        ResponseBuffers borrowResponse() {
+            ResponseBuffers buffers = freeResponses.poll();
+            if (buffers == null)
+                return new ResponseBuffers();
+            freeResponseCount.decrementAndGet();
+            return buffers;
+        }
+
+        void releaseResponse(ResponseBuffers buffers) {
+            if (freeResponseCount.incrementAndGet() <= POOLED)
+                freeResponses.add(buffers);
+            else
+                freeResponseCount.decrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select(SWEEPINTERVAL);
+                } catch (IOException e) {
+                    AsyncLog.shared().error("NioHttpServer selector failed: " + e.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isWritable())
+                        connection.onWritable();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEPINTERVAL) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection)
+                            ((Connection) key.attachment()).closeIfIdle(now);
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection)
+                    ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // shutting down
+            }
+        }
+    }
+
+    /*  One client connection.  Reading and parsing belong to the loop thread; the queue of
+    *   waiting requests and the queue of unwritten response bytes are shared with the worker
+    *   serving the connection, and guarded by this.
+     */
+    private final class Connection {
+
+        final Loop loop;
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        final InetSocketAddress local;
+        SelectionKey key;
+
+        // Loop thread only
+        private ByteBuffer in;          // unparsed bytes, in write mode; null when there are none
+        private Request partial;        // request whose body is still arriving
+        private boolean stopped;        // no further requests are read
+
+        // Worker serving the connection only, borrowed from the loop while it serves
+        ResponseBuffers response;
+
+        // Guarded by this
+        private final ArrayDeque<Request> pending = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private int queued;
+        private boolean serving;
+        private boolean readPaused;
+        private boolean endOfInput;
+        private boolean closing;
+        private boolean closed;
+
+        private volatile long lastActive = System.currentTimeMillis();
+
+        Connection(Loop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.local = (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        void onReadable() {
+            ByteBuffer buffer = (in != null) ? in : loop.borrow();
+            in = null;
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                loop.release(buffer);
+                close();
+                return;
+            }
+            if (read < 0) {
+                loop.release(buffer);
+                endOfInput();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+
+            buffer.flip();
+            Request request;
+            while (!stopped && (request = parse(buffer)) != null) {
+                if (request.error != 0 || !request.keepAlive)
+                    stopReading();
+                enqueue(request);
+            }
+
+            if (stopped || !buffer.hasRemaining()) {
+                loop.release(buffer);
+                return;
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // Full: grow to hold the pending body, or headers up to MAXHEADER
+                int want = (partial != null) ? partial.length : MAXHEADER;
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(want, buffer.capacity() * 2));
+                buffer.flip();
+                larger.put(buffer);
+                loop.release(buffer);
+                buffer = larger;
+            }
+            in = buffer;
+        }
+
+        // Parse the next request from 'buffer', in read mode, or return null if it needs more bytes
+        private Request parse(ByteBuffer buffer) {
+            if (partial == null) {
+                int end = headerEnd(buffer);
+                if (end < 0)
+                    return (buffer.remaining() >= MAXHEADER) ? new Request(431, "Request header too large") : null;
+                String head = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        end - buffer.position(), StandardCharsets.ISO_8859_1);
+                buffer.position(end + 4);
+                Request request = parseHead(head);
+                if (request.error != 0 || request.length == 0) {
+                    request.body = new byte[0];
+                    return request;
+                }
+                partial = request;
+                if (request.expectContinue && buffer.remaining() < request.length)
+                    interim(CONTINUE);
+            }
+            if (buffer.remaining() < partial.length)
+                return null;
+
+            Request request = partial;
+            partial = null;
+            request.body = new byte[request.length];
+            buffer.get(request.body);
+            return request;
+        }
+
+        private Request parseHead(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1."))
+                return new Request(400, "Invalid request line");
+
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                return new Request(400, "Invalid request target: " + e.getMessage());
+            }
+
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    return new Request(400, "Invalid header line");
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            if (headers.containsKey("Transfer-Encoding"))
+                return new Request(501, "Chunked request bodies are not supported; send Content-Length");
+
+            int length = 0;
+            String contentLength = headers.getFirst("Content-Length");
+            if (contentLength != null) {
+                try {
+                    length = Integer.parseInt(contentLength);
+                } catch (NumberFormatException e) {
+                    return new Request(400, "Invalid Content-Length: " + contentLength);
+                }
+                if (length < 0)
+                    return new Request(400, "Invalid Content-Length: " + contentLength);
+                if (length > MAXBODY)
+                    return new Request(413, "Request body too large");
+            }
+
+            String connection = headers.getFirst("Connection");
+            boolean keepAlive = requestLine[2].equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+            return new Request(requestLine[0], uri, requestLine[2], headers, length, keepAlive,
+                    "100-continue".equalsIgnoreCase(headers.getFirst("Expect")));
+        }
+
+        // Queue a parsed request, starting a worker if none is serving the connection
+        private void enqueue(Request request) {
+            boolean dispatch;
+            synchronized (this) {
+                if (closed)
+                    return;
+                pending.add(request);
+                dispatch = !serving;
+                serving = true;
+                if (pending.size() >= MAXPIPELINE && !readPaused && !stopped) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (!dispatch)
+                return;
+            try {
+                executor.execute(this::serve);
+            } catch (RejectedExecutionException e) {
+                AsyncLog.shared().warn("NioHttpServer: executor rejected request from " + remote);
+                close();
+            }
+        }
+
+        private void stopReading() {
+            stopped = true;
+            if (key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // The client will send nothing more: close once every request it sent is answered
+        private void endOfInput() {
+            stopReading();
+            boolean idle;
+            synchronized (this) {
+                endOfInput = true;
+                idle = !serving;
+            }
+            if (idle)
+                shutdown();
+        }
+
+        // Worker: serve waiting requests in order until none is left
+        void serve() {
+            response = loop.borrowResponse();
+            try {
+                serveWaiting();
+            } finally {
+                loop.releaseResponse(response);
+                response = null;
+            }
+        }
+
+        private void serveWaiting() {
+            while (true) {
+                Request request;
+                boolean resume = false;
+                synchronized (this) {
+                    request = closed ? null : pending.poll();
+                    if (request == null) {
+                        serving = false;
+                        if (endOfInput && !closed)
+                            break;
+                        return;
+                    }
+                    if (readPaused && pending.size() <= MAXPIPELINE / 2) {
+                        readPaused = false;
+                        resume = true;
+                    }
+                }
+                if (resume)
+                    loop.execute(this::resumeReading);
+
+                boolean keep = respond(request);
+                lastActive = System.currentTimeMillis();
+                if (!keep)
+                    break;
+            }
+            shutdown();
+        }
+
+        private void resumeReading() {
+            if (!stopped && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        // Run the request's handler; true if the connection may serve another request
+        private boolean respond(Request request) {
+            Exchange exchange = new Exchange(this, request);
+            try {
+                if (request.error != 0) {
+                    exchange.sendError(request.error, request.message);
+                } else {
+                    Route route = route(request.uri.getPath());
+                    if (route == null)
+                        exchange.sendError(IpamServer.CODE_NOTFOUND, "No context found for request");
+                    else
+                        new Filter.Chain(route.filters, route.handler).doFilter(exchange);
+                }
+            } catch (Exception e) {
+                AsyncLog.shared().error("NioHttpServer caught exception: " + Throwables.getStackTraceAsString(e));
+            }
+            return exchange.finish() && request.keepAlive;
+        }
+
+        // Worker: write response bytes, queueing what the socket does not take now
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Connection closed");
+                ByteBuffer data = ByteBuffer.wrap(bytes, offset, length);
+                if (outbound.isEmpty()) {
+                    try {
+                        channel.write(data);
+                    } catch (IOException e) {
+                        close();
+                        throw e;
+                    }
+                }
+                if (!data.hasRemaining())
+                    return;
+
+                ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data).flip();
+                if (outbound.isEmpty())
+                    loop.execute(this::wantWrite);
+                outbound.add(copy);
+                queued += copy.remaining();
+                while (queued > HIGHWATER && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted writing response");
+                    }
+                }
+                if (closed)
+                    throw new IOException("Connection closed");
+            }
+        }
+
+        // Loop: an interim response ahead of the final one, only while nothing else is being sent
+        private synchronized void interim(byte[] bytes) {
+            if (serving || !outbound.isEmpty() || closed)
+                return;
+            try {
+                ByteBuffer data = ByteBuffer.wrap(bytes);
+                channel.write(data);
+                if (data.hasRemaining()) {
+                    outbound.add(data);
+                    queued += data.remaining();
+                    wantWrite();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private synchronized void wantWrite() {
+            if (!outbound.isEmpty() && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        synchronized void onWritable() {
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer head = outbound.peek();
+                    queued -= channel.write(head);
+                    if (head.hasRemaining())
+                        break;
+                    outbound.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (outbound.isEmpty()) {
+                if (key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closing)
+                    close();
+            }
+            notifyAll();
+        }
+
+        // Close once the queued response bytes are written
+        synchronized void shutdown() {
+            closing = true;
+            if (outbound.isEmpty())
+                close();
+        }
+
+        void closeIfIdle(long now) {
+            synchronized (this) {
+                if (serving || !outbound.isEmpty() || now - lastActive < IDLETIMEOUT)
+                    return;
+            }
+            close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();
+            }
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already closed by the client
+            }
+        }
+    }
+
+    /*  HttpExchange over a parsed request, so HttpServer's handlers and filters run unchanged.
+    *   sendResponseHeaders follows HttpServer: a positive length is sent as Content-Length,
+    *   0 selects chunked encoding and -1 no body.
+     */
+    private static final class Exchange extends HttpExchange {
+
+        private final Connection connection;
+        private final Request request;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final Body body;
+        private InputStream in;
+        private OutputStream out;
+        private int code = -1;
+
+        Exchange(Connection connection, Request request) {
+            this.connection = connection;
+            this.request = request;
+            this.body = new Body(connection);
+            this.in = new ByteArrayInputStream(request.body);
+            this.out = body;
+        }
+
+        void sendError(int code, String message) throws IOException {
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            responseHeaders.set("Content-Type", "text/plain");
+            sendResponseHeaders(code, text.length);
+            body.write(text);
+            body.close();
+        }
+
+        // Complete the response once the handler has returned; true if it was sent whole
+        boolean finish() {
+            try {
+                if (code < 0)
+                    sendResponseHeaders(IpamServer.CODE_SERVERERRROR, IpamServer.NOBODY);
+                body.close();
+                return body.isComplete();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return request.headers;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return request.uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return request.method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+                out.close();
+            } catch (IOException e) {
+                AsyncLog.shared().warn("NioHttpServer failed to close exchange: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return out;
+        }
+
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            if (this.code >= 0)
+                throw new IOException("Response headers already sent");
+            this.code = code;
+
+            boolean noBody = length < 0 || code == IpamServer.CODE_NOTMODIFIED || code == 204;
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+            head.append("Date: ").append(HttpDate.now()).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue())
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+            if (noBody) {
+                if (code != IpamServer.CODE_NOTMODIFIED && code != 204)
+                    head.append("Content-Length: 0\r\n");
+            } else if (length == 0) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            }
+            if (!request.keepAlive)
+                head.append("Connection: close\r\n");
+            head.append("\r\n");
+            body.start(head.toString().getBytes(StandardCharsets.ISO_8859_1), !noBody && length == 0, noBody ? 0 : length);
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return connection.remote;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return connection.local;
+        }
+
+        @Override
+        public String getProtocol() {
+            return request.protocol;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null)
+                in = i;
+            if (o != null)
+                out = o;
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+
+    /*  Response stream: buffers the headers and body in the response buffer the worker
+    *   borrowed to serve the connection, framing the body as chunks when its length was not
+    *   given.  A fixed length body written short leaves the response incomplete, and the
+    *   connection is closed.
+     */
+    private static final class Body extends OutputStream {
+
+        private final Connection connection;
+        private final byte[] buffer;
+        private int count;
+        private int headerEnd;          // buffer[0, headerEnd) is the unframed header
+        private boolean started;
+        private boolean chunked;
+        private long remaining;         // bytes still due of a fixed length body
+        private boolean closed;
+        private boolean failed;
+
+        Body(Connection connection) {
+            this.connection = connection;
+            this.buffer = connection.response.buffer;
+        }
+
+        void start(byte[] header, boolean chunked, long length) throws IOException {
+            this.started = true;
+            this.chunked = chunked;
+            this.remaining = length;
+            if (header.length > buffer.length) {
+                connection.write(header, 0, header.length);
+            } else {
+                System.arraycopy(header, 0, buffer, 0, header.length);
+                count = header.length;
+                headerEnd = count;
+            }
+        }
+
+        boolean isComplete() {
+            return closed && !failed && remaining == 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!started || closed)
+                throw new IOException(started ? "Response body closed" : "Response headers not sent");
+            if (length == 0)
+                return;
+            if (!chunked) {
+                if (length > remaining) {
+                    failed = true;
+                    throw new IOException("Response body longer than its Content-Length");
+                }
+                remaining -= length;
+            }
+            if (length > buffer.length - count) {
+                flushBuffer();
+                if (!chunked && length > buffer.length) {
+                    connection.write(bytes, offset, length);    // large fixed length body: no copy
+                    return;
+                }
+            }
+            while (length > 0) {
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+                if (count == buffer.length)
+                    flushBuffer();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (started && !closed)
+                flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            if (!started)
+                return;
+            if (remaining > 0)
+                failed = true;
+            flushBuffer(chunked);
+        }
+
+        private void flushBuffer() throws IOException {
+            flushBuffer(false);
+        }
+
+        // Write the buffer, as a chunk if chunked, ending the body if 'end'
+        private void flushBuffer(boolean end) throws IOException {
+            int bodyBytes = count - headerEnd;
+            if (!chunked) {
+                if (count > 0)
+                    connection.write(buffer, 0, count);
+            } else {
+                byte[] frame = connection.response.frame;
+                int n = 0;
+                System.arraycopy(buffer, 0, frame, n, headerEnd);
+                n += headerEnd;
+                if (bodyBytes > 0) {
+                    byte[] size = Integer.toHexString(bodyBytes).getBytes(StandardCharsets.US_ASCII);
+                    System.arraycopy(size, 0, frame, n, size.length);
+                    n += size.length;
+                    frame[n++] = CRLF[0];
+                    frame[n++] = CRLF[1];
+                    System.arraycopy(buffer, headerEnd, frame, n, bodyBytes);
+                    n += bodyBytes;
+                    frame[n++] = CRLF[0];
+                    frame[n++] = CRLF[1];
+                }
+                if (end && n + LASTCHUNK.length <= frame.length) {
+                    System.arraycopy(LASTCHUNK, 0, frame, n, LASTCHUNK.length);
+                    n += LASTCHUNK.length;
+                    end = false;
+                }
+                if (n > 0)
+                    connection.write(frame, 0, n);
+                if (end)
+                    connection.write(LASTCHUNK, 0, LASTCHUNK.length);
+            }
+            count = 0;
+            headerEnd = 0;
+        }
+    }
+
+    // Offset of the "\r\n\r\n" ending the header in 'buffer', in read mode, or -1
+    private static int headerEnd(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int base = buffer.arrayOffset();
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (bytes[base + i] == '\r' && bytes[base + i + 1] == '\n'
+                    && bytes[base + i + 2] == '\r' && bytes[base + i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 413: return "Payload Too Large";
+            case 421: return "Misdirected Request";
+            case 422: return "Unprocessable Entity";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "";
+        }
+    }
+
+    // The Date header value, formatted at most once a second
+    private static final class HttpDate {
+        private static volatile long second;
+        private static volatile String text;
+
+        static String now() {
+            long current = System.currentTimeMillis() / 1000;
+            String cached = text;
+            if (cached == null || current != second) {
+                cached = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+                text = cached;
+                second = current;
+            }
+            return cached;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+/*  Follows a replication leader (see ReplicationServer): connects over TCP, applies the
+*  leader's changes in order to a local BackingStoreConcurrent, with the leader's ids, and
+*  keeps the repo's prefix index in step, so the local repo serves reads while writes go
+*  to the leader.  A lost connection is retried, with backoff, from the last change
+*  applied.
+*
+*  Progress is tracked two ways: the sequence number of the last change applied, which
+*  a client that wrote to the leader can wait for (read-your-writes, see awaitApplied),
+*  and staleness, the time since the follower last held every change the leader had
+*  logged, which bounds how out of date a read may be.
+ */
+class ReplicationFollower implements Closeable {
+
+    private static final long RECONNECTMIN = 100;      // milliseconds
+    private static final long RECONNECTMAX = 5000;
+    // A leader silent for this long, despite its heartbeats, is taken to be gone
+    private static final int READTIMEOUT = (int) (10 * ReplicationServer.DEFAULT_HEARTBEAT);
+
+    private final IpamRepo repo;
+    private final BackingStoreConcurrent store;
+    private final InetSocketAddress leader;
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    // Guarded by this: epoch and sequence number of the last change applied
+    private long epoch;
+    private long applied;
+    private long caughtUpNanos;
+    private boolean caughtUp;
+
+    ReplicationFollower(IpamRepo repo, BackingStoreConcurrent store, InetSocketAddress leader) {
+        this.repo = Preconditions.checkNotNull(repo, "ReplicationFollower: Invalid null reference - repo");
+        this.store = Preconditions.checkNotNull(store, "ReplicationFollower: Invalid null reference - store");
+        this.leader = Preconditions.checkNotNull(leader, "ReplicationFollower: Invalid null reference - leader");
+        this.thread = new Thread(this::follow, "ipam-follower");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    InetSocketAddress getLeader() {
+        return leader;
+    }
+
+    // Sequence number of the last change applied, in the leader's current epoch
+    synchronized long getApplied() {
+        return applied;
+    }
+
+    // Milliseconds since the follower last held every change logged by the leader, 0 if it does now
+    synchronized long getStaleness() {
+        if (caughtUp)
+            return 0;
+        if (caughtUpNanos == 0)
+            return Long.MAX_VALUE;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpNanos);
+    }
+
+    // Wait for up to 'timeout' until the change 'sequence' has been applied
+    synchronized boolean awaitApplied(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (applied < sequence && (remaining = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        return applied >= sequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        Socket current = socket;
+        if (current != null)
+            current.close();
+    }
+
+    private void follow() {
+        long backoff = RECONNECTMIN;
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(leader);
+                // With the leader down, a connect to a local port can meet itself (TCP simultaneous open)
+                if (connection.getLocalSocketAddress().equals(connection.getRemoteSocketAddress()))
+                    throw new IOException("Connected to itself at " + leader);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(READTIMEOUT);
+                backoff = RECONNECTMIN;
+                session(new DataInputStream(new BufferedInputStream(connection.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(connection.getOutputStream())));
+            } catch (IOException e) {
+                if (!closed)
+                    AsyncLog.shared().warn("Replication from " + leader + " interrupted: " + e.getMessage());
+            }
+            setCaughtUp(false);
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, RECONNECTMAX);
+        }
+    }
+
+    // Apply frames from one connection until it fails
+    private void session(DataInputStream in, DataOutputStream out) throws IOException {
+        synchronized (this) {
+            out.writeLong(ReplicationServer.MAGIC);
+            out.writeLong(epoch);
+            out.writeLong(applied);
+        }
+        out.flush();
+
+        if (in.readLong() != ReplicationServer.MAGIC)
+            throw new IOException("Not a replication leader");
+        long leaderEpoch = in.readLong();
+        AsyncLog.shared().info("Following " + leader + " from change " + getApplied());
+
+        Set<IpamSubnet> snapshot = null;
+        while (!closed) {
+            byte type = in.readByte();
+            long sequence = in.readLong();
+            long head = in.readLong();
+            int id = in.readInt();
+            int family = in.readByte();
+            long hi = in.readLong();
+            long lo = in.readLong();
+            int mask = in.readByte() & 0xFF;
+
+            switch (type) {
+                case ReplicationServer.PUT:
+                case ReplicationServer.DELETE:
+                case ReplicationServer.SNAPSHOT:
+                    if (family < 0 || family >= IpamSubnet.Family.values().length)
+                        throw new IOException("Invalid family " + family + " in change " + sequence);
+                    IpamSubnet net = IpamSubnet.fromBits(IpamSubnet.Family.values()[family], hi, lo, mask);
+                    if (type == ReplicationServer.DELETE) {
+                        store.unload(net, id);
+                    } else {
+                        store.load(net, id);
+                        if (snapshot != null)
+                            snapshot.add(net);
+                    }
+                    repo.ApplyReplicated(net, store.querySubnet(net));
+                    if (type != ReplicationServer.SNAPSHOT)
+                        advance(leaderEpoch, sequence, head);
+                    break;
+                case ReplicationServer.SNAPSHOT_BEGIN:
+                    setCaughtUp(false);
+                    snapshot = new HashSet<>();
+                    break;
+                case ReplicationServer.SNAPSHOT_END:
+                    if (snapshot == null)
+                        throw new IOException("Snapshot end without a beginning");
+                    for (IpamRecord record : store.queryAllSubnets()) {
+                        if (!snapshot.contains(record.getSubnet())) {
+                            store.unload(record.getSubnet(), record.getId());
+                            repo.ApplyReplicated(record.getSubnet(), Optional.empty());
+                        }
+                    }
+                    snapshot = null;
+                    resynchronized(leaderEpoch, sequence, head);
+                    break;
+                case ReplicationServer.HEARTBEAT:
+                    advance(leaderEpoch, sequence, head);
+                    break;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        }
+    }
+
+    private synchronized void advance(long leaderEpoch, long sequence, long head) {
+        if (leaderEpoch != epoch)
+            return;     // still resynchronizing
+        applied = Math.max(applied, sequence);
+        setCaughtUp(applied >= head);
+        notifyAll();
+    }
+
+    // A snapshot replaced the local state: start over at the leader's sequence number
+    private synchronized void resynchronized(long leaderEpoch, long sequence, long head) {
+        epoch = leaderEpoch;
+        applied = sequence;
+        setCaughtUp(applied >= head);
+        notifyAll();
+    }
+
+    // Staleness counts from the last moment the follower was caught up
+    private synchronized void setCaughtUp(boolean now) {
+        if (caughtUp || now)
+            caughtUpNanos = System.nanoTime();
+        caughtUp = now;
+    }
+}
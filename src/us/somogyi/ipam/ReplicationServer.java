@@ -0,0 +1,198 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStoreLeader.Change;
+
+/*  Streams the change log of a BackingStoreLeader to followers over TCP, one thread per
+*   connected follower (see ReplicationFollower for the other end).
+*
+*   Protocol, all numbers big endian:
+*       follower -> leader  magic(8) epoch(8) applied(8)
+*       leader -> follower  magic(8) epoch(8), then frames until either side closes
+*       frame               type(1) sequence(8) head(8) id(4) family(1) hi(8) lo(8) mask(1)
+*
+*   A follower sends the epoch and sequence number of the last change it applied (0 and 0
+*   when it has none).  If the leader still holds every later change of that epoch it
+*   streams them from there; otherwise it sends a snapshot - SNAPSHOT_BEGIN, a SNAPSHOT
+*   frame per stored record, and SNAPSHOT_END - and streams on from the sequence number
+*   the snapshot began at.  The snapshot is taken without stopping writers, so it may
+*   already hold some of the changes streamed after it; applying a change twice leaves
+*   the same state, so the follower converges.
+*
+*   Every frame carries 'head', the leader's last sequence number when it was sent, so a
+*   follower knows whether it has caught up.  An idle leader sends a HEARTBEAT every
+*   'heartbeat' milliseconds, which also finds followers that have gone away.
+ */
+class ReplicationServer implements Closeable {
+
+    static final long MAGIC = 0x4950414d5245504cL;     // "IPAMREPL"
+    static final int FRAME = 39;
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte SNAPSHOT_BEGIN = 3;
+    static final byte SNAPSHOT = 4;
+    static final byte SNAPSHOT_END = 5;
+    static final byte HEARTBEAT = 6;
+
+    static final long DEFAULT_HEARTBEAT = 200;        // milliseconds
+
+    private static final int BATCH = 1024;            // changes taken from the log at a time
+    private static final int BUFFER = 64 * 1024;
+
+    private final BackingStoreLeader leader;
+    private final long heartbeat;
+    private final ServerSocket listener;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    ReplicationServer(BackingStoreLeader leader, InetSocketAddress address) throws IOException {
+        this(leader, address, DEFAULT_HEARTBEAT);
+    }
+
+    ReplicationServer(BackingStoreLeader leader, InetSocketAddress address, long heartbeat) throws IOException {
+        this.leader = Preconditions.checkNotNull(leader, "ReplicationServer: Invalid null reference - leader");
+        Preconditions.checkNotNull(address, "ReplicationServer: Invalid null reference - address");
+        Preconditions.checkArgument(heartbeat > 0, "ReplicationServer: heartbeat must be positive");
+
+        this.heartbeat = heartbeat;
+        this.listener = new ServerSocket();
+        listener.bind(address);
+        daemon(this::accept, "ipam-replication").start();
+    }
+
+    int getPort() {
+        return listener.getLocalPort();
+    }
+
+    int getFollowerCount() {
+        return followers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (Socket follower : followers)
+            follower.close();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                followers.add(socket);
+                daemon(() -> serve(socket), "ipam-replica-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!closed)
+                    AsyncLog.shared().warn("ReplicationServer failed to accept follower: " + e.getMessage());
+            }
+        }
+    }
+
+    // Stream changes to one follower until it disconnects or the server closes
+    private void serve(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER))) {
+            if (in.readLong() != MAGIC)
+                throw new IOException("Not a replication follower");
+            long epoch = in.readLong();
+            long applied = in.readLong();
+
+            out.writeLong(MAGIC);
+            out.writeLong(leader.getEpoch());
+
+            long sent = (epoch == leader.getEpoch() && applied >= 0 && applied <= leader.getSequence()
+                    && leader.changesAfter(applied, 0) != null) ? applied : snapshot(out);
+            AsyncLog.shared().info("Follower " + socket.getRemoteSocketAddress() + " streaming from change " + sent);
+
+            while (!closed) {
+                List<Change> changes = leader.changesAfter(sent, BATCH);
+                if (changes == null) {
+                    sent = snapshot(out);       // fell behind the retained log
+                    continue;
+                }
+                if (changes.isEmpty()) {
+                    long head = leader.awaitChange(sent, heartbeat, TimeUnit.MILLISECONDS);
+                    if (head == sent) {
+                        writeFrame(out, HEARTBEAT, sent, head, null);
+                        out.flush();
+                    }
+                    continue;
+                }
+
+                long head = leader.getSequence();
+                for (Change change : changes)
+                    writeFrame(out, change.isDeleted() ? DELETE : PUT, change.getSequence(), head, change.getRecord());
+                sent = changes.get(changes.size() - 1).getSequence();
+                out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            if (!closed)
+                AsyncLog.shared().info("Follower " + socket.getRemoteSocketAddress() + " disconnected");
+        } catch (IOException | BackingStoreException e) {
+            AsyncLog.shared().warn("Replication to " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closing
+            }
+        }
+    }
+
+    // Send every stored record, returning the sequence number the snapshot began at
+    private long snapshot(DataOutputStream out) throws IOException, BackingStoreException {
+        long start = leader.getSequence();
+        writeFrame(out, SNAPSHOT_BEGIN, start, start, null);
+        Iterator<IpamRecord> records = leader.iterateSubnets(null);
+        while (records.hasNext())
+            writeFrame(out, SNAPSHOT, start, start, records.next());
+        writeFrame(out, SNAPSHOT_END, start, leader.getSequence(), null);
+        out.flush();
+        return start;
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, long sequence, long head, IpamRecord record) throws IOException {
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(head);
+        if (record == null) {
+            out.writeInt(0);
+            out.writeByte(0);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeByte(0);
+        } else {
+            IpamSubnet net = record.getSubnet();
+            out.writeInt(record.getId());
+            out.writeByte(net.getFamily().ordinal());
+            out.writeLong(net.getHighBits());
+            out.writeLong(net.getLowBits());
+            out.writeByte(net.getMask());
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,206 @@
+package us.somogyi.ipam;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStore.SortOrder;
+import static us.somogyi.ipam.BackingStore.filterSpec;
+
+/*  Secondary indexes over a subnet -> id store, used to answer filterSpec queries:
+*   byId orders records by id (id lookup and minid / maxid ranges), byNetwork orders
+*   subnets by address (network containment ranges), and byFamily / byMask bucket
+*   subnets by family and mask length.
+*
+*   A plain index must be guarded by the owning store's lock; a concurrent index may be
+*   read while it is being updated, so readers must confirm candidates against the
+*   primary subnet -> id map.
+ */
+class SecondaryIndex {
+
+    private final boolean concurrent;
+    private final NavigableMap<Integer, IpamSubnet> byId;
+    private final NavigableSet<IpamSubnet> byNetwork;
+    private final Map<IpamSubnet.Family, Set<IpamSubnet>> byFamily;
+    private final Map<Integer, Set<IpamSubnet>> byMask;
+
+    SecondaryIndex(boolean concurrent) {
+        this.concurrent = concurrent;
+        this.byId = concurrent ? new ConcurrentSkipListMap<>() : new TreeMap<>();
+        this.byNetwork = concurrent ? new ConcurrentSkipListSet<>() : new TreeSet<>();
+        this.byMask = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+        this.byFamily = new EnumMap<>(IpamSubnet.Family.class);
+        for (IpamSubnet.Family family : IpamSubnet.Family.values())
+            byFamily.put(family, newSet());
+    }
+
+    void add(IpamSubnet net, Integer id) {
+        byId.put(id, net);
+        byNetwork.add(net);
+        byFamily.get(net.getFamily()).add(net);
+        byMask.computeIfAbsent(net.getMask(), mask -> newSet()).add(net);
+    }
+
+    void remove(IpamSubnet net, Integer id) {
+        byId.remove(id, net);
+        byNetwork.remove(net);
+        byFamily.get(net.getFamily()).remove(net);
+        Set<IpamSubnet> bucket = byMask.get(net.getMask());
+        if (bucket != null)
+            bucket.remove(net);     // empty buckets are kept, as a concurrent add may hold them
+    }
+
+    IpamSubnet get(Integer id) {
+        return byId.get(id);
+    }
+
+    // Id ordered view of every indexed record
+    NavigableMap<Integer, IpamSubnet> byId() {
+        return byId;
+    }
+
+    /* Query planner: pick whichever index yields the fewest candidates for the fields set
+    *  in spec, starting from all (the store's full key set).  Candidates still have to be
+    *  checked with spec.matches(), so cost is proportional to the smallest candidate set
+    *  rather than the size of the store.
+     */
+    Collection<IpamSubnet> candidates(filterSpec spec, Collection<IpamSubnet> all) {
+        Collection<IpamSubnet> candidates = all;
+
+        if (spec.getFamily() != null)
+            candidates = smaller(candidates, byFamily.get(spec.getFamily()));
+
+        if (spec.getMask() != null)
+            candidates = smaller(candidates, byMask.getOrDefault(spec.getMask(), Collections.emptySet()));
+
+        if (spec.getMinid() != null || spec.getMaxid() != null) {
+            Map.Entry<Integer, IpamSubnet> first = byId.firstEntry();
+            Map.Entry<Integer, IpamSubnet> last = byId.lastEntry();
+            if (first == null || last == null)
+                return Collections.emptySet();
+            // Clamp to the ids in use, so an open ended range is sized by the ids it can match
+            int low = (spec.getMinid() != null) ? Math.max(spec.getMinid(), first.getKey()) : first.getKey();
+            int high = (spec.getMaxid() != null) ? Math.min(spec.getMaxid(), last.getKey()) : last.getKey();
+            if (low > high)
+                return Collections.emptySet();
+            // ids are unique, so the id range bounds the number of candidates
+            long span = (long) high - low + 1;
+            if (span < candidates.size())
+                candidates = byId.subMap(low, true, high, true).values();
+        }
+
+        if (spec.getNetworkSubnet() != null) {
+            IpamSubnet network = spec.getNetworkSubnet();
+            NavigableSet<IpamSubnet> range = byNetwork.subSet(
+                    network.lowestContained(), true, network.highestContained(), true);
+            if (fewerThan(range, candidates.size()))
+                candidates = range;
+        }
+
+        return candidates;
+    }
+
+    /* Ordered scan for paged queries: records matching spec in spec's sort order, starting
+    *  after its cursor and stopping after its limit.  The scan starts with an O(log n) seek
+    *  into byId or byNetwork, so a page costs O(page size + log n), plus any records the
+    *  other filter fields reject along the way.  lookup maps a subnet to its id in the
+    *  owning store (null if absent), so stale index entries are never returned.
+     */
+    Iterator<IpamRecord> ordered(filterSpec spec, Function<IpamSubnet, Integer> lookup) {
+        Iterator<IpamRecord> records = (spec.getOrder() == SortOrder.NETWORK)
+                ? networkOrdered(spec, lookup)
+                : idOrdered(spec, lookup);
+        return (spec.getLimit() != null) ? Iterators.limit(records, spec.getLimit()) : records;
+    }
+
+    private Iterator<IpamRecord> idOrdered(filterSpec spec, Function<IpamSubnet, Integer> lookup) {
+        long low = (spec.getMinid() != null) ? spec.getMinid() : Integer.MIN_VALUE;
+        long high = (spec.getMaxid() != null) ? spec.getMaxid() : Integer.MAX_VALUE;
+        if (spec.getAfterId() != null)
+            low = Math.max(low, spec.getAfterId() + 1L);
+        if (low > high)
+            return Collections.emptyIterator();
+
+        Iterator<Map.Entry<Integer, IpamSubnet>> entries =
+                byId.subMap((int) low, true, (int) high, true).entrySet().iterator();
+        return new AbstractIterator<IpamRecord>() {
+            @Override
+            protected IpamRecord computeNext() {
+                while (entries.hasNext()) {
+                    Map.Entry<Integer, IpamSubnet> entry = entries.next();
+                    IpamSubnet net = entry.getValue();
+                    if (entry.getKey().equals(lookup.apply(net)) && spec.matches(net, entry.getKey()))
+                        return new IpamRecord(net, entry.getKey());
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private Iterator<IpamRecord> networkOrdered(filterSpec spec, Function<IpamSubnet, Integer> lookup) {
+        // Bound the scan by network containment, else by family, then move past the cursor
+        IpamSubnet from = null;
+        IpamSubnet to = null;
+        boolean fromInclusive = true;
+        IpamSubnet bound = spec.getNetworkSubnet();
+        if (bound == null && spec.getFamily() != null)
+            bound = IpamSubnet.fromBits(spec.getFamily(), 0, 0, 0);
+        if (bound != null) {
+            from = bound.lowestContained();
+            to = bound.highestContained();
+        }
+        IpamSubnet after = spec.getAfterNetwork();
+        if (after != null && (from == null || after.compareTo(from) >= 0)) {
+            from = after;
+            fromInclusive = false;
+        }
+
+        NavigableSet<IpamSubnet> range;
+        if (to != null) {
+            if (from.compareTo(to) > 0)
+                return Collections.emptyIterator();
+            range = byNetwork.subSet(from, fromInclusive, to, true);
+        } else if (from != null) {
+            range = byNetwork.tailSet(from, fromInclusive);
+        } else {
+            range = byNetwork;
+        }
+
+        Iterator<IpamSubnet> subnets = range.iterator();
+        return new AbstractIterator<IpamRecord>() {
+            @Override
+            protected IpamRecord computeNext() {
+                while (subnets.hasNext()) {
+                    IpamSubnet net = subnets.next();
+                    Integer id = lookup.apply(net);
+                    if (id != null && spec.matches(net, id))
+                        return new IpamRecord(net, id);
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private Set<IpamSubnet> newSet() {
+        return concurrent ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+    }
+
+    private static Collection<IpamSubnet> smaller(Collection<IpamSubnet> current, Collection<IpamSubnet> other) {
+        return (other.size() < current.size()) ? other : current;
+    }
+
+    // Size check on a view whose size() is not constant time, visiting at most limit elements
+    private static boolean fewerThan(Collection<IpamSubnet> view, int limit) {
+        int count = 0;
+        for (IpamSubnet ignored : view) {
+            if (++count >= limit) return false;
+        }
+        return true;
+    }
+}
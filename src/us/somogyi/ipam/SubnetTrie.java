@@ -0,0 +1,524 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/*  Binary radix (Patricia) trie over the network prefixes of a single address family.
+*   Keys are IpamSubnet prefixes (bits beyond the mask are ignored), and each stored
+*   prefix carries a value.  Single-child chains are compressed into one edge, so every
+*   operation visits at most one node per prefix bit (32 for IPV4, 128 for IPV6)
+*   regardless of how many prefixes are stored.
+*
+*   Every node also carries free space and utilization aggregates (see findFree and
+*   utilization), kept up to date along the modified path by put and remove, so free
+*   blocks and usage can be found without a scan.
+*
+*   Not thread safe - callers are expected to guard access (see IpamRepo).
+ */
+class SubnetTrie<V> {
+
+    /*  A trie node covers the prefix formed by the first 'length' bits of 'key'.
+    *   Occupied nodes hold a stored prefix (key.getMask() == length); unoccupied
+    *   nodes are branch points and always have two children.
+    *
+    *   freeLow / freeHigh are bitmaps of mask lengths (0-63 and 64-127): bit m is set
+    *   if a maximal free block of mask m - a free aligned block whose enclosing /(m - 1)
+    *   block is not free - lies within the node's prefix.
+    *
+    *   allocatedHigh / allocatedLow are the unsigned 128 bit count of addresses covered by
+    *   stored prefixes within the node's prefix, 'stored' is the number of those prefixes
+    *   (prefixes within another stored prefix are not counted), and 'widest' the smallest
+    *   of their masks.  A count covering the whole IPV6 space wraps to zero; see utilization.
+     */
+    private static final class Node<V> {
+        IpamSubnet key;
+        int length;
+        boolean occupied;
+        V value;
+        Node<V> left;
+        Node<V> right;
+        long freeLow;
+        long freeHigh;
+        long allocatedHigh;
+        long allocatedLow;
+        int stored;
+        int widest;
+
+        Node(IpamSubnet key, int length) {
+            this.key = key;
+            this.length = length;
+        }
+
+        Node<V> child(boolean bit) {
+            return bit ? right : left;
+        }
+
+        void setChild(boolean bit, Node<V> node) {
+            if (bit) right = node;
+            else left = node;
+        }
+
+        /* Recompute the aggregates from the children's.  A stored prefix has no free space
+        *  and covers its whole block; a branch point always has two children.
+         */
+        void refreshAggregates() {
+            if (occupied) {
+                freeLow = 0;
+                freeHigh = 0;
+                int hostBits = key.getWidth() - length;
+                allocatedHigh = (hostBits >= WORD && hostBits < 2 * WORD) ? 1L << (hostBits - WORD) : 0;
+                allocatedLow = (hostBits < WORD) ? 1L << hostBits : 0;
+                stored = 1;
+                widest = length;
+            } else {
+                freeLow = freeWithin(left, length + 1, 0) | freeWithin(right, length + 1, 0);
+                freeHigh = freeWithin(left, length + 1, WORD) | freeWithin(right, length + 1, WORD);
+                allocatedLow = left.allocatedLow + right.allocatedLow;
+                allocatedHigh = left.allocatedHigh + right.allocatedHigh
+                        + ((Long.compareUnsigned(allocatedLow, left.allocatedLow) < 0) ? 1 : 0);
+                stored = left.stored + right.stored;
+                widest = Math.min(left.widest, right.widest);
+            }
+        }
+    }
+
+    private static final int WORD = 64;
+
+    private final IpamSubnet.Family family;
+    private Node<V> root;
+    private int size;
+
+    SubnetTrie(IpamSubnet.Family family) {
+        this.family = Preconditions.checkNotNull(family, "SubnetTrie: Invalid null reference - family");
+    }
+
+    IpamSubnet.Family getFamily() {
+        return family;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* Store value against the prefix of subnet, returning any value previously stored
+    *  against the same prefix (or null).
+     */
+    V put(IpamSubnet subnet, V value) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+
+        Node<V> parent = null;
+        boolean parentBit = false;
+        Node<V> node = root;
+
+        while (node != null) {
+            int common = Math.min(Math.min(node.length, len), subnet.matchLength(node.key));
+
+            if (common < node.length) {
+                // subnet ends or diverges part way along the edge into node, so split the edge
+                Node<V> split;
+                if (common == len) {
+                    split = occupiedNode(subnet, value);
+                    split.setChild(node.key.isBitSet(len), node);
+                } else {
+                    split = new Node<>(subnet, common);
+                    split.setChild(node.key.isBitSet(common), node);
+                    split.setChild(subnet.isBitSet(common), occupiedNode(subnet, value));
+                }
+                replace(parent, parentBit, split);
+                size++;
+                refresh(subnet);
+                return null;
+            }
+
+            if (node.length == len) {
+                V previous = node.value;
+                if (!node.occupied) {
+                    node.occupied = true;
+                    size++;
+                }
+                node.key = subnet;
+                node.value = value;
+                refresh(subnet);
+                return previous;
+            }
+
+            parent = node;
+            parentBit = subnet.isBitSet(node.length);
+            node = node.child(parentBit);
+        }
+
+        replace(parent, parentBit, occupiedNode(subnet, value));
+        size++;
+        refresh(subnet);
+        return null;
+    }
+
+    // Return the value stored against exactly the prefix of subnet, or null
+    V get(IpamSubnet subnet) {
+        Node<V> node = find(subnet);
+        return (node == null) ? null : node.value;
+    }
+
+    boolean contains(IpamSubnet subnet) {
+        return find(subnet) != null;
+    }
+
+    /* Remove the prefix of subnet, returning the value it held (or null if not present).
+    *  Branch nodes left with a single child are spliced out to keep the trie compressed.
+     */
+    V remove(IpamSubnet subnet) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+
+        Node<V> grandparent = null;
+        boolean grandparentBit = false;
+        Node<V> parent = null;
+        boolean parentBit = false;
+        Node<V> node = root;
+
+        while (node != null && node.length < len) {
+            if (subnet.matchLength(node.key) < node.length)
+                return null;
+            grandparent = parent;
+            grandparentBit = parentBit;
+            parent = node;
+            parentBit = subnet.isBitSet(node.length);
+            node = node.child(parentBit);
+        }
+
+        if (node == null || node.length != len || !node.occupied || subnet.matchLength(node.key) < len)
+            return null;
+
+        V previous = node.value;
+        node.occupied = false;
+        node.value = null;
+        size--;
+
+        if (node.left != null && node.right != null) {
+            // still a branch point
+        } else if (node.left != null || node.right != null) {
+            replace(parent, parentBit, (node.left != null) ? node.left : node.right);
+        } else {
+            replace(parent, parentBit, null);
+            if (parent != null && !parent.occupied) {
+                replace(grandparent, grandparentBit, parent.child(!parentBit));
+            }
+        }
+
+        refresh(subnet);
+        return previous;
+    }
+
+    /* True if any stored prefix is equal to, an ancestor of, or a descendant of subnet.
+    *  Walks a single root-to-leaf path, so is bounded by the family's address width.
+     */
+    boolean overlaps(IpamSubnet subnet) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+        Node<V> node = root;
+
+        while (node != null) {
+            int common = Math.min(Math.min(node.length, len), subnet.matchLength(node.key));
+
+            if (common < Math.min(node.length, len))
+                return false;       // diverged - nothing below node can overlap
+            if (node.length >= len)
+                return true;        // node and everything beneath it lie within subnet
+            if (node.occupied)
+                return true;        // node is a stored ancestor of subnet
+
+            node = node.child(subnet.isBitSet(node.length));
+        }
+
+        return false;
+    }
+
+    /* Value of the longest stored prefix equal to or containing subnet (e.g. a /32 or /128
+    *  host prefix), or null if none.  Prefixes stored with a null value are passed over.
+    *  Walks a single path and allocates nothing.
+     */
+    V longestMatch(IpamSubnet subnet) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+        V match = null;
+        Node<V> node = root;
+
+        while (node != null && node.length <= len && subnet.matchLength(node.key) >= node.length) {
+            if (node.occupied && node.value != null)
+                match = node.value;
+            if (node.length == len)
+                break;
+            node = node.child(subnet.isBitSet(node.length));
+        }
+
+        return match;
+    }
+
+    /* Values of every stored prefix equal to or containing subnet, outermost first, so the
+    *  last is the longestMatch.  Prefixes stored with a null value are passed over.
+     */
+    List<V> containing(IpamSubnet subnet) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+        List<V> matches = new ArrayList<>();
+        Node<V> node = root;
+
+        while (node != null && node.length <= len && subnet.matchLength(node.key) >= node.length) {
+            if (node.occupied && node.value != null)
+                matches.add(node.value);
+            if (node.length == len)
+                break;
+            node = node.child(subnet.isBitSet(node.length));
+        }
+
+        return matches;
+    }
+
+    /* Find a free block of 'mask' within parent (which need not be stored), or null if
+    *  there is none.  FIRST_FIT returns the lowest addressed free block; BEST_FIT returns
+    *  the first block of the smallest maximal free block that fits, so larger free areas
+    *  are left whole.  A stored parent, or one within a stored prefix, has no free space.
+    *
+    *  Walks one root-to-leaf path guided by the free space aggregates, so is bounded by
+    *  the family's address width regardless of how fragmented the parent is.
+     */
+    IpamSubnet findFree(IpamSubnet parent, int mask, AllocationPolicy policy) {
+        checkFamily(parent);
+        Preconditions.checkNotNull(policy, "SubnetTrie: Invalid null reference - policy");
+        int region = parent.getMask();
+        Preconditions.checkArgument(mask >= region && mask < parent.getWidth(),
+                "SubnetTrie: mask %s does not fit within %s", mask, parent.getCidr());
+
+        // Find the subtree holding every stored prefix within parent (null if none)
+        Node<V> node = root;
+        while (node != null && node.length < region) {
+            if (parent.matchLength(node.key) < node.length) {
+                node = null;
+                break;
+            }
+            if (node.occupied)
+                return null;
+            node = node.child(parent.isBitSet(node.length));
+        }
+        if (node != null && parent.matchLength(node.key) < region)
+            node = null;
+
+        long freeLow = freeWithin(node, region, 0);
+        long freeHigh = freeWithin(node, region, WORD);
+
+        // Range of acceptable maximal free block masks
+        int min = region;
+        int max;
+        if (policy == AllocationPolicy.FIRST_FIT) {
+            max = mask;
+            if (!accepts(freeLow, freeHigh, min, max))
+                return null;
+        } else {
+            max = highestAtMost(freeLow, freeHigh, mask);
+            if (max < region)
+                return null;
+            min = max;
+        }
+
+        IpamSubnet block = locate(parent.truncate(region), node, min, max);
+        return block.truncate(mask);
+    }
+
+    /* Utilization of prefix (which need not be stored): addresses covered and number of
+    *  stored prefixes within it, and the largest free block.  Reads the aggregates of the
+    *  one node whose subtree holds everything within prefix, so costs a single descent.
+     */
+    SubnetUtilization utilization(IpamSubnet prefix) {
+        checkFamily(prefix);
+        int region = prefix.getMask();
+        IpamSubnet block = prefix.truncate(region);
+
+        Node<V> node = root;
+        while (node != null && node.length < region) {
+            if (prefix.matchLength(node.key) < node.length)
+                return new SubnetUtilization(block, BigInteger.ZERO, 0, region);
+            if (node.occupied)
+                return new SubnetUtilization(block, block.getSize(), 0, -1);
+            node = node.child(prefix.isBitSet(node.length));
+        }
+        if (node == null || prefix.matchLength(node.key) < region)
+            return new SubnetUtilization(block, BigInteger.ZERO, 0, region);
+
+        long freeLow = freeWithin(node, region, 0);
+        long freeHigh = freeWithin(node, region, WORD);
+        int largest = (freeLow != 0) ? Long.numberOfTrailingZeros(freeLow)
+                : (freeHigh != 0) ? WORD + Long.numberOfTrailingZeros(freeHigh) : -1;
+
+        // Without free space the prefix is covered, which also resolves a wrapped count
+        BigInteger allocated = (largest < 0) ? block.getSize()
+                : new BigInteger(Long.toUnsignedString(node.allocatedHigh)).shiftLeft(WORD)
+                        .or(new BigInteger(Long.toUnsignedString(node.allocatedLow)));
+        return new SubnetUtilization(block, allocated, node.stored, largest);
+    }
+
+    /* Values of up to 'limit' of the widest stored prefixes within prefix, widest first and
+    *  then in address order.  Prefixes stored with a null value are passed over.  Guided by
+    *  the 'widest' aggregates, so visits only the subtrees holding the prefixes returned
+    *  rather than every prefix within.
+     */
+    List<V> widest(IpamSubnet prefix, int limit) {
+        checkFamily(prefix);
+        Preconditions.checkArgument(limit >= 0, "SubnetTrie: limit must not be negative");
+        int region = prefix.getMask();
+        List<V> results = new ArrayList<>();
+
+        Node<V> node = root;
+        while (node != null && node.length < region) {
+            if (prefix.matchLength(node.key) < node.length || node.occupied)
+                return results;
+            node = node.child(prefix.isBitSet(node.length));
+        }
+        if (node == null || prefix.matchLength(node.key) < region)
+            return results;
+
+        // Subtrees are disjoint, so ordering them by any key within orders their prefixes
+        PriorityQueue<Node<V>> pending = new PriorityQueue<>(
+                Comparator.<Node<V>>comparingInt(n -> n.widest).thenComparing(n -> n.key));
+        pending.add(node);
+        while (results.size() < limit && !pending.isEmpty()) {
+            node = pending.poll();
+            if (node.occupied) {
+                if (node.value != null)
+                    results.add(node.value);
+            } else {
+                pending.add(node.left);
+                pending.add(node.right);
+            }
+        }
+        return results;
+    }
+
+    /* Leftmost maximal free block, of a mask between min and max, within the /length(prefix)
+    *  block whose stored prefixes all lie under node.  The caller has checked one exists.
+    *  The free blocks beside each edge are the siblings of the edge's path: those to the
+    *  left of the path precede node's subtree in address order, those to the right follow.
+     */
+    private IpamSubnet locate(IpamSubnet prefix, Node<V> node, int min, int max) {
+        int region = prefix.getMask();
+
+        while (node != null) {
+            int first = Math.max(region + 1, min);
+            int last = Math.min(node.length, max);
+            for (int j = first; j <= last; j++) {
+                if (node.key.isBitSet(j - 1))
+                    return node.key.sibling(j);
+            }
+
+            if (!accepts(node.freeLow, node.freeHigh, min, max)) {
+                for (int j = last; j >= first; j--) {
+                    if (!node.key.isBitSet(j - 1))
+                        return node.key.sibling(j);
+                }
+                throw new IllegalStateException("SubnetTrie: free space aggregate out of step");
+            }
+
+            region = node.length + 1;
+            boolean bit = !accepts(freeWithin(node.left, region, 0), freeWithin(node.left, region, WORD), min, max);
+            prefix = node.key.truncate(region);
+            if (prefix.isBitSet(node.length) != bit)
+                prefix = prefix.sibling(region);
+            node = node.child(bit);
+        }
+
+        return prefix;
+    }
+
+    /* Maximal free blocks within the /region block holding child: child's own, plus the
+    *  sibling blocks along the edge from region down to child (or the whole block if there
+    *  is no child), for the bitmap word holding masks base to base + 63.
+     */
+    private static long freeWithin(Node<?> child, int region, int base) {
+        if (child == null)
+            return range(region, region, base);
+        long word = (base == 0) ? child.freeLow : child.freeHigh;
+        return word | range(region + 1, child.length, base);
+    }
+
+    // Bits for masks from..to inclusive, within the bitmap word holding masks base..base + 63
+    private static long range(int from, int to, int base) {
+        int low = Math.max(from, base);
+        int high = Math.min(to, base + WORD - 1);
+        if (low > high)
+            return 0;
+        return (-1L >>> (WORD - 1 - (high - low))) << (low - base);
+    }
+
+    private static boolean accepts(long freeLow, long freeHigh, int min, int max) {
+        return (freeLow & range(min, max, 0)) != 0 || (freeHigh & range(min, max, WORD)) != 0;
+    }
+
+    // Largest mask no greater than max with a maximal free block, or -1 if none
+    private static int highestAtMost(long freeLow, long freeHigh, int max) {
+        long high = freeHigh & range(0, max, WORD);
+        if (high != 0)
+            return WORD + 63 - Long.numberOfLeadingZeros(high);
+        long low = freeLow & range(0, max, 0);
+        return (low != 0) ? 63 - Long.numberOfLeadingZeros(low) : -1;
+    }
+
+    /* Recompute aggregates, deepest first, along the path to subnet's position -
+    *  the only nodes whose subtrees a put or remove of subnet can change.
+     */
+    @SuppressWarnings("unchecked")
+    private void refresh(IpamSubnet subnet) {
+        int len = subnet.getMask();
+        Node<V>[] path = new Node[subnet.getWidth() + 1];
+        int depth = 0;
+        Node<V> node = root;
+
+        while (node != null) {
+            path[depth++] = node;
+            if (node.length >= len || subnet.matchLength(node.key) < node.length)
+                break;
+            node = node.child(subnet.isBitSet(node.length));
+        }
+
+        while (depth > 0)
+            path[--depth].refreshAggregates();
+    }
+
+    private Node<V> find(IpamSubnet subnet) {
+        checkFamily(subnet);
+        int len = subnet.getMask();
+        Node<V> node = root;
+
+        while (node != null && node.length < len) {
+            if (subnet.matchLength(node.key) < node.length)
+                return null;
+            node = node.child(subnet.isBitSet(node.length));
+        }
+
+        if (node == null || node.length != len || !node.occupied || subnet.matchLength(node.key) < len)
+            return null;
+        return node;
+    }
+
+    private Node<V> occupiedNode(IpamSubnet subnet, V value) {
+        Node<V> node = new Node<>(subnet, subnet.getMask());
+        node.occupied = true;
+        node.value = value;
+        return node;
+    }
+
+    private void replace(Node<V> parent, boolean bit, Node<V> node) {
+        if (parent == null) root = node;
+        else parent.setChild(bit, node);
+    }
+
+    private void checkFamily(IpamSubnet subnet) {
+        Preconditions.checkNotNull(subnet, "SubnetTrie: Invalid null reference - subnet");
+        Preconditions.checkArgument(subnet.getFamily() == family,
+                "SubnetTrie: expected family %s, found %s", family, subnet.getFamily());
+    }
+}
@@ -0,0 +1,54 @@
+package us.somogyi.ipam;
+
+import com.google.common.base.Preconditions;
+
+import java.math.BigInteger;
+
+/*  How much of a prefix is taken by stored subnets (see IpamRepo.GetUtilization): the
+*   addresses covered by stored subnets within it, how many subnets those are, and the
+*   mask of the largest block still free.  A prefix lying within a stored subnet is
+*   wholly allocated.
+ */
+public class SubnetUtilization {
+
+    private final IpamSubnet prefix;
+    private final BigInteger allocated;
+    private final int subnets;
+    private final int largestFreeMask;
+
+    SubnetUtilization(IpamSubnet prefix, BigInteger allocated, int subnets, int largestFreeMask) {
+        this.prefix = Preconditions.checkNotNull(prefix, "SubnetUtilization: Invalid null reference - prefix");
+        this.allocated = Preconditions.checkNotNull(allocated, "SubnetUtilization: Invalid null reference - allocated");
+        this.subnets = subnets;
+        this.largestFreeMask = largestFreeMask;
+    }
+
+    public IpamSubnet getPrefix() {
+        return prefix;
+    }
+
+    // Number of addresses in the prefix
+    public BigInteger getSize() {
+        return prefix.getSize();
+    }
+
+    // Number of addresses within the prefix covered by stored subnets
+    public BigInteger getAllocated() {
+        return allocated;
+    }
+
+    // Stored subnets within the prefix (including subnets still being added)
+    public int getSubnets() {
+        return subnets;
+    }
+
+    // Mask of the largest free block within the prefix, or -1 if it is fully allocated
+    public int getLargestFreeMask() {
+        return largestFreeMask;
+    }
+
+    // Fraction of the prefix allocated, from 0 to 1
+    public double getUtilization() {
+        return allocated.doubleValue() / getSize().doubleValue();
+    }
+}
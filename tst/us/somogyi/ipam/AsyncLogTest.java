@@ -0,0 +1,123 @@
+package us.somogyi.ipam;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AsyncLogTest {
+
+    // Collects output, holding the writer thread in its first write until released
+    static class GatedWriter extends Writer {
+        final StringBuffer text = new StringBuffer();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    @Test
+    public void writesJsonLinesAsyncLog () {
+        StringWriter out = new StringWriter();
+        AsyncLog log = new AsyncLog(out, 16, AsyncLog.Overflow.DROP, 1);
+        Assert.assertTrue(log.access("GET", "/subnets", 200, 52, 310000, new InetSocketAddress("127.0.0.1", 5000)));
+        Assert.assertTrue(log.error("store \"failed\"\n"));
+        log.close();
+
+        String[] lines = out.toString().split("\n");
+        Assert.assertEquals(2, lines.length);
+        JSONObject access = new JSONObject(lines[0]);
+        Assert.assertEquals("GET", access.getString("method"));
+        Assert.assertEquals("/subnets", access.getString("path"));
+        Assert.assertEquals(200, access.getInt("status"));
+        Assert.assertEquals(52, access.getLong("bytes"));
+        Assert.assertEquals(310, access.getLong("duration_us"));
+        Assert.assertTrue(access.getString("remote").endsWith("127.0.0.1:5000"));
+        JSONObject error = new JSONObject(lines[1]);
+        Assert.assertEquals("error", error.getString("level"));
+        Assert.assertEquals("store \"failed\"\n", error.getString("message"));
+        Assert.assertFalse("Expected records to be dropped after close", log.warn("late"));
+    }
+
+    @Test
+    public void dropWhenFullAsyncLog () throws InterruptedException {
+        GatedWriter out = new GatedWriter();
+        AsyncLog log = new AsyncLog(out, 4, AsyncLog.Overflow.DROP, 1);
+        log.warn("first");
+        Assert.assertTrue(out.entered.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 4; i++)
+            Assert.assertTrue("Expected room in the ring", log.warn("queued " + i));
+        for (int i = 0; i < 3; i++)
+            Assert.assertFalse("Expected full ring to drop", log.warn("dropped " + i));
+        Assert.assertEquals(3, log.getDropped());
+
+        out.release.countDown();
+        log.close();
+        Assert.assertTrue(out.text.toString().contains("queued 3"));
+        Assert.assertFalse(out.text.toString().contains("dropped 0"));
+        Assert.assertTrue(out.text.toString().contains("log dropped 3 records"));
+    }
+
+    @Test
+    public void blockWhenFullAsyncLog () throws InterruptedException {
+        GatedWriter out = new GatedWriter();
+        AsyncLog log = new AsyncLog(out, 4, AsyncLog.Overflow.BLOCK, 1);
+        log.warn("first");
+        Assert.assertTrue(out.entered.await(5, TimeUnit.SECONDS));
+
+        AtomicBoolean finished = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10; i++)
+                log.warn("record " + i);
+            finished.set(true);
+        });
+        producer.start();
+        producer.join(200);
+        Assert.assertFalse("Expected producer to block on the full ring", finished.get());
+
+        out.release.countDown();
+        producer.join(5000);
+        Assert.assertTrue(finished.get());
+        log.close();
+        Assert.assertEquals(0, log.getDropped());
+        Assert.assertTrue(out.text.toString().contains("record 9"));
+    }
+
+    @Test
+    public void sampleKeepsErrorsAsyncLog () {
+        StringWriter out = new StringWriter();
+        AsyncLog log = new AsyncLog(out, 1024, AsyncLog.Overflow.BLOCK, 1000);
+        int kept = 0;
+        for (int i = 0; i < 100; i++)
+            kept += log.access("GET", "/subnets", 200, 0, 0, null) ? 1 : 0;
+        for (int i = 0; i < 5; i++)
+            Assert.assertTrue("Expected errors to be kept", log.access("POST", "/subnets", 422, 0, 0, null));
+        log.close();
+
+        Assert.assertTrue("Expected successes to be sampled", kept < 100);
+        Assert.assertEquals(kept + 5, out.toString().split("\n").length);
+    }
+}
@@ -0,0 +1,130 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class BackingStoreCacheTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64");
+
+    // Counts the lookups that reach the store
+    private static class CountingStore extends BackingStoreConcurrent {
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger queriesById = new AtomicInteger();
+
+        @Override
+        public Optional<IpamRecord> querySubnet(IpamSubnet net) {
+            queries.incrementAndGet();
+            return super.querySubnet(net);
+        }
+
+        @Override
+        public Optional<IpamRecord> querySubnetById(Integer id) {
+            queriesById.incrementAndGet();
+            return super.querySubnetById(id);
+        }
+    }
+
+    @Test
+    public void repeatedLookupsHitCacheBackingStoreCache () throws Exception {
+        CountingStore store = new CountingStore();
+        IpamRecord record = store.putSubnet(validV4Subnet).get();
+        BackingStoreCache cache = new BackingStoreCache(store, 100);
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(record, cache.querySubnet(validV4Subnet).get());
+            Assert.assertEquals(record, cache.querySubnetById(record.getId()).get());
+        }
+        Assert.assertEquals(1, store.queries.get());
+        Assert.assertEquals(1, store.queriesById.get());
+        Assert.assertEquals(4, cache.getSubnetStats().hitCount());
+        Assert.assertEquals(1, cache.getSubnetStats().missCount());
+        Assert.assertEquals(4, cache.getIdStats().hitCount());
+    }
+
+    @Test
+    public void negativeLookupsCachedBackingStoreCache () throws Exception {
+        CountingStore store = new CountingStore();
+        BackingStoreCache cache = new BackingStoreCache(store, 100);
+
+        Assert.assertFalse(cache.querySubnet(validV4Subnet).isPresent());
+        Assert.assertFalse(cache.querySubnet(validV4Subnet).isPresent());
+        Assert.assertFalse(cache.querySubnetById(1).isPresent());
+        Assert.assertFalse(cache.querySubnetById(1).isPresent());
+        Assert.assertEquals(1, store.queries.get());
+        Assert.assertEquals(1, store.queriesById.get());
+
+        // a put replaces the cached absence in both directions
+        IpamRecord record = cache.putSubnet(validV4Subnet).get();
+        Assert.assertEquals(Integer.valueOf(1), record.getId());
+        Assert.assertEquals(record, cache.querySubnet(validV4Subnet).get());
+        Assert.assertEquals(record, cache.querySubnetById(1).get());
+        Assert.assertEquals(1, store.queries.get());
+        Assert.assertEquals(1, store.queriesById.get());
+    }
+
+    @Test
+    public void writesUpdateCacheBackingStoreCache () throws Exception {
+        BackingStoreCache cache = new BackingStoreCache(new BackingStoreConcurrent(), 100);
+
+        List<Optional<IpamRecord>> put = cache.putSubnets(Arrays.asList(validV4Subnet, validV6Subnet, validV4Subnet));
+        Assert.assertFalse("Expected duplicate put to be rejected", put.get(2).isPresent());
+        IpamRecord v6 = put.get(1).get();
+        Assert.assertEquals(v6, cache.querySubnet(validV6Subnet).get());
+
+        Assert.assertEquals(v6, cache.deleteSubnet(validV6Subnet).get());
+        Assert.assertFalse(cache.querySubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(cache.querySubnetById(v6.getId()).isPresent());
+        Assert.assertFalse(cache.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertEquals(Arrays.asList(put.get(0).get()), cache.queryAllSubnets());
+    }
+
+    @Test
+    public void cacheStaysBoundedBackingStoreCache () throws Exception {
+        CountingStore store = new CountingStore();
+        BackingStoreCache cache = new BackingStoreCache(store, 10);
+
+        for (int i = 0; i < 100; i++)
+            cache.querySubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+        Assert.assertTrue("Expected entries to be evicted", cache.getSubnetStats().evictionCount() >= 90);
+
+        cache.querySubnet(IpamSubnet.fromCidr("10.0.0.0/16"));
+        Assert.assertEquals("Expected evicted entry to be loaded again", 101, store.queries.get());
+    }
+
+    @Test
+    public void concurrentWritesAndLoadsStayCoherentBackingStoreCache () throws Exception {
+        BackingStoreCache cache = new BackingStoreCache(new BackingStoreConcurrent(), 1000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 200; round++) {
+                IpamSubnet net = IpamSubnet.fromCidr("10." + round + ".0.0/16");
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?> writer = pool.submit(() -> {
+                    start.await();
+                    return cache.putSubnet(net);
+                });
+                Future<?> reader = pool.submit(() -> {
+                    start.await();
+                    return cache.querySubnet(net);
+                });
+                start.countDown();
+                writer.get();
+                reader.get();
+                Assert.assertTrue("Expected no stale absence after put of " + net,
+                        cache.querySubnet(net).isPresent());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
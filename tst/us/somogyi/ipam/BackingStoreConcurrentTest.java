@@ -0,0 +1,147 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class BackingStoreConcurrentTest {
+
+    public static final String V4CIDR1 = "192.168.24.0/24";
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr(V4CIDR1);
+
+    public static final String V6CIDR1 = "1:2:3:4:5:6:7:8/64";
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr(V6CIDR1);
+
+    @Test
+    public void putAndQuerySubnetBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+
+        Optional<IpamRecord> put = store.putSubnet(validV4Subnet);
+        Assert.assertTrue("putSubnet result is empty", put.isPresent());
+        Assert.assertFalse("Expected duplicate put to be rejected", store.putSubnet(validV4Subnet).isPresent());
+
+        Assert.assertEquals("Expected same IpamRecord", put.get(), store.querySubnet(validV4Subnet).get());
+        Assert.assertEquals("Expected same IpamRecord", put.get(), store.querySubnetById(put.get().getId()).get());
+    }
+
+    @Test
+    public void deleteSubnetBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+        Integer id = store.putSubnet(validV6Subnet).get().getId();
+
+        Assert.assertTrue("Expected subnet to be deleted", store.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertFalse("Expected second delete to find nothing", store.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(store.querySubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(store.querySubnetById(id).isPresent());
+        Assert.assertTrue(store.queryAllSubnets().isEmpty());
+    }
+
+    @Test
+    public void revisionAdvancesOnChangeBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+        long start = store.getRevision();
+
+        store.putSubnet(validV4Subnet);
+        long put = store.getRevision();
+        Assert.assertTrue("Expected put to advance revision", put > start);
+
+        store.putSubnet(validV4Subnet);
+        store.deleteSubnet(validV6Subnet);
+        store.querySubnet(validV4Subnet);
+        Assert.assertEquals("Expected unchanged revision without a change", put, store.getRevision());
+
+        store.deleteSubnet(validV4Subnet);
+        Assert.assertTrue("Expected delete to advance revision", store.getRevision() > put);
+    }
+
+    @Test
+    public void filterSubnetsBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+        store.putSubnet(validV4Subnet);
+        store.putSubnet(validV6Subnet);
+        store.putSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+
+        Assert.assertEquals(2, store.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .family(IpamSubnet.Family.IPV4).buildFilterSpec()).size());
+        Assert.assertEquals(1, store.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .mask(64).buildFilterSpec()).size());
+        Assert.assertEquals(2, store.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .minid(2).buildFilterSpec()).size());
+    }
+
+    @Test
+    public void iterateSubnetsBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+        store.putSubnet(validV4Subnet);
+        store.putSubnet(validV6Subnet);
+
+        Iterator<IpamRecord> all = store.iterateSubnets(null);
+        Assert.assertEquals("Expected id order", validV4Subnet, all.next().getSubnet());
+        Assert.assertEquals("Expected id order", validV6Subnet, all.next().getSubnet());
+        Assert.assertFalse(all.hasNext());
+
+        Iterator<IpamRecord> v6 = store.iterateSubnets(new BackingStore.filterSpecBuilder()
+                .family(IpamSubnet.Family.IPV6).buildFilterSpec());
+        Assert.assertEquals(validV6Subnet, v6.next().getSubnet());
+        Assert.assertFalse(v6.hasNext());
+    }
+
+    @Test
+    public void pageSubnetsSkipsDeletedBackingStoreConcurrent () throws BackingStoreException {
+        BackingStore store = new BackingStoreConcurrent();
+        for (int i = 0; i < 6; i++)
+            store.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+        store.deleteSubnet(IpamSubnet.fromCidr("10.1.0.0/16"));
+
+        Iterator<IpamRecord> page = store.iterateSubnets(
+                new BackingStore.filterSpecBuilder().limit(3).buildFilterSpec());
+        Assert.assertEquals(Integer.valueOf(1), page.next().getId());
+        Assert.assertEquals(Integer.valueOf(3), page.next().getId());
+        Assert.assertEquals(Integer.valueOf(4), page.next().getId());
+        Assert.assertFalse("Expected page to stop at limit", page.hasNext());
+
+        Assert.assertEquals("Expected remaining ids", 2, store.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().limit(3).after(4).buildFilterSpec()).size());
+    }
+
+    @Test
+    public void concurrentWritersAssignUniqueIds () throws Exception {
+        BackingStore store = new BackingStoreConcurrent();
+        int threads = 8;
+        int perThread = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<Integer>> added = new ArrayList<>();
+
+        // every thread races to insert the same subnets, so each should be added exactly once
+        for (int t = 0; t < threads; t++) {
+            added.add(pool.submit(() -> {
+                start.await();
+                int count = 0;
+                for (int i = 0; i < perThread; i++) {
+                    if (store.putSubnet(IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24")).isPresent())
+                        count++;
+                }
+                return count;
+            }));
+        }
+
+        int total = 0;
+        for (Future<Integer> f : added)
+            total += f.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+
+        List<IpamRecord> all = store.queryAllSubnets();
+        Set<Integer> ids = new HashSet<>();
+        for (IpamRecord record : all)
+            ids.add(record.getId());
+
+        Assert.assertEquals("Expected each subnet added once", perThread, total);
+        Assert.assertEquals("Expected every subnet stored", perThread, all.size());
+        Assert.assertEquals("Expected unique ids", perThread, ids.size());
+    }
+}
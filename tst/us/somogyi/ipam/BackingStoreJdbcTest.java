@@ -0,0 +1,151 @@
+package us.somogyi.ipam;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStore.SortOrder;
+import static us.somogyi.ipam.BackingStore.filterSpec;
+import static us.somogyi.ipam.BackingStore.filterSpecBuilder;
+
+public class BackingStoreJdbcTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64");
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<BackingStoreJdbc> opened = new ArrayList<>();
+
+    @After
+    public void closeAll() throws Exception {
+        for (BackingStoreJdbc store : opened)
+            store.close();
+    }
+
+    // A private in-memory H2 database, kept until the store closes
+    private BackingStoreJdbc newStore() throws BackingStoreException {
+        BackingStoreJdbc store = new BackingStoreJdbc("jdbc:h2:mem:ipam" + databases.incrementAndGet());
+        opened.add(store);
+        return store;
+    }
+
+    @Test
+    public void putAndQuerySubnetBackingStoreJdbc () throws BackingStoreException {
+        BackingStore store = newStore();
+
+        IpamRecord put = store.putSubnet(validV4Subnet).get();
+        Assert.assertFalse("Expected duplicate put to be rejected", store.putSubnet(validV4Subnet).isPresent());
+        IpamRecord v6 = store.putSubnet(validV6Subnet).get();
+
+        Assert.assertEquals(put, store.querySubnet(validV4Subnet).get());
+        Assert.assertEquals(put, store.querySubnetById(put.getId()).get());
+        Assert.assertEquals(v6, store.querySubnetById(v6.getId()).get());
+        Assert.assertFalse(store.querySubnet(IpamSubnet.fromCidr("192.168.24.0/25")).isPresent());
+        Assert.assertFalse(store.querySubnetById(-1).isPresent());
+        Assert.assertEquals(Arrays.asList(put, v6), store.queryAllSubnets());
+    }
+
+    @Test
+    public void deleteSubnetBackingStoreJdbc () throws BackingStoreException {
+        BackingStore store = newStore();
+        Integer id = store.putSubnet(validV6Subnet).get().getId();
+        long revision = store.getRevision();
+
+        Assert.assertEquals(id, store.deleteSubnet(validV6Subnet).get().getId());
+        Assert.assertFalse("Expected second delete to find nothing", store.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(store.querySubnetById(id).isPresent());
+        Assert.assertTrue(store.queryAllSubnets().isEmpty());
+        Assert.assertEquals("Expected one revision for the one delete", revision + 1, store.getRevision());
+    }
+
+    @Test
+    public void putSubnetsBatchBackingStoreJdbc () throws BackingStoreException {
+        BackingStore store = newStore();
+        List<Optional<IpamRecord>> first = store.putSubnets(Arrays.asList(validV4Subnet, validV6Subnet));
+        Assert.assertTrue(first.stream().allMatch(Optional::isPresent));
+
+        // A duplicate, stored or within the batch, falls back to one insert at a time
+        IpamSubnet fresh = IpamSubnet.fromCidr("10.0.0.0/8");
+        List<Optional<IpamRecord>> second = store.putSubnets(Arrays.asList(fresh, validV4Subnet, fresh));
+        Assert.assertTrue(second.get(0).isPresent());
+        Assert.assertFalse(second.get(1).isPresent());
+        Assert.assertFalse(second.get(2).isPresent());
+        Assert.assertEquals(3, store.queryAllSubnets().size());
+        Assert.assertEquals(second.get(0), store.querySubnet(fresh));
+    }
+
+    @Test
+    public void filterSubnetsMatchesMemoryBackingStoreJdbc () throws BackingStoreException {
+        BackingStore jdbc = newStore();
+        BackingStore memory = new BackingStoreMemory();
+        List<IpamSubnet> subnets = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            subnets.add((i % 4 == 0)
+                    ? IpamSubnet.fromCidr("2001:db8:" + Integer.toHexString(i) + "::/" + (48 + i % 17))
+                    : IpamSubnet.fromCidr((i * 7 % 256) + "." + (i % 200) + "." + (i & 0xF) + ".0/" + (16 + i % 9)));
+        }
+        for (IpamSubnet subnet : subnets) {
+            Assert.assertEquals(memory.putSubnet(subnet), jdbc.putSubnet(subnet));
+        }
+        memory.deleteSubnet(subnets.get(5));
+        jdbc.deleteSubnet(subnets.get(5));
+
+        List<filterSpec> specs = Arrays.asList(
+                new filterSpecBuilder().family(IpamSubnet.Family.IPV6).buildFilterSpec(),
+                new filterSpecBuilder().mask(20).buildFilterSpec(),
+                new filterSpecBuilder().minid(50).maxid(80).buildFilterSpec(),
+                new filterSpecBuilder().network("128.0.0.0/1").buildFilterSpec(),
+                new filterSpecBuilder().network("2001:db8::/32").mask(50).buildFilterSpec(),
+                new filterSpecBuilder().network("7.").buildFilterSpec(),
+                new filterSpecBuilder().limit(25).after(40).buildFilterSpec(),
+                new filterSpecBuilder().limit(30).order(SortOrder.NETWORK).buildFilterSpec(),
+                new filterSpecBuilder().limit(30).after(IpamSubnet.fromCidr("200.0.0.0/8")).buildFilterSpec(),
+                new filterSpecBuilder().family(IpamSubnet.Family.IPV4).limit(30)
+                        .after(IpamSubnet.fromCidr("100.0.0.0/8")).buildFilterSpec(),
+                new filterSpecBuilder().family(IpamSubnet.Family.IPV6).limit(30)
+                        .after(IpamSubnet.fromCidr("100.0.0.0/8")).buildFilterSpec(),
+                new filterSpecBuilder().network("1").limit(5).buildFilterSpec());
+        for (filterSpec spec : specs) {
+            List<IpamRecord> expected = memory.queryAllSubnets(spec);
+            List<IpamRecord> actual = jdbc.queryAllSubnets(spec);
+            if (!spec.isPaged()) {
+                expected = sortById(expected);
+                actual = sortById(actual);
+            }
+            Assert.assertFalse("Expected a non-trivial result", expected.isEmpty());
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void reopenContinuesIdsBackingStoreJdbc () throws Exception {
+        String url = "jdbc:h2:" + folder.getRoot().toPath().resolve("ipam");
+
+        try (BackingStoreJdbc store = new BackingStoreJdbc(url)) {
+            store.putSubnet(validV4Subnet);
+            store.putSubnet(validV6Subnet);
+            store.deleteSubnet(validV6Subnet);
+        }
+        try (BackingStoreJdbc store = new BackingStoreJdbc(url, 2, new IdAllocator.Sequential())) {
+            Assert.assertEquals(1, store.queryAllSubnets().size());
+            Assert.assertTrue(store.querySubnet(validV4Subnet).isPresent());
+            Integer next = store.putSubnet(IpamSubnet.fromCidr("10.0.0.0/8")).get().getId();
+            Assert.assertTrue("Expected new ids past every stored id", next > store.querySubnet(validV4Subnet).get().getId());
+        }
+    }
+
+    private static List<IpamRecord> sortById(List<IpamRecord> records) {
+        return records.stream().sorted(Comparator.comparing(IpamRecord::getId)).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,174 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class BackingStoreLogTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverFromLogBackingStoreLog () throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            store.putSubnet(validV4Subnet);
+            store.putSubnet(validV6Subnet);
+            store.putSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+            store.deleteSubnet(validV4Subnet);
+        }
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            Assert.assertFalse("Expected deleted subnet to stay deleted", store.querySubnet(validV4Subnet).isPresent());
+            Assert.assertEquals(new IpamRecord(validV6Subnet, 2), store.querySubnet(validV6Subnet).get());
+            Assert.assertEquals(2, store.queryAllSubnets().size());
+            Assert.assertEquals("Expected id sequence to survive restart",
+                    Integer.valueOf(4), store.putSubnet(validV4Subnet).get().getId());
+        }
+    }
+
+    @Test
+    public void recoverFromSnapshotAndTailBackingStoreLog () throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            for (int i = 0; i < 100; i++)
+                store.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+            store.snapshot();
+            store.deleteSubnet(IpamSubnet.fromCidr("10.0.0.0/16"));
+            store.putSubnet(validV6Subnet);
+        }
+        Assert.assertTrue(Files.exists(dir.resolve(BackingStoreLog.SNAPSHOT)));
+        Assert.assertEquals("Expected logs covered by the snapshot to be deleted", 1, logFiles(dir).size());
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            Assert.assertEquals(100, store.queryAllSubnets().size());
+            Assert.assertFalse(store.querySubnet(IpamSubnet.fromCidr("10.0.0.0/16")).isPresent());
+            Assert.assertEquals(Integer.valueOf(101), store.querySubnet(validV6Subnet).get().getId());
+            Assert.assertEquals(Integer.valueOf(102), store.putSubnet(validV4Subnet).get().getId());
+        }
+    }
+
+    @Test
+    public void periodicSnapshotBackingStoreLog () throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        try (BackingStoreLog store = new BackingStoreLog(dir, 10)) {
+            for (int i = 0; i < 25; i++)
+                store.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+            for (int wait = 0; wait < 100 && !Files.exists(dir.resolve(BackingStoreLog.SNAPSHOT)); wait++)
+                Thread.sleep(20);
+        }
+        Assert.assertTrue("Expected background snapshot", Files.exists(dir.resolve(BackingStoreLog.SNAPSHOT)));
+
+        try (BackingStoreLog store = new BackingStoreLog(dir, 10)) {
+            Assert.assertEquals(25, store.queryAllSubnets().size());
+        }
+    }
+
+    @Test
+    public void truncateTornRecordBackingStoreLog () throws Exception {
+        Path dir = folder.getRoot().toPath();
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            store.putSubnet(validV4Subnet);
+            store.putSubnet(validV6Subnet);
+        }
+
+        // tear the last record, as a crash part way through a write would
+        Path log = logFiles(dir).get(0);
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            Assert.assertTrue(store.querySubnet(validV4Subnet).isPresent());
+            Assert.assertFalse("Expected torn record to be dropped", store.querySubnet(validV6Subnet).isPresent());
+            Assert.assertEquals(BackingStoreLog.LOGRECORD, Files.size(log));
+            store.putSubnet(validV6Subnet);
+        }
+
+        // a corrupt record is dropped along with everything after it
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0x55}), 10);
+        }
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            Assert.assertTrue("Expected later generation to replay", store.querySubnet(validV6Subnet).isPresent());
+            Assert.assertFalse("Expected corrupt record to be dropped", store.querySubnet(validV4Subnet).isPresent());
+        }
+    }
+
+    @Test
+    public void concurrentWritersShareCommitsBackingStoreLog () throws Exception {
+        Path dir = folder.getRoot().toPath();
+        final int threads = 8;
+        final int perThread = 100;
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            List<Thread> writers = new ArrayList<>();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int t = 0; t < threads; t++) {
+                final int base = t * perThread;
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = base; i < base + perThread; i++)
+                            store.putSubnet(IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"));
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            for (Thread writer : writers)
+                writer.join();
+            Assert.assertTrue("Unexpected errors: " + errors, errors.isEmpty());
+        }
+
+        try (BackingStoreLog store = new BackingStoreLog(dir)) {
+            List<Integer> ids = store.queryAllSubnets().stream().map(IpamRecord::getId).collect(Collectors.toList());
+            Assert.assertEquals(threads * perThread, ids.size());
+            Assert.assertEquals("Expected unique ids", threads * perThread, ids.stream().distinct().count());
+        }
+    }
+
+    @Test
+    public void writesFailAfterCloseBackingStoreLog () throws Exception {
+        BackingStoreLog store = new BackingStoreLog(folder.getRoot().toPath());
+        store.close();
+        try {
+            store.putSubnet(validV4Subnet);
+            Assert.fail("Expected BackingStoreException");
+        } catch (BackingStoreException e) {
+            Assert.assertEquals(Optional.empty(), store.querySubnet(validV4Subnet));
+        }
+    }
+
+    private static List<Path> logFiles(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(BackingStoreLog.LOGSUFFIX))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class BackingStoreMappedTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/120");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putQueryDeleteBackingStoreMapped () throws Exception {
+        try (BackingStoreMapped store = new BackingStoreMapped(folder.getRoot().toPath().resolve("store"))) {
+            IpamRecord v4 = store.putSubnet(validV4Subnet).get();
+            IpamRecord v6 = store.putSubnet(validV6Subnet).get();
+            Assert.assertFalse("Expected duplicate put to be rejected", store.putSubnet(validV4Subnet).isPresent());
+
+            Assert.assertEquals(v4, store.querySubnet(validV4Subnet).get());
+            Assert.assertEquals(v6, store.querySubnetById(v6.getId()).get());
+            Assert.assertEquals(Arrays.asList(v4, v6), store.queryAllSubnets());
+
+            Assert.assertEquals(v4, store.deleteSubnet(validV4Subnet).get());
+            Assert.assertFalse(store.deleteSubnet(validV4Subnet).isPresent());
+            Assert.assertFalse(store.querySubnet(validV4Subnet).isPresent());
+            Assert.assertFalse(store.querySubnetById(v4.getId()).isPresent());
+            Assert.assertEquals("Expected ids not to be reused",
+                    Integer.valueOf(3), store.putSubnet(validV4Subnet).get().getId());
+        }
+    }
+
+    @Test
+    public void reopenMapsExistingFileBackingStoreMapped () throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+
+        try (BackingStoreMapped store = new BackingStoreMapped(file)) {
+            for (int i = 0; i < 100; i++)
+                store.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+            store.deleteSubnet(IpamSubnet.fromCidr("10.0.0.0/16"));
+        }
+
+        try (BackingStoreMapped store = new BackingStoreMapped(file)) {
+            Assert.assertEquals(99, store.size());
+            Assert.assertFalse(store.querySubnet(IpamSubnet.fromCidr("10.0.0.0/16")).isPresent());
+            Assert.assertEquals(Integer.valueOf(50), store.querySubnet(IpamSubnet.fromCidr("10.49.0.0/16")).get().getId());
+            Assert.assertEquals(Integer.valueOf(101), store.putSubnet(validV4Subnet).get().getId());
+        }
+    }
+
+    @Test
+    public void rebuildIndexAfterUncleanShutdownBackingStoreMapped () throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+        Path crashed = folder.getRoot().toPath().resolve("crashed");
+
+        try (BackingStoreMapped store = new BackingStoreMapped(file)) {
+            store.putSubnet(validV4Subnet);
+            store.putSubnet(validV6Subnet);
+            store.deleteSubnet(validV4Subnet);
+            store.flush();
+            // A copy of a store that is still open is marked unclean
+            Files.copy(file, crashed);
+        }
+
+        try (BackingStoreMapped store = new BackingStoreMapped(crashed)) {
+            Assert.assertEquals(1, store.size());
+            Assert.assertFalse(store.querySubnet(validV4Subnet).isPresent());
+            Assert.assertEquals(new IpamRecord(validV6Subnet, 2), store.querySubnet(validV6Subnet).get());
+        }
+    }
+
+    @Test
+    public void growBeyondCapacityBackingStoreMapped () throws Exception {
+        Path file = folder.getRoot().toPath().resolve("store");
+
+        try (BackingStoreMapped store = new BackingStoreMapped(file, 4)) {
+            for (int i = 0; i < 1000; i++)
+                store.putSubnet(IpamSubnet.fromCidr("10." + (i / 256) + "." + (i % 256) + ".0/24"));
+            Assert.assertTrue("Expected store to grow", store.capacity() >= 1000);
+            Assert.assertEquals(1000, store.size());
+        }
+        Assert.assertFalse(Files.exists(file.resolveSibling("store.grow")));
+
+        try (BackingStoreMapped store = new BackingStoreMapped(file)) {
+            Assert.assertEquals(Integer.valueOf(1000), store.querySubnet(IpamSubnet.fromCidr("10.3.231.0/24")).get().getId());
+        }
+    }
+
+    // Random puts and deletes checked against a HashMap, exercising backward shift deletion
+    @Test
+    public void agreesWithHashMapBackingStoreMapped () throws Exception {
+        Random random = new Random(42);
+        Map<IpamSubnet, Integer> expected = new HashMap<>();
+
+        try (BackingStoreMapped store = new BackingStoreMapped(folder.getRoot().toPath().resolve("store"), 16)) {
+            for (int i = 0; i < 20000; i++) {
+                IpamSubnet net = IpamSubnet.fromCidr("10." + random.nextInt(16) + "." + random.nextInt(64) + ".0/24");
+                if (random.nextInt(3) == 0) {
+                    Optional<IpamRecord> deleted = store.deleteSubnet(net);
+                    Assert.assertEquals(expected.remove(net), deleted.map(IpamRecord::getId).orElse(null));
+                } else {
+                    Optional<IpamRecord> stored = store.putSubnet(net);
+                    Assert.assertEquals(!expected.containsKey(net), stored.isPresent());
+                    stored.ifPresent(record -> expected.put(net, record.getId()));
+                }
+            }
+
+            Assert.assertEquals(expected.size(), store.size());
+            for (Map.Entry<IpamSubnet, Integer> entry : expected.entrySet())
+                Assert.assertEquals(entry.getValue(), store.querySubnet(entry.getKey()).get().getId());
+        }
+    }
+
+    @Test
+    public void filterAndPageBackingStoreMapped () throws Exception {
+        try (BackingStoreMapped store = new BackingStoreMapped(folder.getRoot().toPath().resolve("store"))) {
+            for (int i = 9; i >= 0; i--)
+                store.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+            store.putSubnet(validV6Subnet);
+
+            BackingStore.filterSpec v4 = new BackingStore.filterSpecBuilder()
+                    .family(IpamSubnet.Family.IPV4).buildFilterSpec();
+            Assert.assertEquals(10, store.queryAllSubnets(v4).size());
+
+            BackingStore.filterSpec idPage = new BackingStore.filterSpecBuilder()
+                    .limit(3).after(4).buildFilterSpec();
+            Assert.assertEquals(Arrays.asList(5, 6, 7), store.queryAllSubnets(idPage).stream()
+                    .map(IpamRecord::getId).collect(Collectors.toList()));
+
+            BackingStore.filterSpec networkPage = new BackingStore.filterSpecBuilder()
+                    .network("10.0.0.0/8").limit(3).after(IpamSubnet.fromCidr("10.1.0.0/16")).buildFilterSpec();
+            Assert.assertEquals(Arrays.asList("10.2.0.0/16", "10.3.0.0/16", "10.4.0.0/16"),
+                    store.queryAllSubnets(networkPage).stream()
+                            .map(record -> record.getSubnet().getCidr()).collect(Collectors.toList()));
+        }
+    }
+
+    @Test(expected = BackingStoreException.class)
+    public void writesFailAfterCloseBackingStoreMapped () throws Exception {
+        BackingStoreMapped store = new BackingStoreMapped(folder.getRoot().toPath().resolve("store"));
+        store.close();
+        store.putSubnet(validV4Subnet);
+    }
+}
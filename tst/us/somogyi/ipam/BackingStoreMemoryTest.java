@@ -89,4 +89,129 @@ public class BackingStoreMemoryTest {
         Assert.assertTrue("Expected V4 IpamSubnet in result set", queryResult.contains(validV4IpamRecord));
         Assert.assertTrue("Expected V4 IpamSubnet in result set", queryResult.contains(validV6IpamRecord));
     }
+
+    @Test
+    public void filterSubnetsBackingStoreMemory () throws BackingStoreException {
+        BackingStore memStore = new BackingStoreMemory();
+        for (String cidr : new String[] {"10.0.0.0/8", "10.1.0.0/16", "10.2.0.0/16", "172.16.0.0/16",
+                "192.168.1.0/24", V6CIDR1, "2001:db8:0:0:0:0:0:0/32"})
+            memStore.putSubnet(IpamSubnet.fromCidr(cidr));
+
+        Assert.assertEquals("Expected only V4 subnets", 5, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().family(IpamSubnet.Family.IPV4).buildFilterSpec()).size());
+        Assert.assertEquals("Expected only V6 subnets", 2, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().family(IpamSubnet.Family.IPV6).buildFilterSpec()).size());
+        Assert.assertEquals("Expected /16 subnets", 3, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().mask(16).buildFilterSpec()).size());
+        Assert.assertEquals("Expected V4 /32 subnets only", 0, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().mask(32).family(IpamSubnet.Family.IPV4).buildFilterSpec()).size());
+        Assert.assertEquals("Expected ids 2 through 4", 3, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().minid(2).maxid(4).buildFilterSpec()).size());
+        Assert.assertEquals("Expected /16 subnets with id >= 3", 2, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().minid(3).mask(16).buildFilterSpec()).size());
+        Assert.assertEquals("Expected empty id range", 0, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().minid(4).maxid(2).buildFilterSpec()).size());
+        Assert.assertEquals("Expected subnets within 10.0.0.0/8", 3, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().network("10.0.0.0/8").buildFilterSpec()).size());
+        Assert.assertEquals("Expected subnets within 10.0.0.0/8 with mask 16", 2, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().network("10.0.0.0/8").mask(16).buildFilterSpec()).size());
+        Assert.assertEquals("Expected text prefix match", 1, memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().network("192.168").buildFilterSpec()).size());
+    }
+
+    @Test
+    public void idRangeNearMaxIdUsesIdIndexBackingStoreMemory () {
+        SecondaryIndex index = new SecondaryIndex(false);
+        List<IpamSubnet> all = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++) {
+            IpamSubnet net = IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24");
+            index.add(net, i);
+            all.add(net);
+        }
+
+        Assert.assertEquals("Expected id index for minid near the max id", 6, index.candidates(
+                new BackingStore.filterSpecBuilder().minid(995).buildFilterSpec(), all).size());
+        Assert.assertEquals("Expected id index for maxid near the min id", 5, index.candidates(
+                new BackingStore.filterSpecBuilder().maxid(5).buildFilterSpec(), all).size());
+        Assert.assertTrue("Expected no candidates above the max id", index.candidates(
+                new BackingStore.filterSpecBuilder().minid(2000).buildFilterSpec(), all).isEmpty());
+    }
+
+    @Test
+    public void filterReflectsDeletedSubnetsBackingStoreMemory () throws BackingStoreException {
+        BackingStore memStore = new BackingStoreMemory();
+        memStore.putSubnet(validV4Subnet);
+        memStore.putSubnet(validV6Subnet);
+        memStore.deleteSubnet(validV4Subnet);
+
+        BackingStore.filterSpec v4 = new BackingStore.filterSpecBuilder().family(IpamSubnet.Family.IPV4).buildFilterSpec();
+        BackingStore.filterSpec mask24 = new BackingStore.filterSpecBuilder().mask(24).buildFilterSpec();
+        Assert.assertTrue("Expected no V4 subnets after delete", memStore.queryAllSubnets(v4).isEmpty());
+        Assert.assertTrue("Expected no /24 subnets after delete", memStore.queryAllSubnets(mask24).isEmpty());
+        Assert.assertFalse("Expected deleted id to be gone", memStore.querySubnetById(1).isPresent());
+    }
+
+    @Test
+    public void pageSubnetsByIdBackingStoreMemory () throws BackingStoreException {
+        BackingStore memStore = new BackingStoreMemory();
+        for (int i = 0; i < 10; i++)
+            memStore.putSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+
+        List<IpamRecord> first = memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().limit(4).buildFilterSpec());
+        Assert.assertEquals("Expected full first page", 4, first.size());
+        Assert.assertEquals("Expected id order", Integer.valueOf(1), first.get(0).getId());
+        Assert.assertEquals("Expected id order", Integer.valueOf(4), first.get(3).getId());
+
+        // a subnet inserted between pages lands at the end, without shifting later pages
+        memStore.putSubnet(IpamSubnet.fromCidr("10.200.0.0/16"));
+        List<IpamRecord> second = memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().limit(4).after(4).buildFilterSpec());
+        Assert.assertEquals("Expected id order", Integer.valueOf(5), second.get(0).getId());
+
+        List<IpamRecord> last = memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().limit(4).after(8).buildFilterSpec());
+        Assert.assertEquals("Expected short last page", 3, last.size());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.200.0.0/16"), last.get(2).getSubnet());
+        Assert.assertTrue("Expected empty page past the end", memStore.queryAllSubnets(
+                new BackingStore.filterSpecBuilder().limit(4).after(11).buildFilterSpec()).isEmpty());
+    }
+
+    @Test
+    public void pageSubnetsByNetworkBackingStoreMemory () throws BackingStoreException {
+        BackingStore memStore = new BackingStoreMemory();
+        for (String cidr : new String[] {"192.168.1.0/24", "10.2.0.0/16", V6CIDR1, "10.1.0.0/16",
+                "172.16.0.0/16", "10.3.0.0/16"})
+            memStore.putSubnet(IpamSubnet.fromCidr(cidr));
+
+        List<IpamRecord> page = memStore.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .order(BackingStore.SortOrder.NETWORK).limit(2).buildFilterSpec());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.1.0.0/16"), page.get(0).getSubnet());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.2.0.0/16"), page.get(1).getSubnet());
+
+        page = memStore.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .after(page.get(1).getSubnet()).limit(2).buildFilterSpec());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.3.0.0/16"), page.get(0).getSubnet());
+        Assert.assertEquals(IpamSubnet.fromCidr("172.16.0.0/16"), page.get(1).getSubnet());
+
+        page = memStore.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .network("10.0.0.0/8").after(IpamSubnet.fromCidr("10.1.0.0/16")).buildFilterSpec());
+        Assert.assertEquals("Expected rest of 10.0.0.0/8", 2, page.size());
+
+        page = memStore.queryAllSubnets(new BackingStore.filterSpecBuilder()
+                .family(IpamSubnet.Family.IPV6).order(BackingStore.SortOrder.NETWORK).buildFilterSpec());
+        Assert.assertEquals("Expected only V6 subnets", 1, page.size());
+        Assert.assertEquals(validV6Subnet, page.get(0).getSubnet());
+    }
+
+    @Test
+    public void putSubnetsBackingStoreMemory () throws BackingStoreException {
+        BackingStore memStore = new BackingStoreMemory();
+        memStore.putSubnet(validV6Subnet);
+
+        List<Optional<IpamRecord>> results = memStore.putSubnets(java.util.Arrays.asList(validV4Subnet, validV6Subnet));
+        Assert.assertEquals(new IpamRecord(validV4Subnet, 2), results.get(0).get());
+        Assert.assertFalse("Expected existing subnet to be skipped", results.get(1).isPresent());
+        Assert.assertEquals(2, memStore.queryAllSubnets().size());
+    }
 }
@@ -0,0 +1,224 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+import static us.somogyi.ipam.BackingStore.SortOrder;
+import static us.somogyi.ipam.BackingStore.filterSpec;
+import static us.somogyi.ipam.BackingStore.filterSpecBuilder;
+
+public class BackingStoreShardedTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BackingStoreSharded newStore(int shards) {
+        List<BackingStore> stores = new ArrayList<>();
+        for (int i = 0; i < shards; i++)
+            stores.add(new BackingStoreConcurrent());
+        return new BackingStoreSharded(stores);
+    }
+
+    // 'count' distinct /24s and /64s spread over many routing prefixes
+    private static List<IpamSubnet> subnets(int count) {
+        List<IpamSubnet> subnets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            subnets.add((i % 3 == 0)
+                    ? IpamSubnet.fromCidr("2001:db8:" + Integer.toHexString(i) + ":" + Integer.toHexString(i * 7) + "::/64")
+                    : IpamSubnet.fromCidr("10." + (i >>> 8) + "." + (i & 0xFF) + ".0/24"));
+        }
+        return subnets;
+    }
+
+    @Test
+    public void putAndQuerySubnetBackingStoreSharded () throws BackingStoreException {
+        BackingStoreSharded store = newStore(4);
+
+        Set<Integer> ids = new HashSet<>();
+        Set<Integer> used = new HashSet<>();
+        for (IpamSubnet subnet : subnets(200)) {
+            IpamRecord put = store.putSubnet(subnet).get();
+            Assert.assertTrue("Expected globally unique id " + put.getId(), ids.add(put.getId()));
+            Assert.assertEquals("Expected id to name the subnet's shard", store.shardOf(subnet), put.getId() % 4);
+            Assert.assertEquals(put, store.querySubnet(subnet).get());
+            Assert.assertEquals(put, store.querySubnetById(put.getId()).get());
+            used.add(store.shardOf(subnet));
+        }
+        Assert.assertEquals("Expected subnets spread over every shard", 4, used.size());
+        Assert.assertFalse("Expected duplicate put to be rejected", store.putSubnet(subnets(1).get(0)).isPresent());
+        Assert.assertFalse(store.querySubnetById(-3).isPresent());
+    }
+
+    @Test
+    public void leasedIdsStayDenseBackingStoreSharded () throws Exception {
+        System.setProperty(IpamServer.PROP_STOREDIR, folder.getRoot().toString());
+        System.setProperty(IpamServer.PROP_SHARDS, "4");
+        System.setProperty(IpamServer.PROP_IDLEASE, folder.getRoot().toPath().resolve("ids").toString());
+        System.setProperty(IpamServer.PROP_IDLEASEBLOCK, "16");
+        try {
+            BackingStoreSharded store = (BackingStoreSharded) IpamServer.CreateStore("concurrent");
+
+            // Each shard leases from its own file, so its local ids count its own inserts
+            int[] counts = new int[4];
+            for (IpamSubnet subnet : subnets(200)) {
+                IpamRecord put = store.putSubnet(subnet).get();
+                int shard = store.shardOf(subnet);
+                Assert.assertEquals("Expected dense local ids in shard " + shard, ++counts[shard], put.getId() / 4);
+            }
+            store.close();
+        } finally {
+            System.clearProperty(IpamServer.PROP_STOREDIR);
+            System.clearProperty(IpamServer.PROP_SHARDS);
+            System.clearProperty(IpamServer.PROP_IDLEASE);
+            System.clearProperty(IpamServer.PROP_IDLEASEBLOCK);
+        }
+    }
+
+    @Test
+    public void idOverflowLeavesNoRecordBackingStoreSharded () throws BackingStoreException {
+        // Shard 0 refuses ids past its limit up front; the others store one and must undo it
+        List<BackingStore> stores = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            IdAllocator ids = new IdAllocator.Sequential();
+            ids.advance(BackingStoreSharded.maxLocalId(4, i));
+            stores.add(new BackingStoreConcurrent((i == 0) ? new IdAllocator.Bounded(ids, ids.peek()) : ids));
+        }
+        BackingStoreSharded store = new BackingStoreSharded(stores);
+
+        List<IpamSubnet> subnets = subnets(200);
+        Set<Integer> filled = new HashSet<>();
+        for (IpamSubnet subnet : subnets) {
+            int shard = store.shardOf(subnet);
+            if (filled.add(shard)) {
+                IpamRecord put = store.putSubnet(subnet).get();
+                Assert.assertTrue("Expected the last id of shard " + shard, put.getId() > Integer.MAX_VALUE - 4);
+                continue;
+            }
+            try {
+                store.putSubnet(subnet);
+                Assert.fail("Expected id space of shard " + shard + " to be exhausted");
+            } catch (BackingStoreException e) {
+                Assert.assertFalse("Expected no record left in shard " + shard, store.querySubnet(subnet).isPresent());
+            }
+        }
+        Assert.assertEquals(4, filled.size());
+        Assert.assertEquals(4, store.queryAllSubnets().size());
+
+        // A batch reports the subnets stored past the limit as not stored
+        stores.clear();
+        for (int i = 0; i < 4; i++) {
+            IdAllocator ids = new IdAllocator.Sequential();
+            ids.advance(BackingStoreSharded.maxLocalId(4, i) + 1);
+            stores.add(new BackingStoreConcurrent(ids));
+        }
+        store = new BackingStoreSharded(stores);
+        for (Optional<IpamRecord> result : store.putSubnets(subnets))
+            Assert.assertFalse(result.isPresent());
+        Assert.assertTrue(store.queryAllSubnets().isEmpty());
+    }
+
+    @Test
+    public void deleteSubnetBackingStoreSharded () throws BackingStoreException {
+        BackingStore store = newStore(3);
+        Integer id = store.putSubnet(validV6Subnet).get().getId();
+        long revision = store.getRevision();
+
+        Assert.assertTrue("Expected subnet to be deleted", store.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertTrue("Expected delete to advance revision", store.getRevision() > revision);
+        Assert.assertFalse("Expected second delete to find nothing", store.deleteSubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(store.querySubnet(validV6Subnet).isPresent());
+        Assert.assertFalse(store.querySubnetById(id).isPresent());
+        Assert.assertTrue(store.queryAllSubnets().isEmpty());
+    }
+
+    @Test
+    public void putSubnetsBatchBackingStoreSharded () throws BackingStoreException {
+        BackingStore store = newStore(4);
+        store.putSubnet(validV4Subnet);
+
+        List<IpamSubnet> batch = new ArrayList<>(subnets(50));
+        batch.add(10, validV4Subnet);
+        batch.add(validV6Subnet);
+        List<Optional<IpamRecord>> results = store.putSubnets(batch);
+
+        Assert.assertEquals(batch.size(), results.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).equals(validV4Subnet)) {
+                Assert.assertFalse("Expected stored subnet to be rejected", results.get(i).isPresent());
+            } else {
+                Assert.assertEquals(batch.get(i), results.get(i).get().getSubnet());
+                Assert.assertEquals(results.get(i).get(), store.querySubnetById(results.get(i).get().getId()).get());
+            }
+        }
+    }
+
+    @Test
+    public void queryAllMergesShardsBackingStoreSharded () throws BackingStoreException {
+        BackingStore store = newStore(5);
+        List<IpamSubnet> subnets = subnets(300);
+        store.putSubnets(subnets);
+
+        List<IpamRecord> all = store.queryAllSubnets();
+        Assert.assertEquals(subnets.size(), all.size());
+        Assert.assertEquals("Expected id order", all.stream().sorted(Comparator.comparing(IpamRecord::getId))
+                .collect(Collectors.toList()), all);
+        List<IpamRecord> iterated = new ArrayList<>();
+        store.iterateSubnets(null).forEachRemaining(iterated::add);
+        Assert.assertEquals(all, iterated);
+
+        // Filters match a scan of the whole listing, with ids translated per shard
+        int low = all.get(40).getId();
+        int high = all.get(200).getId();
+        List<filterSpec> specs = Arrays.asList(
+                new filterSpecBuilder().family(IpamSubnet.Family.IPV6).buildFilterSpec(),
+                new filterSpecBuilder().network("10.0.0.0/16").buildFilterSpec(),
+                new filterSpecBuilder().network("10.0.7.0/24").buildFilterSpec(),
+                new filterSpecBuilder().minid(low).maxid(high).buildFilterSpec(),
+                new filterSpecBuilder().minid(low + 1).maxid(high - 1).mask(24).buildFilterSpec());
+        for (filterSpec spec : specs) {
+            Set<IpamRecord> expected = all.stream().filter(r -> spec.matches(r.getSubnet(), r.getId()))
+                    .collect(Collectors.toSet());
+            Assert.assertFalse(expected.isEmpty());
+            Assert.assertEquals(expected, new HashSet<>(store.queryAllSubnets(spec)));
+        }
+    }
+
+    @Test
+    public void pagedListingAcrossShardsBackingStoreSharded () throws BackingStoreException {
+        BackingStore store = newStore(4);
+        store.putSubnets(subnets(250));
+        List<IpamRecord> all = store.queryAllSubnets();
+
+        for (SortOrder order : SortOrder.values()) {
+            Comparator<IpamRecord> comparator = (order == SortOrder.ID)
+                    ? Comparator.comparing(IpamRecord::getId) : Comparator.comparing(IpamRecord::getSubnet);
+            List<IpamRecord> expected = all.stream().sorted(comparator).collect(Collectors.toList());
+
+            List<IpamRecord> paged = new ArrayList<>();
+            List<IpamRecord> page;
+            IpamRecord last = null;
+            do {
+                filterSpecBuilder builder = new filterSpecBuilder().limit(17).order(order);
+                if (last != null && order == SortOrder.ID)
+                    builder.after(last.getId());
+                else if (last != null)
+                    builder.after(last.getSubnet());
+                page = store.queryAllSubnets(builder.buildFilterSpec());
+                Assert.assertTrue(page.size() <= 17);
+                paged.addAll(page);
+                last = page.isEmpty() ? null : page.get(page.size() - 1);
+            } while (page.size() == 17);
+
+            Assert.assertEquals("Expected pages to cover the listing in " + order + " order", expected, paged);
+        }
+    }
+}
@@ -1,41 +1,75 @@
 package us.somogyi.ipam;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import static us.somogyi.ipam.BackingStore.filterSpec;
+import static us.somogyi.ipam.BackingStore.filterSpecBuilder;
+
 public class BackingStoreTest {
 
+    public static final IpamSubnet V4SUBNET = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet V6SUBNET = IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64");
 
     @Test
     public void buildEmptyFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().buildFilterSpec();
+
+        Assert.assertTrue("Expected empty filter to match V4", spec.matches(V4SUBNET, 1));
+        Assert.assertTrue("Expected empty filter to match V6", spec.matches(V6SUBNET, 2));
     }
 
     @Test
     public void buildSingleNetworkFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().network("192.168.0.0/16").buildFilterSpec();
 
+        Assert.assertEquals("192.168.0.0/16", spec.getNetwork());
+        Assert.assertNotNull("Expected network to parse as CIDR", spec.getNetworkSubnet());
+        Assert.assertTrue(spec.matches(V4SUBNET, 1));
+        Assert.assertFalse(spec.matches(IpamSubnet.fromCidr("192.169.0.0/24"), 1));
+        Assert.assertFalse(spec.matches(V6SUBNET, 1));
     }
 
     @Test
     public void buildSingleFamilyFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().family(IpamSubnet.Family.IPV6).buildFilterSpec();
 
+        Assert.assertFalse(spec.matches(V4SUBNET, 1));
+        Assert.assertTrue(spec.matches(V6SUBNET, 1));
     }
 
     @Test
     public void buildSingleMaskFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().mask(24).buildFilterSpec();
 
+        Assert.assertTrue(spec.matches(V4SUBNET, 1));
+        Assert.assertFalse(spec.matches(V6SUBNET, 1));
     }
 
     @Test
     public void buildSingleMaxIdFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().maxid(5).buildFilterSpec();
 
+        Assert.assertTrue(spec.matches(V4SUBNET, 5));
+        Assert.assertFalse(spec.matches(V4SUBNET, 6));
     }
 
     @Test
     public void buildSingleMinIdFilterSpec() {
+        filterSpec spec = new filterSpecBuilder().minid(5).buildFilterSpec();
 
+        Assert.assertFalse(spec.matches(V4SUBNET, 4));
+        Assert.assertTrue(spec.matches(V4SUBNET, 5));
     }
 
     @Test
     public void buildMultiFilterSpec () {
+        filterSpec spec = new filterSpecBuilder().family(IpamSubnet.Family.IPV4).mask(24)
+                .minid(2).maxid(3).network("192.168").buildFilterSpec();
 
+        Assert.assertNull("Expected text prefix network not to parse as CIDR", spec.getNetworkSubnet());
+        Assert.assertTrue(spec.matches(V4SUBNET, 2));
+        Assert.assertFalse(spec.matches(V4SUBNET, 4));
+        Assert.assertFalse(spec.matches(IpamSubnet.fromCidr("10.168.0.0/24"), 2));
     }
 }
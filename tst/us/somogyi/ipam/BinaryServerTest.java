@@ -0,0 +1,178 @@
+package us.somogyi.ipam;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class BinaryServerTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+    public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr("2001:db8:1::/48");
+
+    private IpamRepo repo;
+    private BinaryServer server;
+    private IpamClient client;
+
+    @Before
+    public void startBinary() throws IOException {
+        repo = new IpamRepo(new BackingStoreConcurrent());
+        server = new BinaryServer(repo, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+        client = new IpamClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+    }
+
+    @After
+    public void stopBinary() throws IOException {
+        client.close();
+        server.close();
+        IpamServer.follower = null;
+    }
+
+    @Test
+    public void addGetDeleteBinaryServer () throws IOException {
+        IpamRecord v4 = client.add(validV4Subnet).get();
+        IpamRecord v6 = client.add(validV6Subnet).get();
+        Assert.assertEquals(validV4Subnet, v4.getSubnet());
+        Assert.assertEquals(repo.GetSubnet(validV6Subnet), Optional.of(v6));
+        Assert.assertFalse("Expected duplicate rejected", client.add(validV4Subnet).isPresent());
+        Assert.assertFalse("Expected overlap rejected", client.add(IpamSubnet.fromCidr("192.168.24.128/25")).isPresent());
+
+        Assert.assertEquals(Optional.of(v4), client.get(validV4Subnet));
+        Assert.assertEquals(Optional.of(v6), client.getById(v6.getId()));
+        Assert.assertFalse(client.get(IpamSubnet.fromCidr("10.0.0.0/8")).isPresent());
+        Assert.assertFalse(client.getById(12345).isPresent());
+
+        Assert.assertEquals(Optional.of(v6), client.delete(validV6Subnet));
+        Assert.assertFalse("Expected second delete to find nothing", client.delete(validV6Subnet).isPresent());
+        Assert.assertFalse(repo.GetSubnet(validV6Subnet).isPresent());
+    }
+
+    @Test
+    public void pipelinedBatchAndListBinaryServer () throws IOException {
+        List<IpamSubnet> subnets = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            subnets.add((i % 5 == 0)
+                    ? IpamSubnet.fromCidr("2001:db8:" + Integer.toHexString(i) + "::/48")
+                    : IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"));
+        }
+        subnets.add(subnets.get(7));
+        List<Optional<IpamRecord>> added = client.addAll(subnets);
+        Assert.assertEquals(subnets.size(), added.size());
+        for (int i = 0; i < 2500; i++)
+            Assert.assertEquals(subnets.get(i), added.get(i).get().getSubnet());
+        Assert.assertFalse("Expected duplicate in batch rejected", added.get(2500).isPresent());
+        Assert.assertEquals(added.subList(0, 2500), client.getAll(subnets.subList(0, 2500)));
+
+        // Page through every IPV4 record by id
+        List<IpamRecord> listed = new ArrayList<>();
+        List<IpamRecord> page;
+        int after = 0;
+        do {
+            page = client.list(IpamSubnet.Family.IPV4, after, 300);
+            listed.addAll(page);
+            if (!page.isEmpty())
+                after = page.get(page.size() - 1).getId();
+        } while (page.size() == 300);
+        Assert.assertEquals(2000, listed.size());
+        for (int i = 1; i < listed.size(); i++)
+            Assert.assertTrue("Expected id order", listed.get(i).getId() > listed.get(i - 1).getId());
+        Assert.assertEquals(2500, client.list(null, 0, IpamServer.MAXPAGELIMIT).size());
+    }
+
+    @Test
+    public void rejectsInvalidRequestsBinaryServer () throws IOException {
+        try {
+            client.list(null, 0, 0);
+            Assert.fail("Expected invalid limit refused");
+        } catch (IpamClient.StatusException e) {
+            Assert.assertEquals(BinaryProtocol.INVALID, e.getStatus());
+        }
+        Assert.assertTrue("Expected connection usable after a refusal", client.add(validV4Subnet).isPresent());
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // ADD 10.0.0.0/0: mask out of range
+            out.writeInt(11);
+            out.writeByte(BinaryProtocol.ADD);
+            out.writeInt(42);
+            out.writeByte(4);
+            out.writeInt(0x0A000000);
+            out.writeByte(0);
+            out.flush();
+            int length = in.readInt();
+            Assert.assertEquals(BinaryProtocol.INVALID, in.readByte());
+            Assert.assertEquals(42, in.readInt());
+            in.skipBytes(length - 5);
+
+            // An unknown opcode, whatever its body, is refused as such
+            out.writeInt(11);
+            out.writeByte(9);
+            out.writeInt(43);
+            out.writeByte(7);
+            out.writeInt(0x0A000000);
+            out.writeByte(0);
+            out.flush();
+            length = in.readInt();
+            Assert.assertEquals(BinaryProtocol.BAD_OPCODE, in.readByte());
+            Assert.assertEquals(43, in.readInt());
+            in.skipBytes(length - 5);
+
+            // A frame longer than any request drops the connection
+            out.writeInt(1 << 20);
+            out.flush();
+            Assert.assertEquals("Expected connection closed", -1, in.read());
+        }
+    }
+
+    @Test
+    public void followerRefusesWritesBinaryServer () throws IOException {
+        IpamServer.follower = new ReplicationFollower(repo, new BackingStoreConcurrent(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+        try {
+            client.add(validV4Subnet);
+            Assert.fail("Expected write refused by a follower");
+        } catch (IpamClient.StatusException e) {
+            Assert.assertEquals(BinaryProtocol.MISDIRECTED, e.getStatus());
+        }
+        try {
+            client.get(validV4Subnet);
+            Assert.fail("Expected read refused by a follower that never caught up");
+        } catch (IpamClient.StatusException e) {
+            Assert.assertEquals(BinaryProtocol.UNAVAILABLE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void usableAfterFailedPipelineBinaryServer () throws IOException {
+        List<IpamSubnet> subnets = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            subnets.add(IpamSubnet.fromCidr("10.0." + i + ".0/24"));
+
+        IpamServer.follower = new ReplicationFollower(repo, new BackingStoreConcurrent(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+        try {
+            client.addAll(subnets);
+            Assert.fail("Expected pipelined writes refused by a follower");
+        } catch (IpamClient.StatusException e) {
+            Assert.assertEquals(BinaryProtocol.MISDIRECTED, e.getStatus());
+        }
+        IpamServer.follower = null;
+
+        Assert.assertTrue("Expected call after a failed batch to succeed", client.add(validV4Subnet).isPresent());
+        Assert.assertEquals(subnets.size(), client.addAll(subnets).size());
+    }
+}
@@ -0,0 +1,98 @@
+package us.somogyi.ipam;
+
+import com.google.common.net.InetAddresses;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+public class CidrParserTest {
+
+    public static final String[] addresses = new String[] {
+            "0.0.0.0", "10.0.0.0", "192.168.1.0", "255.255.255.255", "1.2.3", "1.2.3.4.5",
+            "01.2.3.4", "1.2.3.256", "1..3.4", "1.2.3.4.", ".1.2.3", "1234.1.1.1", "a.b.c.d",
+            "::", "::1", "1::", "1:2:3:4:5:6:7:8", "1:0:0:4:0:0:7:8", "2001:db8::ff00:42:8329",
+            "2001:DB8::", "::ffff:1.2.3.4", "::ffff:0102:0304", "::1.2.3.4", "1:2:3:4:5:6:1.2.3.4",
+            "1:2:3:4:5:6:7:1.2.3.4", "1:2:3:4:5::1.2.3.4", ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:",
+            "1:::2", "1::2::3", "7:6:5:4:3:2:1:0::", "::7:6:5:4:3:2:1:0", "9:8:7:6:5:4:3::2:1",
+            "12345::", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "::ffff:1.2.3", "g::", ":", ""
+    };
+
+    public static final String[] masks = new String[] {"0", "1", "8", "24", "31", "32", "64", "127", "128", "024", "x", ""};
+
+    @Test
+    public void AgreesWithInetAddressesParsing () {
+        for (String address : addresses) {
+            for (String mask : masks) {
+                String cidr = address + "/" + mask;
+                assertMatchesReference(cidr);
+            }
+        }
+    }
+
+    @Test
+    public void AgreesWithInetAddressesOnRandomInput () {
+        Random random = new Random(7);
+        String alphabet = "0123456789abcdef:.:";
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder address = new StringBuilder();
+            int length = 1 + random.nextInt(20);
+            for (int c = 0; c < length; c++)
+                address.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            assertMatchesReference(address + "/" + (1 + random.nextInt(127)));
+        }
+    }
+
+    @Test
+    public void RejectMalformedSeparators () {
+        Assert.assertFalse(IpamSubnet.tryFromCidr("10.0.0.0").isPresent());
+        Assert.assertFalse(IpamSubnet.tryFromCidr("10.0.0.0/").isPresent());
+        Assert.assertFalse(IpamSubnet.tryFromCidr("10.0.0.0/8/8").isPresent());
+        Assert.assertFalse(IpamSubnet.tryFromCidr("/8").isPresent());
+        Assert.assertFalse(IpamSubnet.tryFromCidr("10.0.0.0/-8").isPresent());
+        Assert.assertFalse(IpamSubnet.tryFromCidr("10.0.0.0/000000008").isPresent());
+    }
+
+    @Test
+    public void DescribeFailureReason () {
+        Assert.assertEquals("Invalid CIDR Specified 10.0.0.0: invalid format",
+                IpamSubnet.isValidCIDR("10.0.0.0").getValue());
+        Assert.assertEquals("Invalid CIDR Specified 10.0.0/8: illegal network number",
+                IpamSubnet.isValidCIDR("10.0.0/8").getValue());
+        Assert.assertEquals("Invalid CIDR Specified 10.0.0.0/32: illegal mask length",
+                IpamSubnet.isValidCIDR("10.0.0.0/32").getValue());
+    }
+
+    // Compare against the original split / InetAddresses based parsing rules
+    private static void assertMatchesReference(String cidr) {
+        IpamSubnet expected = null;
+        String[] parts = cidr.split("/");
+        if (parts.length == 2 && parts[1].matches("[0-9]{1,4}") && InetAddresses.isInetAddress(parts[0])) {
+            InetAddress address = InetAddresses.forString(parts[0]);
+            int mask = Integer.valueOf(parts[1]);
+            int maskMax = (address.getAddress().length == 4) ? IpamSubnet.V4MASKMAX : IpamSubnet.V6MASKMAX;
+            if (mask >= IpamSubnet.MASKMIN && mask < maskMax)
+                expected = IpamSubnet.fromBits(
+                        (address.getAddress().length == 4) ? IpamSubnet.Family.IPV4 : IpamSubnet.Family.IPV6,
+                        pack(address.getAddress(), 0), pack(address.getAddress(), 8), mask);
+        }
+
+        IpamSubnet actual = IpamSubnet.tryFromCidr(cidr).orElse(null);
+        Assert.assertEquals("Parse mismatch for " + cidr, expected, actual);
+        if (expected != null)
+            Assert.assertEquals("Text mismatch for " + cidr,
+                    address(parts[0]).toString().substring(1), actual.getSubnetId());
+    }
+
+    private static InetAddress address(String text) {
+        return InetAddresses.forString(text);
+    }
+
+    private static long pack(byte[] address, int offset) {
+        long packed = 0;
+        for (int i = 0; i < 8; i++)
+            packed = (packed << 8) | ((offset + i < address.length) ? address[offset + i] & 0xFF : 0);
+        return packed;
+    }
+}
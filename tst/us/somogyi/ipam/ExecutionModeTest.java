@@ -0,0 +1,57 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ExecutionModeTest {
+
+    @Test
+    public void LookupModeByName () {
+        Assert.assertEquals(ExecutionMode.FIXED, ExecutionMode.fromName("fixed"));
+        Assert.assertEquals(ExecutionMode.WORK_STEALING, ExecutionMode.fromName("work-stealing"));
+        Assert.assertEquals(ExecutionMode.VIRTUAL, ExecutionMode.fromName(" Virtual "));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void RejectUnknownModeName () {
+        ExecutionMode.fromName("single");
+    }
+
+    @Test
+    public void EveryModeRunsTasks () throws InterruptedException {
+        for (ExecutionMode mode : ExecutionMode.values()) {
+            ExecutorService executor = mode.newExecutor(2, 4);
+            CountDownLatch done = new CountDownLatch(20);
+            for (int i = 0; i < 20; i++)
+                executor.execute(done::countDown);
+
+            Assert.assertTrue("Expected all tasks to run for " + mode, done.await(5, TimeUnit.SECONDS));
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void FixedModeRunsOverflowOnCaller () throws InterruptedException {
+        ExecutorService executor = ExecutionMode.FIXED.newExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(() -> { });    // fills the queue
+
+        Thread[] ranOn = new Thread[1];
+        executor.execute(() -> ranOn[0] = Thread.currentThread());
+        release.countDown();
+
+        Assert.assertEquals("Expected overflow task to run on submitting thread", Thread.currentThread(), ranOn[0]);
+        executor.shutdown();
+    }
+}
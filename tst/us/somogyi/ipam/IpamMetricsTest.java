@@ -0,0 +1,77 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+public class IpamMetricsTest {
+
+    private static String render(IpamMetrics metrics) throws IOException {
+        StringWriter out = new StringWriter();
+        metrics.write(out);
+        return out.toString();
+    }
+
+    @Test
+    public void requestCountsAndLatencyIpamMetrics () throws IOException {
+        IpamMetrics metrics = new IpamMetrics();
+        IpamMetrics.RouteMetrics route = metrics.route("/subnets");
+        route.record("GET", 200, 50000);
+        route.record("GET", 200, 2000000);
+        route.record("POST", 422, 100000);
+        route.record("PATCH", 400, 100000);
+
+        String text = render(metrics);
+        Assert.assertTrue(text.contains("# TYPE ipam_http_requests_total counter\n"));
+        Assert.assertTrue(text.contains("ipam_http_requests_total{route=\"/subnets\",method=\"GET\",code=\"200\"} 2\n"));
+        Assert.assertTrue(text.contains("ipam_http_requests_total{route=\"/subnets\",method=\"POST\",code=\"422\"} 1\n"));
+        Assert.assertTrue(text.contains("ipam_http_requests_total{route=\"/subnets\",method=\"OTHER\",code=\"400\"} 1\n"));
+        Assert.assertTrue(text.contains(
+                "ipam_http_request_duration_seconds_bucket{route=\"/subnets\",method=\"GET\",le=\"1.0E-4\"} 1\n"));
+        Assert.assertTrue(text.contains(
+                "ipam_http_request_duration_seconds_bucket{route=\"/subnets\",method=\"GET\",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(text.contains(
+                "ipam_http_request_duration_seconds_count{route=\"/subnets\",method=\"GET\"} 2\n"));
+        Assert.assertFalse("Expected no store metrics without a monitored store", text.contains("ipam_store_"));
+    }
+
+    @Test
+    public void storeOperationsIpamMetrics () throws Exception {
+        IpamMetrics metrics = new IpamMetrics();
+        BackingStore seeded = new BackingStoreMemory();
+        seeded.putSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+
+        BackingStore store = new BackingStoreMetrics(seeded, metrics);
+        store.putSubnet(IpamSubnet.fromCidr("11.0.0.0/8"));
+        store.putSubnet(IpamSubnet.fromCidr("11.0.0.0/8"));
+        store.putSubnets(Arrays.asList(IpamSubnet.fromCidr("12.0.0.0/8"), IpamSubnet.fromCidr("13.0.0.0/8")));
+        store.deleteSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+        Assert.assertEquals(3, store.queryAllSubnets().size());
+
+        String text = render(metrics);
+        Assert.assertTrue(text.contains("ipam_store_operation_duration_seconds_count{op=\"put\"} 2\n"));
+        Assert.assertTrue(text.contains("ipam_store_operation_duration_seconds_count{op=\"delete\"} 1\n"));
+        Assert.assertTrue(text.contains("ipam_store_operation_errors_total{op=\"put\"} 0\n"));
+        Assert.assertTrue(text.contains("ipam_store_batch_size_sum 2\n"));
+        Assert.assertTrue(text.contains("ipam_store_result_size_sum 3\n"));
+        Assert.assertTrue(text.contains("ipam_store_records 3\n"));
+    }
+
+    @Test
+    public void executorQueueDepthIpamMetrics () throws IOException {
+        IpamMetrics metrics = new IpamMetrics();
+        ExecutorService executor = ExecutionMode.FIXED.newExecutor(1, 4);
+        try {
+            metrics.monitorExecutor(executor);
+            String text = render(metrics);
+            Assert.assertTrue(text.contains("ipam_executor_queue_depth 0\n"));
+            Assert.assertTrue(text.contains("ipam_executor_active_threads 0\n"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
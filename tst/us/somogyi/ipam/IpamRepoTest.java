@@ -5,10 +5,17 @@ import org.junit.Test;
 import org.junit.Assert;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
@@ -118,9 +125,182 @@ public class IpamRepoTest {
 
     }
 
-    @Ignore
     @Test
     public void AddConflictingSubnetToRepo () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+
+        Assert.assertTrue("Expected 10.0.0.0/8 to be added",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8")).isPresent());
+        Assert.assertFalse("Expected contained 10.0.0.0/16 to be rejected",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/16")).isPresent());
+        Assert.assertFalse("Expected containing 10.0.0.0/7 to be rejected",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/7")).isPresent());
+        Assert.assertFalse("Expected duplicate 10.0.0.0/8 to be rejected",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8")).isPresent());
+        Assert.assertTrue("Expected disjoint 11.0.0.0/8 to be added",
+                repo.AddSubnet(IpamSubnet.fromCidr("11.0.0.0/8")).isPresent());
+        Assert.assertTrue("Expected V6 subnet to be added",
+                repo.AddSubnet(IpamSubnet.fromCidr(V6CIDR)).isPresent());
+    }
+
+    @Test
+    public void AddSubnetAfterConflictingSubnetDeleted () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+
+        repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+        Assert.assertTrue("Expected 10.0.0.0/8 to be deleted",
+                repo.DeleteSubnet(IpamSubnet.fromCidr("10.0.0.0/8")).isPresent());
+        Assert.assertTrue("Expected 10.0.0.0/16 to be added once 10.0.0.0/8 is removed",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/16")).isPresent());
+    }
+
+    @Test
+    public void DetectCollisionWithPreloadedBackingStore () throws BackingStoreException {
+        BackingStore store = new BackingStoreMemory();
+        store.putSubnet(IpamSubnet.fromCidr(V4CIDR2));
+        IpamRepo repo = new IpamRepo(store);
+
+        Assert.assertFalse("Expected subnet within preloaded 172.16.0.0/16 to be rejected",
+                repo.AddSubnet(IpamSubnet.fromCidr("172.16.4.0/24")).isPresent());
+    }
+
+    @Test
+    public void LookupAddressFromPrefixIndex () {
+        IpamRepo repo = new IpamRepo(new BackingStoreConcurrent());
+        IpamRecord v4 = repo.AddSubnet(IpamSubnet.fromCidr("10.4.0.0/16")).get();
+        IpamRecord v6 = repo.AddSubnet(IpamSubnet.fromCidr("2001:db8::/32")).get();
+
+        Assert.assertEquals(v4, repo.LookupAddress(IpamSubnet.tryFromAddress("10.4.7.19").get()).get());
+        Assert.assertEquals(v6, repo.LookupAddress(IpamSubnet.tryFromAddress("2001:db8::42").get()).get());
+        Assert.assertEquals(Arrays.asList(v4), repo.LookupAddressChain(IpamSubnet.tryFromAddress("10.4.7.19").get()));
+        assertFalse(repo.LookupAddress(IpamSubnet.tryFromAddress("10.5.0.1").get()).isPresent());
+
+        repo.DeleteSubnet(v4.getSubnet());
+        assertFalse("Expected deleted subnet not to match",
+                repo.LookupAddress(IpamSubnet.tryFromAddress("10.4.7.19").get()).isPresent());
+    }
 
+    @Test
+    public void UtilizationFollowsAddAndDelete () {
+        IpamRepo repo = new IpamRepo(new BackingStoreConcurrent());
+        IpamSubnet parent = IpamSubnet.fromCidr("10.0.0.0/8");
+
+        IpamRecord large = repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/12")).get();
+        IpamRecord small = repo.AddSubnet(IpamSubnet.fromCidr("10.64.0.0/24")).get();
+        SubnetUtilization usage = repo.GetUtilization(parent);
+        Assert.assertEquals(BigInteger.valueOf((1 << 20) + (1 << 8)), usage.getAllocated());
+        Assert.assertEquals(2, usage.getSubnets());
+        Assert.assertEquals(Arrays.asList(large, small), repo.GetLargestSubnets(parent, 5));
+
+        repo.DeleteSubnet(large.getSubnet());
+        Assert.assertEquals(1, repo.GetUtilization(parent).getSubnets());
+        Assert.assertEquals(9, repo.GetUtilization(parent).getLargestFreeMask());
+    }
+
+    @Test
+    public void AllocateNextFreeSubnetFromParent () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        IpamSubnet parent = IpamSubnet.fromCidr("10.20.0.0/16");
+
+        repo.AddSubnet(IpamSubnet.fromCidr("10.20.0.0/26"));
+        repo.AddSubnet(IpamSubnet.fromCidr("10.20.1.0/24"));
+
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.0.64/26"),
+                repo.AllocateSubnet(parent, 26, AllocationPolicy.FIRST_FIT).get().getSubnet());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.0.128/25"),
+                repo.AllocateSubnet(parent, 25, AllocationPolicy.BEST_FIT).get().getSubnet());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.2.0/23"),
+                repo.AllocateSubnet(parent, 23, AllocationPolicy.FIRST_FIT).get().getSubnet());
+        Assert.assertTrue("Expected allocation to be stored",
+                repo.GetSubnet(IpamSubnet.fromCidr("10.20.2.0/23")).isPresent());
+        Assert.assertFalse("Expected allocation to collide with explicit add",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.20.2.0/24")).isPresent());
+        Assert.assertFalse("Expected no room for a /16",
+                repo.AllocateSubnet(parent, 16, AllocationPolicy.FIRST_FIT).isPresent());
+    }
+
+    @Test
+    public void AddSubnetBatchAtomicAndBestEffort () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(IpamSubnet.fromCidr(V4CIDR2));
+
+        List<IpamSubnet> batch = Arrays.asList(IpamSubnet.fromCidr("10.0.0.0/8"),
+                IpamSubnet.fromCidr("10.1.0.0/16"), IpamSubnet.fromCidr("172.16.1.0/24"),
+                IpamSubnet.fromCidr(V6CIDR));
+
+        List<IpamRepo.BatchResult> results = repo.AddSubnets(batch, BatchMode.ATOMIC);
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals(IpamRepo.BATCH_ROLLEDBACK, results.get(0).getError());
+        Assert.assertEquals("Expected collision with earlier batch subnet",
+                IpamRepo.BATCH_COLLISION, results.get(1).getError());
+        Assert.assertEquals("Expected collision with stored subnet",
+                IpamRepo.BATCH_COLLISION, results.get(2).getError());
+        Assert.assertEquals("Expected repo unchanged", 1, repo.GetAllSubnets().size());
+        Assert.assertTrue("Expected rolled back subnet to be free",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/16")).isPresent());
+        repo.DeleteSubnet(IpamSubnet.fromCidr("10.0.0.0/16"));
+
+        results = repo.AddSubnets(batch, BatchMode.BEST_EFFORT);
+        Assert.assertTrue(results.get(0).getRecord().isPresent());
+        Assert.assertFalse(results.get(1).getRecord().isPresent());
+        Assert.assertFalse(results.get(2).getRecord().isPresent());
+        Assert.assertTrue(results.get(3).getRecord().isPresent());
+        Assert.assertEquals(3, repo.GetAllSubnets().size());
+        Assert.assertFalse("Expected batch subnets in collision index",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.2.0.0/16")).isPresent());
+    }
+
+    @Test
+    public void ConcurrentAddAndDeleteKeepIndexInStep () throws Exception {
+        // A store that yields around each write, widening the window between store and index
+        BackingStore store = new BackingStoreConcurrent() {
+            @Override
+            public Optional<IpamRecord> putSubnet(IpamSubnet net) throws BackingStoreException {
+                Optional<IpamRecord> result = super.putSubnet(net);
+                Thread.yield();
+                return result;
+            }
+
+            @Override
+            public Optional<IpamRecord> deleteSubnet(IpamSubnet net) throws BackingStoreException {
+                Thread.yield();
+                return super.deleteSubnet(net);
+            }
+        };
+        IpamRepo repo = new IpamRepo(store);
+        List<IpamSubnet> subnets = Arrays.asList(IpamSubnet.fromCidr("10.0.0.0/16"),
+                IpamSubnet.fromCidr("10.0.0.0/24"), IpamSubnet.fromCidr("10.0.0.0/25"),
+                IpamSubnet.fromCidr("10.0.1.0/24"));
+        int threads = 6;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<?>> done = new ArrayList<>();
+
+        // every thread adds and deletes the same overlapping subnets
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    IpamSubnet subnet = subnets.get(random.nextInt(subnets.size()));
+                    if (random.nextBoolean())
+                        repo.AddSubnet(subnet);
+                    else
+                        repo.DeleteSubnet(subnet);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done)
+            f.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+
+        List<IpamRecord> stored = store.queryAllSubnets();
+        Assert.assertTrue("Expected no overlapping subnets stored", stored.size() <= 2);
+        for (IpamRecord record : stored)
+            Assert.assertEquals(Optional.of(record), repo.DeleteSubnet(record.getSubnet()));
+        Assert.assertTrue("Expected store empty", store.queryAllSubnets().isEmpty());
+        Assert.assertTrue("Expected no phantom index entry",
+                repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8")).isPresent());
     }
 }
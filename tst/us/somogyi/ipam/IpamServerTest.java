@@ -2,6 +2,7 @@ package us.somogyi.ipam;
 
 import com.google.common.net.InetAddresses;
 import javafx.util.Pair;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -34,41 +35,78 @@ public class IpamServerTest {
     public static final IpamSubnet validV6Subnet = IpamSubnet.fromCidr(V6CIDR1);
     public static final IpamRecord validV6IpamRecord = new IpamRecord(validV6Subnet, 1);
 
+    /* GET listing through streamGetRequest against an in-memory exchange: the streamed body
+    *  and its code, or the error text and code if the parameters were refused
+     */
+    private static Pair<String, Integer> streamGet(Map<String, String> parameters, IpamRepo target) throws IOException {
+        ListingExchange exchange = new ListingExchange();
+        Pair<String, Integer> refused = streamGetRequest(exchange, parameters, target);
+        if (refused != null)
+            return refused;
+        return new Pair<>(exchange.body.toString("UTF-8"), exchange.code);
+    }
+
+    private static class ListingExchange extends com.sun.net.httpserver.HttpExchange {
+        final com.sun.net.httpserver.Headers requestHeaders = new com.sun.net.httpserver.Headers();
+        final com.sun.net.httpserver.Headers responseHeaders = new com.sun.net.httpserver.Headers();
+        final java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        int code = -1;
+
+        @Override public com.sun.net.httpserver.Headers getRequestHeaders() { return requestHeaders; }
+        @Override public com.sun.net.httpserver.Headers getResponseHeaders() { return responseHeaders; }
+        @Override public java.net.URI getRequestURI() { return java.net.URI.create(SUBNETSPATH); }
+        @Override public String getRequestMethod() { return "GET"; }
+        @Override public com.sun.net.httpserver.HttpContext getHttpContext() { return null; }
+        @Override public void close() {}
+        @Override public InputStream getRequestBody() { return new ByteArrayInputStream(new byte[0]); }
+        @Override public java.io.OutputStream getResponseBody() { return body; }
+        @Override public void sendResponseHeaders(int code, long length) { this.code = code; }
+        @Override public InetSocketAddress getRemoteAddress() { return null; }
+        @Override public int getResponseCode() { return code; }
+        @Override public InetSocketAddress getLocalAddress() { return null; }
+        @Override public String getProtocol() { return "HTTP/1.1"; }
+        @Override public Object getAttribute(String name) { return null; }
+        @Override public void setAttribute(String name, Object value) {}
+        @Override public void setStreams(InputStream i, java.io.OutputStream o) {}
+        @Override public com.sun.net.httpserver.HttpPrincipal getPrincipal() { return null; }
+    }
 
     @Test
-    public void ProcessGetRequestWithValidSingleV4RepoDataItem () {
+    public void ProcessGetRequestWithValidSingleV4RepoDataItem () throws IOException {
         Map<String, String> parameters = new HashMap<>();
         JSONObject jo = new JSONObject();
         List<IpamRecord> expected =  new ArrayList<>();
         expected.add(validV4IpamRecord);
 
         IpamRepo mockRepo = mock(IpamRepo.class);
-        when(mockRepo.GetAllSubnets()).thenReturn(expected);
+        when(mockRepo.GetRevision()).thenReturn(BackingStore.UNVERSIONED);
+        when(mockRepo.IterateSubnets(null)).thenReturn(expected.iterator());
 
-        Pair<String, Integer> result = processGetRequest(parameters, jo, mockRepo);
+        Pair<String, Integer> result = streamGet(parameters, mockRepo);
 
         Assert.assertEquals("Expected empty JSON response", "[{\"cidr\":\"192.168.24.0/24\",\"id\":1,\"family\":\"4\"}]", result.getKey() );
         Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
     }
 
     @Test
-    public void ProcessGetRequestWithValidSingleV6RepoDataItem () {
+    public void ProcessGetRequestWithValidSingleV6RepoDataItem () throws IOException {
         Map<String, String> parameters = new HashMap<>();
         JSONObject jo = new JSONObject();
         List<IpamRecord> expected =  new ArrayList<>();
         expected.add(validV6IpamRecord);
 
         IpamRepo mockRepo = mock(IpamRepo.class);
-        when(mockRepo.GetAllSubnets()).thenReturn(expected);
+        when(mockRepo.GetRevision()).thenReturn(BackingStore.UNVERSIONED);
+        when(mockRepo.IterateSubnets(null)).thenReturn(expected.iterator());
 
-        Pair<String, Integer> result = processGetRequest(parameters, jo, mockRepo);
+        Pair<String, Integer> result = streamGet(parameters, mockRepo);
 
         Assert.assertEquals("Expected empty JSON response", "[{\"cidr\":\"1:2:3:4:5:6:7:8/64\",\"id\":1,\"family\":\"6\"}]", result.getKey() );
         Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
     }
 
     @Test
-    public void ProcessGetRequestWithValidMixedV4V6RepoDataItem () {
+    public void ProcessGetRequestWithValidMixedV4V6RepoDataItem () throws IOException {
         Map<String, String> parameters = new HashMap<>();
         JSONObject jo = new JSONObject();
         List<IpamRecord> expected =  new ArrayList<>();
@@ -76,9 +114,10 @@ public class IpamServerTest {
         expected.add(validV6IpamRecord);
 
         IpamRepo mockRepo = mock(IpamRepo.class);
-        when(mockRepo.GetAllSubnets()).thenReturn(expected);
+        when(mockRepo.GetRevision()).thenReturn(BackingStore.UNVERSIONED);
+        when(mockRepo.IterateSubnets(null)).thenReturn(expected.iterator());
 
-        Pair<String, Integer> result = processGetRequest(parameters, jo, mockRepo);
+        Pair<String, Integer> result = streamGet(parameters, mockRepo);
 
         Assert.assertEquals("Expected empty JSON response",
                 "[{\"cidr\":\"192.168.24.0/24\",\"id\":1,\"family\":\"4\"}," +
@@ -88,15 +127,43 @@ public class IpamServerTest {
     }
 
     @Test
-    public void ProcessGetRequestWithEmptyRepo () {
+    public void ProcessGetRequestWithFamilyFilter () throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("family", "6");
+        JSONObject jo = new JSONObject();
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(validV4Subnet);
+        repo.AddSubnet(validV6Subnet);
+
+        Pair<String, Integer> result = streamGet(parameters, repo);
+
+        Assert.assertEquals("Expected only V6 subnet", "[{\"cidr\":\"1:2:3:4:5:6:7:8/64\",\"id\":2,\"family\":\"6\"}]", result.getKey());
+        Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
+    }
+
+    @Test
+    public void ProcessGetRequestRejectInvalidFilterValue () throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("minid", "one");
+        IpamRepo mockRepo = mock(IpamRepo.class);
+
+        Pair<String, Integer> result = streamGet(parameters, mockRepo);
+
+        Assert.assertEquals("Expected invalid parameter response code", new Integer(422), result.getValue());
+    }
+
+    @Test
+    public void ProcessGetRequestWithEmptyRepo () throws IOException {
         Map<String, String> parameters = new HashMap<>();
         JSONObject jo = new JSONObject();
         Optional<IpamRecord> expected = Optional.ofNullable(null);
 
         IpamRepo mockRepo = mock(IpamRepo.class);
         when(mockRepo.AddSubnet(validV4Subnet)).thenReturn(expected);
+        when(mockRepo.GetRevision()).thenReturn(BackingStore.UNVERSIONED);
+        when(mockRepo.IterateSubnets(null)).thenReturn(Collections.emptyIterator());
 
-        Pair<String, Integer> result = processGetRequest(parameters, jo, mockRepo);
+        Pair<String, Integer> result = streamGet(parameters, mockRepo);
 
         Assert.assertEquals("Expected empty JSON response", "[]", result.getKey());
         Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
@@ -164,6 +231,356 @@ public class IpamServerTest {
         Assert.assertEquals("Expected invalid response code", new Integer(422), result.getValue());
     }
 
+    @Test
+    public void ProcessAllocatePostRequest () {
+        Map<String, String> parameters = new HashMap<>();
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(IpamSubnet.fromCidr("10.20.0.0/26"));
+
+        Pair<String, Integer> result = processPostRequest(parameters,
+                new JSONObject("{\"parent\":\"10.20.0.0/16\",\"mask\":26,\"policy\":\"best-fit\"}"), repo);
+        Assert.assertEquals("Expected allocated subnet",
+                "{\"cidr\":\"10.20.0.64/26\",\"id\":2,\"family\":\"4\"}", result.getKey());
+        Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
+
+        result = processPostRequest(parameters, new JSONObject("{\"parent\":\"10.20.0.0/16\",\"mask\":8}"), repo);
+        Assert.assertEquals("Expected invalid mask response code", new Integer(422), result.getValue());
+        for (String mask : new String[] {"26.9", "\"26\"", "null", "4294967322"}) {
+            result = processPostRequest(parameters, new JSONObject("{\"parent\":\"10.20.0.0/16\",\"mask\":" + mask + "}"), repo);
+            Assert.assertEquals("Expected non-integer mask " + mask + " refused", new Integer(422), result.getValue());
+        }
+        result = processPostRequest(parameters, new JSONObject("{\"parent\":\"10.20.0.0/16\"}"), repo);
+        Assert.assertEquals("Expected missing mask response code", new Integer(422), result.getValue());
+        Assert.assertEquals("Expected nothing allocated by refused requests", 2, repo.GetAllSubnets().size());
+        result = processPostRequest(parameters,
+                new JSONObject("{\"parent\":\"10.20.0.0/16\",\"mask\":24,\"policy\":\"worst-fit\"}"), repo);
+        Assert.assertEquals("Expected invalid policy response code", new Integer(422), result.getValue());
+        result = processPostRequest(parameters, new JSONObject("{\"parent\":\"10.20.0.0/26\",\"mask\":28}"), repo);
+        Assert.assertEquals("Expected full parent response code", new Integer(500), result.getValue());
+    }
+
+    @Test
+    public void ProcessBatchPostRequest () {
+        Map<String, String> parameters = new HashMap<>();
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/16"));
+
+        JSONArray batch = new JSONArray("[{\"cidr\":\"10.1.0.0/16\"},{\"cidr\":\"10.0.1.0/24\"},{\"cidr\":\"10.2.0.0/16\"}]");
+        Pair<String, Integer> result = processBatchPostRequest(parameters, batch, repo);
+        Assert.assertEquals("Expected rejected batch response code", new Integer(500), result.getValue());
+        Assert.assertEquals("Expected nothing stored", 1, repo.GetAllSubnets().size());
+        Assert.assertEquals(IpamRepo.BATCH_COLLISION, new JSONArray(result.getKey()).getJSONObject(1).getString("error"));
+
+        parameters.put("mode", "best-effort");
+        result = processBatchPostRequest(parameters, batch, repo);
+        JSONArray items = new JSONArray(result.getKey());
+        Assert.assertEquals("Expected valid response code", new Integer(200), result.getValue());
+        Assert.assertEquals("10.1.0.0/16", items.getJSONObject(0).getString("cidr"));
+        Assert.assertEquals(2, items.getJSONObject(0).getInt("id"));
+        Assert.assertTrue("Expected colliding item to fail", items.getJSONObject(1).has("error"));
+        Assert.assertEquals(3, items.getJSONObject(2).getInt("id"));
+
+        parameters.clear();
+        result = processBatchPostRequest(parameters, new JSONArray("[{\"cidr\":\"10.9.0.0/16\"},{\"cidr\":\"10.9.0.0/64\"}]"), repo);
+        Assert.assertEquals("Expected invalid item response code", new Integer(422), result.getValue());
+        Assert.assertFalse(repo.GetSubnet(IpamSubnet.fromCidr("10.9.0.0/16")).isPresent());
+
+        parameters.put("mode", "some");
+        result = processBatchPostRequest(parameters, batch, repo);
+        Assert.assertEquals("Expected invalid mode response code", new Integer(422), result.getValue());
+    }
+
+    @Test
+    public void ProcessLookupRequest () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(validV4Subnet);
+        repo.AddSubnet(validV6Subnet);
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("address", "192.168.24.77");
+        Pair<String, Integer> response = processLookupRequest(parameters, repo);
+        Assert.assertEquals(new Integer(CODE_SUCCESS), response.getValue());
+        JSONObject result = new JSONObject(response.getKey());
+        Assert.assertEquals(V4CIDR1, result.getJSONObject("match").getString("cidr"));
+        Assert.assertFalse("Expected no ancestors unless requested", result.has("ancestors"));
+
+        parameters.put("ancestors", "true");
+        result = new JSONObject(processLookupRequest(parameters, repo).getKey());
+        Assert.assertEquals(0, result.getJSONArray("ancestors").length());
+
+        parameters.put("address", "10.0.0.1");
+        Assert.assertEquals(new Integer(CODE_NOTFOUND), processLookupRequest(parameters, repo).getValue());
+        parameters.put("address", "10.0.0.1/24");
+        Assert.assertEquals(new Integer(CODE_INVALIDPARAMETER), processLookupRequest(parameters, repo).getValue());
+        parameters.put("ancestors", "maybe");
+        Assert.assertEquals(new Integer(CODE_INVALIDPARAMETER), processLookupRequest(parameters, repo).getValue());
+    }
+
+    @Test
+    public void ProcessUtilizationRequest () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/12"));
+        repo.AddSubnet(IpamSubnet.fromCidr("10.64.0.0/24"));
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("prefix", "10.0.0.0/8");
+        parameters.put("top", "1");
+        Pair<String, Integer> response = processUtilizationRequest(parameters, repo);
+        Assert.assertEquals(new Integer(CODE_SUCCESS), response.getValue());
+        JSONObject result = new JSONObject(response.getKey());
+        Assert.assertEquals(16777216, result.getLong("size"));
+        Assert.assertEquals((1 << 20) + (1 << 8), result.getLong("allocated"));
+        Assert.assertEquals(2, result.getInt("subnets"));
+        Assert.assertEquals(9, result.getInt("largestFreeMask"));
+        Assert.assertEquals(1, result.getJSONArray("top").length());
+        Assert.assertEquals("10.0.0.0/12", result.getJSONArray("top").getJSONObject(0).getString("cidr"));
+
+        parameters.put("prefix", "10.0.0.0/16");
+        parameters.remove("top");
+        result = new JSONObject(processUtilizationRequest(parameters, repo).getKey());
+        Assert.assertTrue("Expected prefix within a stored subnet to be full", result.isNull("largestFreeMask"));
+        Assert.assertFalse("Expected no top list unless requested", result.has("top"));
+
+        parameters.put("top", "-1");
+        Assert.assertEquals(new Integer(CODE_INVALIDPARAMETER), processUtilizationRequest(parameters, repo).getValue());
+        Assert.assertEquals(new Integer(CODE_INVALIDPARAMETER),
+                processUtilizationRequest(new HashMap<>(), repo).getValue());
+    }
+
+    @Test
+    public void ProcessBatchLookupRequest () {
+        IpamRepo repo = new IpamRepo(new BackingStoreMemory());
+        repo.AddSubnet(validV4Subnet);
+        repo.AddSubnet(validV6Subnet);
+
+        JSONArray addresses = new JSONArray("[\"192.168.24.1\", \"1:2:3:4::9\", \"10.0.0.1\", \"bogus\", 7]");
+        Pair<String, Integer> response = processBatchLookupRequest(new HashMap<>(), addresses, repo);
+        Assert.assertEquals(new Integer(CODE_SUCCESS), response.getValue());
+
+        JSONArray results = new JSONArray(response.getKey());
+        Assert.assertEquals(5, results.length());
+        Assert.assertEquals(V4CIDR1, results.getJSONObject(0).getJSONObject("match").getString("cidr"));
+        Assert.assertEquals(validV6Subnet.getCidr(), results.getJSONObject(1).getJSONObject("match").getString("cidr"));
+        Assert.assertTrue(results.getJSONObject(2).isNull("match"));
+        Assert.assertTrue(results.getJSONObject(3).has("error"));
+        Assert.assertTrue(results.getJSONObject(4).has("error"));
+
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("address", "192.168.24.1");
+        Assert.assertEquals("Expected address parameter rejected for a batch", new Integer(CODE_INVALIDPARAMETER),
+                processBatchLookupRequest(parameters, addresses, repo).getValue());
+        Assert.assertEquals(new Integer(CODE_INVALIDPARAMETER),
+                processBatchLookupRequest(new HashMap<>(), new JSONArray(), repo).getValue());
+    }
+
+    @Test
+    public void ServerHandlesRequestsOnExecutor () throws IOException {
+        IpamServer.repo = new IpamRepo(new BackingStoreMemory());
+        IpamServer.repo.AddSubnet(validV4Subnet);
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor);
+
+        try {
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + server.getAddress().getPort() + "/subnets");
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                Assert.assertEquals("[{\"cidr\":\"192.168.24.0/24\",\"id\":1,\"family\":\"4\"}]", reader.readLine());
+            }
+
+            connection = (java.net.HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (java.io.OutputStream out = connection.getOutputStream()) {
+                out.write("[{\"cidr\":\"10.0.0.0/8\"},{\"cidr\":\"11.0.0.0/8\"}]".getBytes("UTF-8"));
+            }
+            Assert.assertEquals("Expected batch response code", 200, connection.getResponseCode());
+            Assert.assertEquals("Expected batch stored", 3, IpamServer.repo.GetAllSubnets().size());
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ServerServesPrometheusMetrics () throws Exception {
+        IpamMetrics metrics = new IpamMetrics();
+        IpamServer.repo = new IpamRepo(new BackingStoreMetrics(new BackingStoreConcurrent(), metrics));
+        IpamServer.repo.AddSubnet(validV4Subnet);
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor, metrics, null);
+
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            java.net.HttpURLConnection connection =
+                    (java.net.HttpURLConnection) new java.net.URL(base + "/subnets?family=5").openConnection();
+            Assert.assertEquals("Expected invalid parameter response code", 422, connection.getResponseCode());
+
+            // The request is counted once its handler returns, which may be after the client has the response
+            String counted = "ipam_http_requests_total{route=\"/subnets\",method=\"GET\",code=\"422\"} 1";
+            String text = "";
+            for (int attempt = 0; attempt < 50 && !text.contains(counted); attempt++) {
+                if (attempt > 0)
+                    Thread.sleep(20);
+                connection = (java.net.HttpURLConnection) new java.net.URL(base + "/metrics").openConnection();
+                Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+                Assert.assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+                try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                    text = reader.lines().collect(java.util.stream.Collectors.joining("\n"));
+                }
+            }
+            Assert.assertTrue(text.contains(counted));
+            Assert.assertTrue(text.contains("ipam_store_records 1"));
+            Assert.assertTrue(text.contains("ipam_executor_queue_depth"));
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ServerWritesAccessLog () throws Exception {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        IpamServer.repo.AddSubnet(validV4Subnet);
+        java.io.StringWriter out = new java.io.StringWriter();
+        AsyncLog accessLog = new AsyncLog(out, 64, AsyncLog.Overflow.BLOCK, 1);
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor, null, accessLog);
+
+        try {
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + server.getAddress().getPort() + "/subnets?family=4");
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                reader.readLine();
+            }
+            // the filter logs once the handler returns, which may be after the client has the response
+            for (int wait = 0; wait < 100 && out.toString().isEmpty(); wait++)
+                Thread.sleep(20);
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+        accessLog.close();
+
+        JSONObject line = new JSONObject(out.toString().trim());
+        Assert.assertEquals("GET", line.getString("method"));
+        Assert.assertEquals("/subnets", line.getString("path"));
+        Assert.assertEquals(200, line.getInt("status"));
+        Assert.assertEquals("[{\"cidr\":\"192.168.24.0/24\",\"id\":1,\"family\":\"4\"}]".length(), line.getLong("bytes"));
+    }
+
+    @Test
+    public void ServerStreamsGetListingChunked () throws IOException {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        for (int i = 0; i < 5000; i++)
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"));
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor);
+
+        try {
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + server.getAddress().getPort() + "/subnets?family=4");
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+            Assert.assertEquals("Expected chunked response", "chunked", connection.getHeaderField("Transfer-Encoding"));
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                Assert.assertEquals("Expected every subnet listed", 5000, new org.json.JSONArray(reader.readLine()).length());
+            }
+
+            url = new java.net.URL("http://127.0.0.1:" + server.getAddress().getPort() + "/subnets?family=5");
+            connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected invalid parameter response code", 422, connection.getResponseCode());
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ServerPagesGetListingWithCursor () throws IOException {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        for (int i = 0; i < 5; i++)
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr("10." + (4 - i) + ".0.0/16"));
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor);
+
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/subnets?";
+            java.net.HttpURLConnection connection =
+                    (java.net.HttpURLConnection) new java.net.URL(base + "limit=2").openConnection();
+            Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+            Assert.assertEquals("Expected id cursor", "2", connection.getHeaderField(HEADER_NEXTCURSOR));
+
+            connection = (java.net.HttpURLConnection) new java.net.URL(base + "limit=2&order=network&after=10.1.0.0/16").openConnection();
+            Assert.assertEquals("Expected network cursor", "10.3.0.0/16", connection.getHeaderField(HEADER_NEXTCURSOR));
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                org.json.JSONArray page = new org.json.JSONArray(reader.readLine());
+                Assert.assertEquals("10.2.0.0/16", page.getJSONObject(0).getString("cidr"));
+            }
+
+            connection = (java.net.HttpURLConnection) new java.net.URL(base + "limit=2&after=4").openConnection();
+            Assert.assertNull("Expected no cursor on last page", connection.getHeaderField(HEADER_NEXTCURSOR));
+
+            connection = (java.net.HttpURLConnection) new java.net.URL(base + "limit=0").openConnection();
+            Assert.assertEquals("Expected invalid limit response code", 422, connection.getResponseCode());
+            connection = (java.net.HttpURLConnection) new java.net.URL(base + "order=network&after=5").openConnection();
+            Assert.assertEquals("Expected invalid cursor response code", 422, connection.getResponseCode());
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void ServerAnswersUnchangedListingFromCache () throws IOException {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        IpamServer.repo.AddSubnet(validV4Subnet);
+        java.util.concurrent.ExecutorService executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        com.sun.net.httpserver.HttpServer server =
+                startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, executor);
+
+        try {
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + server.getAddress().getPort() + "/subnets?family=4");
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected chunked response on first listing", "chunked", connection.getHeaderField("Transfer-Encoding"));
+            String etag = connection.getHeaderField(HEADER_ETAG);
+            Assert.assertNotNull("Expected ETag", etag);
+            // The listing is cached before its final chunk is sent, so reading to the end waits for it
+            try (InputStream body = connection.getInputStream()) {
+                while (body.read() >= 0)
+                    ;
+            }
+
+            connection = (java.net.HttpURLConnection) url.openConnection();
+            Assert.assertEquals("Expected same ETag at same revision", etag, connection.getHeaderField(HEADER_ETAG));
+            Assert.assertNull("Expected cached listing with fixed length", connection.getHeaderField("Transfer-Encoding"));
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                Assert.assertEquals(V4CIDR1, new org.json.JSONArray(reader.readLine()).getJSONObject(0).getString("cidr"));
+            }
+
+            connection = (java.net.HttpURLConnection) url.openConnection();
+            connection.setRequestProperty(HEADER_IFNONEMATCH, etag);
+            Assert.assertEquals("Expected not modified", 304, connection.getResponseCode());
+
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+            connection = (java.net.HttpURLConnection) url.openConnection();
+            connection.setRequestProperty(HEADER_IFNONEMATCH, etag);
+            Assert.assertEquals("Expected full listing after a change", 200, connection.getResponseCode());
+            Assert.assertNotEquals("Expected new ETag after a change", etag, connection.getHeaderField(HEADER_ETAG));
+            try (BufferedReader reader = new BufferedReader(new java.io.InputStreamReader(connection.getInputStream()))) {
+                Assert.assertEquals(2, new org.json.JSONArray(reader.readLine()).length());
+            }
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
     @Ignore
     @Test
     public void HandlerWithEmptyParametersAndValidGetRequest () throws IOException {
@@ -71,6 +71,22 @@ public class IpamSubnetTest {
         }
     }
 
+    @Test
+    public void ParseAddressesAsHostPrefixes() {
+        IpamSubnet v4 = IpamSubnet.tryFromAddress("10.4.7.19").get();
+        assertEquals("10.4.7.19/32", v4.getCidr());
+        assertEquals(IpamSubnet.Family.IPV4, v4.getFamily());
+
+        IpamSubnet v6 = IpamSubnet.tryFromAddress("2001:db8::42").get();
+        assertEquals(128, v6.getMask());
+        Assert.assertTrue(IpamSubnet.fromCidr("2001:db8::/32").contains(v6));
+        assertEquals("Expected mapped address as IPV4",
+                IpamSubnet.Family.IPV4, IpamSubnet.tryFromAddress("::ffff:10.4.7.19").get().getFamily());
+
+        for (String invalid : new String[] {"", "10.4.7", "10.4.7.256", "10.4.7.19/24", "2001:db8:::42", "::g"})
+            Assert.assertFalse("Expected invalid address: " + invalid, IpamSubnet.tryFromAddress(invalid).isPresent());
+    }
+
     @Test
     public void isValidIpamSubnetsPass() {
         for (int i = 0; i < validSubnets.size(); i++) {
@@ -109,6 +125,47 @@ public class IpamSubnetTest {
         assertNotEquals(ipam1, ipam2);
     }
 
+    @Test
+    public void CompareOrdersFamilyThenAddressThenMask() {
+        List<IpamSubnet> sorted = new ArrayList<>(Arrays.asList(
+                IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64"),
+                IpamSubnet.fromCidr("192.168.1.0/24"),
+                IpamSubnet.fromCidr("10.1.0.0/16"),
+                IpamSubnet.fromCidr("10.0.0.0/16"),
+                IpamSubnet.fromCidr("10.0.0.0/8"),
+                IpamSubnet.fromCidr("ffff:0:0:0:0:0:0:0/16")));
+        java.util.Collections.sort(sorted);
+
+        assertEquals("10.0.0.0/8", sorted.get(0).getCidr());
+        assertEquals("10.0.0.0/16", sorted.get(1).getCidr());
+        assertEquals("10.1.0.0/16", sorted.get(2).getCidr());
+        assertEquals("192.168.1.0/24", sorted.get(3).getCidr());
+        assertEquals("1:2:3:4:5:6:7:8/64", sorted.get(4).getCidr());
+        assertEquals("ffff:0:0:0:0:0:0:0/16", sorted.get(5).getCidr());
+    }
+
+    @Test
+    public void ContainsChecksPrefixAndFamily() {
+        IpamSubnet parent = IpamSubnet.fromCidr("10.0.0.0/8");
+
+        assertTrue(parent.contains(IpamSubnet.fromCidr("10.20.0.0/16")));
+        assertTrue(parent.contains(parent));
+        assertFalse(parent.contains(IpamSubnet.fromCidr("11.0.0.0/16")));
+        assertFalse(IpamSubnet.fromCidr("10.20.0.0/16").contains(parent));
+        assertFalse(IpamSubnet.fromCidr("2001:0:0:0:0:0:0:0/16")
+                .contains(IpamSubnet.fromCidr("10.0.0.0/24")));
+        assertTrue(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32")
+                .contains(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:ff00/120")));
+    }
+
+    @Test
+    public void EqualSubnetsShareHashCode() {
+        for (String[] subnet : validSubnets) {
+            String cidr = subnet[0] + "/" + subnet[1];
+            assertEquals(IpamSubnet.fromCidr(cidr).hashCode(), IpamSubnet.fromCidr(cidr).hashCode());
+        }
+    }
+
     // Additional Tests Needed
     // Reject Subnets with host bits beyond mask boundary (eg 192.168.1.1/24)
     //
@@ -0,0 +1,49 @@
+package us.somogyi.ipam;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class JsonRecordWriterTest {
+
+    public static final List<IpamRecord> exampleRecords = Arrays.asList(
+            new IpamRecord(IpamSubnet.fromCidr("192.168.24.0/24"), 1),
+            new IpamRecord(IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64"), 22),
+            new IpamRecord(IpamSubnet.fromCidr("10.0.0.0/8"), 333)
+    );
+
+    @Test
+    public void WriteMatchesOrgJsonSerialization () throws IOException {
+        StringWriter out = new StringWriter();
+        int count = new JsonRecordWriter(out).writeArray(exampleRecords.iterator());
+
+        JSONArray expected = new JSONArray();
+        for (IpamRecord record : exampleRecords) {
+            JSONObject jo = new JSONObject();
+            jo.put("id", record.getId());
+            jo.put("family", record.getSubnet().getFamily().getAlias());
+            jo.put("cidr", record.getSubnet().getCidr());
+            expected.put(jo);
+        }
+
+        Assert.assertEquals("Expected every record written", 3, count);
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public void WriteEmptyArray () throws IOException {
+        StringWriter out = new StringWriter();
+        new JsonRecordWriter(out).writeArray(Collections.<IpamRecord>emptyIterator());
+
+        Assert.assertEquals("[]", out.toString());
+    }
+}
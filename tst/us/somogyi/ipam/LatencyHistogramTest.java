@@ -0,0 +1,69 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesInOrder () {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            Assert.assertTrue("Expected buckets in value order at " + value, index == previous || index == previous + 1);
+            Assert.assertTrue("Expected value within its bucket", value <= LatencyHistogram.highestValue(index));
+            previous = index;
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void bucketPrecisionWithinSubBucket () {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.indexOf(value));
+            Assert.assertTrue("Expected error under 1/" + LatencyHistogram.SUBCOUNT + " at " + value,
+                    highest - value <= value / LatencyHistogram.SUBCOUNT);
+        }
+    }
+
+    @Test
+    public void quantilesCountAndSum () {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++)
+            histogram.record(value * 1000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500500000L, snapshot.getSum());
+        Assert.assertEquals(500000, snapshot.valueAtQuantile(0.5), 500000 / LatencyHistogram.SUBCOUNT);
+        Assert.assertEquals(990000, snapshot.valueAtQuantile(0.99), 990000 / LatencyHistogram.SUBCOUNT);
+        Assert.assertEquals(100, snapshot.countAtOrBelow(100000), 100 / LatencyHistogram.SUBCOUNT);
+        Assert.assertEquals(0, new LatencyHistogram().snapshot().valueAtQuantile(0.5));
+    }
+
+    @Test
+    public void mergeAcrossThreadsAndHistograms () throws InterruptedException {
+        LatencyHistogram shared = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    shared.record(i);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5);
+        LatencyHistogram.Snapshot merged = shared.snapshot().merge(other.snapshot());
+        Assert.assertEquals(80001, merged.getCount());
+        Assert.assertEquals(8L * 49995000 + 5, merged.getSum());
+    }
+}
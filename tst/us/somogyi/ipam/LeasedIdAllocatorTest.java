@@ -0,0 +1,155 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class LeasedIdAllocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // In-memory source that counts its leases
+    private static final class CountingSource implements LeasedIdAllocator.LeaseSource {
+        final AtomicInteger leases = new AtomicInteger();
+        private int next = 1;
+
+        @Override
+        public synchronized int lease(int count, int floor) {
+            leases.incrementAndGet();
+            int start = Math.max(next, floor);
+            next = start + count;
+            return start;
+        }
+    }
+
+    @Test
+    public void AllocatesFromBlocks() throws BackingStoreException {
+        CountingSource source = new CountingSource();
+        LeasedIdAllocator first = new LeasedIdAllocator(source, 4);
+        LeasedIdAllocator second = new LeasedIdAllocator(source, 4);
+
+        Assert.assertEquals(1, first.allocate());
+        Assert.assertEquals(5, second.allocate());
+        Assert.assertEquals(2, first.allocate());
+        Assert.assertEquals(3, first.peek());
+        for (int i = 0; i < 2; i++)
+            first.allocate();
+        Assert.assertEquals("Expected the next block past the other writer's", 9, first.allocate());
+        Assert.assertEquals(3, source.leases.get());
+    }
+
+    @Test
+    public void AdvanceSkipsLoadedIds() throws BackingStoreException {
+        CountingSource source = new CountingSource();
+        LeasedIdAllocator ids = new LeasedIdAllocator(source, 10);
+        Assert.assertEquals(1, ids.allocate());
+
+        ids.advance(5);
+        Assert.assertEquals("Expected an advance within the block to stay in it", 5, ids.allocate());
+        ids.advance(3);
+        Assert.assertEquals(6, ids.allocate());
+
+        ids.advance(100);
+        Assert.assertEquals(100, ids.peek());
+        Assert.assertEquals("Expected a lease above the advance", 100, ids.allocate());
+        Assert.assertEquals(2, source.leases.get());
+    }
+
+    @Test
+    public void UniqueAcrossThreadsAndWriters() throws Exception {
+        CountingSource source = new CountingSource();
+        List<LeasedIdAllocator> writers = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            writers.add(new LeasedIdAllocator(source, 64));
+
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 6; t++) {
+                LeasedIdAllocator writer = writers.get(t % writers.size());
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < 5000; i++)
+                        Assert.assertTrue(ids.add(writer.allocate()));
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(30000, ids.size());
+        Assert.assertTrue("Expected one lease per block, not per id", source.leases.get() <= 30000 / 64 + 3);
+    }
+
+    @Test
+    public void LeasesSurviveReopen() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("leases").resolve("ipam.idlease");
+
+        Set<Integer> issued = new HashSet<>();
+        try (IdLeaseFile leases = new IdLeaseFile(file)) {
+            Assert.assertEquals(1, leases.peek());
+            LeasedIdAllocator ids = new LeasedIdAllocator(leases, 100);
+            for (int i = 0; i < 150; i++)
+                issued.add(ids.allocate());
+            Assert.assertEquals(201, leases.peek());
+        }
+
+        // A writer that stopped mid-block loses the rest of it, but reuses no id
+        try (IdLeaseFile leases = new IdLeaseFile(file)) {
+            LeasedIdAllocator ids = new LeasedIdAllocator(leases, 100);
+            int id = ids.allocate();
+            Assert.assertEquals(201, id);
+            Assert.assertFalse(issued.contains(id));
+
+            IdLeaseFile other = new IdLeaseFile(file);
+            Assert.assertEquals("Expected a second handle to lease past the first", 301, other.lease(10, 0));
+            Assert.assertEquals(311, leases.lease(10, 0));
+            Assert.assertEquals(1000, leases.lease(10, 1000));
+            other.close();
+        }
+    }
+
+    @Test
+    public void StoresShareLeases() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (IdLeaseFile leases = new IdLeaseFile(dir.resolve("ipam.idlease"))) {
+            BackingStore concurrent = new BackingStoreConcurrent(new LeasedIdAllocator(leases, 8));
+            BackingStore memory = new BackingStoreMemory(new LeasedIdAllocator(leases, 8));
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 40; i++) {
+                IpamRecord a = concurrent.putSubnet(IpamSubnet.fromCidr("10.0." + i + ".0/24")).get();
+                IpamRecord b = memory.putSubnet(IpamSubnet.fromCidr("10.1." + i + ".0/24")).get();
+                Assert.assertTrue(ids.add(a.getId()));
+                Assert.assertTrue(ids.add(b.getId()));
+                Assert.assertEquals(a, concurrent.querySubnetById(a.getId()).get());
+            }
+
+            // A log store recovers with a counter past every id it had, leased or not
+            try (BackingStoreLog log = new BackingStoreLog(dir.resolve("log"), 1000, new LeasedIdAllocator(leases, 8))) {
+                log.putSubnet(IpamSubnet.fromCidr("192.168.0.0/24"));
+            }
+            try (BackingStoreLog log = new BackingStoreLog(dir.resolve("log"), 1000, new LeasedIdAllocator(leases, 8))) {
+                IpamRecord next = log.putSubnet(IpamSubnet.fromCidr("192.168.1.0/24")).get();
+                Assert.assertTrue(ids.add(next.getId()));
+                Assert.assertTrue(next.getId() > log.querySubnet(IpamSubnet.fromCidr("192.168.0.0/24")).get().getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package us.somogyi.ipam;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import static us.somogyi.ipam.IpamServer.*;
+
+public class NioHttpServerTest {
+
+    public static final IpamSubnet validV4Subnet = IpamSubnet.fromCidr("192.168.24.0/24");
+
+    private ExecutorService executor;
+    private NioHttpServer server;
+
+    @Before
+    public void startNio() throws IOException {
+        IpamServer.repo = new IpamRepo(new BackingStoreConcurrent());
+        IpamServer.repo.AddSubnet(validV4Subnet);
+        executor = ExecutionMode.FIXED.newExecutor(2, 16);
+        server = startNioServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16, 2, executor, null, null);
+    }
+
+    @After
+    public void stopNio() throws IOException {
+        server.close();
+        executor.shutdown();
+    }
+
+    // A response read off a raw connection
+    private static final class Response {
+        int code;
+        final Map<String, String> headers = new HashMap<>();
+        String body;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getAddress().getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String requests) throws IOException {
+        socket.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    // Read one response, with a Content-Length or chunked body
+    private static Response read(InputStream in) throws IOException {
+        Response response = new Response();
+        String status = readLine(in);
+        Assert.assertTrue("Expected status line, got " + status, status.startsWith("HTTP/1.1 "));
+        response.code = Integer.parseInt(status.substring(9, 12));
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+            for (int size = Integer.parseInt(readLine(in), 16); size > 0; size = Integer.parseInt(readLine(in), 16)) {
+                body.write(readFully(in, size));
+                Assert.assertEquals("", readLine(in));
+            }
+            Assert.assertEquals("", readLine(in));
+        } else {
+            body.write(readFully(in, Integer.parseInt(response.headers.getOrDefault("content-length", "0"))));
+        }
+        response.body = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0)
+                throw new EOFException("Connection closed mid response");
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        new DataInputStream(in).readFully(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void servesHttpUrlConnectionNioHttpServer () throws IOException {
+        for (int i = 0; i < 5000; i++)
+            IpamServer.repo.AddSubnet(IpamSubnet.fromCidr("10." + (i >> 8) + "." + (i & 0xFF) + ".0/24"));
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        java.net.HttpURLConnection connection =
+                (java.net.HttpURLConnection) new java.net.URL(base + "/subnets?family=4").openConnection();
+        Assert.assertEquals("Expected valid response code", 200, connection.getResponseCode());
+        Assert.assertEquals("Expected chunked response", "chunked", connection.getHeaderField("Transfer-Encoding"));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            Assert.assertEquals("Expected every subnet listed", 5001, new JSONArray(reader.readLine()).length());
+        }
+
+        connection = (java.net.HttpURLConnection) new java.net.URL(base + "/subnets").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("[{\"cidr\":\"11.0.0.0/8\"},{\"cidr\":\"12.0.0.0/8\"}]".getBytes(StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals("Expected batch response code", 200, connection.getResponseCode());
+        Assert.assertEquals("Expected batch stored", 5003, IpamServer.repo.GetAllSubnets().size());
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrderNioHttpServer () throws IOException {
+        String post = "{\"cidr\":\"10.0.0.0/8\"}";
+        try (Socket socket = connect()) {
+            send(socket, "GET /lookup?address=192.168.24.7 HTTP/1.1\r\nHost: ipam\r\n\r\n"
+                    + "POST /subnets HTTP/1.1\r\nHost: ipam\r\nContent-Length: " + post.length() + "\r\n\r\n" + post
+                    + "GET /lookup?address=10.1.2.3 HTTP/1.1\r\nHost: ipam\r\n\r\n"
+                    + "GET /lookup?address=172.16.0.1 HTTP/1.1\r\nHost: ipam\r\n\r\n");
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            Response first = read(in);
+            Assert.assertEquals(200, first.code);
+            Assert.assertEquals("192.168.24.0/24", new JSONObject(first.body).getJSONObject("match").getString("cidr"));
+            Assert.assertEquals("Expected POST answered second", 200, read(in).code);
+            Response third = read(in);
+            Assert.assertEquals("Expected lookup to see the POST before it", 200, third.code);
+            Assert.assertEquals("10.0.0.0/8", new JSONObject(third.body).getJSONObject("match").getString("cidr"));
+            Assert.assertEquals(CODE_NOTFOUND, read(in).code);
+
+            // The connection persists for a later request
+            send(socket, "GET /subnets?limit=1 HTTP/1.1\r\nHost: ipam\r\n\r\n");
+            Response later = read(in);
+            Assert.assertEquals(200, later.code);
+            Assert.assertNull("Expected keep-alive", later.headers.get("connection"));
+        }
+    }
+
+    @Test
+    public void closesWhenRequestedNioHttpServer () throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /subnets?limit=1 HTTP/1.1\r\nHost: ipam\r\nConnection: close\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            Response response = read(in);
+            Assert.assertEquals(200, response.code);
+            Assert.assertEquals("close", response.headers.get("connection"));
+            Assert.assertEquals("Expected connection closed", -1, in.read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /subnets?limit=1 HTTP/1.0\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            Assert.assertEquals(200, read(in).code);
+            Assert.assertEquals("Expected HTTP/1.0 connection closed", -1, in.read());
+        }
+    }
+
+    @Test
+    public void rejectsUnknownPathAndChunkedBodyNioHttpServer () throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /nothing HTTP/1.1\r\nHost: ipam\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            Assert.assertEquals(CODE_NOTFOUND, read(in).code);
+
+            send(socket, "POST /subnets HTTP/1.1\r\nHost: ipam\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+            Assert.assertEquals(501, read(in).code);
+            Assert.assertEquals("Expected connection closed", -1, in.read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "NONSENSE\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            Assert.assertEquals(CODE_INVALIDMETHOD, read(in).code);
+            Assert.assertEquals("Expected connection closed", -1, in.read());
+        }
+    }
+}
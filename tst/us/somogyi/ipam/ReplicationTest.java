@@ -0,0 +1,237 @@
+package us.somogyi.ipam;
+
+import com.sun.net.httpserver.Headers;
+import javafx.util.Pair;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static us.somogyi.ipam.BackingStore.IpamRecord;
+
+public class ReplicationTest {
+
+    private static final long WAIT = 10000;     // milliseconds, generous for a loaded machine
+
+    private final List<AutoCloseable> opened = new ArrayList<>();
+
+    @After
+    public void closeAll() throws Exception {
+        for (int i = opened.size() - 1; i >= 0; i--)
+            opened.get(i).close();
+        IpamServer.follower = null;
+        IpamServer.leader = null;
+    }
+
+    private ReplicationServer serve(BackingStoreLeader leader) throws IOException {
+        ReplicationServer server = new ReplicationServer(leader, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        opened.add(server);
+        return server;
+    }
+
+    private static final class Replica {
+        final BackingStoreConcurrent store = new BackingStoreConcurrent();
+        final IpamRepo repo = new IpamRepo(store);
+        ReplicationFollower follower;
+    }
+
+    private Replica follow(ReplicationServer server) {
+        Replica replica = new Replica();
+        replica.follower = new ReplicationFollower(replica.repo, replica.store,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        opened.add(replica.follower);
+        replica.follower.start();
+        return replica;
+    }
+
+    private static void awaitCaughtUp(Replica replica, BackingStoreLeader leader) throws InterruptedException {
+        Assert.assertTrue("Expected follower to apply change " + leader.getSequence(),
+                replica.follower.awaitApplied(leader.getSequence(), WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    private static IpamSubnet address(String address) {
+        return IpamSubnet.tryFromAddress(address).get();
+    }
+
+    private static Headers request(String changeSequence) {
+        Headers request = new Headers();
+        if (changeSequence != null)
+            request.set(IpamServer.HEADER_CHANGESEQUENCE, changeSequence);
+        return request;
+    }
+
+    @Test
+    public void FollowersConvergeWithLeaderIds() throws Exception {
+        BackingStoreLeader leader = new BackingStoreLeader(new BackingStoreConcurrent());
+        IpamRepo leaderRepo = new IpamRepo(leader);
+        leaderRepo.AddSubnet(IpamSubnet.fromCidr("10.0.0.0/8"));
+        ReplicationServer server = serve(leader);
+
+        Replica first = follow(server);
+        Replica second = follow(server);
+        for (int i = 0; i < 100; i++)
+            leaderRepo.AddSubnet(IpamSubnet.fromCidr("10." + i + ".0.0/16"));
+        leaderRepo.DeleteSubnet(IpamSubnet.fromCidr("10.7.0.0/16"));
+
+        for (Replica replica : new Replica[] { first, second }) {
+            awaitCaughtUp(replica, leader);
+            Assert.assertEquals(leader.queryAllSubnets(), replica.store.queryAllSubnets());
+            Assert.assertEquals(0, replica.follower.getStaleness());
+            Assert.assertEquals(leaderRepo.LookupAddress(address("10.9.1.1")),
+                    replica.repo.LookupAddress(address("10.9.1.1")));
+            Assert.assertEquals("Expected the deleted subnet's addresses to fall to the /8",
+                    IpamSubnet.fromCidr("10.0.0.0/8"),
+                    replica.repo.LookupAddress(address("10.7.1.1")).get().getSubnet());
+        }
+        Assert.assertEquals(2, server.getFollowerCount());
+    }
+
+    @Test
+    public void FollowerReceivesWritesThroughLeaderCache() throws Exception {
+        BackingStoreConcurrent store = new BackingStoreConcurrent();
+        BackingStoreLeader leader = new BackingStoreLeader(store);
+        IpamRepo leaderRepo = new IpamRepo(IpamServer.ServedStore(store, leader, 100, null));
+        ReplicationServer server = serve(leader);
+        Replica replica = follow(server);
+
+        IpamSubnet subnet = IpamSubnet.fromCidr("10.1.0.0/16");
+        Assert.assertFalse("Expected the miss cached", leaderRepo.GetSubnet(subnet).isPresent());
+        IpamRecord added = leaderRepo.AddSubnet(subnet).get();
+        Assert.assertTrue("Expected the write logged", leader.getSequence() > 0);
+
+        awaitCaughtUp(replica, leader);
+        Assert.assertEquals(Optional.of(added), replica.store.querySubnet(subnet));
+        Assert.assertEquals(Optional.of(added), leaderRepo.GetSubnet(subnet));
+    }
+
+    @Test
+    public void FollowerResynchronizesFromSnapshot() throws Exception {
+        // Retain only a few changes, so a follower that falls further behind needs a snapshot
+        BackingStoreLeader leader = new BackingStoreLeader(new BackingStoreConcurrent(), 4);
+        leader.putSubnet(IpamSubnet.fromCidr("192.168.0.0/24"));
+        ReplicationServer server = serve(leader);
+
+        // The follower holds a subnet the leader never had, which the snapshot removes
+        Replica replica = new Replica();
+        replica.store.load(IpamSubnet.fromCidr("172.16.0.0/12"), 99);
+        replica.follower = new ReplicationFollower(replica.repo, replica.store,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        opened.add(replica.follower);
+
+        for (int i = 0; i < 20; i++)
+            leader.putSubnet(IpamSubnet.fromCidr("10.0." + i + ".0/24"));
+        leader.deleteSubnet(IpamSubnet.fromCidr("10.0.3.0/24"));
+        replica.follower.start();
+
+        awaitCaughtUp(replica, leader);
+        Assert.assertEquals(leader.queryAllSubnets(), replica.store.queryAllSubnets());
+        Assert.assertFalse(replica.repo.LookupAddress(address("172.16.1.1")).isPresent());
+        Assert.assertTrue(replica.repo.LookupAddress(address("10.0.19.1")).isPresent());
+    }
+
+    @Test
+    public void FollowerResumesAfterReconnect() throws Exception {
+        BackingStoreLeader leader = new BackingStoreLeader(new BackingStoreConcurrent());
+        ReplicationServer server = serve(leader);
+        int port = server.getPort();
+
+        Replica replica = follow(server);
+        leader.putSubnet(IpamSubnet.fromCidr("10.1.0.0/16"));
+        awaitCaughtUp(replica, leader);
+
+        // Drop the follower, write while it is away, and let it reconnect to a new server
+        server.close();
+        leader.putSubnet(IpamSubnet.fromCidr("10.2.0.0/16"));
+        leader.deleteSubnet(IpamSubnet.fromCidr("10.1.0.0/16"));
+        // The reconnecting follower may briefly hold the port itself, so retry the bind
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (true) {
+            try {
+                opened.add(new ReplicationServer(leader, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50));
+                break;
+            } catch (BindException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+
+        awaitCaughtUp(replica, leader);
+        Assert.assertEquals(leader.queryAllSubnets(), replica.store.queryAllSubnets());
+        Optional<IpamRecord> moved = replica.repo.GetSubnet(IpamSubnet.fromCidr("10.2.0.0/16"));
+        Assert.assertEquals(leader.querySubnet(IpamSubnet.fromCidr("10.2.0.0/16")), moved);
+    }
+
+    @Test
+    public void LeaderChangeLogIsBounded() throws Exception {
+        BackingStoreLeader leader = new BackingStoreLeader(new BackingStoreConcurrent(), 3);
+        Assert.assertEquals(0, leader.getSequence());
+        leader.putSubnet(IpamSubnet.fromCidr("10.0.0.0/24"));
+        Assert.assertFalse("Expected a duplicate not to be logged", leader.putSubnet(IpamSubnet.fromCidr("10.0.0.0/24")).isPresent());
+        leader.putSubnet(IpamSubnet.fromCidr("10.0.1.0/24"));
+        leader.deleteSubnet(IpamSubnet.fromCidr("10.0.0.0/24"));
+        Assert.assertEquals(3, leader.getSequence());
+
+        List<BackingStoreLeader.Change> changes = leader.changesAfter(0, 10);
+        Assert.assertEquals(3, changes.size());
+        Assert.assertTrue(changes.get(2).isDeleted());
+        Assert.assertEquals(IpamSubnet.fromCidr("10.0.0.0/24"), changes.get(2).getRecord().getSubnet());
+        Assert.assertEquals(1, leader.changesAfter(1, 1).size());
+
+        leader.putSubnet(IpamSubnet.fromCidr("10.0.2.0/24"));
+        Assert.assertNull("Expected the first change to have been trimmed", leader.changesAfter(0, 10));
+        Assert.assertEquals(3, leader.changesAfter(1, 10).size());
+        Assert.assertEquals(4, leader.awaitChange(3, 1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void FollowerGateRefusesWritesAndStaleReads() throws Exception {
+        Assert.assertNull("Expected no gate without replication", IpamServer.FollowerGate(request(null), new Headers(), true));
+
+        // A follower of a leader that is not there has never caught up
+        BackingStoreConcurrent store = new BackingStoreConcurrent();
+        ReplicationFollower follower = new ReplicationFollower(new IpamRepo(store), store,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+        IpamServer.follower = follower;
+
+        Pair<String, Integer> refused = IpamServer.FollowerGate(request(null), new Headers(), true);
+        Assert.assertEquals(IpamServer.CODE_MISDIRECTED, refused.getValue().intValue());
+        Assert.assertEquals(IpamServer.CODE_UNAVAILABLE, IpamServer.FollowerGate(request(null), new Headers(), false).getValue().intValue());
+        Assert.assertEquals(IpamServer.CODE_INVALIDPARAMETER,
+                IpamServer.FollowerGate(request("soon"), new Headers(), false).getValue().intValue());
+    }
+
+    @Test
+    public void FollowerGateReadsYourWrites() throws Exception {
+        BackingStoreLeader leader = new BackingStoreLeader(new BackingStoreConcurrent());
+        IpamRepo leaderRepo = new IpamRepo(leader);
+        Replica replica = follow(serve(leader));
+        IpamServer.follower = replica.follower;
+        awaitCaughtUp(replica, leader);
+
+        leaderRepo.AddSubnet(IpamSubnet.fromCidr("10.3.0.0/16"));
+        Headers response = new Headers();
+        Assert.assertNull(IpamServer.FollowerGate(request(Long.toString(leader.getSequence())), response, false));
+        Assert.assertTrue("Expected the write to be visible once the gate passes",
+                replica.repo.GetSubnet(IpamSubnet.fromCidr("10.3.0.0/16")).isPresent());
+        Assert.assertEquals(Long.toString(leader.getSequence()),
+                response.getFirst(IpamServer.HEADER_CHANGESEQUENCE));
+
+        long saved = IpamServer.readWait;
+        IpamServer.readWait = 1;
+        try {
+            Assert.assertEquals("Expected a change the leader never made to time out", IpamServer.CODE_UNAVAILABLE,
+                    IpamServer.FollowerGate(request(Long.toString(leader.getSequence() + 100)), new Headers(), false).getValue().intValue());
+        } finally {
+            IpamServer.readWait = saved;
+        }
+    }
+}
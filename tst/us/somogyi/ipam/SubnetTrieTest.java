@@ -0,0 +1,317 @@
+package us.somogyi.ipam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class SubnetTrieTest {
+
+    @Test
+    public void PutAndGetExactPrefixes () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+
+        Assert.assertNull(trie.put(IpamSubnet.fromCidr("10.0.0.0/8"), 1));
+        Assert.assertNull(trie.put(IpamSubnet.fromCidr("10.1.0.0/16"), 2));
+        Assert.assertNull(trie.put(IpamSubnet.fromCidr("192.168.1.0/24"), 3));
+        Assert.assertEquals("Expected replaced value", new Integer(3),
+                trie.put(IpamSubnet.fromCidr("192.168.1.0/24"), 4));
+
+        Assert.assertEquals(3, trie.size());
+        Assert.assertEquals(new Integer(1), trie.get(IpamSubnet.fromCidr("10.0.0.0/8")));
+        Assert.assertEquals(new Integer(2), trie.get(IpamSubnet.fromCidr("10.1.0.0/16")));
+        Assert.assertEquals(new Integer(4), trie.get(IpamSubnet.fromCidr("192.168.1.0/24")));
+        Assert.assertNull("Expected no value for unstored branch prefix", trie.get(IpamSubnet.fromCidr("10.0.0.0/15")));
+        Assert.assertNull(trie.get(IpamSubnet.fromCidr("10.0.0.0/9")));
+    }
+
+    @Test
+    public void LongestMatchOfAddresses () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        trie.put(IpamSubnet.fromCidr("10.0.0.0/8"), 1);
+        trie.put(IpamSubnet.fromCidr("10.4.0.0/16"), 2);
+        trie.put(IpamSubnet.fromCidr("10.4.7.0/24"), 3);
+        trie.put(IpamSubnet.fromCidr("10.4.8.0/24"), null);    // reserved, not yet stored
+
+        Assert.assertEquals(new Integer(3), trie.longestMatch(IpamSubnet.tryFromAddress("10.4.7.19").get()));
+        Assert.assertEquals(new Integer(2), trie.longestMatch(IpamSubnet.tryFromAddress("10.4.9.1").get()));
+        Assert.assertEquals("Expected reserved prefix passed over",
+                new Integer(2), trie.longestMatch(IpamSubnet.tryFromAddress("10.4.8.1").get()));
+        Assert.assertEquals(new Integer(1), trie.longestMatch(IpamSubnet.tryFromAddress("10.255.255.255").get()));
+        Assert.assertNull(trie.longestMatch(IpamSubnet.tryFromAddress("11.0.0.1").get()));
+        Assert.assertEquals("Expected a subnet to match itself",
+                new Integer(2), trie.longestMatch(IpamSubnet.fromCidr("10.4.0.0/16")));
+
+        List<Integer> chain = trie.containing(IpamSubnet.tryFromAddress("10.4.7.19").get());
+        Assert.assertEquals(java.util.Arrays.asList(1, 2, 3), chain);
+        Assert.assertTrue(trie.containing(IpamSubnet.tryFromAddress("11.0.0.1").get()).isEmpty());
+
+        SubnetTrie<Integer> v6 = new SubnetTrie<>(IpamSubnet.Family.IPV6);
+        v6.put(IpamSubnet.fromCidr("2001:db8::/32"), 4);
+        Assert.assertEquals(new Integer(4), v6.longestMatch(IpamSubnet.tryFromAddress("2001:db8::42").get()));
+        Assert.assertNull(v6.longestMatch(IpamSubnet.tryFromAddress("2001:db9::42").get()));
+    }
+
+    @Test
+    public void DetectAncestorsAndDescendants () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        trie.put(IpamSubnet.fromCidr("10.0.0.0/16"), 1);
+        trie.put(IpamSubnet.fromCidr("10.2.0.0/16"), 2);
+
+        Assert.assertTrue("Expected ancestor overlap", trie.overlaps(IpamSubnet.fromCidr("10.0.0.0/8")));
+        Assert.assertTrue("Expected descendant overlap", trie.overlaps(IpamSubnet.fromCidr("10.0.4.0/24")));
+        Assert.assertTrue("Expected exact overlap", trie.overlaps(IpamSubnet.fromCidr("10.2.0.0/16")));
+        Assert.assertTrue("Expected ancestor overlap of branch", trie.overlaps(IpamSubnet.fromCidr("10.0.0.0/14")));
+        Assert.assertFalse("Expected no overlap with sibling", trie.overlaps(IpamSubnet.fromCidr("10.1.0.0/16")));
+        Assert.assertFalse("Expected no overlap with disjoint", trie.overlaps(IpamSubnet.fromCidr("11.0.0.0/8")));
+    }
+
+    @Test
+    public void RemoveKeepsRemainingPrefixes () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV6);
+        trie.put(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32"), 1);
+        trie.put(IpamSubnet.fromCidr("2001:db8:1:0:0:0:0:0/48"), 2);
+        trie.put(IpamSubnet.fromCidr("2001:db8:2:0:0:0:0:0/48"), 3);
+
+        Assert.assertEquals(new Integer(1), trie.remove(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32")));
+        Assert.assertNull("Expected missing prefix to return null", trie.remove(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32")));
+        Assert.assertFalse(trie.overlaps(IpamSubnet.fromCidr("2001:db8:3:0:0:0:0:0/48")));
+        Assert.assertTrue(trie.overlaps(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32")));
+
+        Assert.assertEquals(new Integer(2), trie.remove(IpamSubnet.fromCidr("2001:db8:1:0:0:0:0:0/48")));
+        Assert.assertEquals(new Integer(3), trie.remove(IpamSubnet.fromCidr("2001:db8:2:0:0:0:0:0/48")));
+        Assert.assertEquals(0, trie.size());
+        Assert.assertFalse(trie.overlaps(IpamSubnet.fromCidr("2001:db8:0:0:0:0:0:0/32")));
+    }
+
+    @Test
+    public void OverlapsAgreesWithLinearScan () {
+        Random random = new Random(42);
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        List<IpamSubnet> stored = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++) {
+            IpamSubnet candidate = randomV4Subnet(random);
+            boolean expected = false;
+            for (IpamSubnet s : stored)
+                expected |= overlapsByScan(s, candidate);
+
+            Assert.assertEquals("Overlap mismatch for " + candidate.getCidr(), expected, trie.overlaps(candidate));
+            if (!expected) {
+                trie.put(candidate, i);
+                stored.add(candidate);
+            } else if (random.nextInt(4) == 0 && !stored.isEmpty()) {
+                IpamSubnet victim = stored.remove(random.nextInt(stored.size()));
+                Assert.assertNotNull(trie.remove(victim));
+            }
+        }
+        Assert.assertEquals(stored.size(), trie.size());
+    }
+
+    @Test
+    public void FindFreeWithinParent () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        IpamSubnet parent = IpamSubnet.fromCidr("10.20.0.0/16");
+
+        Assert.assertEquals("Expected start of empty parent", IpamSubnet.fromCidr("10.20.0.0/26"),
+                trie.findFree(parent, 26, AllocationPolicy.FIRST_FIT));
+
+        trie.put(IpamSubnet.fromCidr("10.20.0.0/26"), 1);
+        trie.put(IpamSubnet.fromCidr("10.20.0.128/25"), 2);
+        trie.put(IpamSubnet.fromCidr("10.20.1.0/24"), 3);
+        trie.put(IpamSubnet.fromCidr("10.21.0.0/16"), 4);
+
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.0.64/26"), trie.findFree(parent, 26, AllocationPolicy.FIRST_FIT));
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.2.0/24"), trie.findFree(parent, 24, AllocationPolicy.FIRST_FIT));
+        Assert.assertEquals(IpamSubnet.fromCidr("10.20.0.64/28"), trie.findFree(parent, 28, AllocationPolicy.BEST_FIT));
+        Assert.assertNull("Expected stored parent to be full",
+                trie.findFree(IpamSubnet.fromCidr("10.21.0.0/16"), 24, AllocationPolicy.FIRST_FIT));
+        Assert.assertNull("Expected parent within stored prefix to be full",
+                trie.findFree(IpamSubnet.fromCidr("10.21.4.0/22"), 24, AllocationPolicy.BEST_FIT));
+        Assert.assertNull("Expected no free /16",
+                trie.findFree(parent, 16, AllocationPolicy.FIRST_FIT));
+
+        IpamSubnet v6Parent = IpamSubnet.fromCidr("2001:db8::/32");
+        SubnetTrie<Integer> v6 = new SubnetTrie<>(IpamSubnet.Family.IPV6);
+        v6.put(IpamSubnet.fromCidr("2001:db8::/64"), 1);
+        Assert.assertEquals(IpamSubnet.fromCidr("2001:db8:0:1::/127"), v6.findFree(v6Parent, 127, AllocationPolicy.FIRST_FIT));
+        Assert.assertEquals(IpamSubnet.fromCidr("2001:db8:0:1::/64"), v6.findFree(v6Parent, 64, AllocationPolicy.FIRST_FIT));
+        Assert.assertEquals(IpamSubnet.fromCidr("2001:db8:0:1::/120"), v6.findFree(v6Parent, 120, AllocationPolicy.BEST_FIT));
+    }
+
+    @Test
+    public void FindFreeAgreesWithLinearScan () {
+        Random random = new Random(7);
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        List<IpamSubnet> stored = new ArrayList<>();
+        int base = 10 << 24;
+        IpamSubnet parent = IpamSubnet.fromBits(IpamSubnet.Family.IPV4, (long) base << 32, 0, 20);
+        trie.put(IpamSubnet.fromCidr("10.0.16.0/20"), -1);     // neighbours outside the parent
+        trie.put(IpamSubnet.fromCidr("10.0.64.0/18"), -2);
+
+        for (int i = 0; i < 3000; i++) {
+            int mask = 20 + random.nextInt(9);
+            IpamSubnet candidate = v4Block(base + (random.nextInt(1 << 12) >> (32 - mask) << (32 - mask)), mask);
+            if (stored.stream().noneMatch(s -> overlapsByScan(s, candidate))) {
+                trie.put(candidate, i);
+                stored.add(candidate);
+            } else if (random.nextInt(3) == 0) {
+                Assert.assertNotNull(trie.remove(stored.remove(random.nextInt(stored.size()))));
+            }
+
+            int want = 20 + random.nextInt(9);
+            Assert.assertEquals("First fit mismatch for /" + want, firstFitByScan(stored, base, want),
+                    trie.findFree(parent, want, AllocationPolicy.FIRST_FIT));
+            Assert.assertEquals("Best fit mismatch for /" + want, bestFitByScan(stored, base, want),
+                    trie.findFree(parent, want, AllocationPolicy.BEST_FIT));
+        }
+    }
+
+    @Test
+    public void UtilizationOfPrefixes () {
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        IpamSubnet parent = IpamSubnet.fromCidr("10.0.0.0/8");
+
+        SubnetUtilization empty = trie.utilization(parent);
+        Assert.assertEquals(BigInteger.ZERO, empty.getAllocated());
+        Assert.assertEquals(8, empty.getLargestFreeMask());
+
+        trie.put(IpamSubnet.fromCidr("10.0.0.0/12"), 1);
+        trie.put(IpamSubnet.fromCidr("10.64.0.0/24"), 2);
+        trie.put(IpamSubnet.fromCidr("10.128.0.0/16"), 3);
+        trie.put(IpamSubnet.fromCidr("11.0.0.0/16"), 4);        // outside the parent
+
+        SubnetUtilization usage = trie.utilization(parent);
+        Assert.assertEquals(BigInteger.valueOf((1 << 20) + (1 << 8) + (1 << 16)), usage.getAllocated());
+        Assert.assertEquals(BigInteger.valueOf(1 << 24), usage.getSize());
+        Assert.assertEquals(3, usage.getSubnets());
+        Assert.assertEquals("Expected both halves in use", 10, usage.getLargestFreeMask());
+        Assert.assertEquals(Arrays.asList(1, 3, 2), trie.widest(parent, 10));
+        Assert.assertEquals(Arrays.asList(1, 3), trie.widest(parent, 2));
+
+        SubnetUtilization within = trie.utilization(IpamSubnet.fromCidr("10.1.0.0/16"));
+        Assert.assertEquals("Expected prefix within a stored prefix to be full",
+                within.getSize(), within.getAllocated());
+        Assert.assertEquals(-1, within.getLargestFreeMask());
+
+        trie.remove(IpamSubnet.fromCidr("10.0.0.0/12"));
+        Assert.assertEquals(2, trie.utilization(parent).getSubnets());
+        Assert.assertEquals(BigInteger.valueOf((1 << 8) + (1 << 16)), trie.utilization(parent).getAllocated());
+
+        // Two /1s cover the whole IPV6 space, more addresses than the 128 bit count holds
+        SubnetTrie<Integer> v6 = new SubnetTrie<>(IpamSubnet.Family.IPV6);
+        v6.put(IpamSubnet.fromBits(IpamSubnet.Family.IPV6, 0, 0, 1), 1);
+        v6.put(IpamSubnet.fromBits(IpamSubnet.Family.IPV6, Long.MIN_VALUE, 0, 1), 2);
+        SubnetUtilization all = v6.utilization(IpamSubnet.fromBits(IpamSubnet.Family.IPV6, 0, 0, 0));
+        Assert.assertEquals(BigInteger.ONE.shiftLeft(128), all.getAllocated());
+        Assert.assertEquals(1.0, all.getUtilization(), 0.0);
+    }
+
+    @Test
+    public void UtilizationAgreesWithLinearScan () {
+        Random random = new Random(11);
+        SubnetTrie<Integer> trie = new SubnetTrie<>(IpamSubnet.Family.IPV4);
+        List<IpamSubnet> stored = new ArrayList<>();
+        Map<Integer, IpamSubnet> byValue = new HashMap<>();
+        int base = 10 << 24;
+        IpamSubnet parent = IpamSubnet.fromBits(IpamSubnet.Family.IPV4, (long) base << 32, 0, 20);
+        trie.put(IpamSubnet.fromCidr("10.0.16.0/20"), -1);     // neighbours outside the parent
+        trie.put(IpamSubnet.fromCidr("10.0.64.0/18"), -2);
+
+        for (int i = 0; i < 2000; i++) {
+            int mask = 20 + random.nextInt(9);
+            IpamSubnet candidate = v4Block(base + (random.nextInt(1 << 12) >> (32 - mask) << (32 - mask)), mask);
+            if (stored.stream().noneMatch(s -> overlapsByScan(s, candidate))) {
+                trie.put(candidate, i);
+                stored.add(candidate);
+                byValue.put(i, candidate);
+            } else if (random.nextInt(3) == 0) {
+                Assert.assertNotNull(trie.remove(stored.remove(random.nextInt(stored.size()))));
+            }
+
+            long allocated = 0;
+            for (IpamSubnet s : stored)
+                allocated += 1L << (32 - s.getMask());
+            int largest = -1;
+            for (int want = 32; want >= 20; want--) {
+                if (firstFitByScan(stored, base, want) != null)
+                    largest = want;
+            }
+
+            SubnetUtilization usage = trie.utilization(parent);
+            Assert.assertEquals(BigInteger.valueOf(allocated), usage.getAllocated());
+            Assert.assertEquals(stored.size(), usage.getSubnets());
+            Assert.assertEquals(largest, usage.getLargestFreeMask());
+
+            List<IpamSubnet> widest = new ArrayList<>();
+            for (int value : trie.widest(parent, 5))
+                widest.add(byValue.get(value));
+            Assert.assertEquals(stored.stream()
+                    .sorted(Comparator.comparingInt(IpamSubnet::getMask).thenComparing(Comparator.naturalOrder()))
+                    .limit(5).collect(Collectors.toList()), widest);
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void RejectMismatchedFamily () {
+        new SubnetTrie<Integer>(IpamSubnet.Family.IPV4).put(IpamSubnet.fromCidr("1:2:3:4:5:6:7:8/64"), 1);
+    }
+
+    private static IpamSubnet randomV4Subnet(Random random) {
+        int mask = 4 + random.nextInt(20);
+        int address = random.nextInt(64) << 26 | random.nextInt(1 << 26);
+        address &= -1 << (32 - mask);
+        return IpamSubnet.fromCidr(((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF) + "/" + mask);
+    }
+
+    private static IpamSubnet v4Block(int address, int mask) {
+        return IpamSubnet.fromBits(IpamSubnet.Family.IPV4, (long) address << 32, 0, mask);
+    }
+
+    private static boolean freeByScan(List<IpamSubnet> stored, IpamSubnet block) {
+        return stored.stream().noneMatch(s -> overlapsByScan(s, block));
+    }
+
+    // Lowest free /mask within the /20 at base
+    private static IpamSubnet firstFitByScan(List<IpamSubnet> stored, int base, int mask) {
+        for (int k = 0; k < 1 << (mask - 20); k++) {
+            IpamSubnet block = v4Block(base + (k << (32 - mask)), mask);
+            if (freeByScan(stored, block))
+                return block;
+        }
+        return null;
+    }
+
+    // Lowest free /mask whose enclosing maximal free block within the /20 at base is smallest
+    private static IpamSubnet bestFitByScan(List<IpamSubnet> stored, int base, int mask) {
+        IpamSubnet best = null;
+        int bestArea = -1;
+        for (int k = 0; k < 1 << (mask - 20); k++) {
+            IpamSubnet block = v4Block(base + (k << (32 - mask)), mask);
+            if (!freeByScan(stored, block))
+                continue;
+            int area = mask;
+            while (area > 20 && freeByScan(stored, block.truncate(area - 1)))
+                area--;
+            if (area > bestArea) {
+                best = block;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    private static boolean overlapsByScan(IpamSubnet a, IpamSubnet b) {
+        int shorter = Math.min(a.getMask(), b.getMask());
+        return a.matchLength(b) >= shorter;
+    }
+}